@@ -3,6 +3,7 @@ package com.jflop.server;
 
 import com.jflop.server.admin.AdminController;
 import com.jflop.server.admin.AdminSecurityInterceptor;
+import com.jflop.server.admin.ServerStatsController;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistration;
@@ -26,6 +27,7 @@ public class CustomConfig extends WebMvcConfigurerAdapter {
     public void addInterceptors(InterceptorRegistry registry) {
         InterceptorRegistration registration = registry.addInterceptor(adminSecurityInterceptor);
         registration.addPathPatterns(AdminController.AGENTS_PATH, AdminController.AGENTS_PATH + "/**");
+        registration.addPathPatterns(ServerStatsController.STATS_PATH + "/**");
     }
 
     @Override
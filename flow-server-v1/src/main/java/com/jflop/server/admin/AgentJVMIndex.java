@@ -1,43 +1,139 @@
 package com.jflop.server.admin;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jflop.server.admin.data.AgentJVM;
 import com.jflop.server.admin.data.AgentJvmState;
 import com.jflop.server.admin.data.FeatureCommand;
 import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.persistency.IndexTemplate;
 import com.jflop.server.persistency.PersistentData;
 import com.jflop.server.util.DigestUtil;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * TODO: Document!
+ * Index of the agent JVM states.
+ * <p/>
+ * The states of the reporting JVMs are cached on the node, the updates are applied in memory,
+ * and flushed periodically in a batch of parallel versioned updates. If a flush meets a version conflict
+ * because the state was changed elsewhere, the stored state is merged with the cached one, and flushed again.
+ * Clean cached states are re-read after agentJvm.cache.refreshMillis. The feature commands set by the admin
+ * are flushed immediately. The commands are handed out to the agent by {@link #claimCommandsToSend(AgentJVM, Date)},
+ * which goes to the stored state only if the cached one has commands not sent yet, so that each command is sent once,
+ * whatever node gets the report. The commands set on another node are seen when the cached state is re-read.
  *
  * @author artem
  *         Date: 9/17/16
  */
 @Component
-public class AgentJVMIndex extends IndexTemplate {
+public class AgentJVMIndex extends IndexTemplate implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(AgentJVMIndex.class.getName());
 
     private static final String AGENT_JVM_INDEX = "jf-agent-jvm";
     private static final int MAX_JVM_NUM = 500;
     public static final int MAX_FEATURES = 10;
 
+    @Value("${agentJvm.cache.flushIntervalMillis:1000}")
+    private long flushIntervalMillis = 1000;
+
+    @Value("${agentJvm.cache.refreshMillis:10000}")
+    private long refreshMillis = 10000;
+
+    @Value("${agentJvm.cache.idleEvictMillis:600000}")
+    private long idleEvictMillis = 600000;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<AgentJVM, CachedState> cache = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Cached state of an agent JVM, guarded by its own monitor
+     */
+    private static class CachedState {
+        final String id;
+        AgentJvmState state;
+        long version;
+        boolean dirty;
+        long loadedAt;
+        long accessedAt;
+        CompletableFuture<Boolean> flushing;
+        final List<FeatureCommand> claimed = new ArrayList<>();
+
+        CachedState(PersistentData<AgentJvmState> doc) {
+            this.id = doc.id;
+            reset(doc);
+        }
+
+        void reset(PersistentData<AgentJvmState> doc) {
+            state = doc.source;
+            version = doc.version;
+            dirty = false;
+            loadedAt = accessedAt = System.currentTimeMillis();
+        }
+    }
+
     public AgentJVMIndex() {
         super(AGENT_JVM_INDEX + "-template", AGENT_JVM_INDEX + "*", new DocType("agent", "persistency/agentJvmState.json", AgentJvmState.class));
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, AGENT_JVM_INDEX + "-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+                evictIdle();
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "Failed to flush agent JVM states", e);
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) flusher.shutdownNow();
+        flush();
+    }
+
     @Override
     public String indexName() {
         return AGENT_JVM_INDEX;
     }
 
+    @Override
+    public void deleteIndex() {
+        cache.clear();
+        super.deleteIndex();
+    }
+
+    @Override
+    public void refreshIndex() {
+        flush();
+        super.refreshIndex();
+    }
+
     public void deleteAccount(String accountId) {
+        cache.keySet().removeIf(agentJvm -> agentJvm.accountId.equals(accountId));
         try {
             deleteByQuery(QueryBuilders.termQuery("agentJvm.accountId", accountId));
         } catch (IndexNotFoundException e) {
@@ -46,6 +142,7 @@ public class AgentJVMIndex extends IndexTemplate {
     }
 
     public void deleteAgent(String accountId, String agentId) {
+        cache.keySet().removeIf(agentJvm -> agentJvm.accountId.equals(accountId) && agentJvm.agentId.equals(agentId));
         try {
             deleteByQuery(
                     QueryBuilders.boolQuery()
@@ -57,6 +154,7 @@ public class AgentJVMIndex extends IndexTemplate {
     }
 
     public List<AgentJvmState> getAgentJvms(String accountId) {
+        flush();
         List<PersistentData<AgentJvmState>> list = find(QueryBuilders.termQuery("agentJvm.accountId", accountId), MAX_JVM_NUM * MAX_FEATURES, AgentJvmState.class, null);
         List<AgentJvmState> res = new ArrayList<>(list.size());
         for (PersistentData<AgentJvmState> data : list) {
@@ -65,50 +163,269 @@ public class AgentJVMIndex extends IndexTemplate {
         return res;
     }
 
+    /**
+     * @return a copy of the cached JVM state, with the last flushed version
+     */
     public PersistentData<AgentJvmState> getAgentJvmState(AgentJVM agentJVM, boolean createIfNotExists) {
+        CachedState cached = getCachedState(agentJVM, createIfNotExists);
+        synchronized (cached) {
+            return new PersistentData<>(cached.id, cached.version, mapper.convertValue(cached.state, AgentJvmState.class));
+        }
+    }
+
+    public void setCommand(AgentJVM agentJVM, FeatureCommand command) {
+        CachedState cached = getCachedState(agentJVM, false);
+        synchronized (cached) {
+            cached.state.setCommand(command);
+            cached.dirty = true;
+        }
+
+        // make the command visible to the other nodes right away
+        int maxAttempts = 3;
+        for (int i = 0; i < maxAttempts; i++) {
+            if (DocumentStore.await(flushState(cached))) return;
+        }
+        throw new RuntimeException("Failed to set feature command " + command.featureId + ":" + command.commandName + " after " + maxAttempts + " attempts");
+    }
+
+    /**
+     * Apply the action to the cached JVM state, the change is flushed in background
+     */
+    public void updateJvmState(AgentJVM agentJVM, JvmStateMergeAction action) {
+        CachedState cached = getCachedState(agentJVM, true);
+        synchronized (cached) {
+            action.merge(cached.state);
+            cached.dirty = true;
+        }
+    }
+
+    /**
+     * Mark the commands not sent yet as sent, with a versioned update of the stored state.
+     * If the cached state has no such commands, there is nothing to claim and the storage is not accessed.
+     * Otherwise the stored state is read by ID, so that the commands sent by another node are seen right away,
+     * and the update fails if another node has claimed the commands meanwhile. The cached state is refreshed on the way.
+     *
+     * @return the claimed commands
+     */
+    public List<FeatureCommand> claimCommandsToSend(AgentJVM agentJVM, Date now) {
+        CachedState cached = getCachedState(agentJVM, true);
+        synchronized (cached) {
+            if (!hasCommandsToSend(cached.state)) return Collections.emptyList();
+        }
+
+        int maxAttempts = 3;
+        for (int i = 0; i < maxAttempts; i++) {
+            PersistentData<AgentJvmState> stored = getDocument(new PersistentData<>(cached.id, 0), AgentJvmState.class);
+            if (stored == null) return Collections.emptyList();
+
+            List<FeatureCommand> claimed = new ArrayList<>();
+            if (stored.source.featureCommands != null)
+                for (FeatureCommand command : stored.source.featureCommands) {
+                    if (command.sentAt == null) {
+                        command.sentAt = now;
+                        claimed.add(command);
+                    }
+                }
+            if (!claimed.isEmpty()) {
+                try {
+                    stored = updateDocument(stored);
+                } catch (VersionConflictEngineException e) {
+                    continue;
+                }
+            }
+
+            synchronized (cached) {
+                if (cached.dirty) {
+                    // the pending changes take the sent time of the claimed commands
+                    cached.state = mergeStates(mapper.convertValue(stored.source, AgentJvmState.class), cached.state);
+                    cached.version = stored.version;
+                } else {
+                    cached.reset(stored);
+                }
+            }
+            return claimed;
+        }
+        throw new RuntimeException("Failed to claim the feature commands of " + agentJVM + " after " + maxAttempts + " attempts");
+    }
+
+    /**
+     * Claim the commands to send, and keep them in the cache until the next report of the JVM takes them.
+     * Used when the reports are answered before they are processed.
+     */
+    public void claimCommandsForNextReport(AgentJVM agentJVM, Date now) {
+        List<FeatureCommand> claimed = claimCommandsToSend(agentJVM, now);
+        if (claimed.isEmpty()) return;
+
+        CachedState cached = getCachedState(agentJVM, true);
+        synchronized (cached) {
+            cached.claimed.addAll(claimed);
+        }
+    }
+
+    /**
+     * Take the commands claimed by {@link #claimCommandsForNextReport(AgentJVM, Date)}, without accessing the storage.
+     * The commands claimed on this node are taken only by the reports coming to this node.
+     */
+    public List<FeatureCommand> takeClaimedCommands(AgentJVM agentJVM) {
+        CachedState cached = cache.get(agentJVM);
+        if (cached == null) return Collections.emptyList();
+        synchronized (cached) {
+            List<FeatureCommand> res = new ArrayList<>(cached.claimed);
+            cached.claimed.clear();
+            return res;
+        }
+    }
+
+    private static boolean hasCommandsToSend(AgentJvmState state) {
+        if (state.featureCommands == null) return false;
+        for (FeatureCommand command : state.featureCommands) {
+            if (command.sentAt == null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write all the changed JVM states
+     */
+    public void flush() {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (CachedState cached : cache.values()) {
+            futures.add(flushState(cached));
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                DocumentStore.await(future);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to flush agent JVM state", e);
+            }
+        }
+    }
+
+    private CachedState getCachedState(AgentJVM agentJVM, boolean createIfNotExists) {
+        long now = System.currentTimeMillis();
+        CachedState cached = cache.get(agentJVM);
+        if (cached != null) {
+            synchronized (cached) {
+                cached.accessedAt = now;
+                if (cached.dirty || now - cached.loadedAt < refreshMillis) return cached;
+            }
+            PersistentData<AgentJvmState> stored = readJvmState(agentJVM, createIfNotExists);
+            synchronized (cached) {
+                // the state might be changed while reading
+                if (!cached.dirty) cached.reset(stored);
+            }
+            return cached;
+        }
+
+        CachedState loaded = new CachedState(readJvmState(agentJVM, createIfNotExists));
+        cached = cache.putIfAbsent(agentJVM, loaded);
+        return cached == null ? loaded : cached;
+    }
+
+    private PersistentData<AgentJvmState> readJvmState(AgentJVM agentJVM, boolean createIfNotExists) {
         String id = DigestUtil.uniqueId(agentJVM);
         PersistentData<AgentJvmState> res = getDocument(new PersistentData<>(id, 0), AgentJvmState.class);
         if (res != null)
             return res;
 
         if (createIfNotExists)
-            return createDocument(new PersistentData<>(id, 0, new AgentJvmState(agentJVM)));
+            return createDocumentIfNotExists(new PersistentData<>(id, 0, new AgentJvmState(agentJVM)));
 
         throw new RuntimeException("Invalid JVM ID: " + id + " " + agentJVM);
     }
 
-    public void setCommand(AgentJVM agentJVM, FeatureCommand command) {
-        int maxAttempts = 3;
-        for (int i = 0; i < maxAttempts; i++) {
-            PersistentData<AgentJvmState> document = getAgentJvmState(agentJVM, false);
-            document.source.setCommand(command);
-            PersistentData<AgentJvmState> res;
-            try {
-                res = updateDocument(document);
-                if (res.version > document.version)
-                    return;
-            } catch (VersionConflictEngineException e) {
-                // try again
-            }
+    /**
+     * @return future of true if the changes up to now are written, false if the write failed and should be repeated
+     */
+    private CompletableFuture<Boolean> flushState(CachedState cached) {
+        PersistentData<AgentJvmState> doc;
+        CompletableFuture<Boolean> flushing = new CompletableFuture<>();
+        synchronized (cached) {
+            // one update at a time, otherwise they conflict with each other
+            if (cached.flushing != null && !cached.flushing.isDone())
+                return cached.flushing.thenCompose(clean -> flushState(cached));
+            if (!cached.dirty) return CompletableFuture.completedFuture(true);
+            doc = new PersistentData<>(cached.id, cached.version, mapper.convertValue(cached.state, AgentJvmState.class));
+            cached.dirty = false;
+            cached.flushing = flushing;
         }
-        throw new RuntimeException("Failed to set feature command " + command.featureId + ":" + command.commandName + " after " + maxAttempts + " attempts");
+
+        CompletableFuture<Boolean> res = updateDocumentAsync(doc).handle((updated, e) -> {
+            if (e == null) {
+                synchronized (cached) {
+                    cached.version = updated.version;
+                    cached.loadedAt = System.currentTimeMillis();
+                }
+                return CompletableFuture.completedFuture(true);
+            }
+
+            Throwable cause = ExceptionsHelper.unwrapCause(e instanceof CompletionException ? e.getCause() : e);
+            if (cause instanceof VersionConflictEngineException) {
+                // changed elsewhere, merge with the stored state
+                return getDocumentAsync(new PersistentData<>(cached.id, 0), AgentJvmState.class).handle((stored, readError) -> {
+                    synchronized (cached) {
+                        if (stored != null) {
+                            cached.state = mergeStates(stored.source, cached.state);
+                            cached.version = stored.version;
+                        }
+                        cached.dirty = true;
+                    }
+                    if (readError != null)
+                        logger.log(Level.WARNING, "Failed to read agent JVM state " + cached.id, readError);
+                    return false;
+                });
+            }
+
+            synchronized (cached) {
+                cached.dirty = true;
+            }
+            logger.log(Level.WARNING, "Failed to flush agent JVM state " + cached.id, cause);
+            return CompletableFuture.completedFuture(false);
+        }).thenCompose(Function.identity());
+        res.whenComplete((clean, e) -> flushing.complete(clean != null && clean));
+        return res;
     }
 
-    public void updateJvmState(AgentJVM agentJVM, int maxAttempts, JvmStateMergeAction action) {
-        boolean success = false;
-        for (int i = 0; i < maxAttempts; i++) {
-            PersistentData<AgentJvmState> existing = getAgentJvmState(agentJVM, true);
-            action.merge(existing.source);
-            try {
-                updateDocument(existing);
-                success = true;
-                break;
-            } catch (VersionConflictEngineException e) {
-                // continue
+    /**
+     * Merge the cached state into the stored one. The commands issued later win,
+     * the same command takes the progress of the copy that got the later response.
+     */
+    static AgentJvmState mergeStates(AgentJvmState stored, AgentJvmState cached) {
+        AgentJvmState res = stored;
+        if (cached.lastReportedAt != null && (res.lastReportedAt == null || cached.lastReportedAt.after(res.lastReportedAt))) {
+            res.lastReportedAt = cached.lastReportedAt;
+            res.errors = cached.errors;
+        }
+        if (res.featureCommands == null) res.featureCommands = new ArrayList<>();
+        if (cached.featureCommands == null) return res;
+
+        for (FeatureCommand command : cached.featureCommands) {
+            FeatureCommand existing = res.getCommand(command.featureId);
+            if (existing == null || compareDates(command.createdAt, existing.createdAt) > 0) {
+                res.setCommand(command);
+            } else if (compareDates(command.createdAt, existing.createdAt) == 0
+                    && Objects.equals(command.commandName, existing.commandName)
+                    && compareDates(command.respondedAt, existing.respondedAt) >= 0) {
+                if (command.sentAt == null) command.sentAt = existing.sentAt;
+                res.setCommand(command);
             }
         }
-        if (!success)
-            throw new RuntimeException("Failed to update JVM state after " + maxAttempts + " attempts");
+        return res;
+    }
+
+    private static int compareDates(Date date1, Date date2) {
+        if (date1 == null) return date2 == null ? 0 : -1;
+        if (date2 == null) return 1;
+        return date1.compareTo(date2);
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(cached -> {
+            synchronized (cached) {
+                return !cached.dirty && cached.claimed.isEmpty() && now - cached.accessedAt > idleEvictMillis;
+            }
+        });
     }
 
     public interface JvmStateMergeAction {
@@ -0,0 +1,49 @@
+package com.jflop.server.admin;
+
+import com.jflop.server.persistency.DocumentStore;
+import com.jflop.server.runtime.ReportQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * Admin REST API exposing the report queue and storage statistics of the server node
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@RestController
+@RequestMapping(path = ServerStatsController.STATS_PATH)
+public class ServerStatsController {
+
+    public static final String STATS_PATH = "/stats";
+
+    @Autowired
+    private ReportQueue reportQueue;
+
+    @Autowired
+    private DocumentStore documentStore;
+
+    @RequestMapping(method = GET, path = "/queue", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getQueueStats() {
+        return ResponseEntity.ok(reportQueue.getStats());
+    }
+
+    @RequestMapping(method = GET, path = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getMetrics() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("storage", documentStore.getMetrics().getSnapshot());
+        res.put("reportQueue", reportQueue.getStats());
+        return ResponseEntity.ok(res);
+    }
+}
@@ -3,8 +3,10 @@ package com.jflop.server.background;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.jflop.config.JflopConfiguration;
+import org.jflop.config.MethodConfiguration;
 
-import java.util.Date;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * State of analysis task
@@ -19,12 +21,61 @@ public class AnalysisState {
     @JsonProperty
     int snapshotDuration;
 
+    /**
+     * Seconds between the snapshot requests, see {@link SnapshotController}
+     */
+    @JsonProperty
+    int snapshotInterval;
+
+    /**
+     * End of the time range consumed by the incremental analysis
+     */
+    @JsonProperty
+    Date consumedUntil;
+
+    /**
+     * End of the time range whose metrics are rolled up, see {@link com.jflop.server.runtime.MetricDataIndex#rollUpMetrics}
+     */
+    @JsonProperty
+    Date metricsRolledUpUntil;
+
     @JsonProperty
     private Object instrumentationJson;
 
     @JsonIgnore
     private JflopConfiguration instrumentationCache;
 
+    /**
+     * Methods of the thread dumps whose signatures were requested and not found in the class metadata, by internal class name,
+     * and when the agent reported the declared methods at that time, see {@link JvmMonitorAnalysis#findMethodsToInstrumentInThreadDump()}
+     */
+    @JsonProperty
+    Map<String, Set<String>> unresolvedMethods;
+
+    @JsonProperty
+    Date declaredMethodsReportedAt;
+
+    /**
+     * Methods found by {@link InstrumentationPruner}, see {@link #updatePruning(Set, Date, int, long, int)}
+     */
+    @JsonProperty
+    private List<PruningEntry> pruning;
+
+    @JsonIgnore
+    private Map<MethodConfiguration, PruningEntry> pruningCache;
+
+    /**
+     * A method found by the pruner: the number of the consecutive steps it was found in, and when it was pruned
+     */
+    static class PruningEntry {
+        @JsonProperty
+        Object method;
+        @JsonProperty
+        int steps;
+        @JsonProperty
+        Date prunedAt;
+    }
+
     public AnalysisState() {
     }
 
@@ -47,4 +98,71 @@ public class AnalysisState {
         this.instrumentationCache = instr;
         instrumentationJson = instr.asJson();
     }
+
+    /**
+     * @return the methods that should not be instrumented
+     */
+    @JsonIgnore
+    public Set<MethodConfiguration> getPrunedMethods() {
+        Set<MethodConfiguration> res = new HashSet<>();
+        getPruning().forEach((method, entry) -> {
+            if (entry.prunedAt != null) res.add(method);
+        });
+        return res;
+    }
+
+    /**
+     * Prune the methods found by the pruner in enough consecutive steps, the other candidates start over.
+     * The pruned methods are re-admitted after a while, so that they are instrumented again if they show up in the thread dumps,
+     * and the earliest pruned ones are re-admitted first if there are too many.
+     *
+     * @param found              methods found by the pruner in this step
+     * @param now                time of this step
+     * @param minSteps           number of the consecutive steps to prune a method
+     * @param readmitAfterMillis how long a method stays pruned
+     * @param maxPruned          max number of the pruned methods
+     * @return the methods pruned in this step
+     */
+    @JsonIgnore
+    public Set<MethodConfiguration> updatePruning(Set<MethodConfiguration> found, Date now, int minSteps, long readmitAfterMillis, int maxPruned) {
+        Map<MethodConfiguration, PruningEntry> entries = getPruning();
+        entries.entrySet().removeIf(entry -> entry.getValue().prunedAt == null
+                ? !found.contains(entry.getKey())
+                : now.getTime() - entry.getValue().prunedAt.getTime() >= readmitAfterMillis);
+
+        Set<MethodConfiguration> res = new HashSet<>();
+        for (MethodConfiguration method : found) {
+            PruningEntry entry = entries.computeIfAbsent(method, key -> {
+                PruningEntry created = new PruningEntry();
+                created.method = key.asJson();
+                return created;
+            });
+            if (entry.prunedAt == null && ++entry.steps >= minSteps) {
+                entry.prunedAt = now;
+                res.add(method);
+            }
+        }
+
+        List<Map.Entry<MethodConfiguration, PruningEntry>> pruned = entries.entrySet().stream()
+                .filter(entry -> entry.getValue().prunedAt != null)
+                .sorted(Comparator.comparing(entry -> entry.getValue().prunedAt))
+                .collect(Collectors.toList());
+        for (int i = 0; i < pruned.size() - maxPruned; i++) {
+            entries.remove(pruned.get(i).getKey());
+            res.remove(pruned.get(i).getKey());
+        }
+
+        pruning = new ArrayList<>(entries.values());
+        return res;
+    }
+
+    private Map<MethodConfiguration, PruningEntry> getPruning() {
+        if (pruningCache == null) {
+            pruningCache = new LinkedHashMap<>();
+            if (pruning != null)
+                for (PruningEntry entry : pruning)
+                    pruningCache.put(MethodConfiguration.fromJson((Map<String, Object>) entry.method), entry);
+        }
+        return pruningCache;
+    }
 }
@@ -1,12 +1,15 @@
 package com.jflop.server.background;
 
 import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.persistency.DocumentStore;
+import com.jflop.server.persistency.PersistentData;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.Collection;
-import java.util.Date;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -19,6 +22,11 @@ import java.util.logging.Logger;
  * <p/>
  * This class implements DB synchronization, so that only one node in a cluster executes the task step at any moment.
  * Tasks are explicitly started and stopped on some node, and it affects the task execution that may be on a different node.
+ * <p/>
+ * The agent JVMs are divided into hash partitions leased by the cluster nodes, see {@link PartitionLeases}.
+ * Each node runs the steps of the JVMs in its own partitions without a lock round trip per step,
+ * and saves the step state with the fencing token of the partition lease. The state is saved only over the version
+ * this node has read by ID, if it has changed the node drops its own result and continues from the stored state.
  *
  * @author artem on 12/7/16.
  */
@@ -28,6 +36,9 @@ public abstract class BackgroundTask implements InitializingBean, DisposableBean
 
     private static final int REFRESH_THRESHOLD_SEC = 2;
 
+    // longer than the index refresh interval, so that a removed task is not found again by a search
+    private static final long REMOVED_TASK_TTL_MILLIS = 5000;
+
     private String taskName;
     private long lockTimeoutMillis;
     private long sleepIntervalMillis;
@@ -40,6 +51,23 @@ public abstract class BackgroundTask implements InitializingBean, DisposableBean
     private Thread syncThread;
     private boolean stopSyncThread;
 
+    private PartitionLeases leases;
+    private final Map<String, JvmTask> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Long> removedTasks = new ConcurrentHashMap<>();
+    private volatile Set<Integer> ownPartitions = Collections.emptySet();
+
+    /**
+     * Task of one agent JVM in an own partition
+     */
+    private static class JvmTask {
+        volatile PersistentData<TaskLockData> lock;
+        volatile boolean running;
+
+        JvmTask(PersistentData<TaskLockData> lock) {
+            this.lock = lock;
+        }
+    }
+
     protected BackgroundTask(String taskName, int lockTimeoutSec, int sleepIntervalSec, int maxThreads) {
         this.taskName = taskName;
         this.lockTimeoutMillis = lockTimeoutSec * 1000;
@@ -64,19 +92,21 @@ public abstract class BackgroundTask implements InitializingBean, DisposableBean
     }
 
     void start() {
+        leases = new PartitionLeases(taskName, lockTimeoutMillis, sleepIntervalMillis, lockIndex);
         syncThread = new Thread("jf-task-sync-" + taskName) {
             @Override
             public void run() {
                 while (!stopSyncThread) {
+                    try {
+                        sync();
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "Background task's sync failed.", e);
+                    }
                     try {
                         Thread.sleep(sleepIntervalMillis);
                     } catch (InterruptedException e) {
                         if (stopSyncThread) break;
                     }
-                    Collection<TaskLockData> locks = lockIndex.getVacantLocks(taskName);
-                    for (TaskLockData lock : locks) {
-                        processLock(lock);
-                    }
                 }
             }
         };
@@ -89,29 +119,111 @@ public abstract class BackgroundTask implements InitializingBean, DisposableBean
             syncThread.interrupt();
             syncThread.join();
             syncThread = null;
+            ownPartitions = Collections.emptySet();
+            for (JvmTask task : tasks.values()) jvmTaskDropped(task.lock.source);
+            tasks.clear();
+            leases.releaseAll();
         }
     }
 
-    private void processLock(TaskLockData lock) {
-        threadPool.submit(() -> {
-            if (lockIndex.obtainLock(lock, System.currentTimeMillis() + lockTimeoutMillis)) {
-                try {
-                    step(lock, new Date(System.currentTimeMillis() - REFRESH_THRESHOLD_SEC * 1000));
-                } catch (Throwable e) {
-                    logger.log(Level.SEVERE, "Background task's step failed.", e);
-                }
-                lockIndex.releaseLock(lock);
+    private void sync() {
+        Set<Integer> partitions = leases.sync(this::isBusy);
+        ownPartitions = partitions;
+
+        long now = System.currentTimeMillis();
+        removedTasks.values().removeIf(removedAt -> now - removedAt > REMOVED_TASK_TTL_MILLIS);
+
+        Set<String> found = new HashSet<>();
+        Map<String, CompletableFuture<PersistentData<TaskLockData>>> newLocks = new HashMap<>();
+        for (PersistentData<TaskLockData> lock : lockIndex.getTaskLocks(taskName, partitions)) {
+            if (removedTasks.containsKey(lock.id)) continue;
+            found.add(lock.id);
+            // the search may return an older state than the last one saved by the previous owner of the partition,
+            // so the lock of a new task is read again by ID before its first step
+            if (!tasks.containsKey(lock.id)) newLocks.put(lock.id, lockIndex.getTaskLockAsync(lock.id));
+        }
+        for (Map.Entry<String, CompletableFuture<PersistentData<TaskLockData>>> entry : newLocks.entrySet()) {
+            PersistentData<TaskLockData> lock = DocumentStore.await(entry.getValue());
+            if (lock != null) tasks.putIfAbsent(entry.getKey(), new JvmTask(lock));
+        }
+        for (Iterator<JvmTask> it = tasks.values().iterator(); it.hasNext(); ) {
+            JvmTask task = it.next();
+            if (!task.running && !found.contains(task.lock.id)) {
+                it.remove();
+                jvmTaskDropped(task.lock.source);
             }
-        });
+        }
+
+        for (JvmTask task : tasks.values()) {
+            if (!task.running && partitions.contains(task.lock.source.partition)) {
+                task.running = true;
+                threadPool.submit(() -> runStep(task));
+            }
+        }
+    }
+
+    private void runStep(JvmTask task) {
+        TaskLockData lock = task.lock.source;
+        try {
+            step(lock, new Date(System.currentTimeMillis() - REFRESH_THRESHOLD_SEC * 1000));
+        } catch (Throwable e) {
+            logger.log(Level.SEVERE, "Background task's step failed.", e);
+        }
+
+        try {
+            long fencingToken = leases.getFencingToken(lock.partition);
+            PersistentData<TaskLockData> saved = fencingToken == 0 ? null : lockIndex.saveTaskState(task.lock, fencingToken);
+            if (saved != null) {
+                task.lock = saved;
+                return;
+            }
+
+            PersistentData<TaskLockData> stored = fencingToken == 0 ? null : lockIndex.getTaskLock(lock.lockId);
+            if (stored == null || stored.source.fencingToken > fencingToken) {
+                // the task was removed, or the partition has moved to another node
+                if (tasks.remove(lock.lockId, task)) jvmTaskDropped(lock);
+            } else {
+                // the lock was saved by the previous owner of the partition after this node has read it,
+                // the state computed from the older one is dropped, and the next step starts from the stored state
+                logger.fine("Reloading the state of " + lock.lockId + " saved by another node");
+                jvmTaskDropped(lock);
+                task.lock = stored;
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to save the state of " + lock.lockId, e);
+        } finally {
+            task.running = false;
+        }
+    }
+
+    private boolean isBusy(int partition) {
+        for (JvmTask task : tasks.values()) {
+            if (task.running && task.lock.source.partition == partition) return true;
+        }
+        return false;
     }
 
     public void createJvmTask(AgentJVM key) {
-        lockIndex.createTaskLock(new TaskLockData(taskName, key));
+        TaskLockData lock = new TaskLockData(taskName, key);
+        removedTasks.remove(lock.lockId);
+        PersistentData<TaskLockData> created = lockIndex.createTaskLock(lock);
+        if (created != null && ownPartitions.contains(created.source.partition)) tasks.putIfAbsent(created.id, new JvmTask(created));
     }
 
     public void removeJvmTask(AgentJVM key) {
-        lockIndex.deleteTaskLock(new TaskLockData(taskName, key));
+        TaskLockData lock = new TaskLockData(taskName, key);
+        removedTasks.put(lock.lockId, System.currentTimeMillis());
+        JvmTask removed = tasks.remove(lock.lockId);
+        if (removed != null) jvmTaskDropped(removed.lock.source);
+        lockIndex.deleteTaskLock(lock);
     }
 
     public abstract void step(TaskLockData lock, Date refreshThreshold);
+
+    /**
+     * Called when this node stops executing the task of a JVM, because the task was removed or moved to another node.
+     * Subclasses may release the state they keep in memory for the JVM.
+     */
+    protected void jvmTaskDropped(TaskLockData lock) {
+    }
 }
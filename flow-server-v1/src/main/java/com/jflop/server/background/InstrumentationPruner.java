@@ -0,0 +1,96 @@
+package com.jflop.server.background;
+
+import com.jflop.server.runtime.data.processed.FlowSummary;
+import com.jflop.server.runtime.data.processed.MethodCall;
+import com.jflop.server.runtime.data.processed.MethodFlow;
+import org.jflop.config.MethodConfiguration;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the instrumented methods that cost more than they tell.
+ * <p/>
+ * The instrumentation cost of a method is its call rate over all the flows of the summary multiplied by the cost of one probe call,
+ * as a share of one CPU. A method is pruned if the cost exceeds the budget, or if it never takes more than the minimal share
+ * of its parent's time in any flow. The roots have no parent, so they are pruned only by the cost.
+ * The methods found in one summary are only candidates, {@link AnalysisState#updatePruning} decides which are pruned.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class InstrumentationPruner {
+
+    private static final Logger logger = Logger.getLogger(InstrumentationPruner.class.getName());
+
+    private final float probeCostNanos;
+    private final float overheadBudget;
+    private final float minTimeShare;
+
+    private static class MethodCost {
+        float callsPerSec;
+        float maxTimeShare;
+    }
+
+    InstrumentationPruner(float probeCostNanos, float overheadBudget, float minTimeShare) {
+        this.probeCostNanos = probeCostNanos;
+        this.overheadBudget = overheadBudget;
+        this.minTimeShare = minTimeShare;
+    }
+
+    /**
+     * @return the methods of the summary which cost more than they tell
+     */
+    Set<MethodConfiguration> findMethodsToPrune(FlowSummary summary) {
+        Map<MethodConfiguration, MethodCost> costs = new HashMap<>();
+        for (MethodCall root : summary.getRoots()) {
+            addCosts(root, null, costs);
+        }
+
+        Set<MethodConfiguration> res = new HashSet<>();
+        for (Map.Entry<MethodConfiguration, MethodCost> entry : costs.entrySet()) {
+            MethodCost cost = entry.getValue();
+            float overhead = cost.callsPerSec * probeCostNanos / 1e9f;
+            boolean expensive = overhead > overheadBudget;
+            boolean negligible = cost.maxTimeShare < minTimeShare;
+            if (expensive || negligible) {
+                res.add(entry.getKey());
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Prune candidate " + entry.getKey().internalClassName + "." + entry.getKey().methodName + entry.getKey().methodDescriptor
+                            + (expensive ? ": " + cost.callsPerSec + " calls per sec." : ": max time share " + cost.maxTimeShare));
+            }
+        }
+        return res;
+    }
+
+    private void addCosts(MethodCall call, MethodCall parent, Map<MethodConfiguration, MethodCost> costs) {
+        MethodCost cost = costs.computeIfAbsent(new MethodConfiguration(call.className, call.methodName, call.methodDescriptor), key -> new MethodCost());
+        if (call.flows != null) {
+            for (MethodFlow flow : call.flows) {
+                cost.callsPerSec += flow.statistics.throughputPerSec;
+                cost.maxTimeShare = Math.max(cost.maxTimeShare, timeShare(flow, parent));
+            }
+        }
+
+        if (call.nestedCalls != null) {
+            for (MethodCall nested : call.nestedCalls) {
+                addCosts(nested, call, costs);
+            }
+        }
+    }
+
+    /**
+     * @return share of the parent's time spent in the call within the same flow, 1 if not known
+     */
+    private static float timeShare(MethodFlow flow, MethodCall parent) {
+        if (parent == null || parent.flows == null) return 1;
+        for (MethodFlow parentFlow : parent.flows) {
+            if (parentFlow.flowId.equals(flow.flowId)) {
+                float parentTime = parentFlow.statistics.throughputPerSec * parentFlow.statistics.averageTime;
+                return parentTime <= 0 ? 1 : flow.statistics.throughputPerSec * flow.statistics.averageTime / parentTime;
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,244 @@
+package com.jflop.server.background;
+
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.runtime.data.AgentData;
+import com.jflop.server.runtime.data.FlowEquivalenceIndex;
+import com.jflop.server.runtime.data.FlowMetadata;
+import com.jflop.server.runtime.data.FlowOccurrenceData;
+import com.jflop.server.runtime.data.ThreadMetadata;
+import com.jflop.server.runtime.data.ThreadOccurrenceData;
+import com.jflop.server.runtime.data.metric.MetricMetadata;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Running aggregates of one agent JVM, kept in memory by the node that analyzes the JVM.
+ * <p/>
+ * Each incremental step consumes only the occurrences reported since the previous step, and folds them into the aggregates:
+ * the flow statistics and the metric metadata. The known flow and thread metadata is not retrieved again.
+ * The number of the aggregated flows and threads is bounded, the least recently seen ones are dropped first.
+ * <p/>
+ * The occurrences become searchable some time after their report time, because they are queued and bulk indexed.
+ * So each step reads again the last ingest lag of the consumed range, and skips the occurrences and the load data it has already consumed by document ID.
+ * The IDs are remembered only while they are within the lag. A new aggregate does not know what was consumed before it,
+ * so it never reads before the range it started from.
+ * The flows that may be the same flow recorded with different instrumentation are grouped by {@link FlowEquivalenceIndex}.
+ * The flow throughput is decayed with a half-life of {@link #THROUGHPUT_HALF_LIFE_MILLIS}, so that it follows the recent load.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class JvmAggregate {
+
+    static final long THROUGHPUT_HALF_LIFE_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * End of the time range consumed so far
+     */
+    Date consumedUntil;
+
+    /**
+     * Start of the time range consumed by this aggregate
+     */
+    private Date consumedSince;
+
+    private final long ingestLagMillis;
+
+    /**
+     * Time of the consumed occurrences by document ID, within the ingest lag
+     */
+    private final Map<String, Long> consumedOccurrences = new HashMap<>();
+
+    PersistentData<MetricMetadata> metricMetadata;
+
+    private final Map<String, FlowTotals> flows;
+    private final Map<String, ThreadMetadata> threads;
+    private final FlowEquivalenceIndex equivalentFlows = new FlowEquivalenceIndex();
+
+    /**
+     * Time the flow throughput was last decayed to
+     */
+    private Date decayedAt;
+
+    /**
+     * Flow statistics summed over all the consumed occurrences, and the decayed count and duration for the throughput
+     */
+    static class FlowTotals {
+        final FlowMetadata metadata;
+        FlowOccurrenceData.FlowElement total;
+        double recentCount;
+        double recentDurationSec;
+
+        FlowTotals(FlowMetadata metadata) {
+            this.metadata = metadata;
+        }
+
+        float throughputPerSec() {
+            return recentDurationSec == 0 ? 0 : (float) (recentCount / recentDurationSec);
+        }
+    }
+
+    /**
+     * @param consumedUntil end of the time range consumed before this aggregate was created, or null
+     */
+    JvmAggregate(int maxEntries, long ingestLagMillis, Date consumedUntil) {
+        flows = boundedMap(maxEntries, equivalentFlows::remove);
+        threads = boundedMap(maxEntries, id -> {});
+        this.ingestLagMillis = ingestLagMillis;
+        this.consumedUntil = consumedUntil;
+        if (consumedUntil != null) consumedSince = new Date(consumedUntil.getTime() + 1); // the time range is inclusive
+    }
+
+    /**
+     * @return start of the next time range to read, or null if nothing was consumed yet
+     */
+    synchronized Date nextFrom() {
+        if (consumedUntil == null) return null;
+        return new Date(Math.max(consumedUntil.getTime() - ingestLagMillis, consumedSince.getTime()));
+    }
+
+    /**
+     * @param consumed collects the time of the accepted occurrences by document ID, to be passed to {@link #consumed(Map, Date, Date)}
+     * @return filter accepting the occurrences not consumed yet
+     */
+    <O extends AgentData> Predicate<PersistentData<O>> notConsumed(Map<String, Date> consumed) {
+        return doc -> {
+            synchronized (this) {
+                if (consumedOccurrences.containsKey(doc.id)) return false;
+            }
+            consumed.put(doc.id, doc.source.time);
+            return true;
+        };
+    }
+
+    /**
+     * Remember the occurrences folded in the time range, and forget those that are not read again
+     */
+    synchronized void consumed(Map<String, Date> occurrences, Date from, Date to) {
+        if (consumedSince == null) consumedSince = from == null ? new Date(0) : from;
+        for (Map.Entry<String, Date> entry : occurrences.entrySet()) {
+            consumedOccurrences.put(entry.getKey(), entry.getValue().getTime());
+        }
+        consumedUntil = to;
+        long forgetBefore = to.getTime() - ingestLagMillis;
+        consumedOccurrences.values().removeIf(time -> time < forgetBefore);
+    }
+
+    synchronized int getNumConsumedOccurrences() {
+        return consumedOccurrences.size();
+    }
+
+    synchronized FlowMetadata getFlowMetadata(String flowId) {
+        FlowTotals totals = flows.get(flowId);
+        return totals == null ? null : totals.metadata;
+    }
+
+    synchronized ThreadMetadata getThreadMetadata(String threadId) {
+        return threads.get(threadId);
+    }
+
+    /**
+     * @param to end of the time range of the occurrences, the throughput of all the flows is decayed to it
+     */
+    synchronized void foldFlows(Map<FlowMetadata, List<FlowOccurrenceData>> delta, Date to) {
+        decayThroughput(to);
+        if (delta == null) return;
+        for (Map.Entry<FlowMetadata, List<FlowOccurrenceData>> entry : delta.entrySet()) {
+            FlowTotals totals = flows.computeIfAbsent(entry.getKey().getDocumentId(), id -> new FlowTotals(entry.getKey()));
+            equivalentFlows.add(totals.metadata);
+            for (FlowOccurrenceData occurrence : entry.getValue()) {
+                FlowOccurrenceData.FlowElement rootFlow = occurrence.getRootFlow();
+                totals.total = add(totals.total, rootFlow);
+                totals.recentCount += rootFlow.count;
+                totals.recentDurationSec += occurrence.snapshotDurationSec;
+            }
+        }
+    }
+
+    private void decayThroughput(Date to) {
+        if (decayedAt != null && to.after(decayedAt)) {
+            double factor = Math.pow(0.5, (double) (to.getTime() - decayedAt.getTime()) / THROUGHPUT_HALF_LIFE_MILLIS);
+            for (FlowTotals totals : flows.values()) {
+                totals.recentCount *= factor;
+                totals.recentDurationSec *= factor;
+            }
+        }
+        if (decayedAt == null || to.after(decayedAt)) decayedAt = to;
+    }
+
+    /**
+     * Only the thread metadata is kept, the thread statistics are in the metrics
+     */
+    synchronized void foldThreads(Map<ThreadMetadata, List<ThreadOccurrenceData>> delta) {
+        if (delta == null) return;
+        for (ThreadMetadata metadata : delta.keySet()) {
+            threads.put(metadata.getDocumentId(), metadata);
+        }
+    }
+
+    /**
+     * The throughput of a group of equivalent flows is the highest one in the group,
+     * so that a flow no longer recorded after an instrumentation change does not hold the minimum down.
+     *
+     * @return the lowest throughput among the aggregated flow groups, or {@link Float#MAX_VALUE} if there are none
+     */
+    synchronized float minFlowThroughput() {
+        Map<Long, Float> groupThroughput = new HashMap<>();
+        for (Map.Entry<String, FlowTotals> entry : flows.entrySet()) {
+            FlowTotals totals = entry.getValue();
+            if (totals.total != null)
+                groupThroughput.merge(equivalentFlows.getGroup(entry.getKey()), totals.throughputPerSec(), Math::max);
+        }
+
+        float res = Float.MAX_VALUE;
+        for (float throughput : groupThroughput.values()) {
+            res = Math.min(res, throughput);
+        }
+        return res;
+    }
+
+    synchronized int getNumFlows() {
+        return flows.size();
+    }
+
+    /**
+     * Add the occurrence to the total, both have the shape of the same flow
+     */
+    private static FlowOccurrenceData.FlowElement add(FlowOccurrenceData.FlowElement total, FlowOccurrenceData.FlowElement occurrence) {
+        if (total == null) {
+            total = new FlowOccurrenceData.FlowElement();
+            total.flowId = occurrence.flowId;
+            total.minTime = Long.MAX_VALUE;
+        }
+        total.count += occurrence.count;
+        total.cumulativeTime += occurrence.cumulativeTime;
+        total.minTime = Math.min(total.minTime, occurrence.minTime);
+        total.maxTime = Math.max(total.maxTime, occurrence.maxTime);
+
+        if (occurrence.subflows != null) {
+            if (total.subflows == null) total.subflows = new ArrayList<>();
+            for (int i = 0; i < occurrence.subflows.size(); i++) {
+                FlowOccurrenceData.FlowElement subTotal = i < total.subflows.size() ? total.subflows.get(i) : null;
+                subTotal = add(subTotal, occurrence.subflows.get(i));
+                if (i < total.subflows.size())
+                    total.subflows.set(i, subTotal);
+                else
+                    total.subflows.add(subTotal);
+            }
+        }
+        return total;
+    }
+
+    private static <V> Map<String, V> boundedMap(int maxEntries, Consumer<String> onRemove) {
+        return new LinkedHashMap<String, V>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                boolean remove = size() > maxEntries;
+                if (remove) onRemove.accept(eldest.getKey());
+                return remove;
+            }
+        };
+    }
+}
@@ -7,11 +7,14 @@ import com.jflop.server.feature.ClassInfoFeature;
 import com.jflop.server.feature.InstrumentationConfigurationFeature;
 import com.jflop.server.feature.SnapshotFeature;
 import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.persistency.PersistentData;
 import com.jflop.server.runtime.MetadataIndex;
+import com.jflop.server.runtime.MetricDataIndex;
 import com.jflop.server.runtime.ProcessedDataIndex;
 import com.jflop.server.runtime.RawDataIndex;
 import com.jflop.server.runtime.data.*;
+import com.jflop.server.runtime.data.metric.MetricAccumulator;
 import com.jflop.server.runtime.data.metric.MetricData;
 import com.jflop.server.runtime.data.metric.MetricMetadata;
 import com.jflop.server.runtime.data.processed.FlowSummary;
@@ -22,17 +25,28 @@ import org.jflop.config.JflopConfiguration;
 import org.jflop.config.MethodConfiguration;
 import org.jflop.config.NameUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Analyze raw data produced by {@link com.jflop.server.feature.JvmMonitorFeature}
+ * <p/>
+ * In the incremental mode (the default) each step reads only the occurrences reported since the previous step,
+ * and folds them into the running aggregates of the JVM, see {@link JvmAggregate}. The read range overlaps the previous one
+ * by analysis.incremental.ingestLagSec, which must exceed the delay between the report and the indexing of the occurrences. The flow summary and the metrics
+ * of a step cover the new occurrences only. Otherwise each step reads again all the occurrences since the last snapshot.
+ * The snapshot duration and the interval between the snapshots are chosen by {@link SnapshotController}.
+ * The instrumentation is extended with the methods found in the thread dumps, and reduced by {@link InstrumentationPruner}.
  *
  * @author artem on 12/8/16.
  */
@@ -52,6 +66,9 @@ public class JvmMonitorAnalysis extends BackgroundTask {
     @Autowired
     private ProcessedDataIndex processedDataIndex;
 
+    @Autowired
+    private MetricDataIndex metricDataIndex;
+
     @Autowired
     private ClassInfoFeature classInfoFeature;
 
@@ -61,6 +78,57 @@ public class JvmMonitorAnalysis extends BackgroundTask {
     @Autowired
     private SnapshotFeature snapshotFeature;
 
+    @Value("${analysis.incremental:true}")
+    private boolean incremental = true;
+
+    @Value("${analysis.aggregate.maxEntries:5000}")
+    private int aggregateMaxEntries = 5000;
+
+    @Value("${analysis.incremental.ingestLagSec:30}")
+    private int ingestLagSec = 30;
+
+    @Value("${analysis.snapshot.overheadBudget:0.2}")
+    private float snapshotOverheadBudget = 0.2f;
+
+    @Value("${analysis.snapshot.targetSamples:10}")
+    private int snapshotTargetSamples = 10;
+
+    @Value("${analysis.snapshot.maxDurationSec:5}")
+    private int snapshotMaxDurationSec = 5;
+
+    @Value("${analysis.snapshot.minIntervalSec:0}")
+    private int snapshotMinIntervalSec = 0;
+
+    @Value("${analysis.snapshot.maxIntervalSec:300}")
+    private int snapshotMaxIntervalSec = 300;
+
+    @Value("${analysis.snapshot.highCpuLoad:0.8}")
+    private float snapshotHighCpuLoad = 0.8f;
+
+    @Value("${analysis.pruning.probeCostNanos:100}")
+    private float pruningProbeCostNanos = 100;
+
+    @Value("${analysis.pruning.methodOverheadBudget:0.01}")
+    private float pruningMethodOverheadBudget = 0.01f;
+
+    @Value("${analysis.pruning.minTimeShare:0.001}")
+    private float pruningMinTimeShare = 0.001f;
+
+    @Value("${analysis.pruning.minSteps:3}")
+    private int pruningMinSteps = 3;
+
+    @Value("${analysis.pruning.readmitAfterMin:60}")
+    private int pruningReadmitAfterMin = 60;
+
+    @Value("${analysis.pruning.maxMethods:1000}")
+    private int pruningMaxMethods = 1000;
+
+    private SnapshotController snapshotController;
+
+    private InstrumentationPruner instrumentationPruner;
+
+    private final Map<String, JvmAggregate> aggregates = new ConcurrentHashMap<>();
+
     private File saveStepToFile;
 
     // step-level state
@@ -77,6 +145,7 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         Set<MethodConfiguration> methodsToInstrument;
         private Set<StackTraceElement> instrumentedTraceElements;
         AgentDataFactory agentDataFactory;
+        JvmAggregate aggregate;
 
         void writeTo(File file) {
             Map<String, Object> stored = new HashMap<>();
@@ -144,6 +213,14 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         super(TASK_NAME, 60, 3, 100);
     }
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        snapshotController = new SnapshotController(snapshotOverheadBudget, snapshotTargetSamples, snapshotMaxDurationSec,
+                snapshotMinIntervalSec, snapshotMaxIntervalSec, snapshotHighCpuLoad);
+        instrumentationPruner = new InstrumentationPruner(pruningProbeCostNanos, pruningMethodOverheadBudget, pruningMinTimeShare);
+        super.afterPropertiesSet();
+    }
+
     @Override
     public void step(TaskLockData lock, Date refreshThreshold) {
 /*
@@ -161,7 +238,14 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         if (current.taskState == null) current.taskState = AnalysisState.createState();
         current.from = current.taskState.processedUntil;
         current.to = refreshThreshold;
+        if (incremental) {
+            AnalysisState taskState = current.taskState;
+            current.aggregate = aggregates.computeIfAbsent(lock.lockId, id -> new JvmAggregate(aggregateMaxEntries, ingestLagSec * 1000L, taskState.consumedUntil));
+            Date from = current.aggregate.nextFrom();
+            if (from != null) current.from = from;
+        }
         List<DocType> docTypes = new ArrayList<>(processedDataIndex.getDocTypes());
+        docTypes.addAll(metricDataIndex.getDocTypes());
         docTypes.addAll(metadataIndex.getDocTypes());
         current.agentDataFactory = new AgentDataFactory(lock.agentJvm, new Date(), docTypes);
 
@@ -176,6 +260,7 @@ public class JvmMonitorAnalysis extends BackgroundTask {
 
     void afterStep(TaskLockData lock) {
         StepState current = step.get();
+        if (current.aggregate != null) current.taskState.consumedUntil = current.aggregate.consumedUntil;
         lock.setCustomState(current.taskState);
         step.remove();
         if (saveStepToFile != null) {
@@ -188,19 +273,32 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         mapThreadsToFlows();
         buildMetrics();
         findMethodsToInstrumentInThreadDump();
+        pruneInstrumentation();
         adjustInstrumentation();
     }
 
     void buildMetrics() {
         StepState current = step.get();
-        current.loadData = rawDataIndex.getLoadData(current.from, current.to);
-
-        if (current.threads == null || current.flows == null || current.loadData.isEmpty()) return;
-
-        PersistentData<MetricMetadata> metricMetadata = metadataIndex.getOrCreateMetricMetadata(current.agentDataFactory);
+        boolean hasOccurrences = current.threads != null && current.flows != null;
+
+        // retrieve load data and metric metadata in parallel, the load data consumed by the previous step is skipped
+        JvmAggregate aggregate = current.aggregate;
+        Map<String, Date> consumedLoad = new ConcurrentHashMap<>();
+        CompletableFuture<List<LoadData>> loadData = aggregate == null
+                ? rawDataIndex.getLoadDataAsync(current.agentJvm, current.from, current.to)
+                : rawDataIndex.getLoadDataAsync(current.agentJvm, current.from, current.to, aggregate.notConsumed(consumedLoad));
+        CompletableFuture<PersistentData<MetricMetadata>> metadata = !hasOccurrences ? null
+                : current.aggregate != null && current.aggregate.metricMetadata != null ? CompletableFuture.completedFuture(current.aggregate.metricMetadata)
+                : metadataIndex.getOrCreateMetricMetadataAsync(current.agentDataFactory);
+        current.loadData = DocumentStore.await(loadData);
+        if (aggregate != null) aggregate.consumed(consumedLoad, current.from, current.to);
+
+        if (!hasOccurrences || current.loadData.isEmpty()) return;
+
+        PersistentData<MetricMetadata> metricMetadata = DocumentStore.await(metadata);
         current.metricMetadata = metricMetadata.source;
 
-        Map<String, Float> observation = new HashMap<>();
+        MetricAccumulator observation = new MetricAccumulator();
 
         current.metricMetadata.aggregateLoad(current.loadData, observation);
 
@@ -212,30 +310,43 @@ public class JvmMonitorAnalysis extends BackgroundTask {
             current.metricMetadata.aggregateFlows(occurrenceList, observation);
         }
 
-        metadataIndex.updateDocument(metricMetadata);
         MetricData metricData = current.agentDataFactory.createInstance(MetricData.class);
-        metricData.metrics = observation;
-        processedDataIndex.addMetrics(metricData);
+        metricData.setObservation(observation);
+        CompletableFuture<PersistentData<MetricMetadata>> updated = metadataIndex.updateDocumentAsync(metricMetadata);
+        try {
+            DocumentStore.await(CompletableFuture.allOf(updated, metricDataIndex.addMetricsAsync(metricData)));
+            if (current.aggregate != null) current.aggregate.metricMetadata = DocumentStore.await(updated);
+        } catch (RuntimeException e) {
+            // the cached metadata may be outdated, it's read again in the next step
+            if (current.aggregate != null) current.aggregate.metricMetadata = null;
+            throw e;
+        }
+
+        try {
+            current.taskState.metricsRolledUpUntil = metricDataIndex.rollUpMetrics(current.agentJvm, current.taskState.metricsRolledUpUntil, metricData.time);
+        } catch (RuntimeException e) {
+            // the same range is rolled up again in the next step
+            logger.log(Level.WARNING, "Failed to roll up metrics of " + current.agentJvm, e);
+        }
     }
 
     void takeSnapshot() {
         StepState current = step.get();
         AnalysisState taskState = current.taskState;
 
-        int duration = taskState.snapshotDuration;
-        if (current.flowSummary != null && current.threads != null) {
-            if (duration < 5 && needToIncreaseSnapshotDuration(duration)) {
-                duration++;
-                logger.fine("Snapshot duration increased to " + duration + " sec.");
-            } else if (duration > 1 && needToDecreaseSnapshotDuration(duration)) {
-                duration--;
-                logger.fine("Snapshot duration decreased to " + duration + " sec.");
-            }
-        }
+        float throughput = current.flowSummary != null && current.threads != null ? minFlowThroughput() : Float.NaN;
+        SnapshotController.Decision decision = snapshotController.decide(taskState.snapshotDuration, throughput, averageCpuLoad(current.loadData));
+        if (decision.durationSec != taskState.snapshotDuration || decision.intervalSec != taskState.snapshotInterval)
+            logger.fine("Snapshot duration " + decision.durationSec + " sec., interval " + decision.intervalSec + " sec.");
+        taskState.snapshotInterval = decision.intervalSec;
+
+        // the interval is counted from the previous snapshot request
+        if (taskState.processedUntil != null && current.to.getTime() < taskState.processedUntil.getTime() + decision.intervalSec * 1000L)
+            return;
 
-        boolean snapshotRequested = snapshotFeature.takeSnapshot(step.get().agentJvm, duration);
+        boolean snapshotRequested = snapshotFeature.takeSnapshot(step.get().agentJvm, decision.durationSec);
         if (snapshotRequested) {
-            taskState.snapshotDuration = duration;
+            taskState.snapshotDuration = decision.durationSec;
             taskState.processedUntil = current.to;
         }
     }
@@ -245,20 +356,24 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         this.saveStepToFile = file;
     }
 
-    private boolean needToDecreaseSnapshotDuration(float duration) {
-        // if all flows happen more than 10 times in a snapshot, may decrease the duration
-        return minFlowThroughput() * duration > 10;
-    }
-
-    private boolean needToIncreaseSnapshotDuration(float duration) {
-        // if some flows happen less than twice in a snapshot - increase the duration
-        return minFlowThroughput() * duration < 2;
-
+    private static float averageCpuLoad(List<LoadData> loadData) {
+        if (loadData == null) return -1;
+        float sum = 0;
+        int count = 0;
+        for (LoadData data : loadData) {
+            if (data.processCpuLoad >= 0) {
+                sum += data.processCpuLoad;
+                count++;
+            }
+        }
+        return count == 0 ? -1 : sum / count;
     }
 
     private float minFlowThroughput() {
+        if (step.get().aggregate != null) return step.get().aggregate.minFlowThroughput();
+
         float res = Float.MAX_VALUE;
-        for (MethodCall root : step.get().flowSummary.roots) {
+        for (MethodCall root : step.get().flowSummary.getRoots()) {
             for (MethodFlow flow : root.flows) {
                 res = Math.min(res, flow.statistics.throughputPerSec);
             }
@@ -266,12 +381,27 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         return res;
     }
 
+    void pruneInstrumentation() {
+        StepState current = step.get();
+        if (current.flowSummary == null) return;
+
+        Set<MethodConfiguration> found = instrumentationPruner.findMethodsToPrune(current.flowSummary);
+        Set<MethodConfiguration> pruned = current.taskState.updatePruning(found, current.to,
+                pruningMinSteps, pruningReadmitAfterMin * 60 * 1000L, pruningMaxMethods);
+        if (!pruned.isEmpty()) logger.fine("Pruned " + pruned.size() + " methods of " + current.agentJvm);
+    }
+
     private void adjustInstrumentation() {
         JflopConfiguration oldConf = step.get().taskState.getInstrumentationConfig();
+        Set<MethodConfiguration> pruned = step.get().taskState.getPrunedMethods();
         JflopConfiguration newConf = new JflopConfiguration();
         if (oldConf != null)
-            oldConf.getAllMethods().forEach(newConf::addMethodConfig);
-        step.get().methodsToInstrument.forEach(newConf::addMethodConfig);
+            oldConf.getAllMethods().forEach(method -> {
+                if (!pruned.contains(method)) newConf.addMethodConfig(method);
+            });
+        step.get().methodsToInstrument.forEach(method -> {
+            if (!pruned.contains(method)) newConf.addMethodConfig(method);
+        });
 
         Set<String> blacklist = metadataIndex.getBlacklistedClasses(step.get().agentJvm);
         for (String className : blacklist)
@@ -286,36 +416,59 @@ public class JvmMonitorAnalysis extends BackgroundTask {
     void findMethodsToInstrumentInThreadDump() {
         if (step.get().threads == null) return;
 
-        Map<String, InstrumentationMetadata> classMetadataCache = new HashMap<>();
-        Map<String, Set<String>> missingSignatures = new HashMap<>();
-
-        // find all instrumentable and not instrumented methods
+        // collect all instrumentable and not instrumented methods by class
+        Map<String, Set<String>> candidates = new HashMap<>();
         for (ThreadMetadata thread : step.get().threads.keySet()) {
             for (StackTraceElement traceElement : thread.stackTrace) {
                 if (thread.isInstrumentable(traceElement) && !isInstrumented(traceElement)) {
-                    String className = traceElement.getClassName();
-                    String methodName = traceElement.getMethodName();
-
-                    InstrumentationMetadata classMetadata = classMetadataCache.computeIfAbsent(className, k -> metadataIndex.getClassMetadata(step.get().agentJvm, className));
-                    List<String> signatures = classMetadata == null ? null
-                            : classMetadata.isBlacklisted ? Collections.EMPTY_LIST
-                            : classMetadata.methodSignatures.get(methodName);
-                    if (signatures != null) {
-                        if (signatures.size() > 1)
-                            logger.fine(signatures.size() + " signatures found for method " + className + "#" + methodName + ", instrumenting all of them.");
-                        for (String signature : signatures) {
-                            step.get().methodsToInstrument.add(new MethodConfiguration(className + "." + signature));
-                        }
-                    } else {
-                        String internalClassName = NameUtils.getInternalClassName(className); // need it because ES does not like "." in field names (map keys)
-                        Set<String> methods = missingSignatures.computeIfAbsent(internalClassName, k -> new HashSet<>());
-                        methods.add(methodName);
+                    candidates.computeIfAbsent(traceElement.getClassName(), k -> new HashSet<>()).add(traceElement.getMethodName());
+                }
+            }
+        }
+
+        // the cached class metadata may miss the signatures reported to another server since it was read,
+        // so the classes lacking some of the methods are re-read, unless the methods were already missing in the previous step
+        // and the agent has not reported the declared methods since then
+        AgentJVM agentJvm = step.get().agentJvm;
+        AnalysisState taskState = step.get().taskState;
+        Date reportedAt = classInfoFeature.getDeclaredMethodsReportedAt(agentJvm);
+        boolean newSignatures = reportedAt != null && !reportedAt.equals(taskState.declaredMethodsReportedAt);
+        Map<String, Set<String>> unresolved = newSignatures || taskState.unresolvedMethods == null ? Collections.emptyMap() : taskState.unresolvedMethods;
+        Map<String, InstrumentationMetadata> classMetadata = metadataIndex.getClassMetadata(agentJvm, candidates.keySet(), false);
+        Set<String> incomplete = candidates.entrySet().stream()
+                .filter(entry -> isIncomplete(classMetadata.get(entry.getKey()), entry.getValue()))
+                .filter(entry -> !unresolved.getOrDefault(NameUtils.getInternalClassName(entry.getKey()), Collections.emptySet()).containsAll(entry.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        if (!incomplete.isEmpty())
+            classMetadata.putAll(metadataIndex.getClassMetadata(agentJvm, incomplete, true));
+
+        Map<String, Set<String>> missingSignatures = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : candidates.entrySet()) {
+            String className = entry.getKey();
+            InstrumentationMetadata metadata = classMetadata.get(className);
+            for (String methodName : entry.getValue()) {
+                List<String> signatures = metadata == null ? null
+                        : metadata.isBlacklisted ? Collections.EMPTY_LIST
+                        : metadata.methodSignatures == null ? null
+                        : metadata.methodSignatures.get(methodName);
+                if (signatures != null) {
+                    if (signatures.size() > 1)
+                        logger.fine(signatures.size() + " signatures found for method " + className + "#" + methodName + ", instrumenting all of them.");
+                    for (String signature : signatures) {
+                        step.get().methodsToInstrument.add(new MethodConfiguration(className + "." + signature));
                     }
+                } else {
+                    String internalClassName = NameUtils.getInternalClassName(className); // need it because ES does not like "." in field names (map keys)
+                    Set<String> methods = missingSignatures.computeIfAbsent(internalClassName, k -> new HashSet<>());
+                    methods.add(methodName);
                 }
             }
         }
 
         logger.fine("Will instrument methods: " + step.get().methodsToInstrument);
+        taskState.unresolvedMethods = missingSignatures;
+        taskState.declaredMethodsReportedAt = reportedAt;
 
         // if some signatures are unknown, request the class metadata
         if (!missingSignatures.isEmpty()) {
@@ -324,17 +477,43 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         }
     }
 
+    private static boolean isIncomplete(InstrumentationMetadata metadata, Set<String> methodNames) {
+        return metadata != null && !metadata.isBlacklisted
+                && (metadata.methodSignatures == null || !metadata.methodSignatures.keySet().containsAll(methodNames));
+    }
+
     void mapThreadsToFlows() {
-        // 1. get recent threads and their metadata
+        // 1. get recent threads and snapshots with their metadata in parallel
         StepState current = step.get();
-        current.threads = rawDataIndex.getOccurrencesAndMetadata(current.agentJvm, ThreadOccurrenceData.class, ThreadMetadata.class, current.from, current.to);
+        JvmAggregate aggregate = current.aggregate;
+        Map<String, Date> consumed = new ConcurrentHashMap<>();
+        CompletableFuture<Map<ThreadMetadata, List<ThreadOccurrenceData>>> threads = aggregate == null
+                ? rawDataIndex.getOccurrencesAndMetadataAsync(current.agentJvm, ThreadOccurrenceData.class, ThreadMetadata.class, current.from, current.to)
+                : rawDataIndex.getOccurrencesAndMetadataAsync(current.agentJvm, ThreadOccurrenceData.class, ThreadMetadata.class, current.from, current.to, aggregate.notConsumed(consumed), aggregate::getThreadMetadata);
+        CompletableFuture<Map<FlowMetadata, List<FlowOccurrenceData>>> flows = aggregate == null
+                ? rawDataIndex.getOccurrencesAndMetadataAsync(current.agentJvm, FlowOccurrenceData.class, FlowMetadata.class, current.from, current.to)
+                : rawDataIndex.getOccurrencesAndMetadataAsync(current.agentJvm, FlowOccurrenceData.class, FlowMetadata.class, current.from, current.to, aggregate.notConsumed(consumed), aggregate::getFlowMetadata);
+        if (aggregate != null) {
+            // fold the new occurrences even if the step ends early, the next step skips them
+            threads = threads.thenApply(found -> {
+                aggregate.foldThreads(found);
+                return found;
+            });
+            flows = flows.thenApply(found -> {
+                aggregate.foldFlows(found, current.to);
+                return found;
+            });
+            DocumentStore.await(CompletableFuture.allOf(threads, flows));
+            aggregate.consumed(consumed, current.from, current.to);
+        }
+        current.threads = DocumentStore.await(threads);
         boolean noThreads = current.threads == null || current.threads.isEmpty();
         if (logger.isLoggable(Level.FINE))
             logger.fine("Found " + (noThreads ? "no threads" : current.threads.size() + " distinct threads"));
         if (noThreads) return;
 
-        // 2. get recent snapshots and their metadata
-        current.flows = rawDataIndex.getOccurrencesAndMetadata(current.agentJvm, FlowOccurrenceData.class, FlowMetadata.class, current.from, current.to);
+        // 2. wait for the recent snapshots
+        current.flows = DocumentStore.await(flows);
         boolean noFlows = current.flows == null || current.flows.isEmpty();
         if (logger.isLoggable(Level.FINE))
             logger.fine("Found " + (noFlows ? "no flows" : current.flows.size() + " distinct flows"));
@@ -349,6 +528,11 @@ public class JvmMonitorAnalysis extends BackgroundTask {
         processedDataIndex.addFlowSummary(flowSummary);
     }
 
+    @Override
+    protected void jvmTaskDropped(TaskLockData lock) {
+        aggregates.remove(lock.lockId);
+    }
+
     private boolean isInstrumented(StackTraceElement traceElement) {
         JflopConfiguration instrumentationConfig = step.get().taskState.getInstrumentationConfig();
         if (instrumentationConfig == null) return false;
@@ -10,9 +10,12 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Stores locks shared by multiple cluster nodes.<br/>
+ * Besides the task locks, keeps the cluster nodes participating in each background task,
+ * and the leases of the task partitions by the nodes.
  *
  * @author artem on 12/7/16.
  */
@@ -21,12 +24,13 @@ public class LockIndex extends IndexTemplate {
 
     private static final String LOCK_INDEX_NAME = "jf-lock";
 
-    private List<PersistentData<TaskLockData>> cache;
-    private long retrievedAt;
+    private static final int MAX_NODES = 1000;
 
     public LockIndex() {
         super(LOCK_INDEX_NAME + "-template", LOCK_INDEX_NAME + "*",
-                new DocType("task", "persistency/taskLockData.json", TaskLockData.class));
+                new DocType("task", "persistency/taskLockData.json", TaskLockData.class),
+                new DocType("lease", "persistency/taskLeaseData.json", TaskLeaseData.class),
+                new DocType("node", "persistency/taskNodeData.json", TaskNodeData.class));
     }
 
     @Override
@@ -42,54 +46,129 @@ public class LockIndex extends IndexTemplate {
         deleteDocument(new PersistentData(taskLockData.lockId, 0, taskLockData));
     }
 
-    public Collection<TaskLockData> getVacantLocks(String taskName) {
-        Collection<TaskLockData> res = new ArrayList<>();
-        for (PersistentData<TaskLockData> doc : getAllVacantLocks()) {
-            TaskLockData lock = doc.source;
-            if (lock.taskName.equals(taskName)) res.add(lock);
-        }
+    /**
+     * @return locks of the task in the given partitions
+     */
+    public List<PersistentData<TaskLockData>> getTaskLocks(String taskName, Collection<Integer> partitions) {
+        List<PersistentData<TaskLockData>> res = new ArrayList<>();
+        if (partitions.isEmpty()) return res;
+
+        QueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("taskName", taskName))
+                .filter(QueryBuilders.termsQuery("partition", partitions));
+        iterate(query, TaskLockData.class, null).forEachRemaining(res::add);
         return res;
     }
 
-    public boolean obtainLock(TaskLockData lock, long lockUntil) {
-        PersistentData<TaskLockData> doc = getDocument(lock.lockId);
-        if (doc != null) {
-            doc.source.lockedUntil = new Date(lockUntil);
-            try {
-                PersistentData<TaskLockData> persistentData = updateDocument(doc);
-                return persistentData.version > doc.version;
-            } catch (VersionConflictEngineException e) {
-                // someone has already updated the lock, it's ok - do nothing
-            }
+    /**
+     * Read the task lock by ID, unlike the search this sees the state saved right before
+     */
+    public CompletableFuture<PersistentData<TaskLockData>> getTaskLockAsync(String lockId) {
+        return getDocumentAsync(new PersistentData<>(lockId, 0), TaskLockData.class);
+    }
+
+    public PersistentData<TaskLockData> getTaskLock(String lockId) {
+        return getDocument(new PersistentData<>(lockId, 0), TaskLockData.class);
+    }
+
+    /**
+     * Save the task state, unless the lock has changed since this node has read or saved it.
+     * A changed lock is never overwritten, because it may hold a newer state saved by the previous owner of the partition.
+     *
+     * @param lock         the lock as read or saved by this node
+     * @param fencingToken fencing token of this node's partition lease
+     * @return the saved lock, or null if the lock was changed or deleted by another node
+     */
+    public PersistentData<TaskLockData> saveTaskState(PersistentData<TaskLockData> lock, long fencingToken) {
+        lock.source.fencingToken = fencingToken;
+        try {
+            return updateDocument(new PersistentData<>(lock.id, lock.version, lock.source));
+        } catch (DocumentMissingException | VersionConflictEngineException e) {
+            return null;
         }
-        return false;
     }
 
-    public void releaseLock(TaskLockData lock) {
-        lock.lockedUntil = new Date(0);
-        // ignore the version, because the cache might be outdated
+    /**
+     * Create or prolong the node membership in the task
+     */
+    public void heartbeat(TaskNodeData node) {
+        PersistentData<TaskNodeData> doc = new PersistentData<>(TaskNodeData.nodeDocId(node.taskName, node.nodeId), 0, node);
         try {
-            updateDocument(new PersistentData<>(lock.lockId, 0, lock));
+            updateDocument(doc);
         } catch (DocumentMissingException e) {
-            // the task might have been stopped, it's ok
+            createDocumentIfNotExists(doc);
+        }
+    }
+
+    public void removeNode(TaskNodeData node) {
+        deleteDocument(new PersistentData<>(TaskNodeData.nodeDocId(node.taskName, node.nodeId), 0, node));
+    }
+
+    /**
+     * @return IDs of the nodes alive at the given time, sorted
+     */
+    public List<String> getLiveNodes(String taskName, long now) {
+        QueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("taskName", taskName))
+                .filter(QueryBuilders.rangeQuery("aliveUntil").gte(now));
+        Set<String> res = new TreeSet<>();
+        for (PersistentData<TaskNodeData> doc : find(query, MAX_NODES, TaskNodeData.class, null)) {
+            res.add(doc.source.nodeId);
         }
+        return new ArrayList<>(res);
     }
 
-    private PersistentData<TaskLockData> getDocument(String lockId) {
-        for (PersistentData<TaskLockData> doc : getAllVacantLocks()) {
-            TaskLockData source = doc.source;
-            if (lockId.equals(source.lockId)) return doc;
+    /**
+     * Delete the membership of the nodes that stopped sending heartbeats before the given time
+     */
+    public void deleteExpiredNodes(String taskName, long expiredBefore) {
+        // only the node documents have the aliveUntil field
+        deleteByQuery(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("taskName", taskName))
+                .filter(QueryBuilders.rangeQuery("aliveUntil").lt(expiredBefore)));
+    }
+
+    /**
+     * Obtain the lease if it does not exist, has expired, or is already owned by the same node.
+     * The current lease is read by ID rather than searched, so that a just released lease is seen immediately.
+     *
+     * @param lease the requested lease
+     * @return the obtained lease, or null if it's owned by another node
+     */
+    public PersistentData<TaskLeaseData> obtainLease(TaskLeaseData lease) {
+        String id = TaskLeaseData.leaseId(lease.taskName, lease.partition);
+        PersistentData<TaskLeaseData> current = getDocument(new PersistentData<>(id, 0), TaskLeaseData.class);
+        if (current == null) {
+            current = createDocumentIfNotExists(new PersistentData<>(id, 0, lease));
+            if (current == null || lease.ownerId.equals(current.source.ownerId)) return current;
         }
-        return null;
+
+        boolean available = current.source.leasedUntil == null || current.source.leasedUntil.getTime() <= System.currentTimeMillis();
+        if (!available && !lease.ownerId.equals(current.source.ownerId)) return null;
+        return updateLease(new PersistentData<>(id, current.version, lease));
     }
 
-    private synchronized List<PersistentData<TaskLockData>> getAllVacantLocks() {
-        long now = System.currentTimeMillis();
-        if (cache == null || (now - retrievedAt) > 1000) {
-            QueryBuilder query = QueryBuilders.rangeQuery("lockedUntil").lte(now);
-            retrievedAt = now;
-            cache = find(query, 10000, TaskLockData.class, null); // what if there are more docs than maxHits?
+    /**
+     * Prolong the lease owned by this node
+     *
+     * @return the prolonged lease, or null if it has been taken by another node
+     */
+    public PersistentData<TaskLeaseData> renewLease(PersistentData<TaskLeaseData> lease, long leaseUntil) {
+        lease.source.leasedUntil = new Date(leaseUntil);
+        return updateLease(lease);
+    }
+
+    public void releaseLease(PersistentData<TaskLeaseData> lease) {
+        lease.source.leasedUntil = new Date(0);
+        updateLease(lease);
+    }
+
+    private PersistentData<TaskLeaseData> updateLease(PersistentData<TaskLeaseData> lease) {
+        try {
+            return updateDocument(lease);
+        } catch (VersionConflictEngineException | DocumentMissingException e) {
+            // another node has updated or removed the lease, it's ok - do nothing
+            return null;
         }
-        return cache;
     }
 }
@@ -0,0 +1,157 @@
+package com.jflop.server.background;
+
+import com.jflop.server.persistency.PersistentData;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ownership of the background task partitions by this node.
+ * <p/>
+ * Every node periodically announces itself as a task member, and assigns the partitions to the live members
+ * by rendezvous hashing, so that a membership change moves only the partitions of the joined or the left node.
+ * A node works only on the partitions whose leases it holds. It obtains the leases of the partitions assigned to it,
+ * and releases the leases of the partitions assigned to other nodes, once their running steps are done.
+ * The lease version at the moment it's obtained is the fencing token of the owner.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class PartitionLeases {
+
+    private static final Logger logger = Logger.getLogger(PartitionLeases.class.getName());
+
+    private static final long EXPIRED_NODES_CLEANUP_MILLIS = 10 * 60 * 1000;
+
+    private final String taskName;
+    private final String nodeId;
+    private final long leaseTimeoutMillis;
+    private final long renewMarginMillis;
+    private final LockIndex lockIndex;
+
+    private final Map<Integer, PersistentData<TaskLeaseData>> held = new HashMap<>();
+    private final Map<Integer, Long> fencingTokens = new HashMap<>();
+    private List<String> members = Collections.emptyList();
+    private long expiredNodesCleanupAt;
+
+    PartitionLeases(String taskName, long leaseTimeoutMillis, long syncIntervalMillis, LockIndex lockIndex) {
+        this.taskName = taskName;
+        this.nodeId = UUID.randomUUID().toString();
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+        this.renewMarginMillis = leaseTimeoutMillis / 2 + syncIntervalMillis;
+        this.lockIndex = lockIndex;
+    }
+
+    /**
+     * Refresh the membership and the leases.
+     *
+     * @param busy tells whether a partition has running steps, such partitions are released only when idle
+     * @return the partitions in which the new steps may be started
+     */
+    synchronized Set<Integer> sync(IntPredicate busy) {
+        long now = System.currentTimeMillis();
+        lockIndex.heartbeat(new TaskNodeData(taskName, nodeId, new Date(now + leaseTimeoutMillis)));
+        if (now >= expiredNodesCleanupAt) {
+            lockIndex.deleteExpiredNodes(taskName, now - EXPIRED_NODES_CLEANUP_MILLIS);
+            expiredNodesCleanupAt = now + EXPIRED_NODES_CLEANUP_MILLIS;
+        }
+
+        List<String> nodes = new ArrayList<>(lockIndex.getLiveNodes(taskName, now));
+        if (!nodes.contains(nodeId)) nodes.add(nodeId);
+        if (!nodes.equals(members)) {
+            logger.info("Task " + taskName + " members changed to " + nodes + ", this node is " + nodeId);
+            members = nodes;
+        }
+
+        Set<Integer> res = new TreeSet<>();
+        for (int partition = 0; partition < TaskLockData.NUM_PARTITIONS; partition++) {
+            boolean assigned = nodeId.equals(owner(nodes, partition));
+            PersistentData<TaskLeaseData> lease = held.get(partition);
+
+            if (lease != null) {
+                if (!assigned && !busy.test(partition)) {
+                    lockIndex.releaseLease(lease);
+                    forget(partition);
+                    continue;
+                }
+                if (lease.source.leasedUntil.getTime() - now < renewMarginMillis) {
+                    lease = lockIndex.renewLease(lease, now + leaseTimeoutMillis);
+                    if (lease == null) {
+                        logger.warning("Task " + taskName + " lost the lease of partition " + partition);
+                        forget(partition);
+                        continue;
+                    }
+                    held.put(partition, lease);
+                }
+                if (assigned) res.add(partition);
+
+            } else if (assigned) {
+                lease = lockIndex.obtainLease(new TaskLeaseData(taskName, partition, nodeId, new Date(now + leaseTimeoutMillis)));
+                if (lease != null) {
+                    held.put(partition, lease);
+                    fencingTokens.put(partition, lease.version);
+                    res.add(partition);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return fencing token of the partition lease, or 0 if the lease is not held
+     */
+    synchronized long getFencingToken(int partition) {
+        Long res = fencingTokens.get(partition);
+        return res == null ? 0 : res;
+    }
+
+    /**
+     * Release all the leases and leave the task membership, so that the other nodes take over immediately
+     */
+    synchronized void releaseAll() {
+        try {
+            for (PersistentData<TaskLeaseData> lease : held.values()) {
+                lockIndex.releaseLease(lease);
+            }
+            lockIndex.removeNode(new TaskNodeData(taskName, nodeId, null));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to release the leases of task " + taskName, e);
+        }
+        held.clear();
+        fencingTokens.clear();
+        members = Collections.emptyList();
+    }
+
+    private void forget(int partition) {
+        held.remove(partition);
+        fencingTokens.remove(partition);
+    }
+
+    /**
+     * Rendezvous (highest random weight) hashing of the partition among the nodes
+     *
+     * @return ID of the node the partition is assigned to, or null if there are no nodes
+     */
+    static String owner(Collection<String> nodes, int partition) {
+        String res = null;
+        long maxWeight = 0;
+        for (String node : nodes) {
+            long weight = weight(node, partition);
+            if (res == null || weight > maxWeight || (weight == maxWeight && node.compareTo(res) > 0)) {
+                res = node;
+                maxWeight = weight;
+            }
+        }
+        return res;
+    }
+
+    private static long weight(String node, int partition) {
+        // SplitMix64 finalizer spreads the combined hash over all the bits
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L + partition;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,66 @@
+package com.jflop.server.background;
+
+/**
+ * Chooses the snapshot duration and the interval between the snapshots of an agent JVM.
+ * <p/>
+ * The duration is long enough for the least frequent flow to occur the target number of times in a snapshot,
+ * so that its mean and percentiles are estimated from enough samples. The interval keeps the share of time the JVM spends
+ * in snapshots within the overhead budget, and is counted between the snapshot starts.
+ * When the process CPU load is above the threshold, the budget shrinks linearly down to zero at full load,
+ * so the snapshots become rarer.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class SnapshotController {
+
+    private final float overheadBudget;
+    private final int targetSamples;
+    private final int maxDurationSec;
+    private final int minIntervalSec;
+    private final int maxIntervalSec;
+    private final float highCpuLoad;
+
+    static class Decision {
+        final int durationSec;
+        final int intervalSec;
+
+        Decision(int durationSec, int intervalSec) {
+            this.durationSec = durationSec;
+            this.intervalSec = intervalSec;
+        }
+    }
+
+    SnapshotController(float overheadBudget, int targetSamples, int maxDurationSec, int minIntervalSec, int maxIntervalSec, float highCpuLoad) {
+        this.overheadBudget = overheadBudget;
+        this.targetSamples = targetSamples;
+        this.maxDurationSec = maxDurationSec;
+        this.minIntervalSec = minIntervalSec;
+        this.maxIntervalSec = maxIntervalSec;
+        this.highCpuLoad = highCpuLoad;
+    }
+
+    /**
+     * @param durationSec       current snapshot duration
+     * @param minFlowThroughput occurrences per second of the least frequent flow, NaN if not known
+     * @param cpuLoad           process CPU load between 0 and 1, negative if not known
+     * @return the next snapshot duration and the interval between the snapshot starts
+     */
+    Decision decide(int durationSec, float minFlowThroughput, float cpuLoad) {
+        int duration = clamp(durationSec, 1, maxDurationSec);
+        if (minFlowThroughput > 0 && minFlowThroughput < Float.MAX_VALUE)
+            duration = clamp((int) Math.ceil(targetSamples / minFlowThroughput), 1, maxDurationSec);
+
+        float budget = overheadBudget;
+        if (cpuLoad > highCpuLoad)
+            budget *= Math.max(0, (1 - cpuLoad) / (1 - highCpuLoad));
+
+        int interval = budget <= 0 ? duration + maxIntervalSec
+                : clamp((int) Math.ceil(duration / budget), duration + minIntervalSec, duration + maxIntervalSec);
+        return new Decision(duration, interval);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,32 @@
+package com.jflop.server.background;
+
+import java.util.Date;
+
+/**
+ * Lease of a hash partition of the background task's agent JVMs by a cluster node.
+ * The version of the lease document at the moment it's obtained serves as the fencing token of the owner.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class TaskLeaseData {
+
+    public String taskName;
+    public int partition;
+    public String ownerId;
+    public Date leasedUntil;
+
+    public TaskLeaseData() {
+    }
+
+    public TaskLeaseData(String taskName, int partition, String ownerId, Date leasedUntil) {
+        this.taskName = taskName;
+        this.partition = partition;
+        this.ownerId = ownerId;
+        this.leasedUntil = leasedUntil;
+    }
+
+    public static String leaseId(String taskName, int partition) {
+        return taskName + "-partition-" + partition;
+    }
+}
@@ -7,22 +7,31 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jflop.server.admin.data.AgentJVM;
 
 import java.io.IOException;
-import java.util.Date;
 
 /**
- * Lock data for a specific background task
+ * Lock data for a specific background task.
+ * <p/>
+ * The task is executed by the node holding the lease of its partition, see {@link TaskLeaseData}.
+ * The lock document keeps the custom state of the task, and the fencing token of the last node that saved it,
+ * so that a node which lost the partition lease can not overwrite the state saved by the new owner.
  *
  * @author artem on 12/7/16.
  */
 public class TaskLockData {
 
+    /**
+     * Number of hash partitions of the agent JVMs, the unit of ownership among the cluster nodes
+     */
+    public static final int NUM_PARTITIONS = 32;
+
     private static final ObjectMapper mapper = new ObjectMapper();
 
     public String taskName;
     public AgentJVM agentJvm;
     public String lockId;
+    public int partition;
 
-    public Date lockedUntil;
+    public long fencingToken;
 
     @JsonProperty
     private String customStateJson;
@@ -39,7 +48,11 @@ public class TaskLockData {
             if (agentJvm.agentId != null) lockId += "-" + agentJvm.agentId;
             if (agentJvm.jvmId != null) lockId += "-" + agentJvm.jvmId;
         }
-        lockedUntil = new Date(0); // unlocked
+        partition = partitionOf(lockId);
+    }
+
+    public static int partitionOf(String lockId) {
+        return Math.floorMod(lockId.hashCode(), NUM_PARTITIONS);
     }
 
     @JsonIgnore
@@ -0,0 +1,29 @@
+package com.jflop.server.background;
+
+import java.util.Date;
+
+/**
+ * Membership of a cluster node in a background task, kept alive by periodic heartbeats.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class TaskNodeData {
+
+    public String taskName;
+    public String nodeId;
+    public Date aliveUntil;
+
+    public TaskNodeData() {
+    }
+
+    public TaskNodeData(String taskName, String nodeId, Date aliveUntil) {
+        this.taskName = taskName;
+        this.nodeId = nodeId;
+        this.aliveUntil = aliveUntil;
+    }
+
+    public static String nodeDocId(String taskName, String nodeId) {
+        return taskName + "-node-" + nodeId;
+    }
+}
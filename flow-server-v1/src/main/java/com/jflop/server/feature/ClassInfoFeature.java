@@ -9,6 +9,7 @@ import com.jflop.server.runtime.data.InstrumentationMetadata;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -32,6 +33,14 @@ public class ClassInfoFeature extends AgentFeature {
         sendCommandIfNotInProgress(agentJVM, GET_DECLARED_METHODS, classMethods);
     }
 
+    /**
+     * @return when the agent last reported the declared methods, null if not known
+     */
+    public Date getDeclaredMethodsReportedAt(AgentJVM agentJVM) {
+        FeatureCommand command = getCurrentCommand(agentJVM);
+        return command == null || !GET_DECLARED_METHODS.equals(command.commandName) ? null : command.respondedAt;
+    }
+
     @Override
     public FeatureCommand parseCommand(AgentJVM agentJVM, String command, String paramStr) throws ValidationException {
         throw new RuntimeException("This method should not be called");
@@ -0,0 +1,275 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.*;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous bulk indexing stage on top of the transport client.
+ * <p/>
+ * Documents are serialized by the caller and queued; a bulk request is sent when the queue reaches the configured
+ * number of actions or size, or when the flush interval elapses. The number of documents that are queued or in flight
+ * is bounded: when the bound is reached, {@link #add(String, String, Object)} blocks up to the offer timeout and then fails,
+ * which pushes the back pressure to the reporting agent. Items failed for a transient reason are re-queued up to the max retries.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class BulkIngestion {
+
+    private static final Logger logger = Logger.getLogger(BulkIngestion.class.getName());
+
+    private static final long RETRY_DELAY_MILLIS = 200;
+
+    private final ObjectMapper mapper;
+    private final BulkProcessor processor;
+    private final ScheduledExecutorService retryScheduler;
+
+    private final int maxPending;
+    private final Semaphore capacity;
+    private final long offerTimeoutMillis;
+    private final int maxRetries;
+    private final Map<DocWriteRequest, Integer> attempts = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final OperationMetrics metrics;
+    private final Map<Long, OperationMetrics.Sample> samples = new ConcurrentHashMap<>();
+
+    private final Object pendingLock = new Object();
+    private long pending;
+    private long failed;
+    private volatile boolean closed;
+
+    public BulkIngestion(Client client, ObjectMapper mapper, Config config, OperationMetrics metrics) {
+        this.mapper = mapper;
+        this.metrics = metrics;
+        this.maxPending = config.maxPending;
+        this.capacity = new Semaphore(config.maxPending);
+        this.offerTimeoutMillis = config.offerTimeoutMillis;
+        this.maxRetries = config.maxRetries;
+
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jf-bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        processor = BulkProcessor.builder(client, new Listener())
+                .setName("jf-bulk-ingestion")
+                .setBulkActions(config.bulkActions)
+                .setBulkSize(new ByteSizeValue(config.bulkSizeMb, ByteSizeUnit.MB))
+                .setFlushInterval(TimeValue.timeValueMillis(config.flushIntervalMillis))
+                .setConcurrentRequests(config.concurrentRequests)
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), maxRetries))
+                .build();
+    }
+
+    /**
+     * Queue a document for indexing with an auto-generated ID.
+     *
+     * @param index   index name
+     * @param docType document type
+     * @param source  the document source
+     * @throws RuntimeException if the ingestion queue stays full for longer than the offer timeout, or the ingestion is closed
+     */
+    public void add(String index, String docType, Object source) {
+        if (closed) throw new RuntimeException("Ingestion is closed");
+
+        byte[] bytes;
+        try {
+            bytes = mapper.writeValueAsBytes(source);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            if (!capacity.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new RuntimeException("Ingestion queue is full: " + maxPending + " documents pending");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the ingestion queue", e);
+        }
+
+        synchronized (pendingLock) {
+            pending++;
+        }
+        processor.add(new IndexRequest(index, docType).source(bytes, XContentType.JSON));
+    }
+
+    /**
+     * Send the queued documents and wait until all of them, including retries, are either indexed or given up.
+     *
+     * @param timeoutMillis max time to wait
+     * @return true if nothing is pending, false if the timeout expired
+     */
+    public boolean flush(long timeoutMillis) {
+        processor.flush();
+        long waitUntil = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                long remaining = waitUntil - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                try {
+                    pendingLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getPending() {
+        synchronized (pendingLock) {
+            return pending;
+        }
+    }
+
+    public long getFailed() {
+        synchronized (pendingLock) {
+            return failed;
+        }
+    }
+
+    /**
+     * Stop accepting documents, and wait until the queued ones and their scheduled retries are sent.
+     * The documents still pending when the timeout expires are counted as failed.
+     *
+     * @param timeoutMillis max time to wait
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        long waitUntil = System.currentTimeMillis() + timeoutMillis;
+        flush(timeoutMillis);
+
+        // the retries already scheduled still run, the new ones are given up
+        retryScheduler.shutdown();
+        retryScheduler.awaitTermination(Math.max(0, waitUntil - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        processor.awaitClose(Math.max(0, waitUntil - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        retryScheduler.shutdownNow();
+
+        long dropped = getPending();
+        if (dropped > 0) {
+            logger.severe("Ingestion closed with " + dropped + " documents pending");
+            completed((int) dropped, (int) dropped);
+        }
+    }
+
+    private void completed(int count, int failedCount) {
+        capacity.release(count);
+        synchronized (pendingLock) {
+            pending -= count;
+            failed += failedCount;
+            if (pending <= 0) pendingLock.notifyAll();
+        }
+    }
+
+    private boolean retry(DocWriteRequest request) {
+        int attempt = attempts.merge(request, 1, (a, b) -> a + b);
+        if (attempt > maxRetries) {
+            attempts.remove(request);
+            return false;
+        }
+
+        // re-add on a separate thread, the bulk processor may block on its concurrent requests semaphore
+        try {
+            retryScheduler.schedule(() -> {
+                try {
+                    processor.add(request);
+                } catch (Exception e) {
+                    attempts.remove(request);
+                    logger.log(Level.SEVERE, "Failed to re-queue bulk item", e);
+                    completed(1, 1);
+                }
+            }, RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+            attempts.remove(request);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return status != RestStatus.CONFLICT && status != RestStatus.BAD_REQUEST && status != RestStatus.NOT_FOUND;
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            Set<String> indices = new TreeSet<>();
+            request.requests().forEach(item -> indices.add(item.index()));
+            samples.put(executionId, metrics.start("bulk", String.join(",", indices), request.estimatedSizeInBytes()));
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            OperationMetrics.Sample sample = samples.remove(executionId);
+            if (sample != null) {
+                if (response.hasFailures()) sample.failed();
+                else sample.succeeded();
+            }
+
+            List<DocWriteRequest> requests = request.requests();
+            int done = 0;
+            int failedCount = 0;
+            for (BulkItemResponse item : response) {
+                DocWriteRequest itemRequest = requests.get(item.getItemId());
+                if (!item.isFailed()) {
+                    attempts.remove(itemRequest);
+                    done++;
+                } else if (!isRetryable(item.getFailure().getStatus()) || !retry(itemRequest)) {
+                    logger.warning("Bulk item failed in " + item.getIndex() + "/" + item.getType() + ": " + item.getFailureMessage());
+                    done++;
+                    failedCount++;
+                }
+            }
+            completed(done, failedCount);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            OperationMetrics.Sample sample = samples.remove(executionId);
+            if (sample != null) sample.failed();
+
+            logger.log(Level.SEVERE, "Bulk request of " + request.numberOfActions() + " actions failed", failure);
+            int givenUp = 0;
+            for (DocWriteRequest itemRequest : request.requests()) {
+                if (!retry(itemRequest)) givenUp++;
+            }
+            completed(givenUp, givenUp);
+        }
+    }
+
+    /**
+     * Bulk ingestion tuning parameters
+     */
+    public static class Config {
+        public int bulkActions = 1000;
+        public int bulkSizeMb = 5;
+        public long flushIntervalMillis = 1000;
+        public int concurrentRequests = 2;
+        public int maxPending = 50000;
+        public long offerTimeoutMillis = 2000;
+        public int maxRetries = 3;
+    }
+}
@@ -0,0 +1,34 @@
+package com.jflop.server.persistency;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy iterator over search results, see {@link DocumentStore#scroll}.
+ * Releases the underlying resources when iterated to the end, or explicitly closed.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public interface DocumentCursor<T> extends Iterator<PersistentData<T>>, Closeable {
+
+    /**
+     * @return total number of matching documents
+     */
+    long getTotalHits();
+
+    @Override
+    void close();
+
+    /**
+     * @return sequential stream over the remaining elements, closing the stream closes the cursor
+     */
+    default Stream<PersistentData<T>> stream() {
+        Spliterator<PersistentData<T>> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+}
@@ -0,0 +1,170 @@
+package com.jflop.server.persistency;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.sort.SortBuilder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Storage SPI used by {@link IndexTemplate}.
+ * <p/>
+ * The contract follows the Elasticsearch semantics: documents are grouped in indices which may be addressed by aliases,
+ * index templates add aliases to the matching indices on creation, and the documents are versioned.
+ * Version mismatch is reported by {@link org.elasticsearch.index.engine.VersionConflictEngineException},
+ * update of a missing document by {@link org.elasticsearch.index.engine.DocumentMissingException}.
+ * Queries and sort orders are expressed with the ES query builders.
+ * <p/>
+ * The backend is selected by the storage.backend property: elasticsearch (default) or embedded.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public interface DocumentStore {
+
+    // ----- indices -----
+
+    void putTemplate(String name, String template, Collection<DocType> docTypes, String... aliases);
+
+    void deleteIndices(String... names);
+
+    boolean indexExists(String... names);
+
+    void createIndexIfNotExists(String name);
+
+    /**
+     * @param pattern index name pattern, may contain wildcards
+     * @return names of existing indices matching the pattern
+     */
+    String[] getIndices(String pattern);
+
+    /**
+     * Atomically move the alias to the given index, removing it from all the other indices.
+     */
+    void setAlias(String alias, String index);
+
+    /**
+     * Make the recent changes visible to searches
+     */
+    void refreshIndices(String indexName);
+
+    // ----- documents -----
+
+    <T> PersistentData<T> createDocument(String index, String docType, PersistentData<T> doc);
+
+    /**
+     * Create the document if it does not exist yet.
+     *
+     * @return the created document, or the existing one
+     */
+    <T> PersistentData<T> createDocumentIfNotExists(String index, String docType, PersistentData<T> doc, Class<T> type);
+
+    /**
+     * Queue the document for asynchronous indexing with auto-generated ID.
+     */
+    void ingestDocument(String index, String docType, Object source);
+
+    /**
+     * Wait until the documents queued for asynchronous indexing are processed.
+     *
+     * @return true if no documents remain pending
+     */
+    boolean flushIngestion(long timeoutMillis);
+
+    /**
+     * Merge the document source into the stored one. If the document version is not 0, it must match the stored version.
+     */
+    <T> PersistentData<T> updateDocument(String index, String docType, PersistentData<T> doc);
+
+    /**
+     * @return the document, or null if either the document or the index does not exist
+     */
+    <T> PersistentData<T> getDocument(String index, String docType, PersistentData<T> data, Class<T> type);
+
+    /**
+     * @return existing documents with the given IDs, or null if the index does not exist
+     */
+    <T> List<T> getDocuments(String index, String docType, Class<T> type, Set<String> ids);
+
+    boolean deleteDocument(String index, String docType, PersistentData document);
+
+    void deleteByQuery(String index, QueryBuilder query);
+
+    // ----- search -----
+
+    /**
+     * Find at most maxHits documents in the given indices, ignoring the ones which do not exist.
+     */
+    <T> List<PersistentData<T>> find(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType);
+
+    /**
+     * Lazily iterate over all the matching documents.
+     *
+     * @param pageSize number of documents fetched at once
+     * @param sort     sort order, or null for the natural order
+     * @return cursor, should be closed if not iterated to the end
+     */
+    <T> DocumentCursor<T> scroll(String[] indices, String docType, QueryBuilder query, int pageSize, SortBuilder sort, Class<T> dataType);
+
+    /**
+     * @return false if the backend does not run {@link #aggregate} and {@link #aggregateAsync},
+     * the callers should then compute the aggregates from the found documents
+     */
+    boolean supportsAggregations();
+
+    /**
+     * @throws UnsupportedOperationException if not {@link #supportsAggregations()}
+     */
+    Aggregation aggregate(String index, String docType, QueryBuilder query, AbstractAggregationBuilder aggregation);
+
+    // ----- non-blocking API -----
+
+    <T> CompletableFuture<PersistentData<T>> createDocumentAsync(String index, String docType, PersistentData<T> doc);
+
+    <T> CompletableFuture<PersistentData<T>> createDocumentIfNotExistsAsync(String index, String docType, PersistentData<T> doc, Class<T> type);
+
+    <T> CompletableFuture<PersistentData<T>> updateDocumentAsync(String index, String docType, PersistentData<T> doc);
+
+    <T> CompletableFuture<PersistentData<T>> getDocumentAsync(String index, String docType, PersistentData<T> data, Class<T> type);
+
+    <T> CompletableFuture<List<T>> getDocumentsAsync(String index, String docType, Class<T> type, Set<String> ids);
+
+    <T> CompletableFuture<List<PersistentData<T>>> findAsync(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType);
+
+    /**
+     * Non-blocking iteration over all the matching documents, the consumer is called sequentially for each document.
+     *
+     * @return future of the number of consumed documents
+     */
+    <T> CompletableFuture<Long> scrollAsync(String[] indices, String docType, QueryBuilder query, int pageSize, SortBuilder sort,
+                                            Class<T> dataType, Consumer<PersistentData<T>> consumer);
+
+    CompletableFuture<Aggregation> aggregateAsync(String index, String docType, QueryBuilder query, AbstractAggregationBuilder aggregation);
+
+    // ----- monitoring -----
+
+    /**
+     * @return latency and throughput of the storage operations by operation and index
+     */
+    OperationMetrics getMetrics();
+
+    /**
+     * Wait for the future and rethrow its failure as is, rather than wrapped in {@link CompletionException}
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
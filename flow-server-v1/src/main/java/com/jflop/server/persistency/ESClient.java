@@ -2,16 +2,28 @@ package com.jflop.server.persistency;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jflop.server.util.DigestUtil;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
 import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequestBuilder;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.get.*;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.transport.TransportClient;
@@ -19,8 +31,10 @@ import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.engine.VersionConflictEngineException;
@@ -29,39 +43,71 @@ import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.xpack.XPackClient;
 import org.elasticsearch.xpack.client.PreBuiltXPackTransportClient;
 import org.elasticsearch.xpack.watcher.client.WatcherClient;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Elastic search client
+ * <p/>
+ * Connects to the seed nodes listed in elasticsearch.hosts, and with sniffing enabled discovers the rest of the
+ * data nodes and spreads the requests among them. There are two transport clients with their own connections
+ * and network threads: one for the document writes and gets coming from the agent reports, and another one
+ * for the searches, scrolls, aggregations and admin requests, so that heavy analysis queries don't delay the agents.
  *
  * @author artem
  *         Date: 8/13/16
  */
 
 @Component
-public class ESClient implements InitializingBean, DisposableBean {
+@ConditionalOnProperty(name = "storage.backend", havingValue = "elasticsearch", matchIfMissing = true)
+public class ESClient implements DocumentStore, InitializingBean, DisposableBean {
 
     private static final Logger logger = Logger.getLogger(ESClient.class.getName());
 
+    private static final long SCROLL_KEEP_ALIVE_MILLIS = 60000;
+
     private ObjectMapper mapper = new ObjectMapper();
 
-    @Value("${elasticsearch.host}")
-    private String esHost;
+    @Value("${elasticsearch.host:localhost}")
+    private String esHost = "localhost";
+
+    @Value("${elasticsearch.port:9300}")
+    private int esPort = 9300;
+
+    @Value("${elasticsearch.hosts:}")
+    private String esHosts = "";
+
+    @Value("${elasticsearch.sniff:false}")
+    private boolean sniff;
 
-    @Value("${elasticsearch.port}")
-    private int esPort;
+    @Value("${elasticsearch.ingest.workers:2}")
+    private int ingestWorkers = 2;
+
+    @Value("${elasticsearch.query.workers:4}")
+    private int queryWorkers = 4;
 
     @Value("${cluster.name}")
     private String esCluster;
@@ -69,8 +115,36 @@ public class ESClient implements InitializingBean, DisposableBean {
     @Value("${transport.client}")
     private String esClientCredentials;
 
+    @Value("${ingest.bulk.actions:1000}")
+    private int bulkActions = 1000;
+
+    @Value("${ingest.bulk.sizeMb:5}")
+    private int bulkSizeMb = 5;
+
+    @Value("${ingest.bulk.flushIntervalMillis:1000}")
+    private long bulkFlushIntervalMillis = 1000;
+
+    @Value("${ingest.bulk.concurrentRequests:2}")
+    private int bulkConcurrentRequests = 2;
+
+    @Value("${ingest.bulk.maxPending:50000}")
+    private int bulkMaxPending = 50000;
+
+    @Value("${ingest.bulk.offerTimeoutMillis:2000}")
+    private long bulkOfferTimeoutMillis = 2000;
+
+    @Value("${ingest.bulk.maxRetries:3}")
+    private int bulkMaxRetries = 3;
+
+    @Value("${elasticsearch.async.callbackThreads:4}")
+    private int callbackThreads = 4;
+
     private TransportClient client;
+    private TransportClient ingestClient;
     private XPackClient xPackClient;
+    private BulkIngestion bulkIngestion;
+    private ExecutorService callbackExecutor;
+    private final OperationMetrics metrics = new OperationMetrics();
 
     public ESClient() {
     }
@@ -85,18 +159,73 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        List<InetSocketTransportAddress> seedNodes = parseAddresses(esHosts.trim().isEmpty() ? esHost : esHosts, esPort);
+        client = createClient("query", queryWorkers, seedNodes);
+        ingestClient = createClient("ingest", ingestWorkers, seedNodes);
+        xPackClient = new XPackClient(client);
+        logger.info("Connected to " + seedNodes + (sniff ? " with sniffing" : ""));
+        awaitClusterAvailable(5);
+
+        BulkIngestion.Config bulkConfig = new BulkIngestion.Config();
+        bulkConfig.bulkActions = bulkActions;
+        bulkConfig.bulkSizeMb = bulkSizeMb;
+        bulkConfig.flushIntervalMillis = bulkFlushIntervalMillis;
+        bulkConfig.concurrentRequests = bulkConcurrentRequests;
+        bulkConfig.maxPending = bulkMaxPending;
+        bulkConfig.offerTimeoutMillis = bulkOfferTimeoutMillis;
+        bulkConfig.maxRetries = bulkMaxRetries;
+        bulkIngestion = new BulkIngestion(ingestClient, mapper, bulkConfig, metrics);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        callbackExecutor = Executors.newFixedThreadPool(callbackThreads, r -> {
+            Thread thread = new Thread(r, "jf-es-callback-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private TransportClient createClient(String name, int workers, List<InetSocketTransportAddress> seedNodes) {
         Settings settings = Settings.builder()
                 .put("cluster.name", esCluster)
                 .put("xpack.security.user", esClientCredentials)
+                .put("node.name", "jf-" + name)
+                .put("client.transport.sniff", sniff)
+                .put("transport.netty.worker_count", workers)
                 .build();
-        client = new PreBuiltXPackTransportClient(settings)
-                .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"), 9300));
-        xPackClient = new XPackClient(client);
+        TransportClient res = new PreBuiltXPackTransportClient(settings);
+        for (InetSocketTransportAddress address : seedNodes) {
+            res.addTransportAddress(address);
+        }
+        return res;
+    }
+
+    /**
+     * @param hosts       comma separated list of host[:port]
+     * @param defaultPort port of the hosts that don't specify one
+     */
+    static List<InetSocketTransportAddress> parseAddresses(String hosts, int defaultPort) throws UnknownHostException {
+        List<InetSocketTransportAddress> res = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) continue;
+            int port = defaultPort;
+            int pos = host.lastIndexOf(':');
+            if (pos > 0) {
+                port = Integer.parseInt(host.substring(pos + 1));
+                host = host.substring(0, pos);
+            }
+            res.add(new InetSocketTransportAddress(InetAddress.getByName(host), port));
+        }
+        if (res.isEmpty()) throw new RuntimeException("No elasticsearch hosts configured");
+        return res;
     }
 
     @Override
     public void destroy() throws Exception {
+        bulkIngestion.close(10000);
+        ingestClient.close();
         client.close();
+        callbackExecutor.shutdown();
     }
 
     public List<IndexTemplateMetaData> getTemplates(String templates) {
@@ -104,13 +233,44 @@ public class ESClient implements InitializingBean, DisposableBean {
         return response.getIndexTemplates();
     }
 
-    public void putTemplate(String name, String template, Collection<DocType> docTypes) {
-        PutIndexTemplateRequestBuilder request = client.admin().indices().preparePutTemplate(name).setTemplate(template).setOrder(1);
+    /**
+     * Install the template unless the same one is already installed.
+     * The template version holds a hash of the template content, so that the unchanged templates are not put again
+     * on every server start.
+     */
+    @Override
+    public void putTemplate(String name, String template, Collection<DocType> docTypes, String... aliases) {
+        Map<String, String> mappings = new TreeMap<>();
         for (DocType docType : docTypes) {
-            request.addMapping(docType.docType, docType.readMapping(), XContentType.JSON);
+            mappings.put(docType.docType, docType.readMapping());
+        }
+        int version = templateVersion(template, mappings, aliases);
+        for (IndexTemplateMetaData installed : getTemplates(name)) {
+            if (installed.name().equals(name) && Objects.equals(installed.version(), version)) {
+                logger.fine("Template " + name + " is up to date");
+                return;
+            }
+        }
+
+        PutIndexTemplateRequestBuilder request = client.admin().indices().preparePutTemplate(name).setTemplate(template).setOrder(1).setVersion(version);
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            request.addMapping(mapping.getKey(), mapping.getValue(), XContentType.JSON);
+        }
+        for (String alias : aliases) {
+            request.addAlias(new Alias(alias));
         }
         request.execute().actionGet();
-        awaitClusterAvailable(5);
+        logger.info("Installed template " + name + " version " + version);
+    }
+
+    static int templateVersion(String template, Map<String, String> mappings, String... aliases) {
+        MessageDigest digest = MessageDigests.sha1();
+        DigestUtil.addStringsToDigest(digest, template);
+        DigestUtil.addStringsToDigest(digest, aliases);
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            DigestUtil.addStringsToDigest(digest, mapping.getKey(), mapping.getValue());
+        }
+        return ByteBuffer.wrap(digest.digest()).getInt();
     }
 
     public void deleteTemplates(String... names) {
@@ -121,6 +281,7 @@ public class ESClient implements InitializingBean, DisposableBean {
         awaitClusterAvailable(5);
     }
 
+    @Override
     public void deleteIndices(String... names) {
         try {
             client.admin().indices().prepareDelete(names).get();
@@ -130,6 +291,47 @@ public class ESClient implements InitializingBean, DisposableBean {
         awaitClusterAvailable(5);
     }
 
+    @Override
+    public void createIndexIfNotExists(String name) {
+        if (indexExists(name)) return;
+        try {
+            client.admin().indices().prepareCreate(name).execute().actionGet();
+        } catch (ResourceAlreadyExistsException e) {
+            // created concurrently
+        }
+    }
+
+    @Override
+    public String[] getIndices(String pattern) {
+        return client.admin().indices().prepareGetIndex().setIndices(pattern).setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .execute().actionGet().getIndices();
+    }
+
+    /**
+     * Atomically move the alias to the given index, removing it from all the other indices.
+     *
+     * @param alias alias name
+     * @param index the index the alias should point to
+     */
+    @Override
+    public void setAlias(String alias, String index) {
+        GetAliasesResponse existing = client.admin().indices().prepareGetAliases(alias).execute().actionGet();
+        IndicesAliasesRequestBuilder request = client.admin().indices().prepareAliases();
+        boolean changed = true;
+        for (Iterator<String> iterator = existing.getAliases().keysIt(); iterator.hasNext(); ) {
+            String aliasIndex = iterator.next();
+            if (aliasIndex.equals(index))
+                changed = false;
+            else
+                request.removeAlias(aliasIndex, alias);
+        }
+        if (!changed && existing.getAliases().size() == 1) return;
+
+        request.addAlias(index, alias);
+        request.execute().actionGet();
+    }
+
+    @Override
     public boolean indexExists(String... names) {
         return client.admin().indices().prepareExists(names).execute().actionGet().isExists();
     }
@@ -141,26 +343,33 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     public String createDocument(String index, String docType, Object pojo, String id) {
         try {
-            IndexRequestBuilder request = client.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(pojo), XContentType.JSON);
+            byte[] source = mapper.writeValueAsBytes(pojo);
+            IndexRequestBuilder request = ingestClient.prepareIndex(index, docType).setSource(source, XContentType.JSON);
             if (id != null) {
                 request.setId(id);
                 request.setCreate(true);
             }
-            return request.execute().actionGet().getId();
+            return execute("create", index, source.length, request).getId();
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
     public <T> PersistentData<T> createDocument(String index, String docType, PersistentData<T> doc) {
+        IndexRequestBuilder request = prepareCreate(index, docType, doc);
+        IndexResponse response = execute("create", index, sourceLength(request), request);
+        return new PersistentData<>(response.getId(), response.getVersion(), doc.source);
+    }
+
+    private IndexRequestBuilder prepareCreate(String index, String docType, PersistentData<?> doc) {
         try {
-            IndexRequestBuilder request = client.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
+            IndexRequestBuilder request = ingestClient.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
             if (doc.id != null) {
                 request.setId(doc.id);
                 request.setCreate(true);
             }
-            IndexResponse response = request.execute().actionGet();
-            return new PersistentData<>(response.getId(), response.getVersion(), doc.source);
+            return request;
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -177,6 +386,7 @@ public class ESClient implements InitializingBean, DisposableBean {
      * @param type    the source class
      * @return null if the document was created, or the existing document otherwise
      */
+    @Override
     public <T> PersistentData<T> createDocumentIfNotExists(String index, String docType, PersistentData<T> doc, Class<T> type) {
         try {
             return createDocument(index, docType, doc);
@@ -185,28 +395,66 @@ public class ESClient implements InitializingBean, DisposableBean {
         }
     }
 
+    /**
+     * Queue the document for asynchronous bulk indexing with auto-generated ID.
+     * The document becomes visible after the next bulk is executed and the index is refreshed.
+     *
+     * @param index   index name
+     * @param docType doctype
+     * @param source  document source
+     * @throws RuntimeException if the ingestion queue is full
+     */
+    @Override
+    public void ingestDocument(String index, String docType, Object source) {
+        bulkIngestion.add(index, docType, source);
+    }
+
+    /**
+     * Wait until the documents queued for bulk indexing are processed.
+     *
+     * @param timeoutMillis max time to wait
+     * @return true if no documents remain pending
+     */
+    @Override
+    public boolean flushIngestion(long timeoutMillis) {
+        return bulkIngestion.flush(timeoutMillis);
+    }
+
+    @Override
     public <T> PersistentData<T> updateDocument(String index, String docType, PersistentData<T> doc) {
+        UpdateRequestBuilder request = prepareUpdate(index, docType, doc);
+        UpdateResponse response = execute("update", index, sourceLength(request), request);
+        return new PersistentData<>(response.getId(), response.getVersion(), doc.source);
+    }
+
+    private UpdateRequestBuilder prepareUpdate(String index, String docType, PersistentData<?> doc) {
         try {
-            UpdateRequestBuilder request = client.prepareUpdate(index, docType, doc.id).setDoc(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
+            UpdateRequestBuilder request = ingestClient.prepareUpdate(index, docType, doc.id).setDoc(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
             if (doc.version != 0) request.setVersion(doc.version);
-            UpdateResponse response = request.execute().actionGet();
-            return new PersistentData<>(response.getId(), response.getVersion(), doc.source);
+            return request;
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
     public <T> PersistentData<T> getDocument(String indexName, String docType, PersistentData<T> data, Class<T> type) {
-        GetRequestBuilder request = client.prepareGet(indexName, docType, data.id);
-        if (data.version != 0) request.setVersion(data.version);
-
         GetResponse response;
         try {
-            response = request.execute().actionGet();
+            response = execute("get", indexName, 0, prepareGet(indexName, docType, data));
         } catch (IndexNotFoundException e) {
             return null;
         }
+        return readDocument(response, type);
+    }
 
+    private GetRequestBuilder prepareGet(String indexName, String docType, PersistentData<?> data) {
+        GetRequestBuilder request = ingestClient.prepareGet(indexName, docType, data.id);
+        if (data.version != 0) request.setVersion(data.version);
+        return request;
+    }
+
+    private <T> PersistentData<T> readDocument(GetResponse response, Class<T> type) {
         if (response.isExists())
             try {
                 return new PersistentData<>(response.getId(), response.getVersion(), mapper.readValue(response.getSourceAsBytes(), type));
@@ -217,15 +465,18 @@ public class ESClient implements InitializingBean, DisposableBean {
             return null;
     }
 
+    @Override
     public <T> List<T> getDocuments(String indexName, String docType, Class<T> type, Set<String> ids) {
-        MultiGetRequestBuilder request = client.prepareMultiGet().add(indexName, docType, ids);
         MultiGetResponse response;
         try {
-            response = request.execute().actionGet();
+            response = execute("mget", indexName, 0, ingestClient.prepareMultiGet().add(indexName, docType, ids));
         } catch (IndexNotFoundException e) {
             return null;
         }
+        return readDocuments(response, type);
+    }
 
+    private <T> List<T> readDocuments(MultiGetResponse response, Class<T> type) {
         List<T> res = new ArrayList<>();
         for (Iterator<MultiGetItemResponse> iterator = response.iterator(); iterator.hasNext(); ) {
             MultiGetItemResponse item = iterator.next();
@@ -242,64 +493,371 @@ public class ESClient implements InitializingBean, DisposableBean {
         return res;
     }
 
+    @Override
     public boolean deleteDocument(String indexName, String docType, PersistentData document) {
-        DeleteRequestBuilder request = client.prepareDelete(indexName, docType, document.id);
+        DeleteRequestBuilder request = ingestClient.prepareDelete(indexName, docType, document.id);
         if (document.version != 0) request.setVersion(document.version);
-        return request.execute().actionGet().status() == RestStatus.FOUND;
+        return execute("delete", indexName, 0, request).status() == RestStatus.FOUND;
     }
 
     public SearchResponse search(String indexName, String type, QueryBuilder query, int maxHits, SortBuilder sort) {
-        SearchRequestBuilder searchQuery = client.prepareSearch(indexName).setTypes(type).setQuery(query).setSize(maxHits).setVersion(true);
-        if (sort != null)
-            searchQuery.addSort(sort);
+        return search(client.prepareSearch(indexName), type, query, maxHits, sort);
+    }
+
+    /**
+     * Search in several indices, ignoring the ones which do not exist
+     */
+    public SearchResponse search(String[] indices, String type, QueryBuilder query, int maxHits, SortBuilder sort) {
+        return search(client.prepareSearch(indices).setIndicesOptions(IndicesOptions.lenientExpandOpen()), type, query, maxHits, sort);
+    }
+
+    private SearchResponse search(SearchRequestBuilder searchQuery, String type, QueryBuilder query, int maxHits, SortBuilder sort) {
+        prepareSearch(searchQuery, type, query, maxHits, sort);
+        String indices = String.join(",", searchQuery.request().indices());
         try {
-            return searchQuery.execute().actionGet();
+            return execute("search", indices, 0, searchQuery);
         } catch (IndexNotFoundException e) {
             return null;
         } catch (RuntimeException e) {
-            e.printStackTrace();
+            // the failure is counted by execute()
+            logger.log(Level.SEVERE, "Search failed in " + indices, e);
             throw e;
         }
     }
 
+    @Override
+    public <T> List<PersistentData<T>> find(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType) {
+        return readHits(search(indices, docType, query, maxHits, sort), dataType);
+    }
+
+    private <T> List<PersistentData<T>> readHits(SearchResponse response, Class<T> dataType) {
+        List<PersistentData<T>> res = new ArrayList<>();
+        if (response != null) {
+            for (SearchHit hit : response.getHits().getHits()) {
+                try {
+                    res.add(new PersistentData<>(hit.id(), hit.version(), mapper.readValue(hit.source(), dataType)));
+                } catch (IOException e) {
+                    logger.warning("Failed to read persistent data as " + dataType.getName() + ": " + e);
+                }
+            }
+        }
+        return res;
+    }
+
+    private SearchRequestBuilder prepareSearch(SearchRequestBuilder searchQuery, String type, QueryBuilder query, int maxHits, SortBuilder sort) {
+        searchQuery.setTypes(type).setQuery(query).setSize(maxHits).setVersion(true);
+        if (sort != null)
+            searchQuery.addSort(sort);
+        return searchQuery;
+    }
+
+    /**
+     * Open a scroll over the search results. Missing indices are ignored.
+     *
+     * @param indices  indices or aliases to search
+     * @param type     doc type
+     * @param query    the query
+     * @param pageSize number of hits fetched per round trip
+     * @param sort     sort order, or null for the index order which is the cheapest
+     * @param dataType class of the document source
+     * @return cursor to iterate over the results, should be closed if not iterated to the end
+     */
+    @Override
+    public <T> ScrollCursor<T> scroll(String[] indices, String type, QueryBuilder query, int pageSize, SortBuilder sort, Class<T> dataType) {
+        String index = String.join(",", indices);
+        SearchResponse response;
+        try {
+            response = execute("scroll", index, 0, prepareScroll(indices, type, query, pageSize, sort));
+        } catch (IndexNotFoundException e) {
+            response = null;
+        }
+        return new ScrollCursor<>(this, mapper, dataType, index, response);
+    }
+
+    private SearchRequestBuilder prepareScroll(String[] indices, String type, QueryBuilder query, int pageSize, SortBuilder sort) {
+        return client.prepareSearch(indices).setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .setTypes(type).setQuery(query).setSize(pageSize).setVersion(true)
+                .setScroll(TimeValue.timeValueMillis(SCROLL_KEEP_ALIVE_MILLIS))
+                .addSort(sort != null ? sort : SortBuilders.fieldSort(FieldSortBuilder.DOC_FIELD_NAME));
+    }
+
+    /**
+     * @param index the scrolled indices, the continuation request does not refer to them, but they are recorded in the metrics
+     */
+    SearchResponse continueScroll(String index, String scrollId) {
+        return execute("scroll", index, 0, client.prepareSearchScroll(scrollId).setScroll(TimeValue.timeValueMillis(SCROLL_KEEP_ALIVE_MILLIS)));
+    }
+
+    void clearScroll(String scrollId) {
+        try {
+            client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (RuntimeException e) {
+            logger.warning("Failed to clear scroll: " + e);
+        }
+    }
+
+    @Override
+    public boolean supportsAggregations() {
+        return true;
+    }
+
+    @Override
     public Aggregation aggregate(String indexName, String type, QueryBuilder query, AbstractAggregationBuilder aggregation) {
-        SearchRequestBuilder searchQuery = client.prepareSearch(indexName).setTypes(type).setQuery(query).setSize(0)
-                .addAggregation(aggregation);
+        SearchRequestBuilder searchQuery = prepareAggregation(indexName, type, query, aggregation);
         try {
-            SearchResponse response = searchQuery.execute().actionGet();
+            SearchResponse response = execute("aggregate", indexName, 0, searchQuery);
             return response.getAggregations().get(aggregation.getName());
         } catch (IndexNotFoundException e) {
             return null;
         } catch (RuntimeException e) {
-            e.printStackTrace();
+            // the failure is counted by execute()
+            logger.log(Level.SEVERE, "Aggregation failed in " + indexName, e);
             throw e;
         }
     }
 
+    private SearchRequestBuilder prepareAggregation(String indexName, String type, QueryBuilder query, AbstractAggregationBuilder aggregation) {
+        return client.prepareSearch(indexName).setTypes(type).setQuery(query).setSize(0).addAggregation(aggregation);
+    }
+
+    @Override
     public void deleteByQuery(String indexName, QueryBuilder query) {
         int maxBulkLen = 100;
         SearchRequestBuilder searchQuery = client.prepareSearch(indexName).setQuery(query);
 
+        // the documents added while deleting may be left, but the loop ends
+        long maxBatches = -1;
         boolean done = false;
-        while (!done) {
+        for (long batch = 0; !done && batch != maxBatches; batch++) {
             searchQuery.setSize(maxBulkLen);
             SearchResponse response = searchQuery.execute().actionGet();
             SearchHit[] hits = response.getHits().hits();
-            done = response.getHits().totalHits() == hits.length;
+            long totalHits = response.getHits().totalHits();
+            if (maxBatches < 0) maxBatches = (totalHits + maxBulkLen - 1) / maxBulkLen;
+            done = totalHits == hits.length;
+            if (hits.length == 0) break;
 
-            BulkRequestBuilder bulk = client.prepareBulk();
+            // the next search must not find the deleted hits again
+            BulkRequestBuilder bulk = client.prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
             for (SearchHit hit : hits) {
-                bulk.add(client.prepareDelete().setIndex(indexName).setType(hit.getType()).setId(hit.id()));
+                bulk.add(client.prepareDelete().setIndex(hit.getIndex()).setType(hit.getType()).setId(hit.id()));
             }
             try {
-                bulk.execute().get();
+                BulkResponse bulkResponse = bulk.execute().get();
+                if (bulkResponse.hasFailures()) {
+                    logger.severe("Bulk delete failed: " + bulkResponse.buildFailureMessage());
+                    break;
+                }
             } catch (Exception e) {
                 logger.severe("Bulk delete failed: " + e);
+                break;
             }
         }
     }
 
+    // ----- Non-blocking API -----
+    // The futures are completed on the callback executor rather than on the transport threads,
+    // so that the dependent stages may safely issue blocking calls.
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> createDocumentAsync(String index, String docType, PersistentData<T> doc) {
+        IndexRequestBuilder request = prepareCreate(index, docType, doc);
+        return executeAsync("create", index, sourceLength(request), request,
+                response -> new PersistentData<>(response.getId(), response.getVersion(), doc.source));
+    }
+
+    /**
+     * Non-blocking version of {@link #createDocumentIfNotExists(String, String, PersistentData, Class)}
+     */
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> createDocumentIfNotExistsAsync(String index, String docType, PersistentData<T> doc, Class<T> type) {
+        IndexRequestBuilder request = prepareCreate(index, docType, doc);
+        return executeAsync("create", index, sourceLength(request), request,
+                response -> new PersistentData<>(response.getId(), response.getVersion(), doc.source),
+                e -> {
+                    if (e instanceof VersionConflictEngineException) return null;
+                    throw asRuntime(e);
+                })
+                .thenCompose(created -> created != null ? CompletableFuture.completedFuture(created) : getDocumentAsync(index, docType, doc, type));
+    }
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> updateDocumentAsync(String index, String docType, PersistentData<T> doc) {
+        UpdateRequestBuilder request = prepareUpdate(index, docType, doc);
+        return executeAsync("update", index, sourceLength(request), request,
+                response -> new PersistentData<>(response.getId(), response.getVersion(), doc.source));
+    }
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> getDocumentAsync(String indexName, String docType, PersistentData<T> data, Class<T> type) {
+        return executeAsync("get", indexName, 0, prepareGet(indexName, docType, data),
+                response -> readDocument(response, type),
+                ESClient::nullIfIndexNotFound);
+    }
+
+    @Override
+    public <T> CompletableFuture<List<T>> getDocumentsAsync(String indexName, String docType, Class<T> type, Set<String> ids) {
+        return executeAsync("mget", indexName, 0, ingestClient.prepareMultiGet().add(indexName, docType, ids),
+                response -> readDocuments(response, type),
+                ESClient::nullIfIndexNotFound);
+    }
+
+    /**
+     * Non-blocking search in several indices, ignoring the ones which do not exist
+     */
+    public CompletableFuture<SearchResponse> searchAsync(String[] indices, String type, QueryBuilder query, int maxHits, SortBuilder sort) {
+        SearchRequestBuilder searchQuery = client.prepareSearch(indices).setIndicesOptions(IndicesOptions.lenientExpandOpen());
+        return executeAsync("search", String.join(",", indices), 0, prepareSearch(searchQuery, type, query, maxHits, sort),
+                response -> response, ESClient::nullIfIndexNotFound);
+    }
+
+    @Override
+    public <T> CompletableFuture<List<PersistentData<T>>> findAsync(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType) {
+        return searchAsync(indices, docType, query, maxHits, sort).thenApply(response -> readHits(response, dataType));
+    }
+
+    @Override
+    public CompletableFuture<Aggregation> aggregateAsync(String indexName, String type, QueryBuilder query, AbstractAggregationBuilder aggregation) {
+        return executeAsync("aggregate", indexName, 0, prepareAggregation(indexName, type, query, aggregation),
+                response -> response.getAggregations().get(aggregation.getName()),
+                ESClient::nullIfIndexNotFound);
+    }
+
+    /**
+     * Non-blocking scroll over all the search results. The pages are requested one after another,
+     * and the consumer is called sequentially for each hit.
+     *
+     * @return future of the number of consumed documents
+     */
+    @Override
+    public <T> CompletableFuture<Long> scrollAsync(String[] indices, String type, QueryBuilder query, int pageSize, SortBuilder sort,
+                                                   Class<T> dataType, Consumer<PersistentData<T>> consumer) {
+        String index = String.join(",", indices);
+        return executeAsync("scroll", index, 0, prepareScroll(indices, type, query, pageSize, sort),
+                response -> response, ESClient::nullIfIndexNotFound)
+                .thenCompose(response -> scrollPage(index, response, 0, 0, dataType, consumer));
+    }
+
+    private <T> CompletableFuture<Long> scrollPage(String index, SearchResponse response, long fetched, long consumed, Class<T> dataType, Consumer<PersistentData<T>> consumer) {
+        if (response == null) return CompletableFuture.completedFuture(consumed);
+
+        SearchHit[] hits = response.getHits().getHits();
+        long totalFetched = fetched + hits.length;
+        long totalConsumed = consumed;
+        for (SearchHit hit : hits) {
+            try {
+                consumer.accept(new PersistentData<>(hit.id(), hit.version(), mapper.readValue(hit.source(), dataType)));
+                totalConsumed++;
+            } catch (IOException e) {
+                logger.warning("Failed to read persistent data as " + dataType.getName() + ": " + e);
+            }
+        }
+
+        String scrollId = response.getScrollId();
+        if (hits.length == 0 || totalFetched >= response.getHits().getTotalHits()) {
+            client.prepareClearScroll().addScrollId(scrollId).execute();
+            return CompletableFuture.completedFuture(totalConsumed);
+        }
+
+        long consumedSoFar = totalConsumed;
+        return executeAsync("scroll", index, 0, client.prepareSearchScroll(scrollId).setScroll(TimeValue.timeValueMillis(SCROLL_KEEP_ALIVE_MILLIS)), next -> next)
+                .thenCompose(next -> scrollPage(index, next, totalFetched, consumedSoFar, dataType, consumer));
+    }
+
+    private <R extends ActionResponse, T> CompletableFuture<T> executeAsync(String operation, String index, long bytes,
+                                                                            ActionRequestBuilder<?, R, ?> request, Function<R, T> onResponse) {
+        return executeAsync(operation, index, bytes, request, onResponse, e -> {
+            throw asRuntime(e);
+        });
+    }
+
+    private <R extends ActionResponse, T> CompletableFuture<T> executeAsync(String operation, String index, long bytes,
+                                                                            ActionRequestBuilder<?, R, ?> request, Function<R, T> onResponse, Function<Throwable, T> onFailure) {
+        OperationMetrics.Sample sample = metrics.start(operation, index, bytes);
+        CompletableFuture<T> res = new CompletableFuture<>();
+        request.execute(new ActionListener<R>() {
+            @Override
+            public void onResponse(R response) {
+                sample.succeeded();
+                complete(res, () -> onResponse.apply(response));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Throwable cause = ExceptionsHelper.unwrapCause(e);
+                record(sample, cause);
+                complete(res, () -> onFailure.apply(cause));
+            }
+        });
+        return res;
+    }
+
+    private <R extends ActionResponse> R execute(String operation, String index, long bytes, ActionRequestBuilder<?, R, ?> request) {
+        OperationMetrics.Sample sample = metrics.start(operation, index, bytes);
+        try {
+            R response = request.execute().actionGet();
+            sample.succeeded();
+            return response;
+        } catch (RuntimeException e) {
+            record(sample, ExceptionsHelper.unwrapCause(e));
+            throw e;
+        }
+    }
+
+    private static void record(OperationMetrics.Sample sample, Throwable failure) {
+        if (failure instanceof VersionConflictEngineException)
+            sample.conflicted();
+        else if (failure instanceof IndexNotFoundException)
+            sample.succeeded(); // treated as no data by the callers
+        else
+            sample.failed();
+    }
+
+    private static long sourceLength(IndexRequestBuilder request) {
+        return request.request().source().length();
+    }
+
+    private static long sourceLength(UpdateRequestBuilder request) {
+        return request.request().doc().source().length();
+    }
+
+    /**
+     * @return latency and throughput of the requests sent to the cluster
+     */
+    @Override
+    public OperationMetrics getMetrics() {
+        return metrics;
+    }
+
+    private <T> void complete(CompletableFuture<T> future, Supplier<T> result) {
+        try {
+            callbackExecutor.execute(() -> {
+                try {
+                    future.complete(result.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static <T> T nullIfIndexNotFound(Throwable e) {
+        if (e instanceof IndexNotFoundException) return null;
+        throw asRuntime(e);
+    }
+
+    private static RuntimeException asRuntime(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new RuntimeException(e);
+    }
+
+    @Override
     public void refreshIndices(String indexName) {
+        if (!bulkIngestion.flush(10000))
+            logger.warning("Refreshing " + indexName + " with " + bulkIngestion.getPending() + " documents still pending ingestion");
         try {
             client.admin().indices().prepareRefresh(indexName).execute().actionGet();
         } catch (IndexNotFoundException e) {
@@ -326,4 +884,11 @@ public class ESClient implements InitializingBean, DisposableBean {
     public WatcherClient getWatcherClient() {
         return xPackClient.watcher();
     }
+
+    /**
+     * @return the client used for the bulk ingestion
+     */
+    TransportClient getIngestClient() {
+        return ingestClient;
+    }
 }
@@ -0,0 +1,519 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * In-process implementation of {@link DocumentStore} for installations and tests without Elasticsearch.
+ * <p/>
+ * Documents are kept in memory, and optionally saved to the directory storage.embedded.dir,
+ * one file per index, periodically and on shutdown. All the changes are visible immediately.
+ * Aggregations are not supported.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@Component
+@ConditionalOnProperty(name = "storage.backend", havingValue = "embedded")
+public class EmbeddedDocumentStore implements DocumentStore, InitializingBean, DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(EmbeddedDocumentStore.class.getName());
+
+    private static final String INDEX_FILE_SUFFIX = ".index.json";
+    private static final String ALIASES_FILE = "aliases.json";
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Value("${storage.embedded.dir:}")
+    private String dataDir = "";
+
+    @Value("${storage.embedded.saveIntervalSec:10}")
+    private int saveIntervalSec = 10;
+
+    private static class Template {
+        final Pattern pattern;
+        final String[] aliases;
+
+        Template(String pattern, String[] aliases) {
+            this.pattern = wildcardPattern(pattern);
+            this.aliases = aliases;
+        }
+    }
+
+    private final Map<String, EmbeddedIndex> indices = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> aliases = new ConcurrentHashMap<>();
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private final OperationMetrics metrics = new OperationMetrics();
+
+    private File dir;
+    private ScheduledExecutorService saver;
+
+    public EmbeddedDocumentStore() {
+    }
+
+    public EmbeddedDocumentStore(String dataDir) throws IOException {
+        this.dataDir = dataDir;
+        afterPropertiesSet();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (dataDir == null || dataDir.isEmpty()) return;
+
+        dir = new File(dataDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed to create " + dir);
+        load();
+
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jf-embedded-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::save, saveIntervalSec, saveIntervalSec, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (saver != null) {
+            saver.shutdownNow();
+            save();
+        }
+    }
+
+    // ----- indices -----
+
+    @Override
+    public void putTemplate(String name, String template, Collection<DocType> docTypes, String... aliases) {
+        templates.put(name, new Template(template, aliases));
+    }
+
+    @Override
+    public synchronized void deleteIndices(String... names) {
+        for (EmbeddedIndex index : resolve(names, true)) {
+            indices.remove(index.name);
+            for (Set<String> aliased : aliases.values()) aliased.remove(index.name);
+            if (dir != null) new File(dir, index.name + INDEX_FILE_SUFFIX).delete();
+        }
+        aliases.values().removeIf(Set::isEmpty);
+        saveAliases();
+    }
+
+    @Override
+    public boolean indexExists(String... names) {
+        try {
+            return !resolve(names, false).isEmpty();
+        } catch (IndexNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void createIndexIfNotExists(String name) {
+        createIndex(name);
+    }
+
+    @Override
+    public String[] getIndices(String pattern) {
+        return resolve(new String[]{pattern}, true).stream().map(index -> index.name).toArray(String[]::new);
+    }
+
+    @Override
+    public synchronized void setAlias(String alias, String index) {
+        createIndex(index);
+        Set<String> aliased = ConcurrentHashMap.newKeySet();
+        aliased.add(index);
+        aliases.put(alias, aliased);
+        saveAliases();
+    }
+
+    @Override
+    public void refreshIndices(String indexName) {
+        // the changes are visible immediately
+    }
+
+    // ----- documents -----
+
+    @Override
+    public <T> PersistentData<T> createDocument(String index, String docType, PersistentData<T> doc) {
+        return measure("create", index, () -> {
+            EmbeddedIndex.Document created = writeTarget(index).create(doc.id, docType, toTree(doc.source));
+            return new PersistentData<>(created.id, created.version, doc.source);
+        });
+    }
+
+    @Override
+    public <T> PersistentData<T> createDocumentIfNotExists(String index, String docType, PersistentData<T> doc, Class<T> type) {
+        try {
+            return createDocument(index, docType, doc);
+        } catch (VersionConflictEngineException e) {
+            return getDocument(index, docType, doc, type);
+        }
+    }
+
+    @Override
+    public void ingestDocument(String index, String docType, Object source) {
+        measure("bulk", index, () -> writeTarget(index).create(null, docType, toTree(source)));
+    }
+
+    @Override
+    public boolean flushIngestion(long timeoutMillis) {
+        return true;
+    }
+
+    @Override
+    public <T> PersistentData<T> updateDocument(String index, String docType, PersistentData<T> doc) {
+        return measure("update", index, () -> {
+            EmbeddedIndex.Document updated = single(index).update(doc.id, docType, toTree(doc.source), doc.version);
+            return new PersistentData<>(updated.id, updated.version, doc.source);
+        });
+    }
+
+    @Override
+    public <T> PersistentData<T> getDocument(String index, String docType, PersistentData<T> data, Class<T> type) {
+        return measure("get", index, () -> {
+            EmbeddedIndex found;
+            try {
+                found = single(index);
+            } catch (IndexNotFoundException e) {
+                return null;
+            }
+            EmbeddedIndex.Document doc = found.get(data.id, docType, data.version);
+            return doc == null ? null : new PersistentData<>(doc.id, doc.version, fromTree(doc.source, type));
+        });
+    }
+
+    @Override
+    public <T> List<T> getDocuments(String index, String docType, Class<T> type, Set<String> ids) {
+        return measure("mget", index, () -> {
+            EmbeddedIndex found;
+            try {
+                found = single(index);
+            } catch (IndexNotFoundException e) {
+                return null;
+            }
+            List<T> res = new ArrayList<>();
+            for (String id : ids) {
+                EmbeddedIndex.Document doc = found.get(id, docType, 0);
+                if (doc != null) res.add(fromTree(doc.source, type));
+            }
+            return res;
+        });
+    }
+
+    @Override
+    public boolean deleteDocument(String index, String docType, PersistentData document) {
+        return measure("delete", index, () -> {
+            try {
+                return single(index).delete(document.id, docType, document.version);
+            } catch (IndexNotFoundException e) {
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public void deleteByQuery(String index, QueryBuilder query) {
+        for (EmbeddedIndex found : resolve(new String[]{index}, true)) {
+            found.deleteMatching(null, query);
+        }
+    }
+
+    // ----- search -----
+
+    @Override
+    public <T> List<PersistentData<T>> find(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType) {
+        List<EmbeddedIndex.Document> found = measure("search", String.join(",", indices), () -> search(indices, docType, query, sort));
+        List<PersistentData<T>> res = new ArrayList<>(Math.min(maxHits, found.size()));
+        for (EmbeddedIndex.Document doc : found.subList(0, Math.min(maxHits, found.size()))) {
+            res.add(new PersistentData<>(doc.id, doc.version, fromTree(doc.source, dataType)));
+        }
+        return res;
+    }
+
+    @Override
+    public <T> DocumentCursor<T> scroll(String[] indices, String docType, QueryBuilder query, int pageSize, SortBuilder sort, Class<T> dataType) {
+        List<EmbeddedIndex.Document> found = measure("scroll", String.join(",", indices), () -> search(indices, docType, query, sort));
+        Iterator<EmbeddedIndex.Document> iterator = found.iterator();
+
+        // the documents are immutable, so only the deserialization is lazy
+        return new DocumentCursor<T>() {
+            @Override
+            public long getTotalHits() {
+                return found.size();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public PersistentData<T> next() {
+                EmbeddedIndex.Document doc = iterator.next();
+                return new PersistentData<>(doc.id, doc.version, fromTree(doc.source, dataType));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * The server does not rely on the ES aggregations, so they are not emulated
+     */
+    @Override
+    public boolean supportsAggregations() {
+        return false;
+    }
+
+    @Override
+    public Aggregation aggregate(String index, String docType, QueryBuilder query, AbstractAggregationBuilder aggregation) {
+        throw new UnsupportedOperationException("Aggregations are not supported by embedded storage, see supportsAggregations()");
+    }
+
+    private List<EmbeddedIndex.Document> search(String[] indices, String docType, QueryBuilder query, SortBuilder sort) {
+        List<EmbeddedIndex.Document> res = new ArrayList<>();
+        for (EmbeddedIndex index : resolve(indices, true)) {
+            res.addAll(index.find(docType, query));
+        }
+        Comparator<JsonNode> comparator = EmbeddedQuery.comparator(sort);
+        if (comparator != null) res.sort((doc1, doc2) -> comparator.compare(doc1.source, doc2.source));
+        return res;
+    }
+
+    // ----- non-blocking API, completed immediately -----
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> createDocumentAsync(String index, String docType, PersistentData<T> doc) {
+        return completed(() -> createDocument(index, docType, doc));
+    }
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> createDocumentIfNotExistsAsync(String index, String docType, PersistentData<T> doc, Class<T> type) {
+        return completed(() -> createDocumentIfNotExists(index, docType, doc, type));
+    }
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> updateDocumentAsync(String index, String docType, PersistentData<T> doc) {
+        return completed(() -> updateDocument(index, docType, doc));
+    }
+
+    @Override
+    public <T> CompletableFuture<PersistentData<T>> getDocumentAsync(String index, String docType, PersistentData<T> data, Class<T> type) {
+        return completed(() -> getDocument(index, docType, data, type));
+    }
+
+    @Override
+    public <T> CompletableFuture<List<T>> getDocumentsAsync(String index, String docType, Class<T> type, Set<String> ids) {
+        return completed(() -> getDocuments(index, docType, type, ids));
+    }
+
+    @Override
+    public <T> CompletableFuture<List<PersistentData<T>>> findAsync(String[] indices, String docType, QueryBuilder query, int maxHits, SortBuilder sort, Class<T> dataType) {
+        return completed(() -> find(indices, docType, query, maxHits, sort, dataType));
+    }
+
+    @Override
+    public <T> CompletableFuture<Long> scrollAsync(String[] indices, String docType, QueryBuilder query, int pageSize, SortBuilder sort, Class<T> dataType, Consumer<PersistentData<T>> consumer) {
+        return completed(() -> {
+            long count = 0;
+            for (DocumentCursor<T> cursor = scroll(indices, docType, query, pageSize, sort, dataType); cursor.hasNext(); count++) {
+                consumer.accept(cursor.next());
+            }
+            return count;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Aggregation> aggregateAsync(String index, String docType, QueryBuilder query, AbstractAggregationBuilder aggregation) {
+        return completed(() -> aggregate(index, docType, query, aggregation));
+    }
+
+    /**
+     * The document operations are measured like the storage requests of {@link ESClient}, the searches of a scroll are measured once
+     */
+    @Override
+    public OperationMetrics getMetrics() {
+        return metrics;
+    }
+
+    private <T> T measure(String operation, String index, Supplier<T> action) {
+        OperationMetrics.Sample sample = metrics.start(operation, index, 0);
+        try {
+            T res = action.get();
+            sample.succeeded();
+            return res;
+        } catch (VersionConflictEngineException e) {
+            sample.conflicted();
+            throw e;
+        } catch (RuntimeException e) {
+            sample.failed();
+            throw e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> completed(Supplier<T> operation) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        try {
+            res.complete(operation.get());
+        } catch (RuntimeException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    // ----- index resolution -----
+
+    /**
+     * Resolve index names, aliases, and wildcard patterns to the existing indices
+     *
+     * @param lenient if false, throw {@link IndexNotFoundException} for names that cannot be resolved
+     */
+    private List<EmbeddedIndex> resolve(String[] names, boolean lenient) {
+        Set<EmbeddedIndex> res = new LinkedHashSet<>();
+        for (String name : names) {
+            if (name.contains("*")) {
+                Pattern pattern = wildcardPattern(name);
+                indices.values().stream().filter(index -> pattern.matcher(index.name).matches()).forEach(res::add);
+                continue;
+            }
+
+            EmbeddedIndex index = indices.get(name);
+            Set<String> aliased = aliases.get(name);
+            if (index != null) {
+                res.add(index);
+            } else if (aliased != null) {
+                aliased.stream().map(indices::get).filter(Objects::nonNull).forEach(res::add);
+            } else if (!lenient) {
+                throw new IndexNotFoundException(name);
+            }
+        }
+        return new ArrayList<>(res);
+    }
+
+    private EmbeddedIndex single(String name) {
+        List<EmbeddedIndex> resolved = resolve(new String[]{name}, false);
+        if (resolved.isEmpty()) throw new IndexNotFoundException(name);
+        if (resolved.size() > 1)
+            throw new IllegalArgumentException("Alias [" + name + "] has more than one index associated with it");
+        return resolved.get(0);
+    }
+
+    private EmbeddedIndex writeTarget(String name) {
+        if (indices.containsKey(name) || aliases.containsKey(name)) return single(name);
+        return createIndex(name);
+    }
+
+    private synchronized EmbeddedIndex createIndex(String name) {
+        EmbeddedIndex existing = indices.get(name);
+        if (existing != null) return existing;
+
+        EmbeddedIndex index = new EmbeddedIndex(name);
+        indices.put(name, index);
+        boolean aliasesChanged = false;
+        for (Template template : templates.values()) {
+            if (!template.pattern.matcher(name).matches()) continue;
+            for (String alias : template.aliases) {
+                aliases.computeIfAbsent(alias, k -> ConcurrentHashMap.newKeySet()).add(name);
+                aliasesChanged = true;
+            }
+        }
+        if (aliasesChanged) saveAliases();
+        return index;
+    }
+
+    private static Pattern wildcardPattern(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : wildcard.split("\\*", -1)) {
+            if (regex.length() > 0) regex.append(".*");
+            regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    // ----- serialization and persistence -----
+
+    private ObjectNode toTree(Object source) {
+        JsonNode tree = mapper.valueToTree(source);
+        if (!(tree instanceof ObjectNode)) throw new IllegalArgumentException("Document source must be a JSON object: " + source);
+        return (ObjectNode) tree;
+    }
+
+    private <T> T fromTree(JsonNode source, Class<T> type) {
+        try {
+            return mapper.treeToValue(source, type);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(INDEX_FILE_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName().substring(0, file.getName().length() - INDEX_FILE_SUFFIX.length());
+                indices.put(name, EmbeddedIndex.readFrom(name, file, mapper));
+            }
+        }
+
+        File aliasesFile = new File(dir, ALIASES_FILE);
+        if (aliasesFile.exists()) {
+            Map<String, Set<String>> stored = mapper.readValue(aliasesFile, new TypeReference<Map<String, Set<String>>>() {});
+            stored.forEach((alias, aliased) -> {
+                Set<String> set = ConcurrentHashMap.newKeySet();
+                set.addAll(aliased);
+                aliases.put(alias, set);
+            });
+        }
+        logger.info("Loaded " + indices.size() + " embedded indices from " + dir);
+    }
+
+    private void save() {
+        for (EmbeddedIndex index : indices.values()) {
+            if (!index.isDirty()) continue;
+            try {
+                File tmp = new File(dir, index.name + INDEX_FILE_SUFFIX + ".tmp");
+                index.writeTo(tmp, mapper);
+                Files.move(tmp.toPath(), new File(dir, index.name + INDEX_FILE_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to save index " + index.name, e);
+            }
+        }
+    }
+
+    private void saveAliases() {
+        if (dir == null) return;
+        try {
+            mapper.writeValue(new File(dir, ALIASES_FILE), aliases);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to save aliases", e);
+        }
+    }
+}
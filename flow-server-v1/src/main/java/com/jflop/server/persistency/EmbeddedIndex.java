@@ -0,0 +1,337 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.*;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A single index of {@link EmbeddedDocumentStore}.
+ * <p/>
+ * Keeps the documents as immutable JSON trees, with secondary indexes on the agentJvm fields and on time,
+ * which are used to narrow down the documents evaluated by a query.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class EmbeddedIndex {
+
+    static final String[] TERM_INDEXED_FIELDS = {"agentJvm.accountId", "agentJvm.agentId", "agentJvm.jvmId"};
+    static final String TIME_FIELD = "time";
+
+    static class Document {
+        final String id;
+        final String type;
+        final long version;
+        final long seqNo;
+        final ObjectNode source;
+
+        Document(String id, String type, long version, long seqNo, ObjectNode source) {
+            this.id = id;
+            this.type = type;
+            this.version = version;
+            this.seqNo = seqNo;
+            this.source = source;
+        }
+    }
+
+    final String name;
+    private final ShardId shardId;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Document> documents = new HashMap<>();
+    private final Map<String, Map<String, Set<String>>> termIndex = new HashMap<>();
+    private final NavigableMap<Long, Set<String>> timeIndex = new TreeMap<>();
+    private long nextSeqNo;
+    private volatile boolean dirty;
+
+    EmbeddedIndex(String name) {
+        this.name = name;
+        this.shardId = new ShardId(name, "_na_", 0);
+        for (String field : TERM_INDEXED_FIELDS) termIndex.put(field, new HashMap<>());
+    }
+
+    Document get(String id, String type, long expectedVersion) {
+        lock.readLock().lock();
+        try {
+            Document doc = documents.get(id);
+            if (doc == null || !doc.type.equals(type)) return null;
+            if (expectedVersion != 0 && doc.version != expectedVersion)
+                throw new VersionConflictEngineException(shardId, type, id, doc.version, expectedVersion);
+            return doc;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id     document ID, null to generate
+     * @param source document source
+     * @return the created document
+     * @throws VersionConflictEngineException if a document with the given ID already exists
+     */
+    Document create(String id, String type, ObjectNode source) {
+        lock.writeLock().lock();
+        try {
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+            } else if (documents.containsKey(id)) {
+                throw new VersionConflictEngineException(shardId, type, id, "document already exists");
+            }
+            Document doc = new Document(id, type, 1, nextSeqNo++, source);
+            put(doc);
+            return doc;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merge the source into the existing document, like the ES partial update does
+     *
+     * @return the updated document
+     * @throws DocumentMissingException       if the document does not exist
+     * @throws VersionConflictEngineException if the expected version is not 0 and does not match
+     */
+    Document update(String id, String type, ObjectNode source, long expectedVersion) {
+        lock.writeLock().lock();
+        try {
+            Document existing = documents.get(id);
+            if (existing == null || !existing.type.equals(type))
+                throw new DocumentMissingException(shardId, type, id);
+            if (expectedVersion != 0 && existing.version != expectedVersion)
+                throw new VersionConflictEngineException(shardId, type, id, existing.version, expectedVersion);
+
+            ObjectNode merged = existing.source.deepCopy();
+            merge(merged, source);
+            Document doc = new Document(id, type, existing.version + 1, existing.seqNo, merged);
+            unindex(existing);
+            put(doc);
+            return doc;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean delete(String id, String type, long expectedVersion) {
+        lock.writeLock().lock();
+        try {
+            Document existing = documents.get(id);
+            if (existing == null || !existing.type.equals(type)) return false;
+            if (expectedVersion != 0 && existing.version != expectedVersion)
+                throw new VersionConflictEngineException(shardId, type, id, existing.version, expectedVersion);
+            documents.remove(id);
+            unindex(existing);
+            dirty = true;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int deleteMatching(String type, QueryBuilder query) {
+        lock.writeLock().lock();
+        try {
+            List<Document> found = search(type, query);
+            for (Document doc : found) {
+                documents.remove(doc.id);
+                unindex(doc);
+            }
+            if (!found.isEmpty()) dirty = true;
+            return found.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param type  doc type, null for any
+     * @param query the query
+     * @return matching documents in the insertion order
+     */
+    List<Document> find(String type, QueryBuilder query) {
+        lock.readLock().lock();
+        try {
+            return search(type, query);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Document> search(String type, QueryBuilder query) {
+        Set<String> candidates = candidates(query);
+        Collection<Document> scanned;
+        if (candidates == null) {
+            scanned = documents.values();
+        } else {
+            scanned = new ArrayList<>(candidates.size());
+            for (String id : candidates) {
+                Document doc = documents.get(id);
+                if (doc != null) scanned.add(doc);
+            }
+        }
+
+        List<Document> res = new ArrayList<>();
+        for (Document doc : scanned) {
+            if ((type == null || type.equals(doc.type)) && EmbeddedQuery.matches(query, doc.id, doc.source))
+                res.add(doc);
+        }
+        res.sort(Comparator.comparingLong(doc -> doc.seqNo));
+        return res;
+    }
+
+    /**
+     * Use the secondary indexes to find the superset of the documents matching the query
+     *
+     * @return candidate IDs, or null if the indexes cannot narrow down the query
+     */
+    private Set<String> candidates(QueryBuilder query) {
+        if (query instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) query;
+            Map<String, Set<String>> byValue = termIndex.get(term.fieldName());
+            if (byValue != null) return byValue.getOrDefault(String.valueOf(term.value()), Collections.emptySet());
+        } else if (query instanceof RangeQueryBuilder && TIME_FIELD.equals(((RangeQueryBuilder) query).fieldName())) {
+            RangeQueryBuilder range = (RangeQueryBuilder) query;
+            Long from = EmbeddedQuery.toLong(range.from());
+            Long to = EmbeddedQuery.toLong(range.to());
+            if ((range.from() == null || from != null) && (range.to() == null || to != null)) {
+                NavigableMap<Long, Set<String>> sub = timeIndex;
+                if (from != null) sub = sub.tailMap(from, range.includeLower());
+                if (to != null) sub = sub.headMap(to, range.includeUpper());
+                Set<String> res = new HashSet<>();
+                sub.values().forEach(res::addAll);
+                return res;
+            }
+        } else if (query instanceof IdsQueryBuilder) {
+            return ((IdsQueryBuilder) query).ids();
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            return candidates(((ConstantScoreQueryBuilder) query).innerQuery());
+        } else if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            Set<String> res = null;
+            List<QueryBuilder> required = new ArrayList<>(bool.must());
+            required.addAll(bool.filter());
+            for (QueryBuilder clause : required) {
+                Set<String> clauseCandidates = candidates(clause);
+                if (clauseCandidates == null) continue;
+                if (res == null) {
+                    res = new HashSet<>(clauseCandidates);
+                } else {
+                    res.retainAll(clauseCandidates);
+                }
+            }
+            return res;
+        }
+        return null;
+    }
+
+    private void put(Document doc) {
+        documents.put(doc.id, doc);
+        for (String field : TERM_INDEXED_FIELDS) {
+            for (JsonNode value : EmbeddedQuery.values(doc.source, field)) {
+                termIndex.get(field).computeIfAbsent(value.asText(), k -> new HashSet<>()).add(doc.id);
+            }
+        }
+        for (JsonNode value : EmbeddedQuery.values(doc.source, TIME_FIELD)) {
+            if (value.isNumber()) timeIndex.computeIfAbsent(value.asLong(), k -> new HashSet<>()).add(doc.id);
+        }
+        dirty = true;
+    }
+
+    private void unindex(Document doc) {
+        for (String field : TERM_INDEXED_FIELDS) {
+            Map<String, Set<String>> byValue = termIndex.get(field);
+            for (JsonNode value : EmbeddedQuery.values(doc.source, field)) {
+                removeFrom(byValue, value.asText(), doc.id);
+            }
+        }
+        for (JsonNode value : EmbeddedQuery.values(doc.source, TIME_FIELD)) {
+            if (value.isNumber()) removeFrom(timeIndex, value.asLong(), doc.id);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> index, K key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) index.remove(key);
+        }
+    }
+
+    private static void merge(ObjectNode target, ObjectNode update) {
+        for (Iterator<Map.Entry<String, JsonNode>> iterator = update.fields(); iterator.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = iterator.next();
+            JsonNode existing = target.get(field.getKey());
+            if (existing instanceof ObjectNode && field.getValue() instanceof ObjectNode)
+                merge((ObjectNode) existing, (ObjectNode) field.getValue());
+            else
+                target.set(field.getKey(), field.getValue());
+        }
+    }
+
+    // ----- persistence -----
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write all the documents to the file, one JSON document per line
+     */
+    void writeTo(File file, ObjectMapper mapper) throws IOException {
+        List<Document> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(documents.values());
+            dirty = false;
+        } finally {
+            lock.readLock().unlock();
+        }
+        snapshot.sort(Comparator.comparingLong(doc -> doc.seqNo));
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (Document doc : snapshot) {
+                ObjectNode line = mapper.createObjectNode();
+                line.put("id", doc.id);
+                line.put("type", doc.type);
+                line.put("version", doc.version);
+                line.set("source", doc.source);
+                out.write(mapper.writeValueAsString(line));
+                out.write('\n');
+            }
+        }
+    }
+
+    static EmbeddedIndex readFrom(String name, File file, ObjectMapper mapper) throws IOException {
+        EmbeddedIndex index = new EmbeddedIndex(name);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                JsonNode json = mapper.readTree(line);
+                index.put(new Document(json.get("id").asText(), json.get("type").asText(), json.get("version").asLong(),
+                        index.nextSeqNo++, (ObjectNode) json.get("source")));
+            }
+        }
+        index.dirty = false;
+        return index;
+    }
+}
@@ -0,0 +1,182 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.elasticsearch.index.query.*;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.*;
+
+/**
+ * Evaluates the ES query builders against JSON documents for {@link EmbeddedDocumentStore}.
+ * <p/>
+ * Supports the subset used by the server: match_all, ids, term, terms, match, range, exists, bool and constant_score.
+ * There is no text analysis - match is a case insensitive equality, which is what the keyword fields need.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class EmbeddedQuery {
+
+    static boolean matches(QueryBuilder query, String id, JsonNode source) {
+        if (query == null || query instanceof MatchAllQueryBuilder) {
+            return true;
+
+        } else if (query instanceof IdsQueryBuilder) {
+            return ((IdsQueryBuilder) query).ids().contains(id);
+
+        } else if (query instanceof TermQueryBuilder) {
+            TermQueryBuilder term = (TermQueryBuilder) query;
+            for (JsonNode value : values(source, term.fieldName())) {
+                Integer cmp = compare(value, term.value());
+                if (cmp != null && cmp == 0) return true;
+            }
+            return false;
+
+        } else if (query instanceof TermsQueryBuilder) {
+            TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            for (JsonNode value : values(source, terms.fieldName())) {
+                for (Object expected : terms.values()) {
+                    Integer cmp = compare(value, expected);
+                    if (cmp != null && cmp == 0) return true;
+                }
+            }
+            return false;
+
+        } else if (query instanceof MatchQueryBuilder) {
+            MatchQueryBuilder match = (MatchQueryBuilder) query;
+            String expected = String.valueOf(match.value());
+            for (JsonNode value : values(source, match.fieldName())) {
+                if (value.asText().equalsIgnoreCase(expected)) return true;
+            }
+            return false;
+
+        } else if (query instanceof RangeQueryBuilder) {
+            RangeQueryBuilder range = (RangeQueryBuilder) query;
+            for (JsonNode value : values(source, range.fieldName())) {
+                if (inRange(value, range)) return true;
+            }
+            return false;
+
+        } else if (query instanceof ExistsQueryBuilder) {
+            return !values(source, ((ExistsQueryBuilder) query).fieldName()).isEmpty();
+
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            return matches(((ConstantScoreQueryBuilder) query).innerQuery(), id, source);
+
+        } else if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            for (QueryBuilder clause : bool.must())
+                if (!matches(clause, id, source)) return false;
+            for (QueryBuilder clause : bool.filter())
+                if (!matches(clause, id, source)) return false;
+            for (QueryBuilder clause : bool.mustNot())
+                if (matches(clause, id, source)) return false;
+
+            // should clauses are optional unless there are no required clauses
+            if (bool.should().isEmpty() || !bool.must().isEmpty() || !bool.filter().isEmpty()) return true;
+            for (QueryBuilder clause : bool.should())
+                if (matches(clause, id, source)) return true;
+            return false;
+        }
+
+        throw new IllegalArgumentException("Query is not supported by embedded storage: " + query.getName());
+    }
+
+    /**
+     * Comparator implementing the sort order, null means no sort
+     */
+    static Comparator<JsonNode> comparator(SortBuilder sort) {
+        if (!(sort instanceof FieldSortBuilder)) return null;
+        FieldSortBuilder fieldSort = (FieldSortBuilder) sort;
+        String field = fieldSort.getFieldName();
+        if (FieldSortBuilder.DOC_FIELD_NAME.equals(field)) return null;
+
+        Comparator<JsonNode> res = (doc1, doc2) -> {
+            List<JsonNode> values1 = values(doc1, field);
+            List<JsonNode> values2 = values(doc2, field);
+            // documents without the field go last
+            if (values1.isEmpty()) return values2.isEmpty() ? 0 : 1;
+            if (values2.isEmpty()) return -1;
+            return compareNodes(values1.get(0), values2.get(0));
+        };
+        return fieldSort.order() == SortOrder.DESC ? res.reversed() : res;
+    }
+
+    /**
+     * @return all the values of the field, walking through the nested arrays
+     */
+    static List<JsonNode> values(JsonNode source, String path) {
+        List<JsonNode> res = new ArrayList<>();
+        collect(source, path.split("\\."), 0, res);
+        return res;
+    }
+
+    private static void collect(JsonNode node, String[] path, int pos, List<JsonNode> res) {
+        if (node == null || node.isNull() || node.isMissingNode()) return;
+        if (node.isArray()) {
+            for (JsonNode element : node) collect(element, path, pos, res);
+        } else if (pos == path.length) {
+            res.add(node);
+        } else if (node.isObject()) {
+            collect(node.get(path[pos]), path, pos + 1, res);
+        }
+    }
+
+    static Long toLong(Object value) {
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof Date) return ((Date) value).getTime();
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean inRange(JsonNode value, RangeQueryBuilder range) {
+        if (range.from() != null) {
+            Integer cmp = compare(value, range.from());
+            if (cmp == null || cmp < 0 || (cmp == 0 && !range.includeLower())) return false;
+        }
+        if (range.to() != null) {
+            Integer cmp = compare(value, range.to());
+            if (cmp == null || cmp > 0 || (cmp == 0 && !range.includeUpper())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return comparison result of the JSON value and the query value, or null if they are not comparable
+     */
+    private static Integer compare(JsonNode node, Object value) {
+        if (value instanceof Date) value = ((Date) value).getTime();
+
+        if (node.isNumber()) {
+            if (value instanceof String) {
+                try {
+                    value = Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            if (!(value instanceof Number)) return null;
+            Number number = (Number) value;
+            if (node.isIntegralNumber() && (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte))
+                return Long.compare(node.asLong(), number.longValue());
+            return Double.compare(node.asDouble(), number.doubleValue());
+        }
+        if (node.isBoolean()) {
+            return value instanceof Boolean ? Boolean.compare(node.asBoolean(), (Boolean) value) : node.asText().compareTo(String.valueOf(value));
+        }
+        return node.asText().compareTo(String.valueOf(value));
+    }
+
+    private static int compareNodes(JsonNode node1, JsonNode node2) {
+        if (node1.isNumber() && node2.isNumber()) return Double.compare(node1.asDouble(), node2.asDouble());
+        return node1.asText().compareTo(node2.asText());
+    }
+}
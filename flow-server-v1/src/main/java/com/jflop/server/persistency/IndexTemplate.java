@@ -1,38 +1,53 @@
 package com.jflop.server.persistency;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.sort.SortBuilder;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
  * Base class for index templates.
  * Automatically registers itself on load.
+ * <p/>
+ * The templates are installed in parallel in the background, so that the application context does not wait for
+ * each template in turn. The index operations wait until the template of the index is installed,
+ * and the context start fails if any of the templates could not be installed.
  *
  * @author artem
  *         Date: 8/13/16
  */
-public abstract class IndexTemplate implements InitializingBean {
+public abstract class IndexTemplate implements InitializingBean, SmartInitializingSingleton {
 
     private static final Logger logger = Logger.getLogger(IndexTemplate.class.getName());
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private static final ExecutorService bootstrap = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "jf-index-bootstrap");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private String templateName;
     private String template;
     private Map<Class, DocType> docTypes;
 
     @Autowired
-    protected ESClient esClient;
+    protected DocumentStore store;
+
+    private volatile CompletableFuture<Void> ready;
+
+    @Value("${search.pageSize:1000}")
+    private int pageSize = 1000;
 
     protected IndexTemplate(String templateName, String template, DocType... docTypes) {
         this.templateName = templateName;
@@ -43,68 +58,183 @@ public abstract class IndexTemplate implements InitializingBean {
 
     @Override
     public void afterPropertiesSet() {
-        esClient.putTemplate(templateName, template, docTypes.values());
+        ready = CompletableFuture.runAsync(() -> store.putTemplate(templateName, template, docTypes.values(), getTemplateAliases()), bootstrap);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        store();
+    }
+
+    /**
+     * Run a bootstrap step after the template is installed, the index operations wait for the step to complete.
+     * The step should use the {@link #store} field directly.
+     *
+     * @param step the bootstrap step
+     */
+    protected void afterTemplateInstalled(Runnable step) {
+        ready = ready.thenRunAsync(step, bootstrap);
+    }
+
+    /**
+     * @return the document store, once the template and the bootstrap steps are done
+     */
+    protected DocumentStore store() {
+        if (ready != null) DocumentStore.await(ready);
+        return store;
+    }
+
+    /**
+     * @return aliases added to every index created by this template
+     */
+    protected String[] getTemplateAliases() {
+        return new String[0];
+    }
+
+    /**
+     * @param source document source
+     * @return the name of the index (or alias) where the new document should be written
+     */
+    protected String writeIndexName(Object source) {
+        return indexName();
     }
 
     public <T> PersistentData<T> getDocument(PersistentData<T> doc, Class<T> type) {
-        return esClient.getDocument(indexName(), getDocType(type), doc, type);
+        return store().getDocument(indexName(), getDocType(type), doc, type);
     }
 
     public <T> List<T> getDocuments(Class<T> type, Set<String> ids) {
-        return esClient.getDocuments(indexName(), getDocType(type), type, ids);
+        return store().getDocuments(indexName(), getDocType(type), type, ids);
     }
 
     public void deleteIndex() {
         String name = indexName();
         logger.fine("Deleting index " + name);
-        esClient.deleteIndices(name);
+        store().deleteIndices(name);
     }
 
     public void refreshIndex() {
-        esClient.refreshIndices(indexName());
+        store().refreshIndices(indexName());
     }
 
     public <T> PersistentData<T> createDocument(PersistentData<T> doc) {
-        return esClient.createDocument(indexName(), getDocType(doc.source.getClass()), doc);
+        return store().createDocument(writeIndexName(doc.source), getDocType(doc.source.getClass()), doc);
+    }
+
+    /**
+     * Queue the documents for asynchronous bulk indexing, see {@link DocumentStore#ingestDocument(String, String, Object)}
+     *
+     * @param sources document sources
+     */
+    public void ingestDocuments(Collection<?> sources) {
+        for (Object source : sources) {
+            store().ingestDocument(writeIndexName(source), getDocType(source.getClass()), source);
+        }
     }
 
     public <T> PersistentData<T> createDocumentIfNotExists(PersistentData<T> doc) {
         Class<T> docClass = (Class<T>) doc.source.getClass();
-        return esClient.createDocumentIfNotExists(indexName(), getDocType(docClass), doc, docClass);
+        return store().createDocumentIfNotExists(writeIndexName(doc.source), getDocType(docClass), doc, docClass);
     }
 
     public boolean deleteDocument(PersistentData doc) {
-        return esClient.deleteDocument(indexName(), getDocType(doc.source.getClass()), doc);
+        return store().deleteDocument(indexName(), getDocType(doc.source.getClass()), doc);
     }
 
     public <T> PersistentData<T> updateDocument(PersistentData<T> doc) {
-        return esClient.updateDocument(indexName(), getDocType(doc.source.getClass()), doc);
+        return store().updateDocument(indexName(), getDocType(doc.source.getClass()), doc);
     }
 
     public void deleteByQuery(QueryBuilder query) {
-        esClient.deleteByQuery(indexName(), query);
+        store().deleteByQuery(indexName(), query);
     }
 
-    // TODO: scalability WARNING - check what happens when there are more entities that maxHits
+    /**
+     * Find at most maxHits documents, the rest are ignored.
+     * To retrieve all the matching documents use {@link #iterate(QueryBuilder, Class, SortBuilder)}.
+     */
     public <T> List<PersistentData<T>> find(QueryBuilder query, int maxHits, Class<T> dataType, SortBuilder sort) {
-        List<PersistentData<T>> res = new ArrayList<>();
-
-        SearchResponse response = esClient.search(indexName(), getDocType(dataType), query, maxHits, sort);
-        if (response != null) {
-            for (SearchHit hit : response.getHits().getHits()) {
-                try {
-                    res.add(new PersistentData<>(hit.id(), hit.version(), mapper.readValue(hit.source(), dataType)));
-                } catch (IOException e) {
-                    logger.warning("Failed to read persistent data as " + dataType.getName() + ": " + e);
-                }
-            }
-        }
+        return find(new String[]{indexName()}, query, maxHits, dataType, sort);
+    }
+
+    protected <T> List<PersistentData<T>> find(String[] indices, QueryBuilder query, int maxHits, Class<T> dataType, SortBuilder sort) {
+        return store().find(indices, getDocType(dataType), query, maxHits, sort, dataType);
+    }
+
+    /**
+     * Lazily iterate over all the matching documents, fetching them page by page.
+     *
+     * @param query    the query
+     * @param dataType document type
+     * @param sort     sort order, may be null
+     * @return cursor, should be closed if not iterated to the end
+     */
+    public <T> DocumentCursor<T> iterate(QueryBuilder query, Class<T> dataType, SortBuilder sort) {
+        return iterate(new String[]{indexName()}, query, dataType, sort);
+    }
+
+    protected <T> DocumentCursor<T> iterate(String[] indices, QueryBuilder query, Class<T> dataType, SortBuilder sort) {
+        return store().scroll(indices, getDocType(dataType), query, pageSize, sort, dataType);
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
 
-        return res;
+    /**
+     * @return false if {@link #aggregate} is not supported by the storage backend, see {@link DocumentStore#supportsAggregations()}
+     */
+    public boolean supportsAggregations() {
+        return store().supportsAggregations();
     }
 
     public Aggregation aggregate(QueryBuilder query, AbstractAggregationBuilder aggregation, Class dataType) {
-        return esClient.aggregate(indexName(), getDocType(dataType), query, aggregation);
+        return store().aggregate(indexName(), getDocType(dataType), query, aggregation);
+    }
+
+    // ----- Non-blocking counterparts, see DocumentStore -----
+
+    public <T> CompletableFuture<PersistentData<T>> getDocumentAsync(PersistentData<T> doc, Class<T> type) {
+        return store().getDocumentAsync(indexName(), getDocType(type), doc, type);
+    }
+
+    public <T> CompletableFuture<List<T>> getDocumentsAsync(Class<T> type, Set<String> ids) {
+        return store().getDocumentsAsync(indexName(), getDocType(type), type, ids);
+    }
+
+    public <T> CompletableFuture<PersistentData<T>> createDocumentAsync(PersistentData<T> doc) {
+        return store().createDocumentAsync(writeIndexName(doc.source), getDocType(doc.source.getClass()), doc);
+    }
+
+    public <T> CompletableFuture<PersistentData<T>> createDocumentIfNotExistsAsync(PersistentData<T> doc) {
+        Class<T> docClass = (Class<T>) doc.source.getClass();
+        return store().createDocumentIfNotExistsAsync(writeIndexName(doc.source), getDocType(docClass), doc, docClass);
+    }
+
+    public <T> CompletableFuture<PersistentData<T>> updateDocumentAsync(PersistentData<T> doc) {
+        return store().updateDocumentAsync(indexName(), getDocType(doc.source.getClass()), doc);
+    }
+
+    public <T> CompletableFuture<List<PersistentData<T>>> findAsync(QueryBuilder query, int maxHits, Class<T> dataType, SortBuilder sort) {
+        return findAsync(new String[]{indexName()}, query, maxHits, dataType, sort);
+    }
+
+    protected <T> CompletableFuture<List<PersistentData<T>>> findAsync(String[] indices, QueryBuilder query, int maxHits, Class<T> dataType, SortBuilder sort) {
+        return store().findAsync(indices, getDocType(dataType), query, maxHits, sort, dataType);
+    }
+
+    /**
+     * Non-blocking iteration over all the matching documents
+     *
+     * @param consumer called sequentially for each document
+     * @return future of the number of consumed documents
+     */
+    protected <T> CompletableFuture<Long> iterateAsync(String[] indices, QueryBuilder query, Class<T> dataType, SortBuilder sort, Consumer<PersistentData<T>> consumer) {
+        return store().scrollAsync(indices, getDocType(dataType), query, pageSize, sort, dataType, consumer);
+    }
+
+    public CompletableFuture<Aggregation> aggregateAsync(QueryBuilder query, AbstractAggregationBuilder aggregation, Class dataType) {
+        return store().aggregateAsync(indexName(), getDocType(dataType), query, aggregation);
     }
 
     public <T> PersistentData<T> findSingle(QueryBuilder query, Class<T> dataType) {
@@ -0,0 +1,190 @@
+package com.jflop.server.persistency;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Latency and throughput of the storage operations, by operation and index.
+ * <p/>
+ * The time partitions of an index are counted together under the index base name.
+ * Latencies are recorded in a histogram with 4 buckets per power of 2 microseconds,
+ * so the percentiles are accurate within 20%.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class OperationMetrics {
+
+    private static final Pattern PARTITION_SUFFIX = Pattern.compile("-\\d{4}\\.\\d{2}\\.\\d{2}(-\\d{2})?$");
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Counters of one operation on one index
+     */
+    private static class Stats {
+        final String operation;
+        final String index;
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+        Stats(String operation, String index) {
+            this.operation = operation;
+            this.index = index;
+        }
+
+        void record(long micros) {
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            buckets.incrementAndGet(bucket(micros));
+        }
+    }
+
+    /**
+     * A started operation, should be completed with exactly one of {@link #succeeded()}, {@link #failed()} or {@link #conflicted()}
+     */
+    public static class Sample {
+        private final Stats stats;
+        private final long startNanos = System.nanoTime();
+
+        private Sample(Stats stats) {
+            this.stats = stats;
+        }
+
+        public void succeeded() {
+            complete();
+        }
+
+        public void failed() {
+            stats.errors.incrementAndGet();
+            complete();
+        }
+
+        public void conflicted() {
+            stats.conflicts.incrementAndGet();
+            complete();
+        }
+
+        private void complete() {
+            stats.inFlight.decrementAndGet();
+            stats.record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    /**
+     * Point in time state of one operation on one index
+     */
+    public static class Snapshot {
+        public final String operation;
+        public final String index;
+        public final long inFlight;
+        public final long count;
+        public final long errors;
+        public final long conflicts;
+        public final long bytes;
+        public final double avgMillis;
+        public final double p50Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+
+        private Snapshot(Stats stats) {
+            operation = stats.operation;
+            index = stats.index;
+            inFlight = stats.inFlight.get();
+            count = stats.count.get();
+            errors = stats.errors.get();
+            conflicts = stats.conflicts.get();
+            bytes = stats.bytes.get();
+            avgMillis = count == 0 ? 0 : stats.totalMicros.get() / 1000d / count;
+            maxMillis = stats.maxMicros.get() / 1000d;
+
+            long[] buckets = new long[NUM_BUCKETS];
+            long total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                buckets[i] = stats.buckets.get(i);
+                total += buckets[i];
+            }
+            p50Millis = Math.min(maxMillis, percentile(buckets, total, 0.5) / 1000d);
+            p99Millis = Math.min(maxMillis, percentile(buckets, total, 0.99) / 1000d);
+        }
+    }
+
+    /**
+     * Start measuring an operation
+     *
+     * @param operation operation name, such as create, get or search
+     * @param index     index name or names, the time partitions are counted together
+     * @param bytes     size of the serialized request, 0 if not relevant
+     * @return the sample to complete when the operation is done
+     */
+    public Sample start(String operation, String index, long bytes) {
+        String indexName = indexName(index);
+        Stats res = stats.computeIfAbsent(operation + "/" + indexName, key -> new Stats(operation, indexName));
+        res.inFlight.incrementAndGet();
+        res.bytes.addAndGet(bytes);
+        return new Sample(res);
+    }
+
+    /**
+     * @return state of all the measured operations since start, sorted by operation and index
+     */
+    public List<Snapshot> getSnapshot() {
+        List<Snapshot> res = new ArrayList<>();
+        for (Stats value : new TreeMap<>(stats).values()) {
+            res.add(new Snapshot(value));
+        }
+        return res;
+    }
+
+    static String indexName(String index) {
+        if (index.indexOf(',') == -1) return PARTITION_SUFFIX.matcher(index).replaceFirst("");
+
+        Set<String> names = new TreeSet<>();
+        for (String name : index.split(",")) {
+            names.add(PARTITION_SUFFIX.matcher(name).replaceFirst(""));
+        }
+        return String.join(",", names);
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) Math.max(micros, 0);
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exp - 2)) & (SUB_BUCKETS - 1);
+        return exp * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the upper bound of the bucket in microseconds
+     */
+    static long bucketBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - 2)) - 1;
+    }
+
+    private static long percentile(long[] buckets, long total, double fraction) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) return bucketBound(i);
+        }
+        return bucketBound(buckets.length - 1);
+    }
+}
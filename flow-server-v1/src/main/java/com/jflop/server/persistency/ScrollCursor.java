@@ -0,0 +1,103 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Lazy iterator over search results backed by an ES scroll.
+ * <p/>
+ * The next page is fetched and deserialized only when the current one is consumed, so the memory footprint
+ * is bounded by the page size regardless of the number of hits.
+ * The scroll context is released when the iteration is over, or explicitly by {@link #close()}.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class ScrollCursor<T> implements DocumentCursor<T> {
+
+    private static final Logger logger = Logger.getLogger(ScrollCursor.class.getName());
+
+    private final ESClient esClient;
+    private final ObjectMapper mapper;
+    private final Class<T> dataType;
+    private final String index;
+
+    private String scrollId;
+    private Iterator<PersistentData<T>> page;
+    private long totalHits;
+    private long fetched;
+
+    ScrollCursor(ESClient esClient, ObjectMapper mapper, Class<T> dataType, String index, SearchResponse firstPage) {
+        this.esClient = esClient;
+        this.mapper = mapper;
+        this.dataType = dataType;
+        this.index = index;
+        if (firstPage == null) {
+            page = Collections.emptyIterator();
+        } else {
+            totalHits = firstPage.getHits().getTotalHits();
+            scrollId = firstPage.getScrollId();
+            page = readPage(firstPage);
+        }
+    }
+
+    /**
+     * @return total number of hits matching the query, 0 if the index does not exist
+     */
+    @Override
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (scrollId == null) return false;
+            if (fetched >= totalHits) {
+                close();
+                return false;
+            }
+            SearchResponse response = esClient.continueScroll(index, scrollId);
+            scrollId = response.getScrollId();
+            if (response.getHits().getHits().length == 0) {
+                close();
+                return false;
+            }
+            page = readPage(response);
+        }
+        return true;
+    }
+
+    @Override
+    public PersistentData<T> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        if (scrollId != null) {
+            esClient.clearScroll(scrollId);
+            scrollId = null;
+        }
+    }
+
+    private Iterator<PersistentData<T>> readPage(SearchResponse response) {
+        SearchHit[] hits = response.getHits().getHits();
+        fetched += hits.length;
+        List<PersistentData<T>> res = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            try {
+                res.add(new PersistentData<>(hit.id(), hit.version(), mapper.readValue(hit.source(), dataType)));
+            } catch (IOException e) {
+                logger.warning("Failed to read persistent data as " + dataType.getName() + ": " + e);
+            }
+        }
+        return res.iterator();
+    }
+}
@@ -0,0 +1,270 @@
+package com.jflop.server.persistency;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index template for time series data, rolled over hourly or daily.
+ * <p/>
+ * Each document is written to the partition index covering its time, e.g. jf-raw-data-2017.01.31-13.
+ * All the partitions share the read alias, which is the base name, and the current partition is pointed by the write alias.
+ * Time range searches address only the partitions intersecting the range.
+ * The expired partitions are dropped as whole indices by a periodic maintenance task, which also pre-creates the next partition.
+ * <p/>
+ * Partition period and retention are read from properties [prefix].partition.period (HOURLY or DAILY) and [prefix].retention.hours
+ * <p/>
+ * Before the partitioning the data was kept in a single index named as the read alias, which prevents creating the alias.
+ * Such legacy index is dropped on startup: the time series data is transient and is not copied to the partitions.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public abstract class TimePartitionedIndex extends IndexTemplate implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(TimePartitionedIndex.class.getName());
+
+    private static final int MAX_SEARCH_PARTITIONS = 100;
+    private static final long MAINTENANCE_INTERVAL_SEC = 60;
+
+    public enum Period {
+        HOURLY("yyyy.MM.dd-HH", ChronoUnit.HOURS),
+        DAILY("yyyy.MM.dd", ChronoUnit.DAYS);
+
+        private final DateTimeFormatter format;
+        private final ChronoUnit unit;
+
+        Period(String pattern, ChronoUnit unit) {
+            this.format = DateTimeFormatter.ofPattern(pattern);
+            this.unit = unit;
+        }
+
+        LocalDateTime start(long timeMillis) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneOffset.UTC).truncatedTo(unit);
+        }
+    }
+
+    private final String baseName;
+    private final String writeAlias;
+    private final String propertyPrefix;
+
+    private Period period;
+    private long retentionHours;
+
+    @Autowired(required = false)
+    private Environment environment;
+
+    private ScheduledExecutorService maintenance;
+
+    protected TimePartitionedIndex(String baseName, String propertyPrefix, Period defaultPeriod, long defaultRetentionHours, DocType... docTypes) {
+        super(baseName + "-template", baseName + "-*", docTypes);
+        this.baseName = baseName;
+        this.writeAlias = baseName + "-current";
+        this.propertyPrefix = propertyPrefix;
+        this.period = defaultPeriod;
+        this.retentionHours = defaultRetentionHours;
+    }
+
+    /**
+     * @param source document source
+     * @return the time by which the document is partitioned, or null if not known
+     */
+    protected abstract Date partitionTime(Object source);
+
+    @Override
+    public void afterPropertiesSet() {
+        if (environment != null) {
+            period = environment.getProperty(propertyPrefix + ".partition.period", Period.class, period);
+            retentionHours = environment.getProperty(propertyPrefix + ".retention.hours", Long.class, retentionHours);
+        }
+
+        super.afterPropertiesSet();
+        afterTemplateInstalled(this::dropLegacyIndex);
+        afterTemplateInstalled(this::maintainPartitions);
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, baseName + "-partitions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintainPartitions, MAINTENANCE_INTERVAL_SEC, MAINTENANCE_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (maintenance != null) maintenance.shutdownNow();
+    }
+
+    @Override
+    protected String[] getTemplateAliases() {
+        return new String[]{baseName};
+    }
+
+    public long getRetentionHours() {
+        return retentionHours;
+    }
+
+    /**
+     * @return the read alias covering all the partitions
+     */
+    @Override
+    public String indexName() {
+        return baseName;
+    }
+
+    /**
+     * The document is written to the partition covering its time only if that partition is managed by {@link #maintainPartitions()},
+     * i.e. neither expired nor beyond the next one. Otherwise, e.g. when the agent clock is skewed, it goes to the current partition.
+     */
+    @Override
+    protected String writeIndexName(Object source) {
+        Date time = partitionTime(source);
+        if (time == null) return writeAlias;
+
+        long now = System.currentTimeMillis();
+        LocalDateTime partition = period.start(time.getTime());
+        boolean expired = !partition.plus(1, period.unit).isAfter(expiredBefore(now));
+        boolean future = partition.isAfter(period.start(now).plus(1, period.unit));
+        return expired || future ? writeAlias : partitionName(time.getTime());
+    }
+
+    @Override
+    public void deleteIndex() {
+        String pattern = baseName + "-*";
+        logger.fine("Deleting indices " + pattern);
+        store().deleteIndices(pattern);
+    }
+
+    /**
+     * Find documents whose time is within the given range, searching only the partitions intersecting the range.
+     *
+     * @param from     range start, inclusive
+     * @param to       range end, inclusive
+     * @param query    additional query, may be null
+     * @param maxHits  max number of documents
+     * @param dataType document type
+     * @param sort     sort order, may be null
+     * @return found documents
+     */
+    public <T> List<PersistentData<T>> find(Date from, Date to, QueryBuilder query, int maxHits, Class<T> dataType, SortBuilder sort) {
+        return find(partitionNames(from, to), timeRangeQuery(from, to, query), maxHits, dataType, sort);
+    }
+
+    /**
+     * Lazily iterate over the documents whose time is within the given range.
+     *
+     * @param from     range start, inclusive
+     * @param to       range end, inclusive
+     * @param query    additional query, may be null
+     * @param dataType document type
+     * @param sort     sort order, may be null
+     * @return cursor, should be closed if not iterated to the end
+     */
+    public <T> DocumentCursor<T> iterate(Date from, Date to, QueryBuilder query, Class<T> dataType, SortBuilder sort) {
+        return iterate(partitionNames(from, to), timeRangeQuery(from, to, query), dataType, sort);
+    }
+
+    /**
+     * Non-blocking iteration over the documents whose time is within the given range.
+     *
+     * @param consumer called sequentially for each document
+     * @return future of the number of consumed documents
+     */
+    public <T> CompletableFuture<Long> iterateAsync(Date from, Date to, QueryBuilder query, Class<T> dataType, SortBuilder sort, Consumer<PersistentData<T>> consumer) {
+        return iterateAsync(partitionNames(from, to), timeRangeQuery(from, to, query), dataType, sort, consumer);
+    }
+
+    private QueryBuilder timeRangeQuery(Date from, Date to, QueryBuilder query) {
+        QueryBuilder timeRange = QueryBuilders.rangeQuery("time").from(from.getTime()).to(to.getTime());
+        return query == null ? timeRange : QueryBuilders.boolQuery().must(query).must(timeRange);
+    }
+
+    String partitionName(long timeMillis) {
+        return baseName + "-" + period.format.format(period.start(timeMillis));
+    }
+
+    String[] partitionNames(Date from, Date to) {
+        LocalDateTime start = period.start(from.getTime());
+        LocalDateTime end = period.start(to.getTime());
+        if (start.isAfter(end) || period.unit.between(start, end) >= MAX_SEARCH_PARTITIONS)
+            return new String[]{baseName};
+
+        List<String> res = new ArrayList<>();
+        for (LocalDateTime partition = start; !partition.isAfter(end); partition = partition.plus(1, period.unit)) {
+            res.add(baseName + "-" + period.format.format(partition));
+        }
+        return res.toArray(new String[res.size()]);
+    }
+
+    /**
+     * Make sure the current and the next partitions exist and the write alias points to the current one,
+     * and drop the partitions which ended before the retention period.
+     */
+    void maintainPartitions() {
+        try {
+            long now = System.currentTimeMillis();
+            String current = partitionName(now);
+            store.createIndexIfNotExists(current);
+            store.createIndexIfNotExists(partitionName(now + period.unit.getDuration().toMillis()));
+            store.setAlias(writeAlias, current);
+
+            LocalDateTime expiredBefore = expiredBefore(now);
+            List<String> expired = new ArrayList<>();
+            for (String index : store.getIndices(baseName + "-*")) {
+                LocalDateTime end = partitionEnd(index);
+                if (end != null && !end.isAfter(expiredBefore)) expired.add(index);
+            }
+            if (!expired.isEmpty()) {
+                logger.info("Dropping expired partitions " + expired);
+                store.deleteIndices(expired.toArray(new String[expired.size()]));
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to maintain partitions of " + baseName, e);
+        }
+    }
+
+    /**
+     * Drop the legacy index holding all the data, see the class comment.
+     */
+    void dropLegacyIndex() {
+        if (!Arrays.asList(store.getIndices(baseName)).contains(baseName)) return;
+        logger.warning("Dropping legacy index " + baseName + ", the data is kept in partitions " + baseName + "-*");
+        store.deleteIndices(baseName);
+    }
+
+    private LocalDateTime expiredBefore(long now) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneOffset.UTC).minusHours(retentionHours);
+    }
+
+    private LocalDateTime partitionEnd(String index) {
+        String suffix = index.substring(baseName.length() + 1);
+        for (Period p : Period.values()) {
+            try {
+                LocalDateTime start = p == Period.DAILY ? LocalDate.parse(suffix, p.format).atStartOfDay() : LocalDateTime.parse(suffix, p.format);
+                return start.plus(1, p.unit);
+            } catch (DateTimeParseException e) {
+                // try next format
+            }
+        }
+        return null;
+    }
+}
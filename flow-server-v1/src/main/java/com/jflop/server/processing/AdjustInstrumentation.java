@@ -20,8 +20,13 @@ import org.elasticsearch.xpack.watcher.trigger.schedule.Schedules;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
 import static org.elasticsearch.xpack.watcher.actions.ActionBuilders.loggingAction;
@@ -30,13 +35,17 @@ import static org.elasticsearch.xpack.watcher.trigger.schedule.IntervalSchedule.
 
 /**
  * TODO: Document!
+ * Relies on the X-Pack watcher, therefore available only with the Elasticsearch storage backend.
  *
  * @author artem
  *         Date: 4/15/17
  */
 @Component
+@ConditionalOnProperty(name = "storage.backend", havingValue = "elasticsearch", matchIfMissing = true)
 public class AdjustInstrumentation implements InitializingBean, DisposableBean {
 
+    private static final Logger logger = Logger.getLogger(AdjustInstrumentation.class.getName());
+
     private static final String WATCH_ID = "jf-adjust-instrumentation";
     private static final int INTERVAL_SEC = 10;
 
@@ -46,13 +55,21 @@ public class AdjustInstrumentation implements InitializingBean, DisposableBean {
     @Autowired
     private MetadataIndex metadataIndex;
 
+    private CompletableFuture<PutWatchResponse> watchRegistration;
+
+    /**
+     * Registers the watch in the background, the server start does not depend on it
+     */
     @Override
     public void afterPropertiesSet() throws Exception {
-        createWatch();
+        watchRegistration = CompletableFuture.supplyAsync(this::createWatch).whenComplete((response, e) -> {
+            if (e != null) logger.log(Level.SEVERE, "Failed to register watch " + WATCH_ID, e);
+        });
     }
 
     @Override
     public void destroy() throws Exception {
+        if (watchRegistration != null) watchRegistration.handle((response, e) -> null).join();
         deleteWatch();
     }
 
@@ -0,0 +1,137 @@
+package com.jflop.server.runtime;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.runtime.data.Metadata;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the metadata documents known to be stored, with their versions.
+ * <p/>
+ * The metadata document IDs include the agent JVM, so the entries of different JVMs never collide.
+ * The cached source is kept as a JSON tree, so that the incoming metadata can be merged into a private copy
+ * and compared with the stored state without going to the storage.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class MetadataCache {
+
+    private static final String TIME_FIELD = "time";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Entry> entries;
+    private final long timeResolutionMillis;
+
+    private int hits;
+    private int misses;
+
+    private static class Entry {
+        final long version;
+        final ObjectNode source;
+
+        Entry(long version, ObjectNode source) {
+            this.version = version;
+            this.source = source;
+        }
+    }
+
+    /**
+     * @param maxEntries           max number of cached documents, the least recently used are evicted
+     * @param timeResolutionMillis a change of the metadata time alone is not written unless the stored time
+     *                             is older than this, 0 to write every change
+     */
+    MetadataCache(int maxEntries, long timeResolutionMillis) {
+        this.timeResolutionMillis = timeResolutionMillis;
+        this.entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Result of merging the incoming metadata into the cached document
+     */
+    static class Merged {
+        final PersistentData<Metadata> doc;
+        final boolean changed;
+
+        Merged(PersistentData<Metadata> doc, boolean changed) {
+            this.doc = doc;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * Merge the metadata into a copy of the cached document.
+     *
+     * @param metadata incoming metadata
+     * @return the merged document with the cached version, or null if the document is not cached
+     */
+    Merged merge(Metadata metadata) {
+        String id = metadata.getDocumentId();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        try {
+            Metadata merged = mapper.treeToValue(entry.source, metadata.getClass());
+            boolean changed = metadata.mergeTo(merged) && !sameIgnoringRecentTime(entry.source, mapper.valueToTree(merged));
+            return new Merged(new PersistentData<>(id, entry.version, merged), changed);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void put(PersistentData<? extends Metadata> doc) {
+        Entry entry = new Entry(doc.version, mapper.valueToTree(doc.source));
+        synchronized (this) {
+            Entry existing = entries.get(doc.id);
+            if (existing == null || existing.version <= doc.version) entries.put(doc.id, entry);
+        }
+    }
+
+    synchronized void invalidate(String id) {
+        entries.remove(id);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int getHits() {
+        return hits;
+    }
+
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    private boolean sameIgnoringRecentTime(ObjectNode stored, ObjectNode merged) {
+        long storedTime = stored.path(TIME_FIELD).asLong();
+        long mergedTime = merged.path(TIME_FIELD).asLong();
+        if (storedTime != mergedTime && Math.abs(mergedTime - storedTime) >= timeResolutionMillis) return false;
+
+        ObjectNode storedCopy = stored.deepCopy();
+        ObjectNode mergedCopy = merged.deepCopy();
+        storedCopy.remove(TIME_FIELD);
+        mergedCopy.remove(TIME_FIELD);
+        return storedCopy.equals(mergedCopy);
+    }
+}
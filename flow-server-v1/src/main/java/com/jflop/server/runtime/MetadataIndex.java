@@ -2,18 +2,23 @@ package com.jflop.server.runtime;
 
 import com.jflop.server.admin.data.AgentJVM;
 import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.persistency.IndexTemplate;
 import com.jflop.server.persistency.PersistentData;
 import com.jflop.server.runtime.data.*;
 import com.jflop.server.runtime.data.metric.MetricMetadata;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.Date;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Index for metadata like stacktraces or flow definitions that are shared by many instances of raw data,
@@ -27,6 +32,20 @@ public class MetadataIndex extends IndexTemplate {
 
     private static final String METADADATA_INDEX = "jf-metadata";
 
+    @Value("${metadata.cache.maxEntries:50000}")
+    private int cacheMaxEntries = 50000;
+
+    @Value("${metadata.cache.timeResolutionSec:60}")
+    private int cacheTimeResolutionSec = 60;
+
+    @Value("${metadata.classCache.maxEntries:20000}")
+    private int classCacheMaxEntries = 20000;
+
+    private MetadataCache cache;
+
+    // class metadata by document ID, guarded by itself
+    private Map<String, InstrumentationMetadata> classCache;
+
     public MetadataIndex() {
         super(METADADATA_INDEX + "-template", METADADATA_INDEX + "*",
                 new DocType("thread", "persistency/threadMetadata.json", ThreadMetadata.class),
@@ -36,18 +55,86 @@ public class MetadataIndex extends IndexTemplate {
         );
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        cache = new MetadataCache(cacheMaxEntries, cacheTimeResolutionSec * 1000L);
+        classCache = new LinkedHashMap<String, InstrumentationMetadata>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, InstrumentationMetadata> eldest) {
+                return size() > classCacheMaxEntries;
+            }
+        };
+    }
+
     @Override
     public String indexName() {
         return METADADATA_INDEX;
     }
 
+    @Override
+    public void deleteIndex() {
+        super.deleteIndex();
+        cache.clear();
+        synchronized (classCache) {
+            classCache.clear();
+        }
+    }
+
     public void addMetadata(List<Metadata> list) {
-        for (Metadata metadata : list) {
-            PersistentData<Metadata> doc = new PersistentData<>(metadata.getDocumentId(), 0, metadata);
-            PersistentData<Metadata> existing = createDocumentIfNotExists(doc);
-            if (existing != null && metadata.mergeTo(existing.source))
-                updateDocument(existing);
+        DocumentStore.await(addMetadataAsync(list));
+    }
+
+    /**
+     * Create or merge all the metadata documents in parallel.
+     * The documents known to be stored are merged in the cache first, and written only if the merge changes them.
+     *
+     * @param list metadata to add
+     * @return future completed when all the documents are written
+     */
+    public CompletableFuture<Void> addMetadataAsync(List<Metadata> list) {
+        CompletableFuture[] futures = new CompletableFuture[list.size()];
+        for (int i = 0; i < futures.length; i++) {
+            Metadata metadata = list.get(i);
+            MetadataCache.Merged cached = cache.merge(metadata);
+            if (cached == null) {
+                futures[i] = writeMetadata(metadata);
+            } else if (!cached.changed) {
+                futures[i] = CompletableFuture.completedFuture(cached.doc);
+            } else {
+                // the cached version may be stale if the document was changed elsewhere, then merge with the stored one
+                futures[i] = updateDocumentAsync(cached.doc).thenApply(this::cached).handle((updated, e) -> {
+                    if (e == null) return CompletableFuture.completedFuture(updated);
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (!(cause instanceof VersionConflictEngineException)) throw new CompletionException(cause);
+                    cache.invalidate(metadata.getDocumentId());
+                    return writeMetadata(metadata);
+                }).thenCompose(Function.identity());
+            }
         }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private CompletableFuture<PersistentData<Metadata>> writeMetadata(Metadata metadata) {
+        PersistentData<Metadata> doc = new PersistentData<>(metadata.getDocumentId(), 0, metadata);
+        return createDocumentIfNotExistsAsync(doc).thenCompose(existing ->
+                existing != null && metadata.mergeTo(existing.source)
+                        ? updateDocumentAsync(existing)
+                        : CompletableFuture.completedFuture(existing))
+                .thenApply(this::cached);
+    }
+
+    private PersistentData<Metadata> cached(PersistentData<Metadata> doc) {
+        if (doc != null) {
+            cache.put(doc);
+            // the reported class signatures or blacklisting change the class metadata
+            if (doc.source instanceof InstrumentationMetadata) {
+                synchronized (classCache) {
+                    classCache.remove(doc.id);
+                }
+            }
+        }
+        return doc;
     }
 
     public <T extends Metadata> List<T> findMetadata(AgentJVM agentJVM, Class<T> metadataClass, Date fromTime, int maxHits) {
@@ -62,10 +149,41 @@ public class MetadataIndex extends IndexTemplate {
         return found.stream().map(doc -> doc.source).collect(Collectors.toList());
     }
 
-    public InstrumentationMetadata getClassMetadata(AgentJVM agentJVM, String className) {
-        String id = new InstrumentationMetadata(agentJVM, className).getDocumentId();
-        PersistentData<InstrumentationMetadata> document = getDocument(new PersistentData<>(id, 0), InstrumentationMetadata.class);
-        return document == null ? null : document.source;
+    /**
+     * Get the metadata of the given classes, the ones not cached are read with a single multi-get.
+     * The returned metadata is shared with the cache and should not be modified.
+     *
+     * @param agentJVM   agent JVM
+     * @param classNames class names
+     * @param reload     whether to read all the classes from the index, e.g. if the cached ones may be stale
+     * @return class name to metadata map, the classes without metadata are missing
+     */
+    public Map<String, InstrumentationMetadata> getClassMetadata(AgentJVM agentJVM, Collection<String> classNames, boolean reload) {
+        Map<String, InstrumentationMetadata> res = new HashMap<>();
+        Map<String, String> missing = new HashMap<>();
+        synchronized (classCache) {
+            for (String className : classNames) {
+                String id = new InstrumentationMetadata(agentJVM, className).getDocumentId();
+                InstrumentationMetadata cached = reload ? null : classCache.get(id);
+                if (cached != null)
+                    res.put(className, cached);
+                else
+                    missing.put(id, className);
+            }
+        }
+        if (missing.isEmpty()) return res;
+
+        List<InstrumentationMetadata> found = getDocuments(InstrumentationMetadata.class, missing.keySet());
+        if (found != null) {
+            synchronized (classCache) {
+                for (InstrumentationMetadata metadata : found) {
+                    String id = metadata.getDocumentId();
+                    classCache.put(id, metadata);
+                    res.put(missing.get(id), metadata);
+                }
+            }
+        }
+        return res;
     }
 
     public Set<String> getBlacklistedClasses(AgentJVM agentJVM) {
@@ -75,9 +193,9 @@ public class MetadataIndex extends IndexTemplate {
                 .must(QueryBuilders.termQuery("agentJvm.agentId", agentJVM.agentId))
                 .must(QueryBuilders.termQuery("agentJvm.jvmId", agentJVM.jvmId));
 
-        List<PersistentData<InstrumentationMetadata>> found = find(query, 10000, InstrumentationMetadata.class, null);
-
-        return found.stream().map(doc -> doc.source.className).collect(Collectors.toSet());
+        try (Stream<PersistentData<InstrumentationMetadata>> found = iterate(query, InstrumentationMetadata.class, null).stream()) {
+            return found.map(doc -> doc.source.className).collect(Collectors.toSet());
+        }
     }
 
     public PersistentData<MetricMetadata> getOrCreateMetricMetadata(AgentDataFactory dataFactory) {
@@ -89,4 +207,13 @@ public class MetadataIndex extends IndexTemplate {
         }
         return doc;
     }
+
+    public CompletableFuture<PersistentData<MetricMetadata>> getOrCreateMetricMetadataAsync(AgentDataFactory dataFactory) {
+        String id = MetricMetadata.getMetadataId(dataFactory.getAgentJVM());
+        return getDocumentAsync(new PersistentData<>(id, 0), MetricMetadata.class).thenCompose(doc -> {
+            if (doc != null) return CompletableFuture.completedFuture(doc);
+            MetricMetadata metricMetadata = dataFactory.createInstance(MetricMetadata.class);
+            return createDocumentIfNotExistsAsync(new PersistentData<>(id, 0, metricMetadata));
+        });
+    }
 }
@@ -0,0 +1,149 @@
+package com.jflop.server.runtime;
+
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.persistency.TimePartitionedIndex;
+import com.jflop.server.runtime.data.AgentData;
+import com.jflop.server.runtime.data.AgentDataFactory;
+import com.jflop.server.runtime.data.metric.MetricData;
+import com.jflop.server.runtime.data.metric.MetricResolution;
+import com.jflop.server.runtime.data.metric.MetricRollup;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Metric observations produced by the analysis, and their rollups.
+ * <p/>
+ * The observations are rolled up into minute and hour buckets kept in {@link MetricRollupIndex.Minute} and {@link MetricRollupIndex.Hour}.
+ * The observations and each rollup resolution are partitioned separately, with their own retention.
+ * The metric queries pick the coarsest resolution needed for the time range, see {@link #getMetrics(AgentJVM, Date, Date, int)}.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@Component
+public class MetricDataIndex extends TimePartitionedIndex {
+
+    private static final String METRIC_DATA_INDEX = "jf-metric-data";
+
+    @Autowired
+    private MetricRollupIndex.Minute minuteIndex;
+
+    @Autowired
+    private MetricRollupIndex.Hour hourIndex;
+
+    public MetricDataIndex() {
+        super(METRIC_DATA_INDEX, "metricData", Period.DAILY, 7 * 24,
+                new DocType("metric", "persistency/metricData.json", MetricData.class)
+        );
+    }
+
+    @Override
+    protected Date partitionTime(Object source) {
+        return ((AgentData) source).time;
+    }
+
+    public void addMetrics(MetricData observation) {
+        createDocument(new PersistentData<>(observation));
+    }
+
+    public CompletableFuture<PersistentData<MetricData>> addMetricsAsync(MetricData observation) {
+        return createDocumentAsync(new PersistentData<>(observation));
+    }
+
+    /**
+     * Roll up the metric observations of the JVM into the minute and hour buckets closed since the previous call.
+     * The minute rollups are built from the observations, and the hour rollups from the minute ones:
+     * those of the previous calls are read from the index, and those of this call are taken as is, as they may be not searchable yet.
+     *
+     * @param agentJvm      the JVM
+     * @param rolledUpUntil the value returned by the previous call, or null
+     * @param time          time of the latest observation
+     * @return end of the rolled up time range, exclusive
+     */
+    public Date rollUpMetrics(AgentJVM agentJvm, Date rolledUpUntil, Date time) {
+        long until = MetricResolution.MINUTE.bucketStart(time.getTime());
+        if (rolledUpUntil == null) return new Date(until);
+
+        // the expired observations are not there anyway
+        long from = Math.max(rolledUpUntil.getTime(), MetricResolution.MINUTE.bucketStart(time.getTime() - getRetentionMillis(MetricResolution.RAW)));
+        if (from >= until) return rolledUpUntil;
+
+        AgentDataFactory factory = new AgentDataFactory(agentJvm, time, minuteIndex.getDocTypes());
+        List<MetricData> observations;
+        try (Stream<PersistentData<MetricData>> found = iterate(new Date(from), new Date(until - 1), RawDataIndex.agentJvmQuery(agentJvm), MetricData.class, null).stream()) {
+            observations = found.map(doc -> doc.source).collect(Collectors.toList());
+        }
+        List<MetricRollup> minutes = rollUp(factory, MetricResolution.MINUTE, observations, MetricRollup::add);
+        if (!minutes.isEmpty()) minuteIndex.addRollups(minutes);
+
+        long hourFrom = MetricResolution.HOUR.bucketStart(from);
+        long hourUntil = MetricResolution.HOUR.bucketStart(until);
+        if (hourFrom < hourUntil) {
+            List<MetricRollup> closedMinutes = from > hourFrom
+                    ? minuteIndex.getRollups(agentJvm, new Date(hourFrom), new Date(from - 1))
+                    : new ArrayList<>();
+            minutes.stream().filter(minute -> minute.time.getTime() < hourUntil).forEach(closedMinutes::add);
+            List<MetricRollup> hours = rollUp(factory, MetricResolution.HOUR, closedMinutes, MetricRollup::add);
+            if (!hours.isEmpty()) hourIndex.addRollups(hours);
+        }
+
+        return new Date(until);
+    }
+
+    /**
+     * Retrieve the metrics of the JVM in the coarsest resolution that gives at most maxPoints points over the time range,
+     * and still keeps the range start, see {@link MetricResolution#select(long, long, long, int, java.util.function.ToLongFunction)}.
+     * The raw observations are returned as rollups of one observation each.
+     *
+     * @return the rollups ordered by time
+     */
+    public List<MetricRollup> getMetrics(AgentJVM agentJvm, Date from, Date to, int maxPoints) {
+        MetricResolution resolution = MetricResolution.select(from.getTime(), to.getTime(), System.currentTimeMillis(), maxPoints, this::getRetentionMillis);
+        if (resolution != MetricResolution.RAW)
+            return getRollupIndex(resolution).getRollups(agentJvm, from, to);
+
+        AgentDataFactory factory = new AgentDataFactory(agentJvm, from, minuteIndex.getDocTypes());
+        List<PersistentData<MetricData>> found = find(from, to, RawDataIndex.agentJvmQuery(agentJvm), maxPoints, MetricData.class, SortBuilders.fieldSort("time").order(SortOrder.ASC));
+        List<MetricRollup> res = new ArrayList<>(found.size());
+        for (PersistentData<MetricData> doc : found) {
+            MetricRollup rollup = factory.createInstance(MetricRollup.class);
+            rollup.resolution = MetricResolution.RAW;
+            rollup.time = doc.source.time;
+            rollup.add(doc.source);
+            res.add(rollup);
+        }
+        return res;
+    }
+
+    public long getRetentionMillis(MetricResolution resolution) {
+        return resolution == MetricResolution.RAW ? getRetentionHours() * 60 * 60 * 1000 : getRollupIndex(resolution).getRetentionMillis();
+    }
+
+    private MetricRollupIndex getRollupIndex(MetricResolution resolution) {
+        return resolution == MetricResolution.MINUTE ? minuteIndex : hourIndex;
+    }
+
+    private static <T extends AgentData> List<MetricRollup> rollUp(AgentDataFactory factory, MetricResolution resolution, List<T> finer, BiConsumer<MetricRollup, T> add) {
+        Map<Long, MetricRollup> buckets = new TreeMap<>();
+        for (T data : finer) {
+            MetricRollup rollup = buckets.computeIfAbsent(resolution.bucketStart(data.time.getTime()), bucket -> {
+                MetricRollup created = factory.createInstance(MetricRollup.class);
+                created.resolution = resolution;
+                created.time = new Date(bucket);
+                return created;
+            });
+            add.accept(rollup, data);
+        }
+        return new ArrayList<>(buckets.values());
+    }
+}
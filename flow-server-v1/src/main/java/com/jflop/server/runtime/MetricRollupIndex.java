@@ -0,0 +1,87 @@
+package com.jflop.server.runtime;
+
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.DocumentStore;
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.persistency.TimePartitionedIndex;
+import com.jflop.server.runtime.data.AgentData;
+import com.jflop.server.runtime.data.metric.MetricResolution;
+import com.jflop.server.runtime.data.metric.MetricRollup;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Metric rollups of the agent JVMs in one resolution, see {@link MetricDataIndex#rollUpMetrics(AgentJVM, Date, Date)}.
+ * <p/>
+ * Each resolution has its own partitions, so that its retention is applied by dropping whole partitions:
+ * the minute rollups are configured by metricMinute.* properties, and the hour rollups by metricHour.* properties.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public abstract class MetricRollupIndex extends TimePartitionedIndex {
+
+    private final MetricResolution resolution;
+
+    protected MetricRollupIndex(MetricResolution resolution, String baseName, String propertyPrefix, long defaultRetentionHours) {
+        super(baseName, propertyPrefix, Period.DAILY, defaultRetentionHours,
+                new DocType("metricRollup", "persistency/metricRollup.json", MetricRollup.class)
+        );
+        this.resolution = resolution;
+    }
+
+    @Component
+    public static class Minute extends MetricRollupIndex {
+        public Minute() {
+            super(MetricResolution.MINUTE, "jf-metric-minute", "metricMinute", 30 * 24);
+        }
+    }
+
+    @Component
+    public static class Hour extends MetricRollupIndex {
+        public Hour() {
+            super(MetricResolution.HOUR, "jf-metric-hour", "metricHour", 365 * 24);
+        }
+    }
+
+    @Override
+    protected Date partitionTime(Object source) {
+        return ((AgentData) source).time;
+    }
+
+    public MetricResolution getResolution() {
+        return resolution;
+    }
+
+    public long getRetentionMillis() {
+        return getRetentionHours() * 60 * 60 * 1000;
+    }
+
+    /**
+     * Store the rollups, a bucket rolled up again keeps the rollup stored first
+     */
+    public void addRollups(Collection<MetricRollup> rollups) {
+        DocumentStore.await(CompletableFuture.allOf(rollups.stream()
+                .map(rollup -> createDocumentIfNotExistsAsync(new PersistentData<>(rollup.getDocumentId(), 0, rollup)))
+                .toArray(CompletableFuture[]::new)));
+    }
+
+    /**
+     * @return the rollups of the JVM whose buckets start within the range, ordered by time
+     */
+    public List<MetricRollup> getRollups(AgentJVM agentJvm, Date from, Date to) {
+        try (Stream<PersistentData<MetricRollup>> found = iterate(from, to, RawDataIndex.agentJvmQuery(agentJvm),
+                MetricRollup.class, SortBuilders.fieldSort("time").order(SortOrder.ASC)).stream()) {
+            return found.map(doc -> doc.source).collect(Collectors.toList());
+        }
+    }
+}
@@ -1,48 +1,43 @@
 package com.jflop.server.runtime;
 
 import com.jflop.server.persistency.DocType;
-import com.jflop.server.persistency.IndexTemplate;
 import com.jflop.server.persistency.PersistentData;
-import com.jflop.server.runtime.data.metric.MetricData;
+import com.jflop.server.persistency.TimePartitionedIndex;
+import com.jflop.server.runtime.data.AgentData;
 import com.jflop.server.runtime.data.processed.FlowSummary;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.stereotype.Component;
 
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 /**
- * TODO: Document!
+ * Flow summaries produced by the analysis, the metric observations are kept in {@link MetricDataIndex}.
  *
  * @author artem on 08/01/2017.
  */
 @Component
-public class ProcessedDataIndex extends IndexTemplate {
+public class ProcessedDataIndex extends TimePartitionedIndex {
 
     public static final String PROCESSED_DATA_INDEX = "jf-processed-data";
 
     protected ProcessedDataIndex() {
-        super(PROCESSED_DATA_INDEX + "-template", PROCESSED_DATA_INDEX + "*",
-                new DocType("flowSummary", "persistency/flowSummary.json", FlowSummary.class),
-                new DocType("metric", "persistency/metricData.json", MetricData.class)
+        super(PROCESSED_DATA_INDEX, "processedData", Period.DAILY, 30 * 24,
+                new DocType("flowSummary", "persistency/flowSummary.json", FlowSummary.class)
         );
     }
 
     @Override
-    public String indexName() {
-        return PROCESSED_DATA_INDEX;
+    protected Date partitionTime(Object source) {
+        return ((AgentData) source).time;
     }
 
     public void addFlowSummary(FlowSummary data) {
         createDocument(new PersistentData<>(data));
     }
 
-    public void addMetrics(MetricData observation) {
-        createDocument(new PersistentData<>(observation));
-    }
-
     public FlowSummary getLastSummary() {
         List<PersistentData<FlowSummary>> found = find(QueryBuilders.matchAllQuery(), 1, FlowSummary.class, SortBuilders.fieldSort("time").order(SortOrder.DESC));
         if (found != null && found.size() == 1)
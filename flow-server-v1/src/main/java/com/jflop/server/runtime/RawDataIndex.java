@@ -2,18 +2,22 @@ package com.jflop.server.runtime;
 
 import com.jflop.server.admin.data.AgentJVM;
 import com.jflop.server.persistency.DocType;
-import com.jflop.server.persistency.IndexTemplate;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.persistency.TimePartitionedIndex;
 import com.jflop.server.runtime.data.*;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * TODO: Document!
@@ -22,7 +26,7 @@ import java.util.stream.Collectors;
  *         Date: 10/12/16
  */
 @Component
-public class RawDataIndex extends IndexTemplate {
+public class RawDataIndex extends TimePartitionedIndex {
 
     private static final Logger logger = Logger.getLogger(RawDataIndex.class.getName());
 
@@ -32,7 +36,7 @@ public class RawDataIndex extends IndexTemplate {
     private MetadataIndex metadataIndex;
 
     public RawDataIndex() {
-        super(RAW_DATA_INDEX + "-template", RAW_DATA_INDEX + "*",
+        super(RAW_DATA_INDEX, "rawData", Period.HOURLY, 48,
                 new DocType("load", "persistency/loadData.json", LoadData.class),
                 new DocType("thread", "persistency/threadOccurrenceData.json", ThreadOccurrenceData.class),
                 new DocType("flow", "persistency/flowOccurrenceData.json", FlowOccurrenceData.class),
@@ -42,55 +46,101 @@ public class RawDataIndex extends IndexTemplate {
     }
 
     @Override
-    public String indexName() {
-        // TODO: implement time suffix/alias
-        return RAW_DATA_INDEX;
+    protected Date partitionTime(Object source) {
+        return ((AgentData) source).time;
     }
 
     public void addRawData(Collection<? extends AgentData> dataList) {
-        // TODO: use bulk update instead of inserting one by one
-        for (AgentData rawData : dataList) {
-            createDocument(new PersistentData<>(rawData));
-        }
+        ingestDocuments(dataList);
     }
 
     public <M extends Metadata, O extends OccurrenceData> Map<M, List<O>> getOccurrencesAndMetadata(AgentJVM agentJvm, Class<O> occurrenceType, Class<M> metadataType, Date from, Date to) {
-        QueryBuilder query = QueryBuilders.boolQuery()
-                .must(agentJvmQuery(agentJvm))
-                .must(QueryBuilders.rangeQuery("time").from(from.getTime()).to(to.getTime()));
+        return DocumentStore.await(getOccurrencesAndMetadataAsync(agentJvm, occurrenceType, metadataType, from, to));
+    }
 
-        List<PersistentData<O>> found = find(query, 10000, occurrenceType, null);
+    /**
+     * Non-blocking version of {@link #getOccurrencesAndMetadata(AgentJVM, Class, Class, Date, Date)}:
+     * scrolls over the occurrences and then retrieves their metadata in one multi-get.
+     */
+    public <M extends Metadata, O extends OccurrenceData> CompletableFuture<Map<M, List<O>>> getOccurrencesAndMetadataAsync(AgentJVM agentJvm, Class<O> occurrenceType, Class<M> metadataType, Date from, Date to) {
+        return getOccurrencesAndMetadataAsync(agentJvm, occurrenceType, metadataType, from, to, doc -> true, id -> null);
+    }
 
+    /**
+     * Same as {@link #getOccurrencesAndMetadataAsync(AgentJVM, Class, Class, Date, Date)}, but skips the occurrences
+     * already consumed by the caller, and retrieves only the metadata not known to the caller,
+     * so that an incremental analysis does not read again the metadata of the recurring occurrences.
+     *
+     * @param accept returns false for the occurrence documents to skip
+     * @param known  returns the metadata known to the caller by ID, or null
+     */
+    public <M extends Metadata, O extends OccurrenceData> CompletableFuture<Map<M, List<O>>> getOccurrencesAndMetadataAsync(AgentJVM agentJvm, Class<O> occurrenceType, Class<M> metadataType, Date from, Date to,
+                                                                                                                            Predicate<PersistentData<O>> accept, Function<String, M> known) {
         Map<String, List<O>> id2occurrences = new HashMap<>();
-        for (PersistentData<O> persistentData : found) {
-            List<O> occurrences = id2occurrences.computeIfAbsent(persistentData.source.getMetadataId(), key -> new ArrayList<>());
-            occurrences.add(persistentData.source);
-        }
-        if (id2occurrences.isEmpty()) return null;
-
-        List<M> metadata = metadataIndex.getDocuments(metadataType, id2occurrences.keySet());
-        logger.fine("Retrieved " + metadata.size() + " metadata objects of type " + metadataType.getSimpleName() + " for " + found.size() + " occurrences of type " + occurrenceType.getSimpleName());
-        if (metadata.size() != id2occurrences.size()) {
-            throw new RuntimeException("Metadata not found for some occurrence IDs");
-        }
-
-        Map<M, List<O>> res = new HashMap<>();
-        for (M key : metadata) {
-            res.put(key, id2occurrences.get(key.getDocumentId()));
-        }
-        return res;
+        return iterateAsync(from, to, agentJvmQuery(agentJvm), occurrenceType, null,
+                doc -> {
+                    if (accept.test(doc))
+                        id2occurrences.computeIfAbsent(doc.source.getMetadataId(), key -> new ArrayList<>()).add(doc.source);
+                })
+                .thenCompose(numOccurrences -> {
+                    if (id2occurrences.isEmpty()) return CompletableFuture.completedFuture(null);
+
+                    Map<M, List<O>> res = new HashMap<>();
+                    Set<String> unknownIds = new HashSet<>();
+                    for (Map.Entry<String, List<O>> entry : id2occurrences.entrySet()) {
+                        M metadata = known.apply(entry.getKey());
+                        if (metadata != null)
+                            res.put(metadata, entry.getValue());
+                        else
+                            unknownIds.add(entry.getKey());
+                    }
+                    if (unknownIds.isEmpty()) return CompletableFuture.completedFuture(res);
+
+                    return metadataIndex.getDocumentsAsync(metadataType, unknownIds).thenApply(metadata -> {
+                        if (metadata == null) metadata = Collections.emptyList();
+                        logger.fine("Retrieved " + metadata.size() + " metadata objects of type " + metadataType.getSimpleName() + " for " + numOccurrences + " occurrences of type " + occurrenceType.getSimpleName());
+                        if (metadata.size() != unknownIds.size()) {
+                            throw new RuntimeException("Metadata not found for some occurrence IDs");
+                        }
+
+                        for (M key : metadata) {
+                            res.put(key, id2occurrences.get(key.getDocumentId()));
+                        }
+                        return res;
+                    });
+                });
     }
 
-    private QueryBuilder agentJvmQuery(AgentJVM agentJVM) {
+    static QueryBuilder agentJvmQuery(AgentJVM agentJVM) {
         return QueryBuilders.boolQuery()
                 .must(QueryBuilders.termQuery("agentJvm.accountId", agentJVM.accountId))
                 .must(QueryBuilders.termQuery("agentJvm.agentId", agentJVM.agentId))
                 .must(QueryBuilders.termQuery("agentJvm.jvmId", agentJVM.jvmId));
     }
 
-    public List<LoadData> getLoadData(Date from, Date to) {
-        RangeQueryBuilder time = QueryBuilders.rangeQuery("time").from(from.getTime()).to(to.getTime());
-        List<PersistentData<LoadData>> found = find(time, 300, LoadData.class, null);
-        return found.stream().map(doc -> doc.source).collect(Collectors.toList());
+    /**
+     * @return load data of the given JVM within the time range
+     */
+    public List<LoadData> getLoadData(AgentJVM agentJvm, Date from, Date to) {
+        try (Stream<PersistentData<LoadData>> found = iterate(from, to, agentJvmQuery(agentJvm), LoadData.class, null).stream()) {
+            return found.map(doc -> doc.source).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return load data of the given JVM within the time range
+     */
+    public CompletableFuture<List<LoadData>> getLoadDataAsync(AgentJVM agentJvm, Date from, Date to) {
+        return getLoadDataAsync(agentJvm, from, to, doc -> true);
+    }
+
+    /**
+     * @param accept returns false for the load data documents already consumed by the caller
+     */
+    public CompletableFuture<List<LoadData>> getLoadDataAsync(AgentJVM agentJvm, Date from, Date to, Predicate<PersistentData<LoadData>> accept) {
+        List<LoadData> res = new ArrayList<>();
+        return iterateAsync(from, to, agentJvmQuery(agentJvm), LoadData.class, null, doc -> {
+            if (accept.test(doc)) res.add(doc.source);
+        }).thenApply(count -> res);
     }
 }
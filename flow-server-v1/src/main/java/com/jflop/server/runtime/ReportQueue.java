@@ -0,0 +1,195 @@
+package com.jflop.server.runtime;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of the agent reports processed by a dedicated pool of workers.
+ * <p/>
+ * Each agent has its own FIFO queue, and the workers serve the agents round-robin, one report of an agent at a time.
+ * So the reports of an agent are processed in order, and a busy agent cannot starve the others.
+ * A report is rejected if either the total number of queued reports or the number of reports of the agent
+ * reaches the limit.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@Component
+public class ReportQueue implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(ReportQueue.class.getName());
+
+    @Value("${runtime.async.enabled:false}")
+    private boolean enabled;
+
+    @Value("${runtime.async.workers:4}")
+    private int numWorkers = 4;
+
+    @Value("${runtime.async.capacity:1000}")
+    private int capacity = 1000;
+
+    @Value("${runtime.async.maxPerAgent:20}")
+    private int maxPerAgent = 20;
+
+    private static class Task {
+        final Runnable runnable;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    // all the fields below are guarded by this
+    private final Map<String, Deque<Task>> queues = new HashMap<>();
+    private final Deque<String> ready = new ArrayDeque<>();
+    private int queued;
+    private boolean stopped;
+
+    private int maxQueued;
+    private long submitted;
+    private long rejected;
+    private long completed;
+    private long failed;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+
+    private List<Thread> workers = new ArrayList<>();
+
+    public ReportQueue() {
+    }
+
+    ReportQueue(int numWorkers, int capacity, int maxPerAgent) {
+        this.enabled = true;
+        this.numWorkers = numWorkers;
+        this.capacity = capacity;
+        this.maxPerAgent = maxPerAgent;
+        afterPropertiesSet();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) return;
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(this::work, "jf-report-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        logger.info("Asynchronous report processing with " + numWorkers + " workers, capacity " + capacity);
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            stopped = true;
+            if (queued > 0) logger.warning("Dropping " + queued + " queued reports on shutdown");
+            notifyAll();
+        }
+        for (Thread worker : workers) worker.interrupt();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue the report processing
+     *
+     * @param agentKey identifies the agent for fairness, the tasks with the same key are processed sequentially
+     * @param task     report processing
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public synchronized void submit(String agentKey, Runnable task) {
+        if (stopped) throw new RejectedExecutionException("Report queue is stopped");
+
+        Deque<Task> agentQueue = queues.get(agentKey);
+        if (queued >= capacity || (agentQueue != null && agentQueue.size() >= maxPerAgent)) {
+            rejected++;
+            throw new RejectedExecutionException("Report queue is full for agent " + agentKey);
+        }
+
+        if (agentQueue == null) {
+            // a new agent becomes ready, an existing one is either ready or being processed
+            agentQueue = new ArrayDeque<>();
+            queues.put(agentKey, agentQueue);
+            ready.addLast(agentKey);
+            notify();
+        }
+        agentQueue.addLast(new Task(task));
+        queued++;
+        submitted++;
+        maxQueued = Math.max(maxQueued, queued);
+    }
+
+    /**
+     * @return current queue depth and the counters since start
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("enabled", enabled);
+        res.put("queued", queued);
+        res.put("maxQueued", maxQueued);
+        res.put("agents", queues.size());
+        res.put("capacity", capacity);
+        res.put("submitted", submitted);
+        res.put("rejected", rejected);
+        res.put("completed", completed);
+        res.put("failed", failed);
+        res.put("avgWaitMillis", completed + failed == 0 ? 0 : totalWaitMillis / (completed + failed));
+        res.put("maxWaitMillis", maxWaitMillis);
+        return res;
+    }
+
+    private void work() {
+        while (true) {
+            String agentKey;
+            Task task;
+            synchronized (this) {
+                while (ready.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // check the stop flag
+                    }
+                }
+                if (stopped) return;
+
+                agentKey = ready.pollFirst();
+                task = queues.get(agentKey).pollFirst();
+                queued--;
+                long waitMillis = System.currentTimeMillis() - task.enqueuedAt;
+                totalWaitMillis += waitMillis;
+                maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+            }
+
+            boolean success = false;
+            try {
+                task.runnable.run();
+                success = true;
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "Failed to process report of agent " + agentKey, e);
+            }
+
+            synchronized (this) {
+                if (success) completed++;
+                else failed++;
+
+                // back to the end of the line if has more reports
+                if (queues.get(agentKey).isEmpty()) {
+                    queues.remove(agentKey);
+                } else {
+                    ready.addLast(agentKey);
+                    notify();
+                }
+            }
+        }
+    }
+}
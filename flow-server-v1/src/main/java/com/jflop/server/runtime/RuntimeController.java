@@ -1,6 +1,7 @@
 package com.jflop.server.runtime;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -8,6 +9,7 @@ import org.springframework.web.bind.annotation.*;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,21 +32,51 @@ public class RuntimeController {
     @Autowired
     private RuntimeDAO runtimeDAO;
 
+    @Autowired
+    private ReportQueue reportQueue;
+
+    @RequestMapping(method = POST, path = "/{agentId}/{jvmId}/token", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> issueToken(
+            @PathVariable("agentId") String agentId,
+            @PathVariable("jvmId") String jvmId) {
+
+        try {
+            Map<String, Object> res = new HashMap<>();
+            res.put("token", runtimeDAO.issueAgentToken(agentId, jvmId));
+            return ResponseEntity.ok(res);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to issue agent token", e);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(null);
+        }
+    }
+
     @RequestMapping(method = POST, path = "/{agentId}/{jvmId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<Map<String, Object>> reportFeaturesData(
             @PathVariable("agentId") String agentId,
             @PathVariable("jvmId") String jvmId,
+            @RequestHeader(value = AgentTokenService.TOKEN_HEADER, required = false) String token,
             @RequestBody Map<String, Object> featuresData) {
 
         try {
-            List<Map<String, Object>> tasks = runtimeDAO.reportFeaturesData(agentId, jvmId, featuresData);
+            List<Map<String, Object>> tasks = reportQueue.isEnabled()
+                    ? runtimeDAO.submitFeaturesData(agentId, jvmId, token, featuresData)
+                    : runtimeDAO.reportFeaturesData(agentId, jvmId, token, featuresData);
 
             Map<String, Object> res = new HashMap<>();
             if (!tasks.isEmpty()) {
                 res.put("tasks", tasks);
             }
             return ResponseEntity.ok(res);
+        } catch (AgentTokenService.InvalidTokenException e) {
+            // the agent requests a new token on 401
+            logger.warning("Agent " + agentId + " report rejected: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(null);
+        } catch (RejectedExecutionException e) {
+            // shed the load, the agent sends the data again with the next report
+            logger.warning(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "1").body(null);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Unexpected exception", e);
             return ResponseEntity.ok(null);
@@ -6,6 +6,7 @@ import com.jflop.server.admin.data.*;
 import com.jflop.server.feature.AgentFeature;
 import com.jflop.server.feature.FeatureManager;
 import com.jflop.server.persistency.DocType;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.runtime.data.AgentData;
 import com.jflop.server.runtime.data.AgentDataFactory;
 import com.jflop.server.runtime.data.Metadata;
@@ -14,6 +15,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * TODO: Document!
@@ -39,8 +41,24 @@ public class RuntimeDAO implements InitializingBean {
     @Autowired
     private MetadataIndex metadataIndex;
 
+    @Autowired
+    private AgentTokenService tokenService;
+
+    @Autowired
+    private ReportQueue reportQueue;
+
     private ArrayList<DocType> allDocTypes;
 
+    private static class AuthorizedAgent {
+        final AgentJVM agentJvm;
+        final String[] enabledFeatures;
+
+        AuthorizedAgent(AgentJVM agentJvm, String[] enabledFeatures) {
+            this.agentJvm = agentJvm;
+            this.enabledFeatures = enabledFeatures;
+        }
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         allDocTypes = new ArrayList<>();
@@ -48,25 +66,71 @@ public class RuntimeDAO implements InitializingBean {
         allDocTypes.addAll(metadataIndex.getDocTypes());
     }
 
-    public List<Map<String, Object>> reportFeaturesData(String agentId, String jvmId, Map<String, Object> featuresData) {
-        // Validate the agent ID, this is the only authorization check available for agent clients
-        // This approach is not scalable.
-        // TODO: replace the DB access with a token that contains account ID, and is obtained by agent on JVM start
+    /**
+     * Validate the agent ID and issue a token authorizing the reports of the agent JVM
+     */
+    public String issueAgentToken(String agentId, String jvmId) {
         AccountData account = accountIndex.findByAgent(agentId);
         if (account == null) throw new RuntimeException("Invalid agent ID: " + agentId);
+        return tokenService.issueToken(new AgentJVM(account.accountId, agentId, jvmId), account.getAgent(agentId).enabledFeatures);
+    }
 
+    /**
+     * Process the report and return the commands to send to the agent
+     *
+     * @param token agent token obtained by {@link #issueAgentToken(String, String)}, or null for the older agents
+     */
+    public List<Map<String, Object>> reportFeaturesData(String agentId, String jvmId, String token, Map<String, Object> featuresData) {
+        AuthorizedAgent agent = authorize(agentId, jvmId, token);
+        validateFeatures(agent.enabledFeatures, featuresData.keySet());
         Date now = new Date();
-        AgentJVM agentJvm = new AgentJVM(account.accountId, agentId, jvmId);
+        processReport(agent, now, featuresData);
+        return commandsAsJson(agentJVMIndex.claimCommandsToSend(agent.agentJvm, now));
+    }
+
+    /**
+     * Validate the report, queue it for processing, and answer right away from the node cache.
+     * The commands are claimed after the report is processed, and go to the agent with its next report.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the report queue is full
+     */
+    public List<Map<String, Object>> submitFeaturesData(String agentId, String jvmId, String token, Map<String, Object> featuresData) {
+        AuthorizedAgent agent = authorize(agentId, jvmId, token);
+        validateFeatures(agent.enabledFeatures, featuresData.keySet());
+        Date now = new Date();
+        reportQueue.submit(agentId, () -> {
+            processReport(agent, now, featuresData);
+            agentJVMIndex.claimCommandsForNextReport(agent.agentJvm, now);
+        });
+        return commandsAsJson(agentJVMIndex.takeClaimedCommands(agent.agentJvm));
+    }
+
+    /**
+     * Validate the agent ID, this is the only authorization check available for agent clients
+     */
+    private AuthorizedAgent authorize(String agentId, String jvmId, String token) {
+        if (token != null) {
+            // the token carries the agent features, the account is not read
+            AgentTokenService.AgentToken verified = tokenService.verifyToken(token, agentId, jvmId);
+            return new AuthorizedAgent(verified.getAgentJvm(), verified.enabledFeatures);
+        }
+
+        // agents without token are looked up in the accounts, which is not scalable
+        AccountData account = accountIndex.findByAgent(agentId);
+        if (account == null) throw new RuntimeException("Invalid agent ID: " + agentId);
+        return new AuthorizedAgent(new AgentJVM(account.accountId, agentId, jvmId), account.getAgent(agentId).enabledFeatures);
+    }
+
+    private void processReport(AuthorizedAgent agent, Date now, Map<String, Object> featuresData) {
+        AgentJVM agentJvm = agent.agentJvm;
         AgentJvmState jvmState = agentJVMIndex.getAgentJvmState(agentJvm, true).source;
 
         // loop by features reported by the agent, and update the command state and insert the raw data
-        JFAgent agent = account.getAgent(agentId);
         AgentDataFactory agentDataFactory = new AgentDataFactory(agentJvm, now, allDocTypes);
         List<FeatureCommand> updatedCommands = new ArrayList<>();
+        List<Metadata> metadata = new ArrayList<>();
         for (Map.Entry<String, Object> entry : featuresData.entrySet()) {
-            // make sure the reported feature is enabled for the agent
             String featureId = entry.getKey();
-            validateFeature(agent, featureId);
             AgentFeature feature = featureManager.getFeature(featureId);
 
             // get or create the feature command
@@ -82,7 +146,6 @@ public class RuntimeDAO implements InitializingBean {
             command.respondedAt = now;
             List<AgentData> rawData = feature.parseReportedData(entry.getValue(), command, agentDataFactory);
             if (rawData != null) {
-                List<Metadata> metadata = new ArrayList<>();
                 for (Iterator<AgentData> iterator = rawData.iterator(); iterator.hasNext(); ) {
                     AgentData data = iterator.next();
                     if (data instanceof Metadata) {
@@ -91,32 +154,35 @@ public class RuntimeDAO implements InitializingBean {
                     }
                 }
 
-                // insert raw data and metadata
+                // raw data is queued for bulk insert
                 rawDataIndex.addRawData(rawData);
-                metadataIndex.addMetadata(metadata);
             }
         }
 
-        agentJVMIndex.updateJvmState(agentJvm, 3, jvm -> {
+        // write the metadata in parallel with the JVM state update
+        CompletableFuture<Void> metadataAdded = metadataIndex.addMetadataAsync(metadata);
+
+        agentJVMIndex.updateJvmState(agentJvm, jvm -> {
             jvm.lastReportedAt = now;
             jvm.errors = (List<String>) featuresData.remove("errors");
-            for (FeatureCommand command : updatedCommands)
+            for (FeatureCommand command : updatedCommands) {
+                // the command may be replaced or sent since the state was read, don't override that
+                FeatureCommand current = jvm.getCommand(command.featureId);
+                if (current != null && !(Objects.equals(current.createdAt, command.createdAt) && Objects.equals(current.commandName, command.commandName)))
+                    continue;
+                if (current != null && command.sentAt == null) command.sentAt = current.sentAt;
                 jvm.setCommand(command);
+            }
         });
 
-        return retrieveCommandsToSend(now, agentJvm);
+        DocumentStore.await(metadataAdded);
     }
 
-    private List<Map<String, Object>> retrieveCommandsToSend(Date now, AgentJVM agentJvm) {
+    private List<Map<String, Object>> commandsAsJson(List<FeatureCommand> commands) {
         List<Map<String, Object>> taskList = new ArrayList<>();
-        agentJVMIndex.updateJvmState(agentJvm, 3, jvm -> {
-            for (FeatureCommand command : jvm.featureCommands) {
-                if (command.sentAt == null) {
-                    command.sentAt = now;
-                    taskList.add(commandAsJson(command));
-                }
-            }
-        });
+        for (FeatureCommand command : commands) {
+            taskList.add(commandAsJson(command));
+        }
         return taskList;
     }
 
@@ -129,10 +195,13 @@ public class RuntimeDAO implements InitializingBean {
         return task;
     }
 
-    private void validateFeature(JFAgent agent, String featureId) {
-        for (String enabledFeature : agent.enabledFeatures) {
-            if (enabledFeature.equals(featureId)) return;
+    /**
+     * Make sure the reported features are enabled for the agent
+     */
+    private void validateFeatures(String[] enabledFeatures, Set<String> featureIds) {
+        List<String> enabled = Arrays.asList(enabledFeatures);
+        for (String featureId : featureIds) {
+            if (!enabled.contains(featureId)) throw new RuntimeException("Invalid feature ID: " + featureId);
         }
-        throw new RuntimeException("Invalid feature ID");
     }
 }
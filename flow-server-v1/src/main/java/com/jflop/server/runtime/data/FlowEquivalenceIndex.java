@@ -0,0 +1,79 @@
+package com.jflop.server.runtime.data;
+
+import java.util.*;
+
+/**
+ * Groups the flows of one agent JVM that may be the same flow recorded with different instrumentation configurations.
+ * <p/>
+ * The flows are reduced to the instrumentation they all have in common, and grouped by the fingerprints of the reduced trees,
+ * so adding a flow is a hash lookup rather than a comparison with every known flow.
+ * When a new flow narrows the common instrumentation, all the flows are grouped again.
+ * As with {@link FlowMetadata#maybeSame(FlowMetadata, FlowMetadata)}, the flows in different groups are definitely different,
+ * while the flows in the same group may be the same.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class FlowEquivalenceIndex {
+
+    private final Map<String, FlowMetadata> flows = new HashMap<>();
+    private final Map<String, Long> fingerprints = new HashMap<>();
+    private final Map<Long, Set<String>> groups = new HashMap<>();
+    private Set commonInstrumentation;
+
+    public synchronized void add(FlowMetadata flow) {
+        String flowId = flow.getDocumentId();
+        if (flows.containsKey(flowId)) return;
+        flows.put(flowId, flow);
+
+        Set instrumentation = new HashSet(flow.instrumentedMethodsJson == null ? Collections.emptyList() : flow.instrumentedMethodsJson);
+        if (commonInstrumentation == null) {
+            commonInstrumentation = instrumentation;
+        } else if (commonInstrumentation.retainAll(instrumentation)) {
+            regroup();
+            return;
+        }
+        addToGroup(flowId, flow.getFingerprint(commonInstrumentation));
+    }
+
+    public synchronized void remove(String flowId) {
+        if (flows.remove(flowId) == null) return;
+        Long fingerprint = fingerprints.remove(flowId);
+        Set<String> group = groups.get(fingerprint);
+        group.remove(flowId);
+        if (group.isEmpty()) groups.remove(fingerprint);
+        // the common instrumentation is not widened back, the remaining flows just stay grouped more coarsely
+    }
+
+    /**
+     * @return fingerprint of the flow group, or null if the flow is unknown
+     */
+    public synchronized Long getGroup(String flowId) {
+        return fingerprints.get(flowId);
+    }
+
+    /**
+     * @return IDs of the flows that may be the same as the given one, including itself; empty if the flow is unknown
+     */
+    public synchronized Set<String> getEquivalentFlows(String flowId) {
+        Long fingerprint = fingerprints.get(flowId);
+        return fingerprint == null ? Collections.emptySet() : new HashSet<>(groups.get(fingerprint));
+    }
+
+    public synchronized int getNumGroups() {
+        return groups.size();
+    }
+
+    private void regroup() {
+        fingerprints.clear();
+        groups.clear();
+        for (Map.Entry<String, FlowMetadata> entry : flows.entrySet()) {
+            addToGroup(entry.getKey(), entry.getValue().getFingerprint(commonInstrumentation));
+        }
+    }
+
+    private void addToGroup(String flowId, long fingerprint) {
+        fingerprints.put(flowId, fingerprint);
+        groups.computeIfAbsent(fingerprint, key -> new HashSet<>()).add(flowId);
+    }
+}
@@ -1,8 +1,8 @@
 package com.jflop.server.runtime.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import org.jflop.config.MethodConfiguration;
 import org.jflop.snapshot.Flow;
 
@@ -17,29 +17,66 @@ import java.util.stream.Collectors;
  */
 public class FlowMetadata extends Metadata {
 
+    private static final int MAX_CACHED_FINGERPRINTS = 4;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     public List instrumentedMethodsJson;
 
     @JsonIgnore
-    public FlowElement rootFlow;
+    private transient Map<Set, Fingerprint> fingerprints;
+
+    /**
+     * Hash of the flow tree reduced to an instrumentation configuration
+     */
+    static class Fingerprint {
+        final long hash;
+        // the tree has line numbers -1, which are equal to any line
+        final boolean wildcardLines;
+
+        Fingerprint(long hash, boolean wildcardLines) {
+            this.hash = hash;
+            this.wildcardLines = wildcardLines;
+        }
+    }
+
+    private final Payload<FlowElement> rootFlow = new Payload<>(FlowElement.class);
 
     public void init(Flow flow, List instrumentedMethodsJson) {
-        rootFlow = FlowElement.parse(flow);
+        rootFlow.set(FlowElement.parse(flow));
         this.instrumentedMethodsJson = instrumentedMethodsJson;
     }
 
+    @JsonIgnore
+    public FlowElement getRootFlow() {
+        return rootFlow.get();
+    }
+
     @Override
     public String getDocumentId() {
-        return rootFlow.flowId;
+        return getRootFlow().flowId;
     }
 
     @JsonProperty
-    public String getRootFlowStr() throws JsonProcessingException {
-        return MAPPER.writeValueAsString(rootFlow);
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getRootFlowStr() throws IOException {
+        return rootFlow.getJson();
     }
 
     @JsonProperty
-    public void setRootFlowStr(String str) throws IOException {
-        rootFlow = MAPPER.readValue(str, FlowElement.class);
+    public void setRootFlowStr(String str) {
+        rootFlow.setJson(str);
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] getRootFlowBin() throws IOException {
+        return rootFlow.getBinary();
+    }
+
+    @JsonProperty
+    public void setRootFlowBin(byte[] bin) {
+        rootFlow.setBinary(bin);
     }
 
     /**
@@ -53,27 +90,98 @@ public class FlowMetadata extends Metadata {
      * @return true if the flows may be the same, false if they are definitely different.
      */
     public static boolean maybeSame(FlowMetadata a, FlowMetadata b) {
-        List commonInstrumentation = new ArrayList(a.instrumentedMethodsJson);
-        commonInstrumentation.retainAll(b.instrumentedMethodsJson);
+        Set commonInstrumentation = a.getInstrumentedMethods();
+        commonInstrumentation.retainAll(b.getInstrumentedMethods());
         if (commonInstrumentation.isEmpty()) return true;
 
-        FlowElement aReduced = a.reduce(commonInstrumentation);
-        FlowElement bReduced = b.reduce(commonInstrumentation);
+        Fingerprint aFingerprint = a.fingerprint(commonInstrumentation);
+        Fingerprint bFingerprint = b.fingerprint(commonInstrumentation);
+        if (aFingerprint.hash == bFingerprint.hash) return true;
+
+        // the hash can't match a line -1 to any line, such flows are compared element by element
+        return (aFingerprint.wildcardLines || bFingerprint.wildcardLines)
+                && a.reduce(commonInstrumentation).deepEquals(b.reduce(commonInstrumentation));
+    }
+
+    /**
+     * Fingerprint of the flow reduced to the given instrumentation configuration.<br/>
+     * The flows reduced to the same tree have the same fingerprint, so the flows that may be the same can be grouped by the fingerprint.
+     * The fingerprint is calculated once per configuration, the last few configurations are cached.
+     *
+     * @param instrumentation JSON of the instrumented methods, the flow is reduced to the methods it has in common with this configuration
+     * @return the fingerprint
+     */
+    public long getFingerprint(Collection instrumentation) {
+        Set reduceConfig = getInstrumentedMethods();
+        reduceConfig.retainAll(instrumentation instanceof Set ? instrumentation : new HashSet(instrumentation));
+        return fingerprint(reduceConfig).hash;
+    }
+
+    private Set getInstrumentedMethods() {
+        return instrumentedMethodsJson == null ? new HashSet() : new HashSet(instrumentedMethodsJson);
+    }
+
+    /**
+     * @param reduceConfig the instrumented methods to keep, a subset of the flow's instrumented methods
+     */
+    private synchronized Fingerprint fingerprint(Set reduceConfig) {
+        if (fingerprints == null) {
+            fingerprints = new LinkedHashMap<Set, Fingerprint>(MAX_CACHED_FINGERPRINTS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Set, Fingerprint> eldest) {
+                    return size() > MAX_CACHED_FINGERPRINTS;
+                }
+            };
+        }
 
-        return aReduced.deepEquals(bReduced);
+        Fingerprint res = fingerprints.get(reduceConfig);
+        if (res == null) {
+            boolean[] wildcardLines = {false};
+            long hash = hash(reduce(reduceConfig), wildcardLines);
+            res = new Fingerprint(hash, wildcardLines[0]);
+            fingerprints.put(reduceConfig, res);
+        }
+        return res;
     }
 
-    private FlowElement reduce(List reduceConfig) {
-        List collapseMethods = new ArrayList(instrumentedMethodsJson);
+    private FlowElement reduce(Collection reduceConfig) {
+        List collapseMethods = new ArrayList(instrumentedMethodsJson == null ? Collections.emptyList() : instrumentedMethodsJson);
         collapseMethods.removeAll(reduceConfig);
         Set<FlowElement> collapseElements = new HashSet<>();
         collapseMethods.forEach(mtd -> collapseElements.add(FlowElement.fromMethodConfigurationJson(mtd)));
 
-        FlowElement res = rootFlow.deepCopy();
+        FlowElement res = getRootFlow().deepCopy();
         res.collapse(collapseElements);
         return res;
     }
 
+    /**
+     * FNV-1a hash of the tree: the element fields, followed by the subflow hashes and the number of subflows
+     */
+    private static long hash(FlowElement element, boolean[] wildcardLines) {
+        long h = FNV_OFFSET;
+        h = hash(h, element.className);
+        h = hash(h, element.methodName);
+        h = hash(h, element.methodDescriptor);
+        h = hash(h, element.firstLine);
+        h = hash(h, element.returnLine);
+        if ("-1".equals(element.firstLine) || "-1".equals(element.returnLine)) wildcardLines[0] = true;
+
+        int numSubflows = element.subflows == null ? 0 : element.subflows.size();
+        for (int i = 0; i < numSubflows; i++) {
+            h = (h ^ hash(element.subflows.get(i), wildcardLines)) * FNV_PRIME;
+        }
+        return (h ^ numSubflows) * FNV_PRIME;
+    }
+
+    private static long hash(long h, String str) {
+        if (str == null) return (h ^ 0xff) * FNV_PRIME;
+        for (int i = 0; i < str.length(); i++) {
+            h = (h ^ str.charAt(i)) * FNV_PRIME;
+        }
+        return (h ^ str.length()) * FNV_PRIME;
+    }
+
     @Override
     public boolean mergeTo(Metadata existing) {
         return ((FlowMetadata) existing).instrumentedMethodsJson.retainAll(instrumentedMethodsJson);
@@ -194,7 +302,7 @@ public class FlowMetadata extends Metadata {
 
         @Override
         public int hashCode() {
-            return className.hashCode() + methodName.hashCode() + methodDescriptor.hashCode();
+            return Objects.hashCode(className) + Objects.hashCode(methodName) + Objects.hashCode(methodDescriptor);
         }
 
         @Override
@@ -202,9 +310,9 @@ public class FlowMetadata extends Metadata {
             if (obj == this) return true;
             if (obj == null || !(obj instanceof FlowElement)) return false;
             FlowElement other = (FlowElement) obj;
-            return className.equals(other.className) && methodName.equals(other.methodName) && methodDescriptor.equals(other.methodDescriptor)
-                    && (firstLine.equals("-1") || other.firstLine.equals("-1") || firstLine.equals(other.firstLine))
-                    && (returnLine.equals("-1") || other.returnLine.equals("-1") || returnLine.equals(other.returnLine));
+            return Objects.equals(className, other.className) && Objects.equals(methodName, other.methodName) && Objects.equals(methodDescriptor, other.methodDescriptor)
+                    && ("-1".equals(firstLine) || "-1".equals(other.firstLine) || Objects.equals(firstLine, other.firstLine))
+                    && ("-1".equals(returnLine) || "-1".equals(other.returnLine) || Objects.equals(returnLine, other.returnLine));
         }
     }
 }
@@ -1,9 +1,8 @@
 package com.jflop.server.runtime.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jflop.snapshot.Flow;
 
 import java.io.IOException;
@@ -20,27 +19,43 @@ public class FlowOccurrenceData extends OccurrenceData {
 
     public float snapshotDurationSec;
 
-    @JsonIgnore
-    public FlowElement rootFlow;
+    private final Payload<FlowElement> rootFlow = new Payload<>(FlowElement.class);
 
     public void init(float durationSec, Flow flow) {
         snapshotDurationSec = durationSec;
-        rootFlow = FlowElement.parse(flow);
+        rootFlow.set(FlowElement.parse(flow));
+    }
+
+    @JsonIgnore
+    public FlowElement getRootFlow() {
+        return rootFlow.get();
     }
 
     @Override
     public String getMetadataId() {
-        return rootFlow.flowId;
+        return getRootFlow().flowId;
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getRootFlowStr() throws IOException {
+        return rootFlow.getJson();
+    }
+
+    @JsonProperty
+    public void setRootFlowStr(String str) {
+        rootFlow.setJson(str);
     }
 
     @JsonProperty
-    public String getRootFlowStr() throws JsonProcessingException {
-        return MAPPER.writeValueAsString(rootFlow);
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] getRootFlowBin() throws IOException {
+        return rootFlow.getBinary();
     }
 
     @JsonProperty
-    public void setRootFlowStr(String str) throws IOException {
-        rootFlow = MAPPER.readValue(str, FlowElement.class);
+    public void setRootFlowBin(byte[] bin) {
+        rootFlow.setBinary(bin);
     }
 
     public static class FlowElement {
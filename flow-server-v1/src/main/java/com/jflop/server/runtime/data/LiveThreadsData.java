@@ -1,8 +1,8 @@
 package com.jflop.server.runtime.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
 
 import java.io.IOException;
 import java.util.List;
@@ -15,21 +15,37 @@ import java.util.List;
  */
 public class LiveThreadsData extends AgentData {
 
+    private final Payload<List> liveThreads = new Payload<>(List.class);
+
     @JsonIgnore
-    public List liveThreads;
+    public List getLiveThreads() {
+        return liveThreads.get();
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getLiveThreadsStr() throws IOException {
+        return liveThreads.getJson();
+    }
+
+    @JsonProperty
+    public void setLiveThreadsStr(String str) {
+        liveThreads.setJson(str);
+    }
 
     @JsonProperty
-    public String getLiveThreadsStr() throws JsonProcessingException {
-        return MAPPER.writeValueAsString(liveThreads);
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] getLiveThreadsBin() throws IOException {
+        return liveThreads.getBinary();
     }
 
     @JsonProperty
-    public void setLiveThreadStr(String str) throws IOException {
-        liveThreads = MAPPER.readValue(str, List.class);
+    public void setLiveThreadsBin(byte[] bin) {
+        liveThreads.setBinary(bin);
     }
 
     public void init(List liveThreads) {
-        this.liveThreads = liveThreads;
+        this.liveThreads.set(liveThreads);
     }
 
 }
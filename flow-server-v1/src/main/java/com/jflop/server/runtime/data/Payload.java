@@ -0,0 +1,119 @@
+package com.jflop.server.runtime.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Bulky field of an agent data document, such as a snapshot or a thread dump.
+ * <p/>
+ * The payload is stored either as a JSON string, or as a deflated Smile binary, depending on the encoding set by
+ * {@link PayloadEncoding}. The stored form is decoded on the first access only, and written back as is if the
+ * value has not been accessed, so that documents passing through the server are not decoded and encoded again.
+ * Both forms are accepted on read regardless of the current encoding.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class Payload<T> {
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    private static volatile boolean binaryEncoding;
+
+    private final Class<T> valueType;
+
+    private boolean decoded;
+    private T value;
+    private String json;
+    private byte[] binary;
+
+    public Payload(Class<T> valueType) {
+        this.valueType = valueType;
+        this.decoded = true;
+    }
+
+    static void setBinaryEncoding(boolean binaryEncoding) {
+        Payload.binaryEncoding = binaryEncoding;
+    }
+
+    public static boolean isBinaryEncoding() {
+        return binaryEncoding;
+    }
+
+    public synchronized T get() {
+        if (!decoded) {
+            try {
+                if (binary != null) {
+                    try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(binary))) {
+                        value = SMILE_MAPPER.readValue(in, valueType);
+                    }
+                } else if (json != null) {
+                    value = JSON_MAPPER.readValue(json, valueType);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to decode " + valueType.getSimpleName() + " payload", e);
+            }
+            decoded = true;
+            json = null;
+            binary = null;
+        }
+        return value;
+    }
+
+    public synchronized void set(T value) {
+        this.value = value;
+        decoded = true;
+        json = null;
+        binary = null;
+    }
+
+    /**
+     * @return JSON string if the current encoding is JSON, otherwise null
+     */
+    public synchronized String getJson() throws IOException {
+        if (binaryEncoding) return null;
+        if (!decoded && json != null) return json;
+        return JSON_MAPPER.writeValueAsString(get());
+    }
+
+    public synchronized void setJson(String json) {
+        set(null);
+        this.json = json;
+        decoded = json == null;
+    }
+
+    /**
+     * @return deflated Smile bytes if the current encoding is binary, otherwise null
+     */
+    public synchronized byte[] getBinary() throws IOException {
+        if (!binaryEncoding) return null;
+        if (!decoded && binary != null) return binary;
+
+        T value = get();
+        if (value == null) return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream deflated = new DeflaterOutputStream(out, deflater)) {
+            SMILE_MAPPER.writeValue(deflated, value);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    public synchronized void setBinary(byte[] binary) {
+        set(null);
+        this.binary = binary;
+        decoded = binary == null;
+    }
+}
@@ -0,0 +1,42 @@
+package com.jflop.server.runtime.data;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.logging.Logger;
+
+/**
+ * Sets the storage encoding of the {@link Payload} fields:
+ * <ul>
+ * <li>json - the payload is stored as a JSON string</li>
+ * <li>binary - the payload is stored as a deflated Smile binary, which is smaller and faster to parse</li>
+ * </ul>
+ * The documents stored in either encoding are readable after the encoding is changed.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@Component
+public class PayloadEncoding implements InitializingBean {
+
+    private static final Logger logger = Logger.getLogger(PayloadEncoding.class.getName());
+
+    @Value("${storage.payload.encoding:json}")
+    private String encoding = "json";
+
+    @Override
+    public void afterPropertiesSet() {
+        switch (encoding) {
+            case "json":
+                Payload.setBinaryEncoding(false);
+                break;
+            case "binary":
+                Payload.setBinaryEncoding(true);
+                break;
+            default:
+                throw new RuntimeException("Invalid payload encoding: " + encoding);
+        }
+        logger.info("Payload encoding: " + encoding);
+    }
+}
@@ -1,9 +1,8 @@
 package com.jflop.server.runtime.data;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jflop.snapshot.Snapshot;
 
 import java.io.IOException;
@@ -16,20 +15,36 @@ import java.util.Map;
  */
 public class SnapshotData extends AgentData {
 
+    private final Payload<Map> snapshotJson = new Payload<>(Map.class);
+
     @JsonIgnore
-    public Map<String, Object> snapshotJson;
+    public Map<String, Object> getSnapshotJson() {
+        return snapshotJson.get();
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getSnapshotJsonStr() throws IOException {
+        return snapshotJson.getJson();
+    }
+
+    @JsonProperty
+    public void setSnapshotJsonStr(String str) {
+        snapshotJson.setJson(str);
+    }
 
     @JsonProperty
-    public String getSnapshotJsonStr() throws JsonProcessingException {
-        return MAPPER.writeValueAsString(snapshotJson);
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] getSnapshotJsonBin() throws IOException {
+        return snapshotJson.getBinary();
     }
 
     @JsonProperty
-    public void setSnapshotJsonStr(String str) throws IOException {
-        snapshotJson = MAPPER.readValue(str, Map.class);
+    public void setSnapshotJsonBin(byte[] bin) {
+        snapshotJson.setBinary(bin);
     }
 
     public void init(Snapshot snapshot) {
-        snapshotJson = snapshot.asJson();
+        snapshotJson.set(snapshot.asJson());
     }
 }
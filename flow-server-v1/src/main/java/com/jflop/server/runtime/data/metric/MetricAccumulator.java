@@ -0,0 +1,136 @@
+package com.jflop.server.runtime.data.metric;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Builds one metric observation in primitive arrays indexed by the dense metric source numbers of {@link MetricMetadata}.
+ * <p/>
+ * The values of a source are summed within one aggregation, and written to the observation when the aggregation is done,
+ * replacing the values written by the previous aggregations. Each source has two metric columns: the average value,
+ * and optionally the throughput, see {@link MetricMetadata#valueColumn(int)} and {@link MetricMetadata#throughputColumn(int)}.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MetricAccumulator {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // sums of the current aggregation, by source number
+    private float[] totals = new float[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private float[] times = new float[INITIAL_CAPACITY];
+    private String[] dataNames = new String[INITIAL_CAPACITY];
+    private boolean[] withThroughput = new boolean[INITIAL_CAPACITY];
+    private boolean[] active = new boolean[INITIAL_CAPACITY];
+    private int[] touched = new int[INITIAL_CAPACITY];
+    private int numTouched;
+
+    // the observation, by metric column
+    private float[] values = new float[INITIAL_CAPACITY * 2];
+    private boolean[] present = new boolean[INITIAL_CAPACITY * 2];
+    private int maxColumn = -1;
+
+    /**
+     * Add a data point of the source to the current aggregation
+     *
+     * @param source         source number
+     * @param dataName       name of the value metric, used only for the metric names
+     * @param total          the value
+     * @param count          number of the events in the value
+     * @param time           duration of the data point, only the first one of the aggregation is used for the throughput
+     * @param withThroughput whether the source has a throughput metric
+     */
+    void add(int source, String dataName, float total, int count, float time, boolean withThroughput) {
+        ensureSourceCapacity(source);
+        if (!active[source]) {
+            active[source] = true;
+            if (numTouched == touched.length) touched = Arrays.copyOf(touched, numTouched * 2);
+            touched[numTouched++] = source;
+            times[source] = time;
+            dataNames[source] = dataName;
+            this.withThroughput[source] = withThroughput;
+        }
+        totals[source] += total;
+        counts[source] += count;
+    }
+
+    /**
+     * Write the values of the current aggregation to the observation
+     */
+    void endAggregation() {
+        for (int i = 0; i < numTouched; i++) {
+            int source = touched[i];
+            set(MetricMetadata.valueColumn(source), totals[source] / counts[source]);
+            if (withThroughput[source])
+                set(MetricMetadata.throughputColumn(source), (float) counts[source] / times[source]);
+            totals[source] = 0;
+            counts[source] = 0;
+            active[source] = false;
+        }
+        numTouched = 0;
+    }
+
+    /**
+     * @return the metric columns present in the observation, ascending
+     */
+    public int[] getColumns() {
+        int num = 0;
+        for (int column = 0; column <= maxColumn; column++) {
+            if (present[column]) num++;
+        }
+        int[] res = new int[num];
+        int pos = 0;
+        for (int column = 0; column <= maxColumn; column++) {
+            if (present[column]) res[pos++] = column;
+        }
+        return res;
+    }
+
+    /**
+     * @return the values of the observation, in the order of {@link #getColumns()}
+     */
+    public float[] getValues() {
+        int[] columns = getColumns();
+        float[] res = new float[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            res[i] = values[columns[i]];
+        }
+        return res;
+    }
+
+    /**
+     * Write the observation as named metrics: the data name or "throughput", followed by the source number
+     */
+    public void writeTo(Map<String, Float> out) {
+        for (int column = 0; column <= maxColumn; column++) {
+            if (!present[column]) continue;
+            int source = MetricMetadata.sourceOf(column);
+            String name = MetricMetadata.isThroughputColumn(column) ? MetricMetadata.THROUGHPUT : dataNames[source];
+            out.put(name + "_" + source, values[column]);
+        }
+    }
+
+    private void set(int column, float value) {
+        if (column >= values.length) {
+            int capacity = Math.max(values.length * 2, column + 1);
+            values = Arrays.copyOf(values, capacity);
+            present = Arrays.copyOf(present, capacity);
+        }
+        values[column] = value;
+        present[column] = true;
+        maxColumn = Math.max(maxColumn, column);
+    }
+
+    private void ensureSourceCapacity(int source) {
+        if (source < totals.length) return;
+        int capacity = Math.max(totals.length * 2, source + 1);
+        totals = Arrays.copyOf(totals, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        times = Arrays.copyOf(times, capacity);
+        dataNames = Arrays.copyOf(dataNames, capacity);
+        withThroughput = Arrays.copyOf(withThroughput, capacity);
+        active = Arrays.copyOf(active, capacity);
+    }
+}
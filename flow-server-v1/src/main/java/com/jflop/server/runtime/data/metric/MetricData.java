@@ -1,19 +1,48 @@
 package com.jflop.server.runtime.data.metric;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.jflop.server.runtime.data.OccurrenceData;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
- * TODO: Document!
+ * One metric observation of an agent JVM, stored in columns: the metric column numbers and the values in the same order.
+ * The columns are defined by the {@link MetricMetadata} of the JVM, so the document mapping does not grow with the number of the metrics.
  *
  * @author artem
  *         Date: 1/28/17
  */
 public class MetricData extends OccurrenceData {
 
+    /**
+     * Named metrics of the observations stored before the columnar encoding, null in the new ones
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public Map<String, Float> metrics;
 
+    public int[] columns;
+    public float[] values;
+
+    public void setObservation(MetricAccumulator observation) {
+        columns = observation.getColumns();
+        values = observation.getValues();
+    }
+
+    /**
+     * @return the observation as named metrics, see {@link MetricMetadata#getMetricName(int)}
+     */
+    public Map<String, Float> getNamedMetrics(MetricMetadata metadata) {
+        if (columns == null) return metrics;
+
+        Map<String, Float> res = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            String name = metadata.getMetricName(columns[i]);
+            if (name != null) res.put(name, values[i]);
+        }
+        return res;
+    }
+
     @Override
     public String getMetadataId() {
         return MetricMetadata.getMetadataId(agentJvm);
@@ -1,5 +1,6 @@
 package com.jflop.server.runtime.data.metric;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.jflop.server.admin.data.AgentJVM;
 import com.jflop.server.runtime.data.FlowOccurrenceData;
 import com.jflop.server.runtime.data.LoadData;
@@ -7,22 +8,34 @@ import com.jflop.server.runtime.data.Metadata;
 import com.jflop.server.runtime.data.ThreadOccurrenceData;
 import com.jflop.server.util.DigestUtil;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * TODO: Document!
+ * Metric sources of an agent JVM: each flow, thread state and load value gets a dense source number once.<br/>
+ * The occurrences of a step are aggregated into a {@link MetricAccumulator} by the source numbers.
  *
  * @author artem on 24/01/2017.
  */
 public class MetricMetadata extends Metadata {
 
+    static final String THROUGHPUT = "throughput";
+
     public String agentJvmId;
     public long count;
     public Map<String, Long> sourceIDs;
 
+    // source numbers by metadata ID and data name, so that the lookup does not build the source ID strings
+    @JsonIgnore
+    private transient Map<String, Map<String, Integer>> sourceNums;
+
+    // data names by source number, the reverse of the source numbers
+    @JsonIgnore
+    private transient String[] sourceNames;
+
     public static String getMetadataId(AgentJVM agentJvm) {
         return DigestUtil.uniqueId(agentJvm, "metrics");
     }
@@ -34,69 +47,115 @@ public class MetricMetadata extends Metadata {
         return agentJvmId;
     }
 
+    public static int valueColumn(int source) {
+        return source * 2;
+    }
+
+    public static int throughputColumn(int source) {
+        return source * 2 + 1;
+    }
+
+    public static int sourceOf(int column) {
+        return column / 2;
+    }
+
+    public static boolean isThroughputColumn(int column) {
+        return column % 2 == 1;
+    }
+
+    /**
+     * @return name of the metric column, as in {@link MetricAccumulator#writeTo(Map)}, or null if the column's source is unknown
+     */
+    public String getMetricName(int column) {
+        int source = sourceOf(column);
+        indexSources();
+        String dataName = source < sourceNames.length ? sourceNames[source] : null;
+        if (dataName == null) return null;
+        return (isThroughputColumn(column) ? THROUGHPUT : dataName) + "_" + source;
+    }
+
     public void aggregateLoad(List<LoadData> dataList, Map<String, Float> res) {
-        Aggregator aggregator = new Aggregator();
+        MetricAccumulator accumulator = new MetricAccumulator();
+        aggregateLoad(dataList, accumulator);
+        accumulator.writeTo(res);
+    }
+
+    public void aggregateThreads(Collection<ThreadOccurrenceData> occurrences, Map<String, Float> res) {
+        MetricAccumulator accumulator = new MetricAccumulator();
+        aggregateThreads(occurrences, accumulator);
+        accumulator.writeTo(res);
+    }
+
+    public void aggregateFlows(Collection<FlowOccurrenceData> occurrences, Map<String, Float> res) {
+        MetricAccumulator accumulator = new MetricAccumulator();
+        aggregateFlows(occurrences, accumulator);
+        accumulator.writeTo(res);
+    }
+
+    public void aggregateLoad(List<LoadData> dataList, MetricAccumulator res) {
+        if (dataList.isEmpty()) return;
+        int cpu = sourceNum("load", "cpu");
+        int mem = sourceNum("load", "mem");
         for (LoadData loadData : dataList) {
-            ValueAggregator cpu = new ValueAggregator("load", "cpu", null);
-            cpu.setValue(loadData.processCpuLoad, 1, -1);
-            aggregator.add(cpu);
-            ValueAggregator heap = new ValueAggregator("load", "mem", null);
-            heap.setValue(loadData.heapUsed, 1, -1);
-            aggregator.add(heap);
+            res.add(cpu, "cpu", loadData.processCpuLoad, 1, -1, false);
+            res.add(mem, "mem", loadData.heapUsed, 1, -1, false);
         }
-
-        aggregator.writeTo(res);
+        res.endAggregation();
     }
 
-    public void aggregateThreads(Collection<ThreadOccurrenceData> occurrences, Map<String, Float> res) {
-        Aggregator aggregator = new Aggregator();
+    public void aggregateThreads(Collection<ThreadOccurrenceData> occurrences, MetricAccumulator res) {
         for (ThreadOccurrenceData occurrence : occurrences) {
-            ValueAggregator value = new ValueAggregator("thread", occurrence.threadState.name(), null);
-            value.setValue(occurrence.count, 1, 0);
-            aggregator.add(value);
+            String state = occurrence.threadState.name();
+            res.add(sourceNum("thread", state), state, occurrence.count, 1, 0, false);
         }
-        aggregator.writeTo(res);
+        res.endAggregation();
     }
 
-    public void aggregateFlows(Collection<FlowOccurrenceData> occurrences, Map<String, Float> res) {
-        Aggregator aggregator = new Aggregator();
+    public void aggregateFlows(Collection<FlowOccurrenceData> occurrences, MetricAccumulator res) {
         for (FlowOccurrenceData occurrence : occurrences) {
-            getFlowValues(occurrence.rootFlow, occurrence.snapshotDurationSec, aggregator);
+            getFlowValues(occurrence.getRootFlow(), occurrence.snapshotDurationSec, res);
         }
-        aggregator.writeTo(res);
+        res.endAggregation();
     }
 
-    private void getFlowValues(FlowOccurrenceData.FlowElement element, float snapshotDuration, Aggregator aggregator) {
-        ValueAggregator value = new ValueAggregator(element.flowId, "duration", "throughput");
-        value.setValue(element.cumulativeTime, element.count, snapshotDuration);
-        aggregator.add(value);
+    private void getFlowValues(FlowOccurrenceData.FlowElement element, float snapshotDuration, MetricAccumulator res) {
+        res.add(sourceNum(element.flowId, "duration"), "duration", element.cumulativeTime, element.count, snapshotDuration, true);
 
         if (element.subflows != null)
             for (FlowOccurrenceData.FlowElement subflow : element.subflows)
-                getFlowValues(subflow, snapshotDuration, aggregator);
+                getFlowValues(subflow, snapshotDuration, res);
     }
 
-    private String internalSourceName(ValueAggregator aggregator) {
-        if (sourceIDs == null) sourceIDs = new HashMap<>();
-        Long sourceNum = sourceIDs.computeIfAbsent(aggregator.getId(), id -> ++count);
-        return String.valueOf(sourceNum);
+    private int sourceNum(String metadataId, String dataName) {
+        indexSources();
+        Map<String, Integer> byDataName = sourceNums.computeIfAbsent(metadataId, key -> new HashMap<>());
+        Integer res = byDataName.get(dataName);
+        if (res == null) {
+            res = sourceIDs.computeIfAbsent(metadataId + ":" + dataName, id -> ++count).intValue();
+            byDataName.put(dataName, res);
+            nameSource(res, dataName);
+        }
+        return res;
     }
 
-    private class Aggregator {
-
-        private Map<String, ValueAggregator> res = new HashMap<>();
-
-        public void add(ValueAggregator value) {
-            String key = value.getId();
-            ValueAggregator existing = res.get(key);
-            if (existing == null)
-                res.put(key, value);
-            else
-                existing.mergeFrom(value);
+    private void indexSources() {
+        if (sourceIDs == null) sourceIDs = new HashMap<>();
+        if (sourceNums != null) return;
+
+        sourceNums = new HashMap<>();
+        sourceNames = new String[(int) count + 1];
+        for (Map.Entry<String, Long> entry : sourceIDs.entrySet()) {
+            String id = entry.getKey();
+            int pos = id.lastIndexOf(':');
+            int source = entry.getValue().intValue();
+            sourceNums.computeIfAbsent(id.substring(0, pos), key -> new HashMap<>()).put(id.substring(pos + 1), source);
+            nameSource(source, id.substring(pos + 1));
         }
+    }
 
-        public void writeTo(Map<String, Float> out) {
-            res.values().forEach(v -> v.writeMetrics(internalSourceName(v), out));
-        }
+    private void nameSource(int source, String dataName) {
+        if (source >= sourceNames.length)
+            sourceNames = Arrays.copyOf(sourceNames, Math.max(sourceNames.length * 2, source + 1));
+        sourceNames[source] = dataName;
     }
 }
@@ -0,0 +1,59 @@
+package com.jflop.server.runtime.data.metric;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Time resolutions of the stored metrics: the raw observations written by each analysis step,
+ * and the rollups of the closed minutes and hours.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public enum MetricResolution {
+
+    // the raw observations are not aligned to buckets, the interval is nominal
+    RAW(1000),
+    MINUTE(60 * 1000),
+    HOUR(60 * 60 * 1000);
+
+    public final long intervalMillis;
+
+    MetricResolution(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @return start of the bucket containing the time
+     */
+    public long bucketStart(long timeMillis) {
+        return timeMillis - Math.floorMod(timeMillis, intervalMillis);
+    }
+
+    /**
+     * @return the resolution rolled up into this one, or null for the raw observations
+     */
+    public MetricResolution finer() {
+        return ordinal() == 0 ? null : values()[ordinal() - 1];
+    }
+
+    /**
+     * Pick the finest resolution that has at most maxPoints buckets in the time range and still keeps the range start.
+     * If none does, the coarsest one is used.
+     *
+     * @param from            range start
+     * @param to              range end
+     * @param now             current time
+     * @param maxPoints       max number of the points to return
+     * @param retentionMillis retention of the resolution
+     * @return the resolution to query
+     */
+    public static MetricResolution select(long from, long to, long now, int maxPoints, ToLongFunction<MetricResolution> retentionMillis) {
+        MetricResolution[] resolutions = values();
+        for (int i = 0; i < resolutions.length - 1; i++) {
+            MetricResolution resolution = resolutions[i];
+            if ((to - from) / resolution.intervalMillis <= maxPoints && from >= now - retentionMillis.applyAsLong(resolution))
+                return resolution;
+        }
+        return resolutions[resolutions.length - 1];
+    }
+}
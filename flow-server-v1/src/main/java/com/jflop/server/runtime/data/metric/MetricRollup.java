@@ -0,0 +1,97 @@
+package com.jflop.server.runtime.data.metric;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.jflop.server.runtime.data.AgentData;
+import com.jflop.server.util.DigestUtil;
+
+import java.util.Arrays;
+
+/**
+ * Metric aggregates of an agent JVM over one time bucket: min, max, sum and count of each metric column.
+ * The columns are the same as in {@link MetricData}, ascending, and the aggregates are in the same order.
+ * The time is the bucket start.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MetricRollup extends AgentData {
+
+    private static final int[] NO_COLUMNS = new int[0];
+    private static final float[] NO_VALUES = new float[0];
+
+    public MetricResolution resolution;
+    public int[] columns = NO_COLUMNS;
+    public float[] min = NO_VALUES;
+    public float[] max = NO_VALUES;
+    public float[] sum = NO_VALUES;
+    public int[] count = NO_COLUMNS;
+
+    /**
+     * @return ID of the rollup, unique per JVM, resolution and bucket start
+     */
+    @JsonIgnore
+    public String getDocumentId() {
+        return DigestUtil.uniqueId(agentJvm, resolution.name(), String.valueOf(time.getTime()));
+    }
+
+    public float average(int pos) {
+        return sum[pos] / count[pos];
+    }
+
+    /**
+     * Add a raw observation, the observations stored before the columnar encoding are ignored
+     */
+    public void add(MetricData observation) {
+        if (observation.columns == null) return;
+        int[] ones = new int[observation.columns.length];
+        Arrays.fill(ones, 1);
+        merge(observation.columns, observation.values, observation.values, observation.values, ones);
+    }
+
+    /**
+     * Add a rollup of a finer resolution
+     */
+    public void add(MetricRollup finer) {
+        merge(finer.columns, finer.min, finer.max, finer.sum, finer.count);
+    }
+
+    private void merge(int[] otherColumns, float[] otherMin, float[] otherMax, float[] otherSum, int[] otherCount) {
+        int size = columns.length + otherColumns.length;
+        int[] resColumns = new int[size];
+        float[] resMin = new float[size];
+        float[] resMax = new float[size];
+        float[] resSum = new float[size];
+        int[] resCount = new int[size];
+
+        int i = 0, j = 0, k = 0;
+        while (i < columns.length || j < otherColumns.length) {
+            int column = j == otherColumns.length || (i < columns.length && columns[i] <= otherColumns[j]) ? columns[i] : otherColumns[j];
+            boolean mine = i < columns.length && columns[i] == column;
+            boolean other = j < otherColumns.length && otherColumns[j] == column;
+            resColumns[k] = column;
+            if (mine && other) {
+                resMin[k] = Math.min(min[i], otherMin[j]);
+                resMax[k] = Math.max(max[i], otherMax[j]);
+                resSum[k] = sum[i] + otherSum[j];
+                resCount[k] = count[i++] + otherCount[j++];
+            } else if (mine) {
+                resMin[k] = min[i];
+                resMax[k] = max[i];
+                resSum[k] = sum[i];
+                resCount[k] = count[i++];
+            } else {
+                resMin[k] = otherMin[j];
+                resMax[k] = otherMax[j];
+                resSum[k] = otherSum[j];
+                resCount[k] = otherCount[j++];
+            }
+            k++;
+        }
+
+        columns = Arrays.copyOf(resColumns, k);
+        min = Arrays.copyOf(resMin, k);
+        max = Arrays.copyOf(resMax, k);
+        sum = Arrays.copyOf(resSum, k);
+        count = Arrays.copyOf(resCount, k);
+    }
+}
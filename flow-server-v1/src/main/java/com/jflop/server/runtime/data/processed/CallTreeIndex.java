@@ -0,0 +1,171 @@
+package com.jflop.server.runtime.data.processed;
+
+import com.jflop.server.persistency.ValuePair;
+import org.jflop.config.NameUtils;
+
+import java.util.*;
+
+/**
+ * Index of the flow summary call tree for matching thread stack traces.
+ * <p/>
+ * The roots are indexed by their frame (class, method and file), so that a stack trace is matched only against the roots
+ * whose frames appear in it. The stack trace frames are resolved once per trace: the internal class name, the frame key,
+ * and whether the method is instrumented. The nested calls whose frames do not appear in the trace are skipped.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+class CallTreeIndex {
+
+    private final Map<FrameKey, List<MethodCall>> rootsByFrame = new HashMap<>();
+    private final Set<FrameKey> instrumentedMethods = new HashSet<>();
+
+    /**
+     * Class, method, and optionally file of a method call or a stack trace frame
+     */
+    static class FrameKey {
+        final String className;
+        final String methodName;
+        final String fileName;
+        private final int hash;
+
+        FrameKey(String className, String methodName, String fileName) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.hash = Objects.hash(className, methodName, fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof FrameKey)) return false;
+            FrameKey that = (FrameKey) obj;
+            return hash == that.hash && Objects.equals(className, that.className)
+                    && Objects.equals(methodName, that.methodName) && Objects.equals(fileName, that.fileName);
+        }
+    }
+
+    /**
+     * Stack trace frames resolved against the index
+     */
+    class Trace {
+        final FrameKey[] frames;
+        final int[] lines;
+        final boolean[] instrumented;
+        final Set<FrameKey> frameSet;
+
+        Trace(StackTraceElement[] stackTrace) {
+            frames = new FrameKey[stackTrace.length];
+            lines = new int[stackTrace.length];
+            instrumented = new boolean[stackTrace.length];
+            frameSet = new HashSet<>();
+            for (int i = 0; i < stackTrace.length; i++) {
+                StackTraceElement element = stackTrace[i];
+                String className = NameUtils.getInternalClassName(element.getClassName());
+                frames[i] = new FrameKey(className, element.getMethodName(), element.getFileName());
+                lines[i] = element.getLineNumber();
+                instrumented[i] = instrumentedMethods.contains(new FrameKey(className, element.getMethodName(), null));
+                frameSet.add(frames[i]);
+            }
+        }
+
+        int length() {
+            return frames.length;
+        }
+    }
+
+    CallTreeIndex(List<MethodCall> roots) {
+        for (MethodCall root : roots) {
+            rootsByFrame.computeIfAbsent(root.getFrameKey(), key -> new ArrayList<>()).add(root);
+            addInstrumentedMethods(root);
+        }
+    }
+
+    /**
+     * Resolve the stack trace frames against the index, once per stack trace
+     */
+    Trace trace(StackTraceElement[] stackTrace) {
+        return new Trace(stackTrace);
+    }
+
+    boolean isInstrumented(String internalClassName, String methodName) {
+        return instrumentedMethods.contains(new FrameKey(internalClassName, methodName, null));
+    }
+
+    /**
+     * @return the roots whose frames appear in the trace, in the order of the summary roots
+     */
+    Collection<MethodCall> candidateRoots(Trace trace, List<MethodCall> roots) {
+        Set<MethodCall> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FrameKey frame : trace.frameSet) {
+            List<MethodCall> list = rootsByFrame.get(frame);
+            if (list != null) found.addAll(list);
+        }
+        if (found.size() <= 1) return found;
+
+        List<MethodCall> res = new ArrayList<>(found.size());
+        for (MethodCall root : roots) {
+            if (found.contains(root)) res.add(root);
+        }
+        return res;
+    }
+
+    /**
+     * See {@link FlowSummary#findPath(MethodCall, StackTraceElement[], int)}
+     */
+    List<ValuePair<MethodCall, Integer>> findPath(MethodCall methodCall, Trace trace, int tracePos) {
+        // it's ok to skip instrumented elements, if they are in the beginning of the stack
+        // this is because the outmost methods might not return yet, and the registered flow may be partial.
+        boolean skipInstrumented = tracePos == trace.length() - 1;
+
+        // skip not fitting trace elements if they are not instrumented, or if we are in the beginning of the stack trace
+        boolean fit = false;
+        while (tracePos >= 0) {
+            fit = methodCall.fits(trace.frames[tracePos], trace.lines[tracePos]);
+            if (!fit && (skipInstrumented || !trace.instrumented[tracePos]))
+                tracePos--;
+            else
+                break;
+        }
+
+        // if no fitting element found in the stacktrace, it's not fit
+        if (!fit)
+            return null;
+
+        // if the flow element fits the stacktrace element, add the method call and the line number to the path
+        List<ValuePair<MethodCall, Integer>> path = new ArrayList<>();
+        path.add(new ValuePair<>(methodCall, trace.lines[tracePos]));
+
+        // if we've reached the trace end, we're done
+        if (tracePos == 0) return path;
+
+        // if we've reached the flow end, we're done
+        if (methodCall.nestedCalls == null || methodCall.nestedCalls.isEmpty()) {
+            return path;
+        }
+
+        // go through the subflows and pick the longest sub-path, the ones absent in the trace can't fit
+        List<ValuePair<MethodCall, Integer>> longestPath = null;
+        for (MethodCall nested : methodCall.nestedCalls) {
+            if (!trace.frameSet.contains(nested.getFrameKey())) continue;
+            List<ValuePair<MethodCall, Integer>> nestedPath = findPath(nested, trace, tracePos - 1);
+            if (longestPath == null || (nestedPath != null && nestedPath.size() > longestPath.size()))
+                longestPath = nestedPath;
+        }
+        if (longestPath != null)
+            path.addAll(longestPath);
+
+        return path;
+    }
+
+    private void addInstrumentedMethods(MethodCall methodCall) {
+        instrumentedMethods.add(new FrameKey(methodCall.className, methodCall.methodName, null));
+        if (methodCall.nestedCalls != null) methodCall.nestedCalls.forEach(this::addInstrumentedMethods);
+    }
+}
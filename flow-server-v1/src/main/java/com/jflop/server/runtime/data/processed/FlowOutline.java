@@ -18,21 +18,53 @@ public class FlowOutline {
     FlowOutline(String flowId, MethodCall call, Map<String, ThreadMetadata> threads) {
         this.flowId = flowId;
 
-        Map<ThreadMetadata, Integer> threadPos = new HashMap<>();
+        Map<String, StackCursor> threadPos = new HashMap<>();
         call.hotspots.forEach(hotspot -> {
             ThreadMetadata thread = threads.get(hotspot.threadId);
-            threadPos.put(thread, thread.stackTrace.length - 1);
+            threadPos.put(hotspot.threadId, new StackCursor(new ThreadFrames(thread), thread.stackTrace.length - 1));
         });
 
         root = createOutline(flowId, call, threadPos);
     }
 
+    /**
+     * Stack trace of a thread with the frames converted to outline calls once, shared by all the cursors of the thread
+     */
+    private static class ThreadFrames {
+        final ThreadMetadata thread;
+        final OutlineCall[] frames;
+
+        ThreadFrames(ThreadMetadata thread) {
+            this.thread = thread;
+            frames = new OutlineCall[thread.stackTrace.length];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new OutlineCall(thread.stackTrace[i]);
+            }
+        }
+    }
+
+    /**
+     * Position in the stack trace of a thread, each nested call advances its own copy
+     */
+    private static class StackCursor {
+        final ThreadFrames thread;
+        int pos;
+
+        StackCursor(ThreadFrames thread, int pos) {
+            this.thread = thread;
+            this.pos = pos;
+        }
+    }
+
     public String format(boolean removeClutter) {
+        OutlineCall call = root;
         if (removeClutter) {
+            // the outline may be formatted more than once, so the clutter is removed from a copy
             Set<OutlineCall> clutter = getClutter();
-            removeClutter(root, clutter);
+            call = root.deepCopy();
+            removeClutter(call, clutter);
         }
-        return "\nflow " + flowId + formatCall("\n\t", root);
+        return "\nflow " + flowId + formatCall("\n\t", call);
     }
 
     private void removeClutter(OutlineCall call, Set<OutlineCall> clutter) {
@@ -87,19 +119,20 @@ public class FlowOutline {
         return totalNum;
     }
 
-    private OutlineCall createOutline(String flowId, MethodCall methodCall, Map<ThreadMetadata, Integer> threadPos) {
+    private OutlineCall createOutline(String flowId, MethodCall methodCall, Map<String, StackCursor> threadPos) {
         OutlineCall res = new OutlineCall(methodCall);
         OutlineCall prepend = findCallInThreads(res, threadPos);
 
         if (methodCall.nestedCalls != null) {
             for (MethodCall nestedCall : methodCall.nestedCalls) {
                 if (nestedCall.flows.stream().anyMatch(flow -> flow.flowId.equals(flowId))) {
-                    Map<ThreadMetadata, Integer> nestedThreadPos = new HashMap<>();
+                    Map<String, StackCursor> nestedThreadPos = new HashMap<>();
                     if (nestedCall.hotspots != null) {
                         nestedCall.hotspots.forEach(hotspot -> {
-                            String threadId = hotspot.threadId;
-                            ThreadMetadata thread = threadPos.keySet().stream().filter(threadMetadata -> threadMetadata.getDocumentId().equals(threadId)).findFirst().get();
-                            nestedThreadPos.put(thread, threadPos.get(thread));
+                            StackCursor cursor = threadPos.get(hotspot.threadId);
+                            if (cursor == null)
+                                throw new RuntimeException("Thread " + hotspot.threadId + " of " + nestedCall.methodName + " not found in the outer call");
+                            nestedThreadPos.put(hotspot.threadId, new StackCursor(cursor.thread, cursor.pos));
                         });
                     }
                     res.addNested(createOutline(flowId, nestedCall, nestedThreadPos));
@@ -114,36 +147,37 @@ public class FlowOutline {
         return res;
     }
 
-    private void completeCallWithThreads(OutlineCall res, Map<ThreadMetadata, Integer> threadPos) {
-        for (Map.Entry<ThreadMetadata, Integer> entry : threadPos.entrySet()) {
-            StackTraceElement[] stackTrace = entry.getKey().stackTrace;
-            int pos = entry.getValue();
+    private void completeCallWithThreads(OutlineCall res, Map<String, StackCursor> threadPos) {
+        for (StackCursor cursor : threadPos.values()) {
+            OutlineCall[] frames = cursor.thread.frames;
+            int pos = cursor.pos;
 
             OutlineCall curr = res;
             for (; pos >= 0; pos--) {
-                OutlineCall call = new OutlineCall(stackTrace[pos]);
+                OutlineCall call = frames[pos].shallowCopy();
                 curr.addNested(call);
                 curr = call;
             }
         }
     }
 
-    private OutlineCall findCallInThreads(OutlineCall flowCall, Map<ThreadMetadata, Integer> threadPos) {
+    private OutlineCall findCallInThreads(OutlineCall flowCall, Map<String, StackCursor> threadPos) {
         List<OutlineCall> res = new ArrayList<>();
 
         // only the first thread should add to the res, others must be identical
         boolean firstThread = true;
-        for (Map.Entry<ThreadMetadata, Integer> entry : threadPos.entrySet()) {
-            StackTraceElement[] stackTrace = entry.getKey().stackTrace;
-            int pos = entry.getValue();
+        for (StackCursor cursor : threadPos.values()) {
+            OutlineCall[] frames = cursor.thread.frames;
+            int pos = cursor.pos;
 
             if (firstThread) {
                 firstThread = false;
                 boolean found = false;
                 while (!found && pos >= 0) {
-                    OutlineCall call = new OutlineCall(stackTrace[pos--]);
-                    found = call.equals(flowCall);
+                    OutlineCall frame = frames[pos--];
+                    found = frame.equals(flowCall);
                     if (!found) {
+                        OutlineCall call = frame.shallowCopy();
                         res.add(call);
                         if (res.size() > 1) {
                             res.get(res.size() - 2).addNested(call);
@@ -152,20 +186,20 @@ public class FlowOutline {
                 }
 
                 if (found) {
-                    entry.setValue(pos);
+                    cursor.pos = pos;
                     if (!res.isEmpty()) res.get(res.size() - 1).addNested(flowCall);
                 } else {
-                    throw new RuntimeException(flowCall + " not found in thread " + entry.getKey().getDocumentId() + " from position " + entry.getValue());
+                    throw new RuntimeException(flowCall + " not found in thread " + cursor.thread.thread.getDocumentId() + " from position " + cursor.pos);
                 }
 
             } else {
                 for (OutlineCall call : res) {
-                    OutlineCall val = new OutlineCall(stackTrace[pos--]);
+                    OutlineCall val = frames[pos--];
                     if (!call.equals(val)) {
                         throw new RuntimeException("stacktrace at position " + (pos + 1) + " expected " + call + " but is " + val);
                     }
                 }
-                entry.setValue(pos - 1);
+                cursor.pos = pos - 1;
             }
         }
 
@@ -225,6 +259,15 @@ public class FlowOutline {
             return res;
         }
 
+        OutlineCall deepCopy() {
+            OutlineCall res = shallowCopy();
+            if (nested != null) {
+                res.nested = new ArrayList<>(nested.size());
+                for (OutlineCall nestedCall : nested) res.nested.add(nestedCall.deepCopy());
+            }
+            return res;
+        }
+
         @Override
         public int hashCode() {
             return className.hashCode() + 16 * methodName.hashCode();
@@ -1,16 +1,18 @@
 package com.jflop.server.runtime.data.processed;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.jflop.server.persistency.ValuePair;
 import com.jflop.server.runtime.data.*;
-import org.jflop.config.MethodConfiguration;
 import org.jflop.config.NameUtils;
 import sun.invoke.util.Wrapper;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Contains processed data of a flow with its sub-flows and related stack traces within a time interval.
@@ -21,40 +23,130 @@ import java.util.*;
  */
 public class FlowSummary extends AgentData {
 
+    private final Payload<List> roots = new Payload<>(List.class);
+
+    private static final int DISTANCE_ROWS_PER_TASK = 4;
+
     @JsonIgnore
-    public List<MethodCall> roots;
+    private CallTreeIndex callTreeIndex;
+
+    @JsonIgnore
+    private FlowMembership flowMembership;
+
+    @JsonIgnore
+    private final Map<String, CachedOutline> outlines = new ConcurrentHashMap<>();
+
+    /**
+     * The outline of a flow with the threads map it was built from
+     */
+    private static class CachedOutline {
+        final Map<String, ThreadMetadata> threads;
+        final FlowOutline outline;
+
+        CachedOutline(Map<String, ThreadMetadata> threads, FlowOutline outline) {
+            this.threads = threads;
+            this.outline = outline;
+        }
+    }
+
+    /**
+     * Indexes of the flows in the summary, and the summary nodes each flow passes through.<br/>
+     * The nodes are numbered in pre-order over all the roots, so the flows of different roots have no common nodes.
+     */
+    static class FlowMembership {
+        final Map<String, Integer> flowIndexes = new HashMap<>();
+        final List<BitSet> flowNodes = new ArrayList<>();
+        private int numNodes;
+
+        FlowMembership(List<MethodCall> roots) {
+            roots.forEach(this::assign);
+        }
+
+        BitSet getNodes(String flowId) {
+            Integer index = flowIndexes.get(flowId);
+            return index == null ? null : flowNodes.get(index);
+        }
+
+        private void assign(MethodCall node) {
+            int nodeNum = numNodes++;
+            node.flowMembership = new BitSet();
+            for (MethodFlow flow : node.flows) {
+                Integer index = flowIndexes.get(flow.flowId);
+                if (index == null) {
+                    index = flowNodes.size();
+                    flowIndexes.put(flow.flowId, index);
+                    flowNodes.add(new BitSet());
+                }
+                node.flowMembership.set(index);
+                flowNodes.get(index).set(nodeNum);
+            }
+            if (node.nestedCalls != null) node.nestedCalls.forEach(this::assign);
+        }
+    }
 
     @JsonIgnore
-    private Set<MethodConfiguration> allMethods;
+    public List<MethodCall> getRoots() {
+        return roots.get();
+    }
 
     @JsonProperty
-    public String getRootsStr() throws JsonProcessingException {
-        return MAPPER.writeValueAsString(roots);
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getRootsStr() throws IOException {
+        return roots.getJson();
     }
 
     @JsonProperty
-    public void setRootsStr(String str) throws IOException {
-        roots = MAPPER.readValue(str, List.class);
+    public void setRootsStr(String str) {
+        roots.setJson(str);
+        callTreeIndex = null;
+        flowMembership = null;
+        outlines.clear();
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] getRootsBin() throws IOException {
+        return roots.getBinary();
+    }
+
+    @JsonProperty
+    public void setRootsBin(byte[] bin) {
+        roots.setBinary(bin);
+        callTreeIndex = null;
+        flowMembership = null;
+        outlines.clear();
     }
 
     public void aggregateFlows(Map<FlowMetadata, List<FlowOccurrenceData>> flows) {
-        roots = new ArrayList<>();
+        List<MethodCall> roots = new ArrayList<>();
+        Map<MethodCall.MethodKey, MethodCall> rootIndex = new HashMap<>();
         for (Map.Entry<FlowMetadata, List<FlowOccurrenceData>> entry : flows.entrySet()) {
             FlowMetadata flowMetadata = entry.getKey();
             List<FlowOccurrenceData> occurrences = entry.getValue();
-            MethodCall call = MethodCall.getOrCreateCall(roots, flowMetadata.rootFlow);
+            MethodCall call = MethodCall.getOrCreateCall(roots, rootIndex, flowMetadata.getRootFlow());
             call.addFlow(flowMetadata, occurrences);
         }
+        this.roots.set(roots);
+        callTreeIndex = null;
+        flowMembership = new FlowMembership(roots);
+        outlines.clear();
     }
 
     public void aggregateThreads(Map<ThreadMetadata, List<ThreadOccurrenceData>> threads) {
-        for (MethodCall root : roots) {
-            for (Map.Entry<ThreadMetadata, List<ThreadOccurrenceData>> entry : threads.entrySet()) {
-                ThreadMetadata threadMetadata = entry.getKey();
-                StackTraceElement[] stackTrace = threadMetadata.stackTrace;
-                if (stackTrace != null && stackTrace.length > 0) {
-                    List<ThreadOccurrenceData> threadOccurrences = entry.getValue();
-                    List<ValuePair<MethodCall, Integer>> path = findPath(root, stackTrace, stackTrace.length - 1);
+        outlines.clear();
+
+        // each thread is matched only against the roots whose frames present in its stack trace;
+        // the threads are added to every root in the same order as if all the roots were tried
+        List<MethodCall> roots = getRoots();
+        CallTreeIndex index = getCallTreeIndex();
+        for (Map.Entry<ThreadMetadata, List<ThreadOccurrenceData>> entry : threads.entrySet()) {
+            ThreadMetadata threadMetadata = entry.getKey();
+            StackTraceElement[] stackTrace = threadMetadata.stackTrace;
+            if (stackTrace != null && stackTrace.length > 0) {
+                List<ThreadOccurrenceData> threadOccurrences = entry.getValue();
+                CallTreeIndex.Trace trace = index.trace(stackTrace);
+                for (MethodCall root : index.candidateRoots(trace, roots)) {
+                    List<ValuePair<MethodCall, Integer>> path = index.findPath(root, trace, stackTrace.length - 1);
                     if (path != null) {
                         root.addThread(path, threadOccurrences);
                     }
@@ -64,57 +156,12 @@ public class FlowSummary extends AgentData {
     }
 
     public List<ValuePair<MethodCall, Integer>> findPath(MethodCall methodCall, StackTraceElement[] stacktrace, int tracePos) {
-        // it's ok to skip instrumented elements, if they are in the beginning of the stack
-        // this is because the outmost methods might not return yet, and the registered flow may be partial.
-        boolean skipInstrumented = tracePos == stacktrace.length - 1;
-
-        // skip not fitting trace elements if they are not instrumented, or if we are in the beginning of the stack trace
-        boolean fit = false;
-        while (tracePos >= 0) {
-            fit = methodCall.fits(stacktrace[tracePos]);
-            if (!fit && (skipInstrumented || !isInstrumented(stacktrace[tracePos])))
-                tracePos--;
-            else
-                break;
-        }
-
-        // if no fitting element found in the stacktrace, it's not fit
-        if (!fit)
-            return null;
-
-        // if the flow element fits the stacktrace element, add the method call and the line number to the path
-        List<ValuePair<MethodCall, Integer>> path = new ArrayList<>();
-        path.add(new ValuePair<>(methodCall, stacktrace[tracePos].getLineNumber()));
-
-        // if we've reached the trace end, we're done
-        if (tracePos == 0) return path;
-
-        // if we've reached the flow end, we're done
-        if (methodCall.nestedCalls == null || methodCall.nestedCalls.isEmpty()) {
-            return path;
-        }
-
-        // go through the subflows and pick the longest sub-path
-        List<ValuePair<MethodCall, Integer>> longestPath = null;
-        for (MethodCall nested : methodCall.nestedCalls) {
-            List<ValuePair<MethodCall, Integer>> nestedPath = findPath(nested, stacktrace, tracePos - 1);
-            if (longestPath == null || (nestedPath != null && nestedPath.size() > longestPath.size()))
-                longestPath = nestedPath;
-        }
-        if (longestPath != null)
-            path.addAll(longestPath);
-
-        return path;
+        CallTreeIndex index = getCallTreeIndex();
+        return index.findPath(methodCall, index.trace(stacktrace), tracePos);
     }
 
     public boolean isInstrumented(StackTraceElement element) {
-        if (allMethods == null) {
-            allMethods = new HashSet<>();
-            roots.forEach(this::getInstrumentedMethods);
-        }
-
-        MethodConfiguration mtd = new MethodConfiguration(NameUtils.getInternalClassName(element.getClassName()), element.getMethodName(), "UNKNOWN");
-        return allMethods.contains(mtd);
+        return getCallTreeIndex().isInstrumented(NameUtils.getInternalClassName(element.getClassName()), element.getMethodName());
     }
 
     /**
@@ -126,52 +173,119 @@ public class FlowSummary extends AgentData {
      * @return the distance, 0 means the flows are identical, 1 means they have no common nodes
      */
     public float calculateDistance(String flow1, String flow2) {
-        boolean flow1Found = false;
-        boolean flow2Found = false;
-        for (MethodCall root : roots) {
-            boolean flow1InThisRoot = root.flows.stream().anyMatch(flow -> flow.flowId.equals(flow1));
-            boolean flow2InThisRoot = root.flows.stream().anyMatch(flow -> flow.flowId.equals(flow2));
-            if (flow1InThisRoot && flow2InThisRoot) {
-                ValuePair<Integer, Integer> pair = calculateDistanceAndLength(root, flow1, flow2);
-                return (float) pair.value1 / pair.value2;
-            } else if (flow1InThisRoot)
-                flow1Found = true;
-            else if (flow2InThisRoot)
-                flow2Found = true;
+        FlowMembership membership = getFlowMembership();
+        BitSet nodes1 = membership.getNodes(flow1);
+        BitSet nodes2 = membership.getNodes(flow2);
+        if (nodes1 == null || nodes2 == null) {
+            String msg = "Flows don't belong to the summary:" + (nodes1 != null ? "" : " " + flow1) + (nodes2 != null ? "" : " " + flow2);
+            throw new IllegalArgumentException(msg);
         }
+        return distance(nodes1, nodes2);
+    }
 
-        if (flow1Found && flow2Found) return 1f; // flows belong to different roots
+    /**
+     * Calculates the distances between all the pairs of the given flows, see {@link #calculateDistance(String, String)}.<br/>
+     * The rows of the matrix are calculated in parallel in the common fork-join pool.
+     *
+     * @param flowIds the flows, must present in the summary
+     * @return symmetric matrix of the distances, in the order of the given flows
+     */
+    public float[][] calculateDistances(List<String> flowIds) {
+        FlowMembership membership = getFlowMembership();
+        BitSet[] nodes = new BitSet[flowIds.size()];
+        StringBuilder missing = new StringBuilder();
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = membership.getNodes(flowIds.get(i));
+            if (nodes[i] == null) missing.append(" ").append(flowIds.get(i));
+        }
+        if (missing.length() > 0)
+            throw new IllegalArgumentException("Flows don't belong to the summary:" + missing);
 
-        String msg = "Flows don't belong to the summary:" + (flow1Found ? "" : " " + flow1) + (flow2Found ? "" : " " + flow2);
-        throw new IllegalArgumentException(msg);
+        float[][] res = new float[nodes.length][nodes.length];
+        ForkJoinPool.commonPool().invoke(new DistanceRows(nodes, res, 0, nodes.length));
+        return res;
     }
 
+    /**
+     * Builds the outline of the flow, or returns the one built before for the same flow and the same threads map.
+     *
+     * @param flowId  the flow, must present in the summary
+     * @param threads the threads of the summary by their IDs
+     * @return the outline
+     */
     public FlowOutline buildOutline(String flowId, Map<String, ThreadMetadata> threads) {
-        Optional<MethodCall> found = roots.stream().filter(root -> root.flows.stream().anyMatch(flow -> flow.flowId.equals(flowId))).findFirst();
-        MethodCall root = found.orElseThrow(() -> new RuntimeException("Flow " + flowId + " not present in the summary."));
+        return outlines.compute(flowId, (id, cached) -> {
+            if (cached != null && cached.threads == threads) return cached;
 
-        return new FlowOutline(flowId, root, threads);
+            Integer flowIndex = getFlowMembership().flowIndexes.get(id);
+            Optional<MethodCall> found = flowIndex == null ? Optional.empty()
+                    : getRoots().stream().filter(root -> root.flowMembership.get(flowIndex)).findFirst();
+            MethodCall root = found.orElseThrow(() -> new RuntimeException("Flow " + id + " not present in the summary."));
+
+            return new CachedOutline(threads, new FlowOutline(id, root, threads));
+        }).outline;
     }
 
-    private ValuePair<Integer, Integer> calculateDistanceAndLength(MethodCall node, String flow1, String flow2) {
-        boolean flow1Presents = node.flows.stream().anyMatch(flow -> flow.flowId.equals(flow1));
-        boolean flow2Presents = node.flows.stream().anyMatch(flow -> flow.flowId.equals(flow2));
+    /**
+     * Distance between two flows: the number of the nodes where one flow presents and the other doesn't,
+     * divided by the number of the nodes where any of them presents
+     */
+    private static float distance(BitSet nodes1, BitSet nodes2) {
+        BitSet diff = (BitSet) nodes1.clone();
+        diff.xor(nodes2);
+        if (diff.isEmpty()) return 0;
 
-        int distance = flow1Presents == flow2Presents ? 0 : 1;
-        int length = flow1Presents || flow2Presents ? 1 : 0;
+        BitSet union = (BitSet) nodes1.clone();
+        union.or(nodes2);
+        return (float) diff.cardinality() / union.cardinality();
+    }
 
-        if (length > 0 && node.nestedCalls != null)
-            for (MethodCall nested : node.nestedCalls) {
-                ValuePair<Integer, Integer> nestedRes = calculateDistanceAndLength(nested, flow1, flow2);
-                distance += nestedRes.value1;
-                length += nestedRes.value2;
+    /**
+     * Calculates the rows of the distance matrix, the row i gets the distances to the flows after i,
+     * and the symmetric cells are filled by the same task.
+     */
+    private static class DistanceRows extends RecursiveAction {
+
+        private final BitSet[] nodes;
+        private final float[][] res;
+        private final int fromRow;
+        private final int toRow;
+
+        DistanceRows(BitSet[] nodes, float[][] res, int fromRow, int toRow) {
+            this.nodes = nodes;
+            this.res = res;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > DISTANCE_ROWS_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new DistanceRows(nodes, res, fromRow, middle), new DistanceRows(nodes, res, middle, toRow));
+                return;
+            }
+
+            for (int i = fromRow; i < toRow; i++) {
+                for (int j = i + 1; j < nodes.length; j++) {
+                    float distance = distance(nodes[i], nodes[j]);
+                    res[i][j] = distance;
+                    res[j][i] = distance;
+                }
             }
+        }
+    }
 
-        return new ValuePair<>(distance, length);
+    /**
+     * The flow membership is assigned when the summary is built, or on the first use if the summary was read from the storage
+     */
+    FlowMembership getFlowMembership() {
+        if (flowMembership == null) flowMembership = new FlowMembership(getRoots());
+        return flowMembership;
     }
 
-    private void getInstrumentedMethods(MethodCall methodCall) {
-        allMethods.add(new MethodConfiguration(methodCall.className, methodCall.methodName, "UNKNOWN"));
-        if (methodCall.nestedCalls != null) methodCall.nestedCalls.forEach(this::getInstrumentedMethods);
+    private CallTreeIndex getCallTreeIndex() {
+        if (callTreeIndex == null) callTreeIndex = new CallTreeIndex(getRoots());
+        return callTreeIndex;
     }
 }
@@ -1,15 +1,13 @@
 package com.jflop.server.runtime.data.processed;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.jflop.server.persistency.ValuePair;
 import com.jflop.server.runtime.data.FlowMetadata;
 import com.jflop.server.runtime.data.FlowOccurrenceData;
 import com.jflop.server.runtime.data.ThreadOccurrenceData;
 import org.jflop.config.NameUtils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.*;
 
 /**
  * TODO: Document!
@@ -31,6 +29,64 @@ public class MethodCall {
 
     public List<ThreadHotspot> hotspots;
 
+    @JsonIgnore
+    private transient CallTreeIndex.FrameKey frameKey;
+
+    @JsonIgnore
+    private transient int[] lineRange;
+
+    @JsonIgnore
+    private transient MethodKey methodKey;
+
+    @JsonIgnore
+    private transient Map<MethodKey, MethodCall> nestedIndex;
+
+    @JsonIgnore
+    private transient Map<String, MethodFlow> flowIndex;
+
+    /**
+     * Flows passing through this call, by their indexes in the summary, see {@link FlowSummary#getFlowMembership()}
+     */
+    @JsonIgnore
+    transient BitSet flowMembership;
+
+    /**
+     * Identity of the method call: class, file, method and descriptor, with the hash computed once
+     */
+    static class MethodKey {
+        final String className;
+        final String fileName;
+        final String methodName;
+        final String methodDescriptor;
+        private final int hash;
+
+        MethodKey(String className, String fileName, String methodName, String methodDescriptor) {
+            this.className = className;
+            this.fileName = fileName;
+            this.methodName = methodName;
+            this.methodDescriptor = methodDescriptor;
+            this.hash = Objects.hashCode(className) + Objects.hashCode(fileName) + Objects.hashCode(methodName) + Objects.hashCode(methodDescriptor);
+        }
+
+        MethodKey(FlowMetadata.FlowElement flow) {
+            this(flow.className, flow.fileName, flow.methodName, flow.methodDescriptor);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof MethodKey)) return false;
+            MethodKey that = (MethodKey) obj;
+            return hash == that.hash && Objects.equals(className, that.className) && Objects.equals(fileName, that.fileName)
+                    && Objects.equals(methodName, that.methodName) && Objects.equals(methodDescriptor, that.methodDescriptor);
+        }
+    }
+
     public MethodCall() {
     }
 
@@ -52,10 +108,30 @@ public class MethodCall {
         return call;
     }
 
+    /**
+     * Same as {@link #getOrCreateCall(List, FlowMetadata.FlowElement)}, looking up the call in the index of the list
+     */
+    static MethodCall getOrCreateCall(List<MethodCall> list, Map<MethodKey, MethodCall> index, FlowMetadata.FlowElement metadata) {
+        MethodKey key = new MethodKey(metadata);
+        MethodCall call = index.get(key);
+        if (call == null) {
+            call = new MethodCall(metadata);
+            call.methodKey = key;
+            list.add(call);
+            index.put(key, call);
+        }
+        return call;
+    }
+
     public void addFlow(FlowMetadata metadata, List<FlowOccurrenceData> occurrences) {
-        List<ValuePair<FlowOccurrenceData.FlowElement, Float>> occurrenceElements =
-                occurrences.stream().map(occ -> new ValuePair<>(occ.rootFlow, occ.snapshotDurationSec)).collect(Collectors.toList());
-        addFlowRecursively(metadata.rootFlow.flowId, metadata.rootFlow, 0, occurrenceElements);
+        FlowOccurrenceData.FlowElement[] elements = new FlowOccurrenceData.FlowElement[occurrences.size()];
+        float[] snapshotDurationsSec = new float[occurrences.size()];
+        for (int i = 0; i < elements.length; i++) {
+            FlowOccurrenceData occurrence = occurrences.get(i);
+            elements[i] = occurrence.getRootFlow();
+            snapshotDurationsSec[i] = occurrence.snapshotDurationSec;
+        }
+        addFlowRecursively(metadata.getRootFlow().flowId, metadata.getRootFlow(), 0, elements, snapshotDurationsSec);
     }
 
     public void addThread(List<ValuePair<MethodCall, Integer>> path, List<ThreadOccurrenceData> occurrences) {
@@ -72,23 +148,42 @@ public class MethodCall {
     }
 
     public boolean fits(StackTraceElement traceElement) {
-        boolean res = Arrays.equals(
-                new Object[]{className, methodName, fileName},
-                new Object[]{NameUtils.getInternalClassName(traceElement.getClassName()), traceElement.getMethodName(), traceElement.getFileName()});
+        CallTreeIndex.FrameKey frame = new CallTreeIndex.FrameKey(
+                NameUtils.getInternalClassName(traceElement.getClassName()), traceElement.getMethodName(), traceElement.getFileName());
+        return fits(frame, traceElement.getLineNumber());
+    }
+
+    /**
+     * Same as {@link #fits(StackTraceElement)} for a frame already resolved to the internal class name
+     */
+    boolean fits(CallTreeIndex.FrameKey frame, int actualLine) {
+        if (!getFrameKey().equals(frame)) return false;
+        if (actualLine <= 0) return true;
+
+        int[] range = getLineRange();
+        return actualLine >= range[0] && actualLine <= range[1];
+    }
+
+    CallTreeIndex.FrameKey getFrameKey() {
+        if (frameKey == null) frameKey = new CallTreeIndex.FrameKey(className, methodName, fileName);
+        return frameKey;
+    }
 
-        if (res) {
+    /**
+     * @return first line of the method and the last return line over all the flows
+     */
+    private int[] getLineRange() {
+        if (lineRange == null) {
             int flowFirst = Integer.parseInt(firstLine);
             int flowLast = flows.stream().mapToInt(flow -> Integer.parseInt(flow.returnLine)).max().getAsInt();
-            int actual = traceElement.getLineNumber();
-            res = actual <= 0 || (actual >= flowFirst && actual <= flowLast);
+            lineRange = new int[]{flowFirst, flowLast};
         }
-
-        return res;
+        return lineRange;
     }
 
     @Override
     public int hashCode() {
-        return className.hashCode() + fileName.hashCode() + methodName.hashCode() + methodDescriptor.hashCode();
+        return getMethodKey().hashCode();
     }
 
     @Override
@@ -96,21 +191,33 @@ public class MethodCall {
         if (obj == this) return true;
         if (obj == null || !(obj instanceof MethodCall)) return false;
         MethodCall that = (MethodCall) obj;
-        return Arrays.equals(new Object[] {className, fileName, methodName, methodDescriptor},
-                new Object[] {that.className, that.fileName, that.methodName, that.methodDescriptor});
+        return getMethodKey().equals(that.getMethodKey());
     }
 
-    private void addFlowRecursively(String flowId, FlowMetadata.FlowElement metadata, int position, List<ValuePair<FlowOccurrenceData.FlowElement, Float>> occurrences) {
+    MethodKey getMethodKey() {
+        if (methodKey == null) methodKey = new MethodKey(className, fileName, methodName, methodDescriptor);
+        return methodKey;
+    }
+
+    /**
+     * Add the flow element and its subflows to this call and the nested calls.
+     *
+     * @param occurrences          the occurrences of the flow element, one per flow occurrence
+     * @param snapshotDurationsSec snapshot durations of the flow occurrences, the same for all the flow elements
+     */
+    private void addFlowRecursively(String flowId, FlowMetadata.FlowElement metadata, int position,
+                                    FlowOccurrenceData.FlowElement[] occurrences, float[] snapshotDurationsSec) {
         if (flows == null) flows = new ArrayList<>();
-        MethodFlowStatistics stat = new MethodFlowStatistics(occurrences);
-        MethodFlow methodFlow = new MethodFlow(flowId, position, metadata.returnLine, stat);
+        lineRange = null;
+        MethodFlowStatistics stat = new MethodFlowStatistics(occurrences, snapshotDurationsSec);
 
         int parentPosition = 0;
-        int existingPos = flows.indexOf(methodFlow);
-        if (existingPos == -1) {
+        MethodFlow existing = getFlowIndex().get(flowId);
+        if (existing == null) {
+            MethodFlow methodFlow = new MethodFlow(flowId, position, metadata.returnLine, stat);
             flows.add(methodFlow);
+            flowIndex.put(flowId, methodFlow);
         } else {
-            MethodFlow existing = flows.get(existingPos);
             existing.statistics.merge(stat);
             existing.position += position;
             parentPosition = existing.position;
@@ -118,15 +225,18 @@ public class MethodCall {
 
         if (metadata.subflows == null) return;
         if (nestedCalls == null) nestedCalls = new ArrayList<>();
+        Map<MethodKey, MethodCall> nested = getNestedIndex();
 
+        FlowOccurrenceData.FlowElement[] subOccurrences = new FlowOccurrenceData.FlowElement[occurrences.length];
         for (int i = 0; i < metadata.subflows.size(); i++) {
-            final int subflowIdx = i;
-            FlowMetadata.FlowElement subMeta = metadata.subflows.get(subflowIdx);
-            MethodCall nestedCall = getOrCreateCall(nestedCalls, subMeta);
+            FlowMetadata.FlowElement subMeta = metadata.subflows.get(i);
+            MethodCall nestedCall = getOrCreateCall(nestedCalls, nested, subMeta);
 
-            List<ValuePair<FlowOccurrenceData.FlowElement, Float>> subOccurrences =
-                    occurrences.stream().map(occurrence -> new ValuePair<>(occurrence.value1.subflows.get(subflowIdx), occurrence.value2)).collect(Collectors.toList());
-            nestedCall.addFlowRecursively(flowId, subMeta, parentPosition + subflowIdx, subOccurrences);
+            // the statistics do not keep the occurrences, so the array is reused for all the subflows
+            for (int j = 0; j < occurrences.length; j++) {
+                subOccurrences[j] = occurrences[j].subflows.get(i);
+            }
+            nestedCall.addFlowRecursively(flowId, subMeta, parentPosition + i, subOccurrences, snapshotDurationsSec);
         }
     }
 
@@ -141,12 +251,29 @@ public class MethodCall {
         if (pathPos < path.size() - 1) {
             pathPos++;
             ValuePair<MethodCall, Integer> next = path.get(pathPos);
-            for (MethodCall nestedCall : nestedCalls) {
-                if (nestedCall == next.value1) {
-                    nestedCall.addThreadRecursively(path, pathPos, threadId, threadState, countAvg);
-                    break;
-                }
-            }
+            if (nestedCalls != null && getNestedIndex().get(next.value1.getMethodKey()) == next.value1)
+                next.value1.addThreadRecursively(path, pathPos, threadId, threadState, countAvg);
+        }
+    }
+
+    /**
+     * The indexes are not serialized, and are rebuilt from the lists of the deserialized calls
+     */
+    private Map<MethodKey, MethodCall> getNestedIndex() {
+        if (nestedIndex == null) {
+            nestedIndex = new HashMap<>();
+            if (nestedCalls != null)
+                for (MethodCall nestedCall : nestedCalls) nestedIndex.putIfAbsent(nestedCall.getMethodKey(), nestedCall);
+        }
+        return nestedIndex;
+    }
+
+    private Map<String, MethodFlow> getFlowIndex() {
+        if (flowIndex == null) {
+            flowIndex = new HashMap<>();
+            if (flows != null)
+                for (MethodFlow flow : flows) flowIndex.putIfAbsent(flow.flowId, flow);
         }
+        return flowIndex;
     }
 }
@@ -1,10 +1,7 @@
 package com.jflop.server.runtime.data.processed;
 
-import com.jflop.server.persistency.ValuePair;
 import com.jflop.server.runtime.data.FlowOccurrenceData;
 
-import java.util.List;
-
 /**
  * TODO: Document!
  *
@@ -22,17 +19,22 @@ public class MethodFlowStatistics {
         minTime = Long.MAX_VALUE;
     }
 
-    public MethodFlowStatistics(List<ValuePair<FlowOccurrenceData.FlowElement, Float>> occurrences) {
+    /**
+     * @param occurrences          occurrences of the flow element
+     * @param snapshotDurationsSec snapshot durations of the occurrences, in the same order
+     */
+    public MethodFlowStatistics(FlowOccurrenceData.FlowElement[] occurrences, float[] snapshotDurationsSec) {
         minTime = Long.MAX_VALUE;
         long totalTime = 0;
         int totalCount = 0;
         float totalSnapshotDurationSec = 0;
-        for (ValuePair<FlowOccurrenceData.FlowElement, Float> occurrence : occurrences) {
-            minTime = Math.min(minTime, occurrence.value1.minTime);
-            maxTime = Math.max(maxTime, occurrence.value1.maxTime);
-            totalTime += occurrence.value1.cumulativeTime;
-            totalCount += occurrence.value1.count;
-            totalSnapshotDurationSec += occurrence.value2;
+        for (int i = 0; i < occurrences.length; i++) {
+            FlowOccurrenceData.FlowElement occurrence = occurrences[i];
+            minTime = Math.min(minTime, occurrence.minTime);
+            maxTime = Math.max(maxTime, occurrence.maxTime);
+            totalTime += occurrence.cumulativeTime;
+            totalCount += occurrence.count;
+            totalSnapshotDurationSec += snapshotDurationsSec[i];
         }
         throughputPerSec = totalCount / totalSnapshotDurationSec;
         averageTime = totalTime / totalCount;
@@ -10,10 +10,10 @@ import com.jflop.server.runtime.data.processed.*;
 public class DebugPrintUtil {
 
     public static String printFlowSummary(FlowSummary flowSummary, boolean expanded) {
-        String res = "Flow summary of " + flowSummary.time + " contains " + flowSummary.roots.size() + " roots";
+        String res = "Flow summary of " + flowSummary.time + " contains " + flowSummary.getRoots().size() + " roots";
         if (expanded) {
             res += "\n-------- Flow summary content ---------";
-            for (MethodCall root : flowSummary.roots) {
+            for (MethodCall root : flowSummary.getRoots()) {
                 res += DebugPrintUtil.methodCallSummaryStr("", root);
             }
             res += "\n-----------------------------------";
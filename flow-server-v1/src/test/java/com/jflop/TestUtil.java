@@ -114,10 +114,11 @@ public class TestUtil {
         List<String> names = new ArrayList<>();
         List<Map<String, Object>> values = new ArrayList<>();
 
-        SearchResponse response = esClient.search("jf-processed-data", "metric", QueryBuilders.matchAllQuery(), maxHits, SortBuilders.fieldSort("time").order(SortOrder.ASC));
+        MetricMetadata metadata = readMetricMetadata();
+        SearchResponse response = esClient.search("jf-metric-data", "metric", QueryBuilders.matchAllQuery(), maxHits, SortBuilders.fieldSort("time").order(SortOrder.ASC));
         for (SearchHit hit : response.getHits().getHits()) {
             MetricData metricData = mapper.readValue(hit.source(), MetricData.class);
-            Map<String, Object> line = new HashMap<>(metricData.metrics);
+            Map<String, Object> line = new HashMap<>(metricData.getNamedMetrics(metadata));
             line.keySet().forEach(k -> {
                 if (!names.contains(k)) names.add(k);
             });
@@ -142,15 +143,19 @@ public class TestUtil {
         System.out.println(values.size() + " X " + names.size() + " matrix exported to file " + file.getAbsolutePath());
     }
 
-    private Set<String> exportFlowNums(File file) throws IOException {
-        Set<String> res = new HashSet<>();
-
+    private MetricMetadata readMetricMetadata() throws IOException {
         SearchResponse response = esClient.search("jf-metadata", "metric", QueryBuilders.matchAllQuery(), 2, null);
         SearchHit[] hits = response.getHits().getHits();
         if (hits.length != 1)
             throw new RuntimeException("Unexpected number of metric metadata: " + hits.length);
 
-        MetricMetadata metadata = mapper.readValue(hits[0].source(), MetricMetadata.class);
+        return mapper.readValue(hits[0].source(), MetricMetadata.class);
+    }
+
+    private Set<String> exportFlowNums(File file) throws IOException {
+        Set<String> res = new HashSet<>();
+
+        MetricMetadata metadata = readMetricMetadata();
         Map<String, Long> sourceIDs = metadata.sourceIDs;
         int count = 0;
 
@@ -198,7 +203,7 @@ public class TestUtil {
         for (String id : flowIds) {
             PersistentData<FlowMetadata> doc = esClient.getDocument("jf-metadata", "flow", new PersistentData<>(id, 0), FlowMetadata.class);
             if (doc != null) {
-                lines.addAll(printMetadata(doc.source.rootFlow, covered));
+                lines.addAll(printMetadata(doc.source.getRootFlow(), covered));
             }
         }
 
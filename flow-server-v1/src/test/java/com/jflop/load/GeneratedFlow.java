@@ -227,7 +227,7 @@ public class GeneratedFlow implements FlowMockup {
         Set<String> res = new HashSet<>();
         FlowElement expectedRoot = this.root;
 
-        for (MethodCall recordedRoot : summary.roots) {
+        for (MethodCall recordedRoot : summary.getRoots()) {
             for (MethodFlow methodFlow : recordedRoot.flows) {
                 String flowId = methodFlow.flowId;
                 List<FlowOutline.OutlineCall> expectedOutline = buildOutline(expectedRoot, JflopConfiguration.fromJson(flows.get(flowId).instrumentedMethodsJson));
@@ -7,6 +7,7 @@ import com.jflop.server.admin.data.JFAgent;
 import com.jflop.server.background.JvmMonitorAnalysis;
 import com.jflop.server.feature.FeatureManager;
 import com.jflop.server.feature.InstrumentationConfigurationFeature;
+import com.jflop.server.persistency.DocumentStore;
 import com.jflop.server.runtime.RuntimeClient;
 import org.junit.Before;
 import org.junit.Test;
@@ -57,6 +58,9 @@ public class AdminTest {
     @Autowired
     private JvmMonitorAnalysis analysis;
 
+    @Autowired
+    private DocumentStore documentStore;
+
     private HttpTestClient testClient;
     private AdminClient adminClient;
 
@@ -167,6 +171,29 @@ public class AdminTest {
         System.out.println(agents);
     }
 
+    @Test
+    public void testTokenAuthorization() throws Exception {
+        String agentId = adminClient.createAgent("agent one");
+        accountIndex.refreshIndex();
+        RuntimeClient runtimeClient = new RuntimeClient(testClient, agentId);
+        runtimeClient.ping();
+
+        // the reports with a valid token do not read the account, and without commands to send nor the JVM state
+        long accountReads = countReads("jf-accounts");
+        long stateReads = countReads("jf-agent-jvm");
+        runtimeClient.ping();
+        runtimeClient.ping();
+        assertEquals(accountReads, countReads("jf-accounts"));
+        assertEquals(stateReads, countReads("jf-agent-jvm"));
+    }
+
+    private long countReads(String index) {
+        return documentStore.getMetrics().getSnapshot().stream()
+                .filter(stats -> stats.index.equals(index) && (stats.operation.equals("get") || stats.operation.equals("search")))
+                .mapToLong(stats -> stats.count)
+                .sum();
+    }
+
     @Test
     public void testDownloadAgent() throws Exception {
         String id = adminClient.createAgent("my agent");
@@ -0,0 +1,97 @@
+package com.jflop.server.admin;
+
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.admin.data.AgentJvmState;
+import com.jflop.server.admin.data.FeatureCommand;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the merge of the cached and stored JVM states on a flush conflict.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class AgentJvmStateMergeTest {
+
+    private static final AgentJVM AGENT_JVM = new AgentJVM("testAccount", "testAgent", "testJVM");
+
+    @Test
+    public void testMerge() {
+        FeatureCommand reported = command("snapshot", "take", 1000);
+        AgentJvmState stored = new AgentJvmState(AGENT_JVM);
+        stored.lastReportedAt = new Date(1000);
+        stored.setCommand(copy(reported));
+        stored.setCommand(command("jvmMonitor", "enable", 3000));
+
+        // the agent responded to the same command, the admin issued a new one elsewhere
+        AgentJvmState cached = new AgentJvmState(AGENT_JVM);
+        cached.lastReportedAt = new Date(2000);
+        cached.errors = Collections.singletonList("error");
+        reported.sentAt = new Date(1500);
+        reported.respondedAt = new Date(2000);
+        reported.successText = "done";
+        cached.setCommand(reported);
+        cached.setCommand(command("jvmMonitor", "disable", 2000));
+
+        AgentJvmState merged = AgentJVMIndex.mergeStates(stored, cached);
+        assertEquals(2000, merged.lastReportedAt.getTime());
+        assertEquals(cached.errors, merged.errors);
+        assertEquals("done", merged.getCommand("snapshot").successText);
+        assertEquals("enable", merged.getCommand("jvmMonitor").commandName);
+    }
+
+    @Test
+    public void testStaleCachedCommand() {
+        FeatureCommand command = command("snapshot", "take", 1000);
+        AgentJvmState stored = new AgentJvmState(AGENT_JVM);
+        FeatureCommand storedCommand = copy(command);
+        storedCommand.respondedAt = new Date(3000);
+        storedCommand.successText = "done";
+        stored.setCommand(storedCommand);
+
+        AgentJvmState cached = new AgentJvmState(AGENT_JVM);
+        cached.lastReportedAt = new Date(0);
+        cached.setCommand(command);
+
+        AgentJvmState merged = AgentJVMIndex.mergeStates(stored, cached);
+        assertNotEquals(0, merged.lastReportedAt.getTime());
+        assertEquals("done", merged.getCommand("snapshot").successText);
+    }
+
+    @Test
+    public void testClaimedCommand() {
+        // the command was claimed in the stored state, while the cached copy has a pending response to it
+        FeatureCommand command = command("snapshot", "take", 1000);
+        AgentJvmState stored = new AgentJvmState(AGENT_JVM);
+        FeatureCommand storedCommand = copy(command);
+        storedCommand.sentAt = new Date(2000);
+        stored.setCommand(storedCommand);
+
+        AgentJvmState cached = new AgentJvmState(AGENT_JVM);
+        command.respondedAt = new Date(1500);
+        cached.setCommand(command);
+
+        AgentJvmState merged = AgentJVMIndex.mergeStates(stored, cached);
+        assertEquals(2000, merged.getCommand("snapshot").sentAt.getTime());
+        assertEquals(1500, merged.getCommand("snapshot").respondedAt.getTime());
+    }
+
+    private static FeatureCommand command(String featureId, String commandName, long createdAt) {
+        FeatureCommand res = new FeatureCommand(featureId, commandName, null);
+        res.createdAt = new Date(createdAt);
+        return res;
+    }
+
+    private static FeatureCommand copy(FeatureCommand command) {
+        FeatureCommand res = command(command.featureId, command.commandName, command.createdAt.getTime());
+        res.sentAt = command.sentAt;
+        res.respondedAt = command.respondedAt;
+        res.successText = command.successText;
+        return res;
+    }
+}
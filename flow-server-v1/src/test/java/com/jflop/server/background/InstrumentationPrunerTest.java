@@ -0,0 +1,119 @@
+package com.jflop.server.background;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jflop.server.runtime.data.processed.FlowSummary;
+import com.jflop.server.runtime.data.processed.MethodCall;
+import com.jflop.server.runtime.data.processed.MethodFlow;
+import com.jflop.server.runtime.data.processed.MethodFlowStatistics;
+import org.jflop.config.MethodConfiguration;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the choice of the methods removed from the instrumentation.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class InstrumentationPrunerTest {
+
+    // a probe call costs 1 microsecond, a method may take 1% of a CPU, and should take at least 1% of its caller's time
+    private final InstrumentationPruner pruner = new InstrumentationPruner(1000, 0.01f, 0.01f);
+
+    @Test
+    public void testPrune() {
+        MethodCall handle = call("Handler", "handle", flow("f1", 10, 1000), flow("f2", 5, 2000));
+        // 2% of the handler time in f1
+        MethodCall query = call("Dao", "query", flow("f1", 10, 20));
+        // a getter called in a tight loop, 20000 calls per second over both flows
+        MethodCall getter = call("Bean", "getValue", flow("f1", 15000, 0), flow("f2", 5000, 0));
+        // negligible in f1, but 10% of the handler time in f2
+        MethodCall format = call("Util", "format", flow("f1", 10, 5), flow("f2", 5, 200));
+        // negligible in the only flow
+        MethodCall log = call("Log", "debug", flow("f1", 10, 1));
+        handle.nestedCalls = Arrays.asList(query, getter, format, log);
+
+        // the roots are not compared with a parent, and the cheap ones are kept
+        MethodCall idle = call("Idle", "run", flow("f3", 1, 0));
+
+        Set<MethodConfiguration> pruned = pruner.findMethodsToPrune(summary(handle, idle));
+        assertEquals(new HashSet<>(Arrays.asList(method("Bean", "getValue"), method("Log", "debug"))), pruned);
+    }
+
+    @Test
+    public void testPrunedState() throws Exception {
+        AnalysisState state = AnalysisState.createState();
+        MethodConfiguration getter = method("Bean", "getValue");
+        MethodConfiguration log = method("Log", "debug");
+
+        // pruned only when found in 3 consecutive steps
+        assertEquals(Collections.emptySet(), state.updatePruning(set(getter, log), time(0), 3, 60000, 10));
+        assertEquals(Collections.emptySet(), state.updatePruning(set(getter), time(1), 3, 60000, 10));
+
+        // the state survives persistence, and the log starts over
+        ObjectMapper mapper = new ObjectMapper();
+        state = mapper.readValue(mapper.writeValueAsString(state), AnalysisState.class);
+        assertEquals(set(getter), state.updatePruning(set(getter, log), time(2), 3, 60000, 10));
+        assertEquals(set(getter), state.getPrunedMethods());
+
+        // re-admitted after a while
+        state.updatePruning(set(log), time(61), 3, 60000, 10);
+        assertEquals(set(getter), state.getPrunedMethods());
+        state.updatePruning(Collections.emptySet(), time(62), 3, 60000, 10);
+        assertEquals(Collections.emptySet(), state.getPrunedMethods());
+    }
+
+    @Test
+    public void testMaxPrunedMethods() {
+        AnalysisState state = AnalysisState.createState();
+        MethodConfiguration getter = method("Bean", "getValue");
+        MethodConfiguration log = method("Log", "debug");
+        MethodConfiguration format = method("Util", "format");
+
+        state.updatePruning(set(getter), time(0), 1, 60000, 2);
+        state.updatePruning(set(log), time(1), 1, 60000, 2);
+        assertEquals(set(getter, log), state.getPrunedMethods());
+
+        // the earliest pruned method is re-admitted
+        assertEquals(set(format), state.updatePruning(set(format), time(2), 1, 60000, 2));
+        assertEquals(set(log, format), state.getPrunedMethods());
+    }
+
+    private static Set<MethodConfiguration> set(MethodConfiguration... methods) {
+        return new HashSet<>(Arrays.asList(methods));
+    }
+
+    private static Date time(int sec) {
+        return new Date(sec * 1000L);
+    }
+
+    private static FlowSummary summary(MethodCall... roots) {
+        FlowSummary res = new FlowSummary();
+        res.setRootsStr("[]");
+        res.getRoots().addAll(Arrays.asList(roots));
+        return res;
+    }
+
+    private static MethodCall call(String className, String methodName, MethodFlow... flows) {
+        MethodCall res = new MethodCall();
+        res.className = "com/acme/" + className;
+        res.methodName = methodName;
+        res.methodDescriptor = "()V";
+        res.flows = Arrays.asList(flows);
+        return res;
+    }
+
+    private static MethodFlow flow(String flowId, float throughputPerSec, long averageTime) {
+        MethodFlowStatistics statistics = new MethodFlowStatistics();
+        statistics.throughputPerSec = throughputPerSec;
+        statistics.averageTime = averageTime;
+        return new MethodFlow(flowId, 0, null, statistics);
+    }
+
+    private static MethodConfiguration method(String className, String methodName) {
+        return new MethodConfiguration("com/acme/" + className, methodName, "()V");
+    }
+}
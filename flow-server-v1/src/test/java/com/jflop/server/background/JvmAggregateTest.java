@@ -0,0 +1,159 @@
+package com.jflop.server.background;
+
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.runtime.data.FlowMetadata;
+import com.jflop.server.runtime.data.FlowOccurrenceData;
+import com.jflop.server.runtime.data.LoadData;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests folding of the flow occurrences into the running aggregates, and the overlap of the consumed ranges.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class JvmAggregateTest {
+
+    @Test
+    public void testFoldFlows() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, null);
+        FlowMetadata flow = flowMetadata("f1");
+        aggregate.foldFlows(Collections.singletonMap(flow, Arrays.asList(occurrence("f1", 10, 1, 5, 1f), occurrence("f1", 30, 2, 8, 2f))), new Date(0));
+        aggregate.foldFlows(Collections.singletonMap(flow, Collections.singletonList(occurrence("f1", 20, 1, 3, 1f))), new Date(0));
+
+        assertSame(flow, aggregate.getFlowMetadata("f1"));
+        assertNull(aggregate.getFlowMetadata("f2"));
+        assertEquals(60f / 4f, aggregate.minFlowThroughput(), 0.001f);
+    }
+
+    @Test
+    public void testThroughputDecay() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, null);
+        FlowMetadata flow = flowMetadata("f1");
+        aggregate.foldFlows(Collections.singletonMap(flow, Collections.singletonList(occurrence("f1", 100, 1, 1, 1f))), new Date(0));
+        assertEquals(100f, aggregate.minFlowThroughput(), 0.001f);
+
+        // after three half-lives the old occurrences weigh 1/8
+        long later = 3 * JvmAggregate.THROUGHPUT_HALF_LIFE_MILLIS;
+        aggregate.foldFlows(Collections.singletonMap(flow, Collections.singletonList(occurrence("f1", 10, 1, 1, 1f))), new Date(later));
+        assertEquals((12.5f + 10f) / 1.125f, aggregate.minFlowThroughput(), 0.001f);
+
+        // the decay does not change the throughput of a flow not seen since
+        aggregate.foldFlows(null, new Date(2 * later));
+        assertEquals((12.5f + 10f) / 1.125f, aggregate.minFlowThroughput(), 0.001f);
+    }
+
+    @Test
+    public void testFoldSubflows() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, null);
+        FlowOccurrenceData first = occurrence("f1", 2, 1, 5, 1f);
+        first.getRootFlow().subflows = Collections.singletonList(element("s1", 4, 1, 2));
+        FlowOccurrenceData second = occurrence("f1", 2, 3, 6, 1f);
+        second.getRootFlow().subflows = Collections.singletonList(element("s1", 6, 0, 1));
+        aggregate.foldFlows(Collections.singletonMap(flowMetadata("f1"), Arrays.asList(first, second)), new Date(0));
+
+        // the occurrences are not modified
+        assertEquals(4, first.getRootFlow().subflows.get(0).count);
+        assertEquals(2f, aggregate.minFlowThroughput(), 0.001f);
+    }
+
+    @Test
+    public void testBounded() {
+        JvmAggregate aggregate = new JvmAggregate(2, 1000, null);
+        for (String id : new String[]{"f1", "f2", "f3"}) {
+            aggregate.foldFlows(Collections.singletonMap(flowMetadata(id), Collections.singletonList(occurrence(id, 1, 1, 1, 1f))), new Date(0));
+        }
+        assertEquals(2, aggregate.getNumFlows());
+        assertNull(aggregate.getFlowMetadata("f1"));
+        assertNotNull(aggregate.getFlowMetadata("f3"));
+    }
+
+    @Test
+    public void testConsumedOccurrences() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, null);
+        assertNull(aggregate.nextFrom());
+
+        Map<String, Date> consumed = new HashMap<>();
+        Predicate<PersistentData<FlowOccurrenceData>> filter = aggregate.notConsumed(consumed);
+        assertTrue(filter.test(document("o1", 5000)));
+        assertTrue(filter.test(document("o2", 9500)));
+        aggregate.consumed(consumed, new Date(4000), new Date(10000));
+        assertEquals(new Date(10000), aggregate.consumedUntil);
+        assertEquals(new Date(9000), aggregate.nextFrom());
+
+        // the occurrence indexed late is read in the overlap, the consumed one is skipped
+        consumed = new HashMap<>();
+        filter = aggregate.notConsumed(consumed);
+        assertFalse(filter.test(document("o2", 9500)));
+        assertTrue(filter.test(document("o3", 9800)));
+        aggregate.consumed(consumed, new Date(9000), new Date(10500));
+        assertEquals(Collections.singleton("o3"), consumed.keySet());
+
+        // the occurrences before the overlap are forgotten
+        assertEquals(2, aggregate.getNumConsumedOccurrences());
+    }
+
+    @Test
+    public void testConsumedLoadData() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, null);
+        Map<String, Date> consumed = new HashMap<>();
+        Predicate<PersistentData<LoadData>> filter = aggregate.notConsumed(consumed);
+        assertTrue(filter.test(loadDocument("l1", 9500)));
+        aggregate.consumed(consumed, new Date(4000), new Date(10000));
+
+        // the load data in the overlap is counted once
+        consumed = new HashMap<>();
+        filter = aggregate.notConsumed(consumed);
+        assertFalse(filter.test(loadDocument("l1", 9500)));
+        assertTrue(filter.test(loadDocument("l2", 10200)));
+    }
+
+    @Test
+    public void testNewAggregateDoesNotOverlap() {
+        JvmAggregate aggregate = new JvmAggregate(10, 1000, new Date(10000));
+        assertEquals(new Date(10001), aggregate.nextFrom());
+        aggregate.consumed(Collections.emptyMap(), new Date(10001), new Date(10500));
+        assertEquals(new Date(10001), aggregate.nextFrom());
+        aggregate.consumed(Collections.emptyMap(), new Date(10001), new Date(12000));
+        assertEquals(new Date(11000), aggregate.nextFrom());
+    }
+
+    private static PersistentData<FlowOccurrenceData> document(String id, long time) {
+        FlowOccurrenceData occurrence = new FlowOccurrenceData();
+        occurrence.time = new Date(time);
+        return new PersistentData<>(id, 0, occurrence);
+    }
+
+    private static PersistentData<LoadData> loadDocument(String id, long time) {
+        LoadData load = new LoadData();
+        load.time = new Date(time);
+        return new PersistentData<>(id, 0, load);
+    }
+
+    private static FlowMetadata flowMetadata(String flowId) {
+        FlowMetadata res = new FlowMetadata();
+        res.setRootFlowStr("{\"flowId\":\"" + flowId + "\"}");
+        return res;
+    }
+
+    private static FlowOccurrenceData occurrence(String flowId, int count, long minTime, long maxTime, float durationSec) {
+        FlowOccurrenceData res = new FlowOccurrenceData();
+        res.snapshotDurationSec = durationSec;
+        res.setRootFlowStr("{\"flowId\":\"" + flowId + "\",\"count\":" + count + ",\"minTime\":" + minTime + ",\"maxTime\":" + maxTime + ",\"cumulativeTime\":" + count * maxTime + "}");
+        return res;
+    }
+
+    private static FlowOccurrenceData.FlowElement element(String flowId, int count, long minTime, long maxTime) {
+        FlowOccurrenceData.FlowElement res = new FlowOccurrenceData.FlowElement();
+        res.flowId = flowId;
+        res.count = count;
+        res.minTime = minTime;
+        res.maxTime = maxTime;
+        return res;
+    }
+}
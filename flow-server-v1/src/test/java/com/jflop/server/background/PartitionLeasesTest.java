@@ -0,0 +1,58 @@
+package com.jflop.server.background;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the rendezvous assignment of the task partitions to the nodes.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class PartitionLeasesTest {
+
+    private static final int NUM_PARTITIONS = 1000;
+
+    @Test
+    public void testBalance() {
+        List<String> nodes = nodes(5);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+            counts.merge(PartitionLeases.owner(nodes, partition), 1, Integer::sum);
+        }
+
+        assertEquals(nodes.size(), counts.size());
+        for (Integer count : counts.values()) {
+            assertTrue("unbalanced assignment: " + counts, count > NUM_PARTITIONS / nodes.size() / 2);
+        }
+    }
+
+    @Test
+    public void testMembershipChange() {
+        List<String> nodes = nodes(4);
+        List<String> joined = new ArrayList<>(nodes);
+        joined.add("node-new");
+
+        for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+            String before = PartitionLeases.owner(nodes, partition);
+            String after = PartitionLeases.owner(joined, partition);
+            // only the partitions taken by the new node move
+            assertTrue(after.equals(before) || after.equals("node-new"));
+
+            // the order of the nodes does not matter
+            List<String> reversed = new ArrayList<>(joined);
+            Collections.reverse(reversed);
+            assertEquals(after, PartitionLeases.owner(reversed, partition));
+        }
+        assertNull(PartitionLeases.owner(Collections.emptyList(), 0));
+    }
+
+    private static List<String> nodes(int num) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < num; i++) res.add(UUID.randomUUID().toString());
+        return res;
+    }
+}
@@ -0,0 +1,44 @@
+package com.jflop.server.background;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the choice of the snapshot duration and interval.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class SnapshotControllerTest {
+
+    private final SnapshotController controller = new SnapshotController(0.25f, 10, 5, 0, 60, 0.5f);
+
+    @Test
+    public void testDuration() {
+        // the least frequent flow occurs 10 times in 4 seconds
+        assertDecision(controller.decide(1, 2.5f, -1), 4, 16);
+        // frequent flows need a short snapshot
+        assertDecision(controller.decide(3, 100f, -1), 1, 4);
+        // rare flows are limited by the max duration
+        assertDecision(controller.decide(1, 0.1f, -1), 5, 20);
+        // unknown throughput keeps the duration
+        assertDecision(controller.decide(2, Float.NaN, -1), 2, 8);
+        assertDecision(controller.decide(2, Float.MAX_VALUE, 0.2f), 2, 8);
+    }
+
+    @Test
+    public void testCpuBackOff() {
+        // at 75% load the budget is halved
+        assertDecision(controller.decide(1, 10f, 0.75f), 1, 8);
+        // at full load the snapshots are as rare as allowed
+        assertDecision(controller.decide(1, 10f, 1f), 1, 61);
+        // near full load the interval is limited too
+        assertDecision(controller.decide(2, 5f, 0.99f), 2, 62);
+    }
+
+    private static void assertDecision(SnapshotController.Decision decision, int durationSec, int intervalSec) {
+        assertEquals("duration", durationSec, decision.durationSec);
+        assertEquals("interval", intervalSec, decision.intervalSec);
+    }
+}
@@ -0,0 +1,173 @@
+package com.jflop.server.persistency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jflop.server.ServerApp;
+import com.jflop.server.background.JvmMonitorAnalysis;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bulk ingestion flush, retries and back pressure against the test cluster.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ServerApp.class)
+@WebAppConfiguration
+public class BulkIngestionTest {
+
+    private static final String INDEX = "test-bulk";
+    private static final String DOCTYPE = "somepojo";
+
+    @Autowired
+    private ESClient esClient;
+
+    @Autowired
+    private JvmMonitorAnalysis analysis;
+
+    private BulkIngestion ingestion;
+
+    @Before
+    public void init() throws InterruptedException {
+        analysis.stop();
+        esClient.deleteIndices("test*");
+        ingestion = createIngestion(100);
+    }
+
+    @After
+    public void close() throws InterruptedException {
+        ingestion.close(10000);
+    }
+
+    @Test
+    public void testFlush() {
+        for (int i = 0; i < 25; i++)
+            ingestion.add(INDEX, DOCTYPE, new SomePojo("name" + i, "description" + i));
+
+        assertTrue(ingestion.flush(10000));
+        assertEquals(0, ingestion.getPending());
+        assertEquals(0, ingestion.getFailed());
+        assertEquals(25, countDocuments());
+    }
+
+    @Test
+    public void testRetry() {
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("a", "A"));
+        assertTrue(ingestion.flush(10000));
+        blockWrites(true);
+
+        // the first attempt fails, and the retry succeeds once the writes are allowed
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("b", "B"));
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("c", "C"));
+        assertFalse(ingestion.flush(0));
+        blockWrites(false);
+        assertTrue(ingestion.flush(10000));
+        assertEquals(0, ingestion.getFailed());
+        assertEquals(3, countDocuments());
+
+        // given up after the max retries
+        blockWrites(true);
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("d", "D"));
+        assertTrue(ingestion.flush(10000));
+        assertEquals(0, ingestion.getPending());
+        assertEquals(1, ingestion.getFailed());
+        blockWrites(false);
+        assertEquals(3, countDocuments());
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("a", "A"));
+        assertTrue(ingestion.flush(10000));
+        blockWrites(true);
+
+        // the retry scheduled before close is still sent
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("b", "B"));
+        assertFalse(ingestion.flush(0));
+        blockWrites(false);
+        ingestion.close(10000);
+        assertEquals(0, ingestion.getPending());
+        assertEquals(0, ingestion.getFailed());
+        assertEquals(2, countDocuments());
+
+        try {
+            ingestion.add(INDEX, DOCTYPE, new SomePojo("c", "C"));
+            fail("The ingestion is closed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNotRetried() {
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("a", "A"));
+        assertTrue(ingestion.flush(10000));
+
+        // the name is mapped as a string, so an object is rejected at once
+        ingestion.add(INDEX, DOCTYPE, Collections.singletonMap("name", Collections.singletonMap("first", "b")));
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("c", "C"));
+        assertTrue(ingestion.flush(10000));
+        assertEquals(1, ingestion.getFailed());
+        assertEquals(2, countDocuments());
+    }
+
+    @Test
+    public void testQueueFull() throws InterruptedException {
+        ingestion.close(10000);
+        ingestion = createIngestion(2);
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("a", "A"));
+        assertTrue(ingestion.flush(10000));
+        blockWrites(true);
+
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("b", "B"));
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("c", "C"));
+        try {
+            ingestion.add(INDEX, DOCTYPE, new SomePojo("d", "D"));
+            fail("The queue should be full");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        blockWrites(false);
+        assertTrue(ingestion.flush(10000));
+        ingestion.add(INDEX, DOCTYPE, new SomePojo("d", "D"));
+        assertTrue(ingestion.flush(10000));
+        assertEquals(4, countDocuments());
+    }
+
+    private BulkIngestion createIngestion(int maxPending) {
+        BulkIngestion.Config config = new BulkIngestion.Config();
+        config.bulkActions = 10;
+        config.flushIntervalMillis = 100;
+        // the bulk is sent in the calling thread, so the first attempt is over when flush(0) returns
+        config.concurrentRequests = 0;
+        config.maxPending = maxPending;
+        config.offerTimeoutMillis = 100;
+        config.maxRetries = 3;
+        return new BulkIngestion(esClient.getIngestClient(), new ObjectMapper(), config, new OperationMetrics());
+    }
+
+    private void blockWrites(boolean block) {
+        esClient.getIngestClient().admin().indices().prepareUpdateSettings(INDEX)
+                .setSettings(Settings.builder().put("index.blocks.write", block))
+                .get();
+    }
+
+    private long countDocuments() {
+        esClient.refreshIndices(INDEX);
+        return esClient.search(INDEX, DOCTYPE, QueryBuilders.matchAllQuery(), 0, null).getHits().getTotalHits();
+    }
+}
@@ -0,0 +1,46 @@
+package com.jflop.server.persistency;
+
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests parsing of the elasticsearch seed nodes, see elasticsearch.hosts property.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class ESClientAddressesTest {
+
+    @Test
+    public void testDefaultPort() throws Exception {
+        List<InetSocketTransportAddress> addresses = ESClient.parseAddresses("localhost", 9300);
+        assertEquals(1, addresses.size());
+        assertEquals(9300, addresses.get(0).getPort());
+        assertTrue(addresses.get(0).address().getAddress().isLoopbackAddress());
+    }
+
+    @Test
+    public void testList() throws Exception {
+        List<InetSocketTransportAddress> addresses = ESClient.parseAddresses(" 127.0.0.1:9301, 127.0.0.1 ,,", 9300);
+        assertEquals(2, addresses.size());
+        assertEquals(9301, addresses.get(0).getPort());
+        assertEquals(9300, addresses.get(1).getPort());
+        assertEquals("127.0.0.1", addresses.get(1).getAddress());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        for (String hosts : new String[]{"", " , ", "localhost:port"}) {
+            try {
+                ESClient.parseAddresses(hosts, 9300);
+                fail("Invalid hosts: '" + hosts + "'");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+    }
+}
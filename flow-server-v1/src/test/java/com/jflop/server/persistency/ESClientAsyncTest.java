@@ -0,0 +1,138 @@
+package com.jflop.server.persistency;
+
+import com.jflop.server.ServerApp;
+import com.jflop.server.background.JvmMonitorAnalysis;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests completion and failures of the non-blocking ESClient API against the test cluster.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ServerApp.class)
+@WebAppConfiguration
+public class ESClientAsyncTest {
+
+    private static final String INDEX = "test-async";
+    private static final String DOCTYPE = "somepojo";
+
+    @Autowired
+    private ESClient esClient;
+
+    @Autowired
+    private JvmMonitorAnalysis analysis;
+
+    @Before
+    public void cleanup() throws InterruptedException {
+        analysis.stop();
+        esClient.deleteIndices("test*");
+    }
+
+    @Test
+    public void testCreateGetUpdate() {
+        PersistentData<SomePojo> created = DocumentStore.await(esClient.createDocumentAsync(INDEX, DOCTYPE, new PersistentData<>("1", 0, new SomePojo("a", "A"))));
+        assertEquals("1", created.id);
+        assertEquals(1, created.version);
+
+        // the dependent stages run on the callback threads, and may issue blocking calls
+        List<String> threads = new ArrayList<>();
+        PersistentData<SomePojo> updated = DocumentStore.await(esClient.getDocumentAsync(INDEX, DOCTYPE, new PersistentData<>("1", 0), SomePojo.class)
+                .thenApply(found -> {
+                    threads.add(Thread.currentThread().getName());
+                    found.source.description = "B";
+                    return esClient.updateDocument(INDEX, DOCTYPE, found);
+                }));
+        assertTrue(threads.get(0).startsWith("jf-es-callback-"));
+        assertEquals(2, updated.version);
+
+        PersistentData<SomePojo> found = DocumentStore.await(esClient.getDocumentAsync(INDEX, DOCTYPE, new PersistentData<>("1", 0), SomePojo.class));
+        assertEquals(new SomePojo("a", "B"), found.source);
+        assertNull(DocumentStore.await(esClient.getDocumentAsync(INDEX, DOCTYPE, new PersistentData<>("2", 0), SomePojo.class)));
+    }
+
+    @Test
+    public void testFailures() {
+        PersistentData<SomePojo> created = esClient.createDocument(INDEX, DOCTYPE, new PersistentData<>("1", 0, new SomePojo("a", "A")));
+        esClient.updateDocument(INDEX, DOCTYPE, created);
+
+        // the ES exception is the cause of the completion exception, and await rethrows it as is
+        CompletableFuture<PersistentData<SomePojo>> stale = esClient.updateDocumentAsync(INDEX, DOCTYPE, created);
+        try {
+            stale.join();
+            fail("The version is stale");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof VersionConflictEngineException);
+        }
+        try {
+            DocumentStore.await(esClient.updateDocumentAsync(INDEX, DOCTYPE, new PersistentData<>("2", 0, new SomePojo("b", "B"))));
+            fail("The document does not exist");
+        } catch (DocumentMissingException e) {
+            // expected
+        }
+
+        // the dependent stages are not called
+        List<Object> called = new ArrayList<>();
+        CompletableFuture<Object> dependent = esClient.updateDocumentAsync(INDEX, DOCTYPE, created).thenApply(called::add);
+        try {
+            DocumentStore.await(dependent);
+            fail("The version is stale");
+        } catch (VersionConflictEngineException e) {
+            // expected
+        }
+        assertTrue(called.isEmpty());
+    }
+
+    @Test
+    public void testCreateIfNotExists() {
+        PersistentData<SomePojo> first = DocumentStore.await(esClient.createDocumentIfNotExistsAsync(INDEX, DOCTYPE, new PersistentData<>("1", 0, new SomePojo("a", "A")), SomePojo.class));
+        PersistentData<SomePojo> second = DocumentStore.await(esClient.createDocumentIfNotExistsAsync(INDEX, DOCTYPE, new PersistentData<>("1", 0, new SomePojo("b", "B")), SomePojo.class));
+        assertEquals(first.version, second.version);
+        assertEquals(new SomePojo("a", "A"), second.source);
+    }
+
+    @Test
+    public void testMissingIndex() {
+        String[] missing = {"test-missing"};
+        assertNull(DocumentStore.await(esClient.getDocumentAsync(missing[0], DOCTYPE, new PersistentData<>("1", 0), SomePojo.class)));
+        assertNull(DocumentStore.await(esClient.getDocumentsAsync(missing[0], DOCTYPE, SomePojo.class, Collections.singleton("1"))));
+        assertTrue(DocumentStore.await(esClient.findAsync(missing, DOCTYPE, QueryBuilders.matchAllQuery(), 10, null, SomePojo.class)).isEmpty());
+        assertEquals(0L, (long) DocumentStore.await(esClient.scrollAsync(missing, DOCTYPE, QueryBuilders.matchAllQuery(), 10, null, SomePojo.class, doc -> fail())));
+    }
+
+    @Test
+    public void testParallelRequests() {
+        List<CompletableFuture<PersistentData<SomePojo>>> futures = new ArrayList<>();
+        for (int i = 0; i < 25; i++)
+            futures.add(esClient.createDocumentAsync(INDEX, DOCTYPE, new PersistentData<>(String.valueOf(i), 0, new SomePojo("name" + i, "description" + i))));
+        DocumentStore.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])));
+        esClient.refreshIndices(INDEX);
+
+        Set<String> ids = new HashSet<>();
+        futures.forEach(future -> ids.add(future.join().id));
+        assertEquals(25, DocumentStore.await(esClient.getDocumentsAsync(INDEX, DOCTYPE, SomePojo.class, ids)).size());
+
+        Queue<String> scrolled = new ConcurrentLinkedQueue<>();
+        long consumed = DocumentStore.await(esClient.scrollAsync(new String[]{INDEX}, DOCTYPE, QueryBuilders.matchAllQuery(), 10, null, SomePojo.class,
+                doc -> scrolled.add(doc.id)));
+        assertEquals(25, consumed);
+        assertEquals(ids, new HashSet<>(scrolled));
+    }
+}
@@ -3,6 +3,7 @@ package com.jflop.server.persistency;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jflop.server.ServerApp;
 import com.jflop.server.background.JvmMonitorAnalysis;
+import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,8 +14,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Map;
+import java.util.*;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.junit.Assert.*;
@@ -119,4 +119,43 @@ public class ESClientTest {
         assertEquals(res.source, original);
     }
 
+    @Test
+    public void testTemplateVersion() {
+        Map<String, String> mappings = new TreeMap<>();
+        mappings.put("a", "{\"a\":{}}");
+        mappings.put("b", "{\"b\":{}}");
+        int version = ESClient.templateVersion("test-idx*", mappings, "test-alias");
+        assertEquals(version, ESClient.templateVersion("test-idx*", new TreeMap<>(mappings), "test-alias"));
+
+        // any part of the template changes the version
+        assertNotEquals(version, ESClient.templateVersion("test-other*", mappings, "test-alias"));
+        assertNotEquals(version, ESClient.templateVersion("test-idx*", mappings));
+        assertNotEquals(version, ESClient.templateVersion("test-idx*", Collections.singletonMap("a", "{\"a\":{}}"), "test-alias"));
+        mappings.put("b", "{\"b\":{\"properties\":{}}}");
+        assertNotEquals(version, ESClient.templateVersion("test-idx*", mappings, "test-alias"));
+    }
+
+    @Test
+    public void testUnchangedTemplateSkipped() {
+        String template = "test-template";
+        List<DocType> docTypes = Collections.singletonList(new DocType("somepojo", "persistency/somePojo.json", SomePojo.class));
+        esClient.putTemplate(template, "test-idx*", docTypes);
+        IndexTemplateMetaData installed = esClient.getTemplates(template).get(0);
+        assertNotNull(installed.version());
+        assertEquals(1, installed.order());
+
+        // mark the installed template, the same version is not put again
+        esClient.getIngestClient().admin().indices().preparePutTemplate(template)
+                .setTemplate("test-idx*").setOrder(2).setVersion(installed.version()).get();
+        esClient.putTemplate(template, "test-idx*", docTypes);
+        assertEquals(2, esClient.getTemplates(template).get(0).order());
+
+        // a changed template replaces the installed one
+        esClient.putTemplate(template, "test-idx*", docTypes, "test-alias");
+        IndexTemplateMetaData changed = esClient.getTemplates(template).get(0);
+        assertEquals(1, changed.order());
+        assertNotEquals(installed.version(), changed.version());
+        assertTrue(changed.aliases().containsKey("test-alias"));
+    }
+
 }
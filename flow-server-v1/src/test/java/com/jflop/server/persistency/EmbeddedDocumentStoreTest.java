@@ -0,0 +1,181 @@
+package com.jflop.server.persistency;
+
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the embedded storage backend without Spring context and Elasticsearch.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class EmbeddedDocumentStoreTest {
+
+    private static final String[] TEST_INDEX = {"test-index"};
+
+    private EmbeddedDocumentStore store;
+
+    @Before
+    public void init() throws IOException {
+        store = new EmbeddedDocumentStore("");
+    }
+
+    @Test
+    public void testCreateUpdateGet() {
+        PersistentData<SomePojo> created = store.createDocument("test-index", "somepojo", new PersistentData<>("1", 0, new SomePojo("a", "b")));
+        assertEquals(1, created.version);
+        assertTrue(store.indexExists("test-index"));
+
+        try {
+            store.createDocument("test-index", "somepojo", new PersistentData<>("1", 0, new SomePojo("c", "d")));
+            fail("Duplicate document created");
+        } catch (VersionConflictEngineException e) {
+            // expected
+        }
+        PersistentData<SomePojo> existing = store.createDocumentIfNotExists("test-index", "somepojo", new PersistentData<>("1", 0, new SomePojo("c", "d")), SomePojo.class);
+        assertEquals(new SomePojo("a", "b"), existing.source);
+
+        PersistentData<SomePojo> updated = store.updateDocument("test-index", "somepojo", new PersistentData<>("1", 1, new SomePojo("a", "c")));
+        assertEquals(2, updated.version);
+        try {
+            store.updateDocument("test-index", "somepojo", new PersistentData<>("1", 1, new SomePojo("a", "d")));
+            fail("Stale version accepted");
+        } catch (VersionConflictEngineException e) {
+            // expected
+        }
+        try {
+            store.updateDocument("test-index", "somepojo", new PersistentData<>("2", 0, new SomePojo("a", "d")));
+            fail("Missing document updated");
+        } catch (DocumentMissingException e) {
+            // expected
+        }
+
+        PersistentData<SomePojo> read = store.getDocument("test-index", "somepojo", new PersistentData<>("1", 0), SomePojo.class);
+        assertEquals(new SomePojo("a", "c"), read.source);
+        assertNull(store.getDocument("test-index", "somepojo", new PersistentData<>("2", 0), SomePojo.class));
+        assertNull(store.getDocument("no-index", "somepojo", new PersistentData<>("1", 0), SomePojo.class));
+
+        assertTrue(store.deleteDocument("test-index", "somepojo", new PersistentData<>("1", 0)));
+        assertNull(store.getDocument("test-index", "somepojo", new PersistentData<>("1", 0), SomePojo.class));
+    }
+
+    @Test
+    public void testQueries() {
+        for (int i = 0; i < 10; i++) {
+            store.ingestDocument("test-index", "event", event("agent" + (i % 2), i));
+        }
+
+        List<PersistentData<Map>> found = store.find(TEST_INDEX, "event", QueryBuilders.termQuery("agentJvm.agentId", "agent1"), 100, null, Map.class);
+        assertEquals(5, found.size());
+
+        found = store.find(TEST_INDEX, "event", QueryBuilders.boolQuery()
+                .must(QueryBuilders.termQuery("agentJvm.agentId", "agent0"))
+                .must(QueryBuilders.rangeQuery("time").gte(2).lt(8)), 100, SortBuilders.fieldSort("time").order(SortOrder.DESC), Map.class);
+        assertEquals(Arrays.asList(6, 4, 2), found.stream().map(doc -> doc.source.get("time")).collect(Collectors.toList()));
+
+        assertEquals(2, store.find(TEST_INDEX, "event", QueryBuilders.matchAllQuery(), 2, null, Map.class).size());
+        assertEquals(0, store.find(TEST_INDEX, "other", QueryBuilders.matchAllQuery(), 100, null, Map.class).size());
+
+        DocumentCursor<Map> cursor = store.scroll(TEST_INDEX, "event", QueryBuilders.rangeQuery("time").gte(5), 3, null, Map.class);
+        assertEquals(5, cursor.getTotalHits());
+        assertEquals(5, cursor.stream().count());
+
+        store.deleteByQuery("test-index", QueryBuilders.rangeQuery("time").lt(5));
+        assertEquals(5, store.find(TEST_INDEX, "event", QueryBuilders.matchAllQuery(), 100, null, Map.class).size());
+    }
+
+    @Test
+    public void testTemplateAliases() {
+        store.putTemplate("test", "test-part-*", Collections.emptyList(), "test-part");
+        store.ingestDocument("test-part-1", "event", event("agent", 1));
+        store.ingestDocument("test-part-2", "event", event("agent", 2));
+        store.setAlias("test-part-current", "test-part-2");
+        store.ingestDocument("test-part-current", "event", event("agent", 3));
+
+        assertEquals(2, store.getIndices("test-part-*").length);
+        assertEquals(3, store.find(new String[]{"test-part"}, "event", QueryBuilders.matchAllQuery(), 100, null, Map.class).size());
+        assertEquals(2, store.find(new String[]{"test-part-2"}, "event", QueryBuilders.matchAllQuery(), 100, null, Map.class).size());
+        assertEquals(0, store.find(new String[]{"no-index"}, "event", QueryBuilders.matchAllQuery(), 100, null, Map.class).size());
+
+        store.deleteIndices("test-part-*");
+        assertFalse(store.indexExists("test-part"));
+    }
+
+    @Test
+    public void testAggregationsNotSupported() {
+        assertFalse(store.supportsAggregations());
+        try {
+            store.aggregate("test-index", "event", QueryBuilders.matchAllQuery(), AggregationBuilders.count("count").field("time"));
+            fail("Aggregations are not supported");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        store.createDocument("test-index", "somepojo", new PersistentData<>("1", 0, new SomePojo("a", "b")));
+        try {
+            store.createDocument("test-index", "somepojo", new PersistentData<>("1", 0, new SomePojo("c", "d")));
+            fail("Duplicate document created");
+        } catch (VersionConflictEngineException e) {
+            // expected
+        }
+        store.getDocument("test-index", "somepojo", new PersistentData<>("1", 0), SomePojo.class);
+        store.find(TEST_INDEX, "somepojo", QueryBuilders.matchAllQuery(), 10, null, SomePojo.class);
+
+        Map<String, OperationMetrics.Snapshot> snapshot = store.getMetrics().getSnapshot().stream()
+                .collect(Collectors.toMap(stats -> stats.operation + "/" + stats.index, stats -> stats));
+        assertEquals(2, snapshot.get("create/test-index").count);
+        assertEquals(1, snapshot.get("create/test-index").conflicts);
+        assertEquals(1, snapshot.get("get/test-index").count);
+        assertEquals(1, snapshot.get("search/test-index").count);
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File dir = Files.createTempDirectory("embedded-store").toFile();
+        try {
+            EmbeddedDocumentStore persistent = new EmbeddedDocumentStore(dir.getPath());
+            persistent.putTemplate("test", "test-part-*", Collections.emptyList(), "test-part");
+            persistent.createDocument("test-part-1", "somepojo", new PersistentData<>("1", 0, new SomePojo("a", "b")));
+            persistent.updateDocument("test-part-1", "somepojo", new PersistentData<>("1", 0, new SomePojo("a", "c")));
+            persistent.destroy();
+
+            EmbeddedDocumentStore reloaded = new EmbeddedDocumentStore(dir.getPath());
+            PersistentData<SomePojo> read = reloaded.getDocument("test-part", "somepojo", new PersistentData<>("1", 0), SomePojo.class);
+            assertEquals(2, read.version);
+            assertEquals(new SomePojo("a", "c"), read.source);
+            reloaded.destroy();
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            dir.delete();
+        }
+    }
+
+    private static Map<String, Object> event(String agentId, int time) {
+        Map<String, Object> agentJvm = new HashMap<>();
+        agentJvm.put("accountId", "account");
+        agentJvm.put("agentId", agentId);
+        agentJvm.put("jvmId", "jvm");
+        Map<String, Object> res = new HashMap<>();
+        res.put("agentJvm", agentJvm);
+        res.put("time", time);
+        return res;
+    }
+}
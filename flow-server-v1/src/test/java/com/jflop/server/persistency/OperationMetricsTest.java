@@ -0,0 +1,61 @@
+package com.jflop.server.persistency;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the latency histogram and the grouping of the storage operation metrics.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class OperationMetricsTest {
+
+    @Test
+    public void testBuckets() {
+        long[] values = {0, 1, 3, 4, 7, 8, 9, 15, 16, 1000, 123456789L, 1L << 40};
+        for (long value : values) {
+            int bucket = OperationMetrics.bucket(value);
+            long bound = OperationMetrics.bucketBound(bucket);
+            assertTrue(value + " above the bucket bound " + bound, value <= bound);
+            assertTrue(value + " is not accurate in the bucket bound " + bound, bound - value <= value / 4);
+        }
+        assertTrue(OperationMetrics.bucket(1000) < OperationMetrics.bucket(1300));
+    }
+
+    @Test
+    public void testIndexNames() {
+        assertEquals("jf-raw-data", OperationMetrics.indexName("jf-raw-data-2026.10.18-13"));
+        assertEquals("jf-processed-data", OperationMetrics.indexName("jf-processed-data-2026.10.18"));
+        assertEquals("jf-metadata", OperationMetrics.indexName("jf-metadata"));
+        assertEquals("jf-metadata,jf-raw-data", OperationMetrics.indexName("jf-raw-data-2026.10.18-13,jf-raw-data-2026.10.18-14,jf-metadata"));
+    }
+
+    @Test
+    public void testSnapshot() {
+        OperationMetrics metrics = new OperationMetrics();
+        metrics.start("update", "jf-agent-jvm", 100).conflicted();
+        metrics.start("update", "jf-agent-jvm", 100).succeeded();
+        metrics.start("get", "jf-agent-jvm", 0).failed();
+        metrics.start("get", "jf-agent-jvm", 0);
+
+        List<OperationMetrics.Snapshot> snapshot = metrics.getSnapshot();
+        assertEquals(2, snapshot.size());
+
+        OperationMetrics.Snapshot get = snapshot.get(0);
+        assertEquals("get", get.operation);
+        assertEquals(1, get.count);
+        assertEquals(1, get.errors);
+        assertEquals(1, get.inFlight);
+
+        OperationMetrics.Snapshot update = snapshot.get(1);
+        assertEquals("jf-agent-jvm", update.index);
+        assertEquals(2, update.count);
+        assertEquals(1, update.conflicts);
+        assertEquals(200, update.bytes);
+        assertTrue(update.p50Millis <= update.p99Millis && update.p99Millis <= update.maxMillis);
+    }
+}
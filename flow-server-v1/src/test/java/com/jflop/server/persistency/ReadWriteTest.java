@@ -22,6 +22,7 @@ import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
  * TODO: Document!
@@ -63,11 +64,22 @@ public class ReadWriteTest {
         PersistentData<TaskLockData> created = lockIndex.createTaskLock(taskLock);
         assertNotNull(created);
         lockIndex.refreshIndex();
-        Collection<TaskLockData> vacantLocks = lockIndex.getVacantLocks(taskName);
-        assertNotNull(vacantLocks);
-        assertEquals(1, vacantLocks.size());
-        TaskLockData vacantLock = vacantLocks.iterator().next();
-        assertEquals(new Date(0), vacantLock.lockedUntil);
+        Collection<PersistentData<TaskLockData>> locks = lockIndex.getTaskLocks(taskName, Collections.singleton(taskLock.partition));
+        assertNotNull(locks);
+        assertEquals(1, locks.size());
+        TaskLockData lock = locks.iterator().next().source;
+        assertEquals(taskLock.lockId, lock.lockId);
+        assertEquals(0, lock.fencingToken);
+
+        PersistentData<TaskLockData> saved = lockIndex.saveTaskState(created, 5);
+        assertNotNull(saved);
+        assertNull(lockIndex.saveTaskState(new PersistentData<>(created.id, created.version, taskLock), 4));
+
+        // a stale copy does not override the newer state even with a higher fencing token
+        assertNull(lockIndex.saveTaskState(new PersistentData<>(created.id, created.version, taskLock), 6));
+        PersistentData<TaskLockData> stored = lockIndex.getTaskLock(created.id);
+        assertEquals(saved.version, stored.version);
+        assertEquals(5, stored.source.fencingToken);
     }
 
     @Test
@@ -0,0 +1,130 @@
+package com.jflop.server.persistency;
+
+import com.jflop.server.ServerApp;
+import com.jflop.server.background.JvmMonitorAnalysis;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the scroll cursor paging, exhaustion and release of the scroll contexts against the test cluster.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ServerApp.class)
+@WebAppConfiguration
+public class ScrollCursorTest {
+
+    private static final String INDEX = "test-scroll";
+    private static final String DOCTYPE = "somepojo";
+
+    @Autowired
+    private ESClient esClient;
+
+    @Autowired
+    private JvmMonitorAnalysis analysis;
+
+    @Before
+    public void init() throws InterruptedException {
+        analysis.stop();
+        esClient.deleteIndices("test*");
+        for (int i = 0; i < 25; i++)
+            esClient.createDocument(INDEX, DOCTYPE, new PersistentData<>(new SomePojo("name" + (100 + i), "description" + i)));
+        esClient.refreshIndices(INDEX);
+    }
+
+    @Test
+    public void testExhaustion() {
+        long scrollRequests = scrollRequests();
+        ScrollCursor<SomePojo> cursor = scroll();
+        assertEquals(25, cursor.getTotalHits());
+
+        int count = 0;
+        String prev = "";
+        while (cursor.hasNext()) {
+            SomePojo pojo = cursor.next().source;
+            assertTrue(pojo.name.compareTo(prev) > 0);
+            prev = pojo.name;
+            count++;
+        }
+        assertEquals(25, count);
+
+        // the continuations of the scroll are recorded under the scrolled index
+        assertEquals(scrollRequests + 3, scrollRequests());
+
+        // the scroll is released at the end
+        assertEquals(0, openScrolls());
+        assertFalse(cursor.hasNext());
+        try {
+            cursor.next();
+            fail("The cursor is exhausted");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClose() {
+        ScrollCursor<SomePojo> cursor = scroll();
+        for (int i = 0; i < 3; i++)
+            assertNotNull(cursor.next());
+        assertTrue(openScrolls() > 0);
+
+        cursor.close();
+        assertEquals(0, openScrolls());
+        cursor.close();
+    }
+
+    @Test
+    public void testStream() {
+        List<SomePojo> first;
+        try (Stream<PersistentData<SomePojo>> stream = scroll().stream()) {
+            first = stream.limit(15).map(doc -> doc.source).collect(Collectors.toList());
+        }
+        assertEquals(15, first.size());
+        assertEquals("name100", first.get(0).name);
+        assertEquals(0, openScrolls());
+    }
+
+    @Test
+    public void testMissingIndex() {
+        ScrollCursor<SomePojo> cursor = esClient.scroll(new String[]{"test-missing"}, DOCTYPE, QueryBuilders.matchAllQuery(), 10, null, SomePojo.class);
+        assertEquals(0, cursor.getTotalHits());
+        assertFalse(cursor.hasNext());
+        cursor.close();
+    }
+
+    // the index is created by the dynamic mapping, which adds a keyword field to each string
+    private ScrollCursor<SomePojo> scroll() {
+        return esClient.scroll(new String[]{INDEX}, DOCTYPE, QueryBuilders.matchAllQuery(), 10,
+                SortBuilders.fieldSort("name.keyword").order(SortOrder.ASC), SomePojo.class);
+    }
+
+    private long scrollRequests() {
+        return esClient.getMetrics().getSnapshot().stream()
+                .filter(stats -> stats.operation.equals("scroll") && stats.index.equals(INDEX))
+                .mapToLong(stats -> stats.count)
+                .sum();
+    }
+
+    private long openScrolls() {
+        return esClient.getIngestClient().admin().indices().prepareStats(INDEX).setSearch(true).get()
+                .getTotal().getSearch().getOpenContexts();
+    }
+}
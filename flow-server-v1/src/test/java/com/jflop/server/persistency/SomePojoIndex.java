@@ -13,7 +13,7 @@ public class SomePojoIndex extends IndexTemplate {
 
     public SomePojoIndex(ESClient client) {
         super("test-template", "test-somepojo*", new DocType(DOCTYPE, "persistency/somePojo.json", SomePojo.class));
-        this.esClient = client;
+        this.store = client;
     }
 
     @Override
@@ -0,0 +1,108 @@
+package com.jflop.server.persistency;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests partition naming, roll-over of the write alias, and retention on the embedded storage backend.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class TimePartitionedIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private EmbeddedDocumentStore store;
+    private TestIndex index;
+
+    @Before
+    public void init() throws IOException {
+        store = new EmbeddedDocumentStore("");
+        index = new TestIndex();
+        index.store = store;
+        store.putTemplate("test-ts-template", "test-ts-*", Collections.emptyList(), "test-ts");
+    }
+
+    @Test
+    public void testPartitionNames() {
+        long time = LocalDateTime.of(2017, 1, 31, 13, 45).toInstant(ZoneOffset.UTC).toEpochMilli();
+        assertEquals("test-ts-2017.01.31-13", index.partitionName(time));
+
+        String[] names = index.partitionNames(new Date(time - HOUR), new Date(time + HOUR));
+        assertArrayEquals(new String[]{"test-ts-2017.01.31-12", "test-ts-2017.01.31-13", "test-ts-2017.01.31-14"}, names);
+
+        // reversed or too wide ranges fall back to the read alias
+        assertArrayEquals(new String[]{"test-ts"}, index.partitionNames(new Date(time), new Date(time - HOUR)));
+        assertArrayEquals(new String[]{"test-ts"}, index.partitionNames(new Date(time - 1000 * HOUR), new Date(time)));
+    }
+
+    @Test
+    public void testWriteIndex() {
+        long now = System.currentTimeMillis();
+        assertEquals(index.partitionName(now - 2 * HOUR), index.writeIndexName(event(now - 2 * HOUR)));
+        assertEquals(index.partitionName(now + HOUR), index.writeIndexName(event(now + HOUR)));
+
+        // skewed agent clock goes to the current partition
+        assertEquals("test-ts-current", index.writeIndexName(event(now - 10 * HOUR)));
+        assertEquals("test-ts-current", index.writeIndexName(event(now + 3 * HOUR)));
+        assertEquals("test-ts-current", index.writeIndexName(new HashMap<>()));
+    }
+
+    @Test
+    public void testMaintainPartitions() {
+        long now = System.currentTimeMillis();
+        String expired = index.partitionName(now - 10 * HOUR);
+        String retained = index.partitionName(now - 2 * HOUR);
+        store.createIndexIfNotExists(expired);
+        store.createIndexIfNotExists(retained);
+        store.createIndexIfNotExists("test-ts-other");
+
+        index.maintainPartitions();
+        Set<String> partitions = new HashSet<>(Arrays.asList(store.getIndices("test-ts-*")));
+        assertEquals(new HashSet<>(Arrays.asList(retained, index.partitionName(now), index.partitionName(now + HOUR), "test-ts-other")), partitions);
+
+        index.ingestDocuments(Collections.singletonList(new HashMap<>()));
+        assertEquals(1, store.find(new String[]{index.partitionName(now)}, "event", QueryBuilders.matchAllQuery(), 10, null, Map.class).size());
+        assertEquals(1, index.find(QueryBuilders.matchAllQuery(), 10, HashMap.class, null).size());
+    }
+
+    @Test
+    public void testDropLegacyIndex() {
+        store.createDocument("test-ts", "event", new PersistentData<>("1", 0, event(System.currentTimeMillis())));
+        index.dropLegacyIndex();
+        assertFalse(store.indexExists("test-ts"));
+
+        // once partitioned, the read alias is kept
+        index.maintainPartitions();
+        index.dropLegacyIndex();
+        assertTrue(store.indexExists("test-ts"));
+    }
+
+    private static Map<String, Object> event(long time) {
+        Map<String, Object> res = new HashMap<>();
+        res.put("time", time);
+        return res;
+    }
+
+    private static class TestIndex extends TimePartitionedIndex {
+
+        TestIndex() {
+            super("test-ts", "test.ts", Period.HOURLY, 5, new DocType("event", "persistency/event.json", HashMap.class));
+        }
+
+        @Override
+        protected Date partitionTime(Object source) {
+            Object time = ((Map) source).get("time");
+            return time == null ? null : new Date((Long) time);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.jflop.server.runtime;
+
+import com.jflop.server.admin.data.AgentJVM;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests issue and verification of the agent tokens.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class AgentTokenServiceTest {
+
+    private static final AgentJVM AGENT_JVM = new AgentJVM("testAccount", "testAgent", "testJVM");
+    private static final String[] FEATURES = {"testFeature"};
+
+    private AgentTokenService tokenService;
+
+    @Before
+    public void init() {
+        tokenService = new AgentTokenService("testSecret", 24);
+        tokenService.afterPropertiesSet();
+    }
+
+    @Test
+    public void testValidToken() {
+        String token = tokenService.issueToken(AGENT_JVM, FEATURES);
+        AgentTokenService.AgentToken verified = tokenService.verifyToken(token, AGENT_JVM.agentId, AGENT_JVM.jvmId);
+        assertEquals(AGENT_JVM, verified.getAgentJvm());
+        assertArrayEquals(FEATURES, verified.enabledFeatures);
+    }
+
+    @Test
+    public void testInvalidToken() {
+        String token = tokenService.issueToken(AGENT_JVM, FEATURES);
+        assertInvalid(token, AGENT_JVM.agentId, "otherJVM");
+        assertInvalid(token, "otherAgent", AGENT_JVM.jvmId);
+        assertInvalid(token.substring(1), AGENT_JVM.agentId, AGENT_JVM.jvmId);
+        assertInvalid("garbage", AGENT_JVM.agentId, AGENT_JVM.jvmId);
+
+        // token signed with a different secret
+        AgentTokenService otherService = new AgentTokenService("otherSecret", 24);
+        otherService.afterPropertiesSet();
+        assertInvalid(otherService.issueToken(AGENT_JVM, FEATURES), AGENT_JVM.agentId, AGENT_JVM.jvmId);
+
+        // token issued before the features were added to it
+        assertInvalid(tokenService.issueToken(AGENT_JVM, null), AGENT_JVM.agentId, AGENT_JVM.jvmId);
+    }
+
+    @Test
+    public void testExpiredToken() {
+        AgentTokenService expiringService = new AgentTokenService("testSecret", -1);
+        expiringService.afterPropertiesSet();
+        assertInvalid(expiringService.issueToken(AGENT_JVM, FEATURES), AGENT_JVM.agentId, AGENT_JVM.jvmId);
+    }
+
+    @Test
+    public void testMissingSecret() {
+        try {
+            new AgentTokenService().afterPropertiesSet();
+            fail("Started without the secret");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void assertInvalid(String token, String agentId, String jvmId) {
+        try {
+            tokenService.verifyToken(token, agentId, jvmId);
+            fail("Invalid token accepted");
+        } catch (AgentTokenService.InvalidTokenException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.jflop.server.runtime;
+
+import com.jflop.server.ServerApp;
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.background.JvmMonitorAnalysis;
+import com.jflop.server.persistency.DocumentStore;
+import com.jflop.server.runtime.data.InstrumentationMetadata;
+import com.jflop.server.runtime.data.Metadata;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batched read and the cache of the class metadata used to instrument the thread dump methods.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ServerApp.class)
+@WebAppConfiguration
+public class ClassMetadataTest {
+
+    private static final AgentJVM AGENT_JVM = new AgentJVM("testAccount", "testAgent", "testJVM");
+
+    @Autowired
+    private JvmMonitorAnalysis analysis;
+
+    @Autowired
+    private MetadataIndex metadataIndex;
+
+    @Autowired
+    private DocumentStore store;
+
+    @Before
+    public void cleanup() throws InterruptedException {
+        analysis.stop();
+        metadataIndex.deleteIndex();
+    }
+
+    @Test
+    public void testBatchedRead() {
+        metadataIndex.addMetadata(Arrays.asList(classMetadata("a.A", "m1"), blacklisted("a.B")));
+
+        // the unknown class is skipped
+        Map<String, InstrumentationMetadata> found = metadataIndex.getClassMetadata(AGENT_JVM, Arrays.asList("a.A", "a.B", "a.C"), false);
+        assertEquals(new HashSet<>(Arrays.asList("a.A", "a.B")), found.keySet());
+        assertEquals(Collections.singleton("m1"), found.get("a.A").methodSignatures.keySet());
+        assertTrue(found.get("a.B").isBlacklisted);
+
+        // drop the stored documents behind the cache: the known classes come from the cache, the reload finds nothing
+        store.deleteIndices(metadataIndex.indexName());
+        assertEquals(2, metadataIndex.getClassMetadata(AGENT_JVM, Arrays.asList("a.A", "a.B", "a.C"), false).size());
+        assertTrue(metadataIndex.getClassMetadata(AGENT_JVM, Arrays.asList("a.A", "a.B"), true).isEmpty());
+    }
+
+    @Test
+    public void testReportedSignatures() {
+        metadataIndex.addMetadata(Collections.singletonList(classMetadata("a.A", "m1")));
+        assertEquals(1, metadataIndex.getClassMetadata(AGENT_JVM, Collections.singleton("a.A"), false).get("a.A").methodSignatures.size());
+
+        // the reported signatures replace the cached class
+        metadataIndex.addMetadata(Collections.singletonList(classMetadata("a.A", "m2")));
+        Map<String, InstrumentationMetadata> found = metadataIndex.getClassMetadata(AGENT_JVM, Collections.singleton("a.A"), false);
+        assertEquals(new HashSet<>(Arrays.asList("m1", "m2")), found.get("a.A").methodSignatures.keySet());
+    }
+
+    private static Metadata classMetadata(String className, String methodName) {
+        InstrumentationMetadata res = new InstrumentationMetadata(AGENT_JVM, className);
+        res.setMethodSignatures(className, Collections.singletonMap(methodName, Collections.singletonList(methodName + "()V")));
+        res.time = new Date();
+        return res;
+    }
+
+    private static Metadata blacklisted(String className) {
+        InstrumentationMetadata res = new InstrumentationMetadata(AGENT_JVM, className);
+        res.blacklistClass(className, "test");
+        res.time = new Date();
+        return res;
+    }
+}
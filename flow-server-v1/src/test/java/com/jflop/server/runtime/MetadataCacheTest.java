@@ -0,0 +1,108 @@
+package com.jflop.server.runtime;
+
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.persistency.PersistentData;
+import com.jflop.server.runtime.data.InstrumentationMetadata;
+import com.jflop.server.runtime.data.Metadata;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the merge decisions of the metadata cache.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MetadataCacheTest {
+
+    private static final AgentJVM AGENT_JVM = new AgentJVM("testAccount", "testAgent", "testJVM");
+
+    @Test
+    public void testMerge() {
+        MetadataCache cache = new MetadataCache(10, 60000);
+        InstrumentationMetadata metadata = classMetadata("a.B", "m1", 1000);
+        assertNull(cache.merge(metadata));
+
+        cache.put(new PersistentData<>(metadata.getDocumentId(), 3, metadata));
+
+        // the same content is not written
+        MetadataCache.Merged merged = cache.merge(classMetadata("a.B", "m1", 2000));
+        assertFalse(merged.changed);
+        assertEquals(3, merged.doc.version);
+
+        // new method is written
+        merged = cache.merge(classMetadata("a.B", "m2", 2000));
+        assertTrue(merged.changed);
+        assertEquals(3, merged.doc.version);
+        assertEquals(2, ((InstrumentationMetadata) merged.doc.source).methodSignatures.size());
+
+        // older version does not replace the cached one
+        cache.put(new PersistentData<>(metadata.getDocumentId(), 2, classMetadata("a.B", "m3", 1000)));
+        assertFalse(cache.merge(classMetadata("a.B", "m1", 1000)).changed);
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testTimeResolution() {
+        MetadataCache cache = new MetadataCache(10, 60000);
+        TimedMetadata metadata = new TimedMetadata("id", "value", 1000);
+        cache.put(new PersistentData<>(metadata.getDocumentId(), 1, metadata));
+
+        assertFalse(cache.merge(new TimedMetadata("id", "value", 2000)).changed);
+        assertTrue(cache.merge(new TimedMetadata("id", "value", 100000)).changed);
+        assertTrue(cache.merge(new TimedMetadata("id", "other", 2000)).changed);
+    }
+
+    @Test
+    public void testEviction() {
+        MetadataCache cache = new MetadataCache(2, 0);
+        Metadata first = classMetadata("a.A", "m", 0);
+        cache.put(new PersistentData<>(first.getDocumentId(), 1, first));
+        for (String className : Arrays.asList("a.B", "a.C")) {
+            Metadata metadata = classMetadata(className, "m", 0);
+            cache.put(new PersistentData<>(metadata.getDocumentId(), 1, metadata));
+        }
+        assertEquals(2, cache.size());
+        assertNull(cache.merge(first));
+    }
+
+    public static class TimedMetadata extends Metadata {
+        public String id;
+        public String value;
+
+        public TimedMetadata() {
+        }
+
+        TimedMetadata(String id, String value, long time) {
+            this.id = id;
+            this.value = value;
+            this.time = new Date(time);
+        }
+
+        @Override
+        public String getDocumentId() {
+            return id;
+        }
+
+        @Override
+        public boolean mergeTo(Metadata existing) {
+            existing.time = time;
+            ((TimedMetadata) existing).value = value;
+            return true;
+        }
+    }
+
+    private static InstrumentationMetadata classMetadata(String className, String method, long time) {
+        InstrumentationMetadata res = new InstrumentationMetadata(AGENT_JVM, className);
+        res.methodSignatures = Collections.singletonMap(method, Collections.singletonList("()V"));
+        res.time = new Date(time);
+        return res;
+    }
+}
@@ -0,0 +1,74 @@
+package com.jflop.server.runtime;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the fairness and the load shedding of the report queue.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class ReportQueueTest {
+
+    @Test
+    public void testFairnessAndShedding() throws Exception {
+        ReportQueue queue = new ReportQueue(1, 4, 2);
+        List<String> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+
+        queue.submit("a", () -> {
+            started.countDown();
+            await(release);
+            processed.add("a1");
+            done.countDown();
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        for (String name : Arrays.asList("a2", "a3", "b1")) {
+            queue.submit(name.substring(0, 1), () -> {
+                processed.add(name);
+                done.countDown();
+            });
+        }
+
+        // the agent limit is reached, the queue limit is not
+        assertRejected(queue, "a");
+        queue.submit("c", done::countDown);
+        assertRejected(queue, "d");
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), processed);
+        assertEquals(2L, queue.getStats().get("rejected"));
+        queue.destroy();
+    }
+
+    private static void assertRejected(ReportQueue queue, String agentKey) {
+        try {
+            queue.submit(agentKey, () -> {
+            });
+            fail("Report accepted by the full queue");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
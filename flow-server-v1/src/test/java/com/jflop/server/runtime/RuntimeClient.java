@@ -29,13 +29,18 @@ public class RuntimeClient {
 
     private ObjectMapper mapper = new ObjectMapper();
 
+    private String token;
+
     public RuntimeClient(HttpTestClient httpClient, String agentId) {
         this.httpClient = httpClient;
         this.agentId = agentId;
     }
 
     public void ping() throws Exception {
+        if (token == null) token = obtainToken();
+
         HttpTestClient.Request request = new HttpTestClient.Request(HttpMethod.POST, RuntimeController.RUNTIME_API_PATH + "/" + agentId + "/" + jvmId);
+        request.header(AgentTokenService.TOKEN_HEADER, token);
         request.header("Content-Type", MediaType.APPLICATION_JSON_VALUE);
         request.header("Accept", MediaType.APPLICATION_JSON_VALUE);
         request.body(mapper.writeValueAsString(content));
@@ -46,4 +51,12 @@ public class RuntimeClient {
         System.out.println(response.getContentAsString());
 
     }
+
+    private String obtainToken() throws Exception {
+        HttpTestClient.Request request = new HttpTestClient.Request(HttpMethod.POST, RuntimeController.RUNTIME_API_PATH + "/" + agentId + "/" + jvmId + "/token");
+        request.header("Accept", MediaType.APPLICATION_JSON_VALUE);
+        HttpTestClient.Response response = httpClient.send(request);
+        assertEquals(response.getContentAsString(), 200, response.statusCode);
+        return (String) mapper.readValue(response.getContentAsString(), Map.class).get("token");
+    }
 }
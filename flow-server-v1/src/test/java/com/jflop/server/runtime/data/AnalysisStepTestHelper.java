@@ -105,7 +105,7 @@ public class AnalysisStepTestHelper {
                 }
             }
             List<ValuePair<MethodCall, Integer>> path = new ArrayList<>();
-            boolean found = flowSummary.roots.stream().anyMatch(root -> flowSummary.findPath(root, trace, trace.length - 1) != null);
+            boolean found = flowSummary.getRoots().stream().anyMatch(root -> flowSummary.findPath(root, trace, trace.length - 1) != null);
             assertEquals("Thread " + threadMetadata.getDocumentId() + " covered=" + covered + ", but found=" + found, covered, found);
         }
     }
@@ -118,14 +118,16 @@ public class AnalysisStepTestHelper {
         }
 
         Set<String> allFlows = new HashSet<>();
-        summary.roots.forEach(root -> root.flows.forEach(flow -> allFlows.add(flow.flowId)));
+        summary.getRoots().forEach(root -> root.flows.forEach(flow -> allFlows.add(flow.flowId)));
         String[] array = allFlows.toArray(new String[allFlows.size()]);
 
+        float[][] distances = summary.calculateDistances(Arrays.asList(array));
         for (int i = 0; i < array.length; i++) {
             String flow1 = array[i];
             for (int j = i + 1; j < array.length; j++) {
                 String flow2 = array[j];
-                float distance = summary.calculateDistance(flow1, flow2);
+                float distance = distances[i][j];
+                assertEquals(summary.calculateDistance(flow1, flow2), distance, 0.0001);
                 System.out.println(flow1 + " - " + flow2 + " = " + distance);
             }
         }
@@ -195,7 +197,7 @@ public class AnalysisStepTestHelper {
 
             MethodFlowStatistics flowStatistics = new MethodFlowStatistics();
             for (String flowId : found) {
-                for (MethodCall root : flowSummary.roots) {
+                for (MethodCall root : flowSummary.getRoots()) {
                     for (MethodFlow methodFlow : root.flows) {
                         if (methodFlow.flowId.equals(flowId)) {
                             flowStatistics.merge(methodFlow.statistics);
@@ -0,0 +1,102 @@
+package com.jflop.server.runtime.data;
+
+import org.jflop.config.MethodConfiguration;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests grouping of the flows recorded with different instrumentation.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class FlowEquivalenceIndexTest {
+
+    private static final Object A = method("A");
+    private static final Object B = method("B");
+    private static final Object C = method("C");
+    private static final Object D = method("D");
+
+    @Test
+    public void testFingerprint() {
+        FlowMetadata flow = flow("f1", Arrays.asList(A, B, C), "A[B[C],B[C]]");
+        FlowMetadata same = flow("f2", Arrays.asList(A, B, C), "A[B[C],B[C]]");
+        FlowMetadata other = flow("f3", Arrays.asList(A, B, C), "A[B]");
+
+        assertEquals(flow.getFingerprint(Arrays.asList(A, B, C)), same.getFingerprint(Arrays.asList(A, B, C)));
+        assertNotEquals(flow.getFingerprint(Arrays.asList(A, B, C)), other.getFingerprint(Arrays.asList(A, B, C)));
+        assertTrue(FlowMetadata.maybeSame(flow, same));
+
+        // C is collapsed, and the repeated calls of B are merged
+        assertEquals(flow.getFingerprint(Collections.singletonList(B)), other.getFingerprint(Collections.singletonList(B)));
+        assertEquals(flow.getFingerprint(Arrays.asList(B, D)), flow.getFingerprint(Collections.singletonList(B)));
+    }
+
+    @Test
+    public void testMaybeSame() {
+        FlowMetadata before = flow("f1", Arrays.asList(A, B), "A[B]");
+        FlowMetadata after = flow("f2", Arrays.asList(A, B, C), "A[B[C]]");
+        FlowMetadata different = flow("f3", Arrays.asList(A, B, C), "A[C]");
+        FlowMetadata unrelated = flow("f4", Collections.singletonList(D), "D");
+
+        assertTrue(FlowMetadata.maybeSame(before, after));
+        assertTrue(FlowMetadata.maybeSame(after, before));
+        assertFalse(FlowMetadata.maybeSame(before, different));
+        assertTrue(FlowMetadata.maybeSame(before, unrelated));
+    }
+
+    @Test
+    public void testGroups() {
+        FlowEquivalenceIndex index = new FlowEquivalenceIndex();
+        index.add(flow("f1", Arrays.asList(A, B, C), "A[B[C]]"));
+        index.add(flow("f2", Arrays.asList(A, B, C), "A[C]"));
+        assertEquals(2, index.getNumGroups());
+
+        // narrows the common instrumentation, f1 and f3 become the same after collapsing C
+        index.add(flow("f3", Arrays.asList(A, B), "A[B]"));
+        assertEquals(2, index.getNumGroups());
+        assertEquals(new HashSet<>(Arrays.asList("f1", "f3")), index.getEquivalentFlows("f3"));
+        assertEquals(Collections.singleton("f2"), index.getEquivalentFlows("f2"));
+
+        index.remove("f1");
+        assertEquals(Collections.singleton("f3"), index.getEquivalentFlows("f3"));
+        assertNull(index.getGroup("f1"));
+        assertTrue(index.getEquivalentFlows("f1").isEmpty());
+    }
+
+    private static Object method(String name) {
+        return new MethodConfiguration("com/acme/" + name, "run", "()V").asJson();
+    }
+
+    /**
+     * @param tree flow tree in the form "A[B[C],D]", where each letter is the method com/acme/X.run
+     */
+    private static FlowMetadata flow(String flowId, List instrumentation, String tree) {
+        FlowMetadata res = new FlowMetadata();
+        res.instrumentedMethodsJson = new ArrayList(instrumentation);
+        res.setRootFlowStr(toJson(flowId, tree));
+        return res;
+    }
+
+    private static String toJson(String flowId, String tree) {
+        StringBuilder json = new StringBuilder();
+        for (char c : tree.toCharArray()) {
+            if (Character.isLetter(c)) {
+                if (json.length() > 0 && json.charAt(json.length() - 1) == '}') json.append(',');
+                json.append("{\"flowId\":\"").append(flowId).append("\",\"className\":\"com/acme/").append(c)
+                        .append("\",\"fileName\":\"").append(c).append(".java\",\"methodName\":\"run\",\"methodDescriptor\":\"()V\"")
+                        .append(",\"firstLine\":\"1\",\"returnLine\":\"2\"");
+            } else if (c == '[') {
+                json.append(",\"subflows\":[");
+            } else if (c == ']') {
+                json.append("}]");
+            } else if (c == ',') {
+                json.append('}');
+            }
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.jflop.server.runtime.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the payload fields stored in either encoding.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class PayloadTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @After
+    public void resetEncoding() {
+        Payload.setBinaryEncoding(false);
+    }
+
+    @Test
+    public void testJsonEncoding() throws Exception {
+        Map json = MAPPER.convertValue(liveThreads(), Map.class);
+        assertNotNull(json.get("liveThreadsStr"));
+        assertFalse(json.containsKey("liveThreadsBin"));
+
+        LiveThreadsData read = MAPPER.convertValue(json, LiveThreadsData.class);
+        assertEquals(liveThreads().getLiveThreads(), read.getLiveThreads());
+    }
+
+    @Test
+    public void testBinaryEncoding() throws Exception {
+        Payload.setBinaryEncoding(true);
+        Map json = MAPPER.convertValue(liveThreads(), Map.class);
+        assertNotNull(json.get("liveThreadsBin"));
+        assertFalse(json.containsKey("liveThreadsStr"));
+
+        LiveThreadsData read = MAPPER.convertValue(json, LiveThreadsData.class);
+        assertEquals(liveThreads().getLiveThreads(), read.getLiveThreads());
+    }
+
+    @Test
+    public void testEncodingChange() throws Exception {
+        String stored = MAPPER.writeValueAsString(liveThreads());
+
+        // the stored JSON is readable and is re-encoded in the new format
+        Payload.setBinaryEncoding(true);
+        LiveThreadsData read = MAPPER.readValue(stored, LiveThreadsData.class);
+        Map json = MAPPER.convertValue(read, Map.class);
+        assertNotNull(json.get("liveThreadsBin"));
+        assertEquals(liveThreads().getLiveThreads(), MAPPER.convertValue(json, LiveThreadsData.class).getLiveThreads());
+    }
+
+    @Test
+    public void testPassThrough() throws Exception {
+        String stored = MAPPER.writeValueAsString(liveThreads());
+        LiveThreadsData read = MAPPER.readValue(stored, LiveThreadsData.class);
+        String str = read.getLiveThreadsStr();
+
+        // not decoded value is written as is
+        assertEquals(MAPPER.readValue(stored, Map.class).get("liveThreadsStr"), str);
+        assertSame(str, read.getLiveThreadsStr());
+    }
+
+    private static LiveThreadsData liveThreads() {
+        LiveThreadsData res = new LiveThreadsData();
+        List threads = Arrays.asList(Collections.singletonMap("threadId", 1), Collections.singletonMap("threadId", 2));
+        res.init(threads);
+        return res;
+    }
+}
@@ -0,0 +1,120 @@
+package com.jflop.server.runtime.data.metric;
+
+import com.jflop.server.runtime.data.FlowOccurrenceData;
+import com.jflop.server.runtime.data.LoadData;
+import com.jflop.server.runtime.data.ThreadOccurrenceData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests aggregation of the metric sources into columns.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MetricMetadataTest {
+
+    @Test
+    public void testColumns() {
+        MetricMetadata metadata = new MetricMetadata();
+        MetricAccumulator observation = new MetricAccumulator();
+        metadata.aggregateLoad(Arrays.asList(load(0.2f, 100), load(0.4f, 300)), observation);
+        metadata.aggregateFlows(Collections.singletonList(flow("f1", 4, 20, 2f)), observation);
+
+        int cpu = metadata.sourceIDs.get("load:cpu").intValue();
+        int mem = metadata.sourceIDs.get("load:mem").intValue();
+        int flow = metadata.sourceIDs.get("f1:duration").intValue();
+        assertEquals(3, metadata.count);
+
+        MetricData data = new MetricData();
+        data.setObservation(observation);
+        assertArrayEquals(new int[]{MetricMetadata.valueColumn(cpu), MetricMetadata.valueColumn(mem),
+                MetricMetadata.valueColumn(flow), MetricMetadata.throughputColumn(flow)}, data.columns);
+
+        Map<String, Float> named = data.getNamedMetrics(metadata);
+        assertEquals(0.3f, named.get("cpu_" + cpu), 0.001f);
+        assertEquals(200f, named.get("mem_" + mem), 0.001f);
+        assertEquals(5f, named.get("duration_" + flow), 0.001f);
+        assertEquals(2f, named.get("throughput_" + flow), 0.001f);
+
+        Map<String, Float> written = new HashMap<>();
+        observation.writeTo(written);
+        assertEquals(named, written);
+    }
+
+    @Test
+    public void testAggregationOverwrites() {
+        MetricMetadata metadata = new MetricMetadata();
+        MetricAccumulator observation = new MetricAccumulator();
+        metadata.aggregateThreads(Arrays.asList(thread(Thread.State.RUNNABLE, 3), thread(Thread.State.RUNNABLE, 5)), observation);
+        metadata.aggregateThreads(Collections.singletonList(thread(Thread.State.RUNNABLE, 7)), observation);
+
+        Map<String, Float> res = new HashMap<>();
+        observation.writeTo(res);
+        assertEquals(Collections.singletonMap("RUNNABLE_1", 7f), res);
+
+        // the source numbers survive serialization of the metadata
+        MetricMetadata restored = new MetricMetadata();
+        restored.sourceIDs = new HashMap<>(metadata.sourceIDs);
+        restored.count = metadata.count;
+        MetricAccumulator next = new MetricAccumulator();
+        restored.aggregateThreads(Arrays.asList(thread(Thread.State.RUNNABLE, 1), thread(Thread.State.BLOCKED, 2)), next);
+        res.clear();
+        next.writeTo(res);
+        assertEquals(1f, res.get("RUNNABLE_1"), 0.001f);
+        assertEquals(2f, res.get("BLOCKED_2"), 0.001f);
+    }
+
+    @Test
+    public void testMetricNames() {
+        MetricMetadata metadata = new MetricMetadata();
+        metadata.sourceIDs = new HashMap<>();
+        metadata.sourceIDs.put("load:cpu", 1L);
+        metadata.sourceIDs.put("f1:duration", 2L);
+        metadata.count = 2;
+        assertEquals("cpu_1", metadata.getMetricName(MetricMetadata.valueColumn(1)));
+        assertEquals("duration_2", metadata.getMetricName(MetricMetadata.valueColumn(2)));
+        assertEquals("throughput_2", metadata.getMetricName(MetricMetadata.throughputColumn(2)));
+
+        // both columns of an unknown source are skipped
+        assertNull(metadata.getMetricName(MetricMetadata.valueColumn(3)));
+        assertNull(metadata.getMetricName(MetricMetadata.throughputColumn(3)));
+        assertNull(metadata.getMetricName(MetricMetadata.throughputColumn(0)));
+
+        // a source added later is named too
+        metadata.aggregateThreads(Collections.singletonList(thread(Thread.State.RUNNABLE, 1)), new MetricAccumulator());
+        assertEquals("RUNNABLE_3", metadata.getMetricName(MetricMetadata.valueColumn(3)));
+        assertEquals("throughput_3", metadata.getMetricName(MetricMetadata.throughputColumn(3)));
+    }
+
+    @Test
+    public void testLegacyMetrics() {
+        MetricData data = new MetricData();
+        data.metrics = Collections.singletonMap("cpu_1", 0.5f);
+        assertSame(data.metrics, data.getNamedMetrics(new MetricMetadata()));
+    }
+
+    private static LoadData load(float cpu, float heapUsed) {
+        LoadData res = new LoadData();
+        res.processCpuLoad = cpu;
+        res.heapUsed = heapUsed;
+        return res;
+    }
+
+    private static ThreadOccurrenceData thread(Thread.State state, int count) {
+        ThreadOccurrenceData res = new ThreadOccurrenceData();
+        res.threadState = state;
+        res.count = count;
+        return res;
+    }
+
+    private static FlowOccurrenceData flow(String flowId, int count, long cumulativeTime, float durationSec) {
+        FlowOccurrenceData res = new FlowOccurrenceData();
+        res.snapshotDurationSec = durationSec;
+        res.setRootFlowStr("{\"flowId\":\"" + flowId + "\",\"count\":" + count + ",\"cumulativeTime\":" + cumulativeTime + "}");
+        return res;
+    }
+}
@@ -0,0 +1,102 @@
+package com.jflop.server.runtime.data.metric;
+
+import com.jflop.server.admin.data.AgentJVM;
+import com.jflop.server.persistency.DocType;
+import com.jflop.server.runtime.data.AgentDataFactory;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests merging of the metric rollups and picking the query resolution.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MetricRollupTest {
+
+    private static final long HOUR = MetricResolution.HOUR.intervalMillis;
+
+    @Test
+    public void testRollUp() {
+        MetricRollup first = new MetricRollup();
+        first.add(observation(new int[]{0, 2, 3}, new float[]{1f, 10f, 4f}));
+        first.add(observation(new int[]{0, 3}, new float[]{3f, 2f}));
+        assertArrayEquals(new int[]{0, 2, 3}, first.columns);
+        assertArrayEquals(new int[]{2, 1, 2}, first.count);
+        assertEquals(2f, first.average(0), 0.001f);
+        assertEquals(2f, first.min[2], 0.001f);
+        assertEquals(4f, first.max[2], 0.001f);
+
+        MetricRollup second = new MetricRollup();
+        second.add(observation(new int[]{1, 2}, new float[]{5f, 20f}));
+
+        MetricRollup coarse = new MetricRollup();
+        coarse.add(first);
+        coarse.add(second);
+        assertArrayEquals(new int[]{0, 1, 2, 3}, coarse.columns);
+        assertArrayEquals(new int[]{2, 1, 2, 2}, coarse.count);
+        assertEquals(15f, coarse.average(2), 0.001f);
+        assertEquals(10f, coarse.min[2], 0.001f);
+        assertEquals(20f, coarse.max[2], 0.001f);
+
+        // the observations stored before the columnar encoding are ignored
+        MetricData legacy = new MetricData();
+        coarse.add(legacy);
+        assertEquals(4, coarse.columns.length);
+    }
+
+    @Test
+    public void testBuckets() {
+        assertEquals(2 * HOUR, MetricResolution.HOUR.bucketStart(2 * HOUR + 59 * 60 * 1000));
+        assertEquals(2 * HOUR + 60 * 1000, MetricResolution.MINUTE.bucketStart(2 * HOUR + 61 * 1000));
+        assertEquals(MetricResolution.MINUTE, MetricResolution.HOUR.finer());
+        assertNull(MetricResolution.RAW.finer());
+    }
+
+    @Test
+    public void testDocumentId() {
+        AgentJVM agentJvm = new AgentJVM("account", "agent", "jvm");
+        String id = rollup(agentJvm, MetricResolution.MINUTE, HOUR).getDocumentId();
+        assertEquals(id, rollup(agentJvm, MetricResolution.MINUTE, HOUR).getDocumentId());
+        assertNotEquals(id, rollup(agentJvm, MetricResolution.HOUR, HOUR).getDocumentId());
+        assertNotEquals(id, rollup(agentJvm, MetricResolution.MINUTE, 2 * HOUR).getDocumentId());
+        assertNotEquals(id, rollup(new AgentJVM("account", "agent", "other"), MetricResolution.MINUTE, HOUR).getDocumentId());
+    }
+
+    @Test
+    public void testSelect() {
+        long now = 1000 * HOUR;
+        // raw kept for a day, minutes for a week, hours for a year
+        long[] retention = {24 * HOUR, 7 * 24 * HOUR, 365 * 24 * HOUR};
+
+        assertEquals(MetricResolution.RAW, select(now - 10 * 60 * 1000, now, now, 1000, retention));
+        assertEquals(MetricResolution.MINUTE, select(now - 10 * HOUR, now, now, 1000, retention));
+        assertEquals(MetricResolution.HOUR, select(now - 30 * HOUR, now, now, 1000, retention));
+
+        // a short range in the past is served from the resolution still keeping it
+        assertEquals(MetricResolution.MINUTE, select(now - 48 * HOUR, now - 47 * HOUR, now, 1000, retention));
+        assertEquals(MetricResolution.HOUR, select(now - 500 * HOUR, now - 499 * HOUR, now, 1000, retention));
+    }
+
+    private static MetricResolution select(long from, long to, long now, int maxPoints, long[] retention) {
+        return MetricResolution.select(from, to, now, maxPoints, resolution -> retention[resolution.ordinal()]);
+    }
+
+    private static MetricRollup rollup(AgentJVM agentJvm, MetricResolution resolution, long time) {
+        DocType docType = new DocType("metricRollup", "persistency/metricRollup.json", MetricRollup.class);
+        MetricRollup res = new AgentDataFactory(agentJvm, new Date(time), Collections.singletonList(docType)).createInstance(MetricRollup.class);
+        res.resolution = resolution;
+        return res;
+    }
+
+    private static MetricData observation(int[] columns, float[] values) {
+        MetricData res = new MetricData();
+        res.columns = columns;
+        res.values = values;
+        return res;
+    }
+}
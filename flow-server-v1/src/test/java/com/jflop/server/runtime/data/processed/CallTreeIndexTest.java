@@ -0,0 +1,81 @@
+package com.jflop.server.runtime.data.processed;
+
+import com.jflop.server.persistency.ValuePair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests matching of the stack traces against the indexed call tree.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class CallTreeIndexTest {
+
+    @Test
+    public void testFindPath() {
+        MethodCall leaf = call("com.acme.C", "leaf", "C.java", "50", "60");
+        MethodCall work = call("com.acme.B", "work", "B.java", "30", "40", call("com.acme.D", "other", "D.java", "70", "80"), leaf);
+        MethodCall root = call("com.acme.A", "run", "A.java", "10", "20", work);
+        CallTreeIndex index = new CallTreeIndex(Collections.singletonList(root));
+
+        // the not instrumented frame between the calls is skipped
+        StackTraceElement[] stackTrace = {
+                frame("com.acme.C", "leaf", "C.java", 55),
+                frame("com.acme.X", "helper", "X.java", 5),
+                frame("com.acme.B", "work", "B.java", 35),
+                frame("com.acme.A", "run", "A.java", 15),
+                frame("java.lang.Thread", "run", "Thread.java", 745)
+        };
+        CallTreeIndex.Trace trace = index.trace(stackTrace);
+        assertEquals(Collections.singletonList(root), new ArrayList<>(index.candidateRoots(trace, Collections.singletonList(root))));
+        assertEquals(Arrays.asList(root, work, leaf), calls(index.findPath(root, trace, stackTrace.length - 1)));
+        assertEquals(Integer.valueOf(35), index.findPath(root, trace, stackTrace.length - 1).get(1).value2);
+
+        // the instrumented frame out of the method lines breaks the path
+        stackTrace[2] = frame("com.acme.B", "work", "B.java", 99);
+        trace = index.trace(stackTrace);
+        assertEquals(Collections.singletonList(root), calls(index.findPath(root, trace, stackTrace.length - 1)));
+
+        // the trace without the root frame does not match
+        trace = index.trace(new StackTraceElement[]{frame("com.acme.B", "work", "B.java", 35)});
+        assertTrue(index.candidateRoots(trace, Collections.singletonList(root)).isEmpty());
+        assertNull(index.findPath(root, trace, 0));
+    }
+
+    @Test
+    public void testInstrumented() {
+        MethodCall root = call("com.acme.A", "run", "A.java", "10", "20", call("com.acme.B", "work", "B.java", "30", "40"));
+        CallTreeIndex index = new CallTreeIndex(Collections.singletonList(root));
+        assertTrue(index.isInstrumented("com/acme/B", "work"));
+        assertFalse(index.isInstrumented("com/acme/B", "run"));
+    }
+
+    private static List<MethodCall> calls(List<ValuePair<MethodCall, Integer>> path) {
+        List<MethodCall> res = new ArrayList<>();
+        for (ValuePair<MethodCall, Integer> pair : path) res.add(pair.value1);
+        return res;
+    }
+
+    private static MethodCall call(String className, String methodName, String fileName, String firstLine, String returnLine, MethodCall... nested) {
+        MethodCall call = new MethodCall();
+        call.className = className.replace('.', '/');
+        call.methodName = methodName;
+        call.fileName = fileName;
+        call.methodDescriptor = "()V";
+        call.firstLine = firstLine;
+        call.flows = Collections.singletonList(new MethodFlow("flow", 0, returnLine, new MethodFlowStatistics()));
+        if (nested.length > 0) call.nestedCalls = Arrays.asList(nested);
+        return call;
+    }
+
+    private static StackTraceElement frame(String className, String methodName, String fileName, int line) {
+        return new StackTraceElement(className, methodName, fileName, line);
+    }
+}
@@ -0,0 +1,136 @@
+package com.jflop.server.runtime.data.processed;
+
+import com.jflop.server.runtime.data.FlowMetadata;
+import com.jflop.server.runtime.data.FlowOccurrenceData;
+import com.jflop.server.runtime.data.ThreadMetadata;
+import com.jflop.server.runtime.data.ThreadOccurrenceData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the distances between the flows of a summary, and the flow outlines.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class FlowSummaryTest {
+
+    @Test
+    public void testDistance() {
+        FlowSummary summary = summary("f1:A[B]", "f2:A[B,C]", "f3:A[C[D]]", "f4:E");
+
+        assertEquals(0f, summary.calculateDistance("f1", "f1"), 0.001);
+        assertEquals(1f / 3, summary.calculateDistance("f1", "f2"), 0.001);
+        assertEquals(3f / 4, summary.calculateDistance("f3", "f1"), 0.001);
+        assertEquals(1f, summary.calculateDistance("f1", "f4"), 0.001);
+
+        try {
+            summary.calculateDistance("f1", "f5");
+            fail("Unknown flow must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith(" f5"));
+        }
+    }
+
+    @Test
+    public void testDistanceMatrix() {
+        List<String> flowIds = new ArrayList<>();
+        List<String> flows = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            flowIds.add("f" + i);
+            flows.add("f" + i + ":" + (i % 3 == 0 ? "E" : "A") + "[B" + (i % 2 == 0 ? "[C]" : "") + (i % 5 == 0 ? ",D" : "") + "]");
+        }
+        FlowSummary summary = summary(flows.toArray(new String[flows.size()]));
+
+        float[][] distances = summary.calculateDistances(flowIds);
+        for (int i = 0; i < flowIds.size(); i++) {
+            assertEquals(0f, distances[i][i], 0);
+            for (int j = 0; j < flowIds.size(); j++) {
+                assertEquals(summary.calculateDistance(flowIds.get(i), flowIds.get(j)), distances[i][j], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testOutline() {
+        FlowSummary summary = summary("f1:A[B]");
+        ThreadMetadata thread = new ThreadMetadata();
+        thread.dumpId = "t1";
+        thread.stackTrace = new StackTraceElement[]{
+                new StackTraceElement("com.acme.X", "work", "X.java", 10),
+                new StackTraceElement("com.acme.B", "run", "B.java", 1),
+                new StackTraceElement("com.acme.A", "run", "A.java", 1),
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 745)
+        };
+        ThreadOccurrenceData occurrence = new ThreadOccurrenceData();
+        occurrence.dumpId = "t1";
+        occurrence.count = 1;
+        summary.aggregateThreads(Collections.singletonMap(thread, Collections.singletonList(occurrence)));
+
+        Map<String, ThreadMetadata> threads = Collections.singletonMap("t1", thread);
+        FlowOutline outline = summary.buildOutline("f1", threads);
+        assertSame(outline, summary.buildOutline("f1", threads));
+
+        String expected = "\nflow f1\n\tjava.lang.Thread.run\n\t\tcom.acme.A.run\n\t\t\tcom.acme.B.run\n\t\t\t\tcom.acme.X.work";
+        assertEquals(expected, outline.format(false));
+        assertEquals(outline.format(true), outline.format(true));
+        assertEquals(expected, outline.format(false));
+
+        // rebuilt for another threads map
+        Map<String, ThreadMetadata> otherThreads = new HashMap<>(threads);
+        FlowOutline otherOutline = summary.buildOutline("f1", otherThreads);
+        assertNotSame(outline, otherOutline);
+        assertSame(otherOutline, summary.buildOutline("f1", otherThreads));
+        assertEquals(expected, otherOutline.format(false));
+        outline = otherOutline;
+        threads = otherThreads;
+
+        // rebuilt after the threads are aggregated again
+        summary.aggregateThreads(Collections.emptyMap());
+        assertNotSame(outline, summary.buildOutline("f1", threads));
+    }
+
+    /**
+     * @param flows flows in the form "f1:A[B[C],D]", where each letter is the method com/acme/X.run
+     */
+    private static FlowSummary summary(String... flows) {
+        Map<FlowMetadata, List<FlowOccurrenceData>> map = new LinkedHashMap<>();
+        for (String flow : flows) {
+            String[] parts = flow.split(":");
+            FlowMetadata metadata = new FlowMetadata();
+            metadata.setRootFlowStr(toJson(parts[0], parts[1], true));
+            FlowOccurrenceData occurrence = new FlowOccurrenceData();
+            occurrence.snapshotDurationSec = 1;
+            occurrence.setRootFlowStr(toJson(parts[0], parts[1], false));
+            map.put(metadata, Collections.singletonList(occurrence));
+        }
+        FlowSummary res = new FlowSummary();
+        res.aggregateFlows(map);
+        return res;
+    }
+
+    private static String toJson(String flowId, String tree, boolean metadata) {
+        StringBuilder json = new StringBuilder();
+        for (char c : tree.toCharArray()) {
+            if (Character.isLetter(c)) {
+                if (json.length() > 0 && json.charAt(json.length() - 1) == '}') json.append(',');
+                json.append("{\"flowId\":\"").append(flowId).append("\"");
+                if (metadata)
+                    json.append(",\"className\":\"com/acme/").append(c).append("\",\"fileName\":\"").append(c)
+                            .append(".java\",\"methodName\":\"run\",\"methodDescriptor\":\"()V\",\"firstLine\":\"1\",\"returnLine\":\"2\"");
+                else
+                    json.append(",\"count\":1,\"minTime\":1,\"maxTime\":1,\"cumulativeTime\":1");
+            } else if (c == '[') {
+                json.append(",\"subflows\":[");
+            } else if (c == ']') {
+                json.append("}]");
+            } else if (c == ',') {
+                json.append('}');
+            }
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,106 @@
+package com.jflop.server.runtime.data.processed;
+
+import com.jflop.server.persistency.ValuePair;
+import com.jflop.server.runtime.data.FlowMetadata;
+import com.jflop.server.runtime.data.FlowOccurrenceData;
+import com.jflop.server.runtime.data.ThreadOccurrenceData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests aggregation of the flows and the threads in the method call tree.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+public class MethodCallTest {
+
+    @Test
+    public void testAggregateFlows() {
+        // flow f1 calls B twice, flow f2 calls C
+        FlowMetadata f1 = metadata("{'flowId':'f1'," + method("A") + ",'subflows':[{'flowId':'f1'," + method("B") + "},{'flowId':'f1'," + method("B") + "}]}");
+        FlowMetadata f2 = metadata("{'flowId':'f2'," + method("A") + ",'subflows':[{'flowId':'f2'," + method("C") + "}]}");
+
+        Map<FlowMetadata, List<FlowOccurrenceData>> flows = new LinkedHashMap<>();
+        flows.put(f1, Arrays.asList(
+                occurrence(2, "{'flowId':'f1','count':4,'minTime':10,'maxTime':30,'cumulativeTime':80,'subflows':[" + element(4, 2, 6, 12) + "," + element(4, 4, 8, 24) + "]}"),
+                occurrence(2, "{'flowId':'f1','count':2,'minTime':5,'maxTime':40,'cumulativeTime':40,'subflows':[" + element(2, 1, 9, 10) + "," + element(2, 3, 3, 6) + "]}")));
+        flows.put(f2, Collections.singletonList(
+                occurrence(1, "{'flowId':'f2','count':1,'minTime':7,'maxTime':7,'cumulativeTime':7,'subflows':[" + element(1, 5, 5, 5) + "]}")));
+
+        FlowSummary summary = new FlowSummary();
+        summary.aggregateFlows(flows);
+
+        assertEquals(1, summary.getRoots().size());
+        MethodCall root = summary.getRoots().get(0);
+        assertEquals(2, root.flows.size());
+        assertEquals(1.5f, root.flows.get(0).statistics.throughputPerSec, 0.001);
+        assertEquals(20, root.flows.get(0).statistics.averageTime);
+        assertEquals(5, root.flows.get(0).statistics.minTime);
+
+        assertEquals(2, root.nestedCalls.size());
+        MethodCall b = root.nestedCalls.get(0);
+        assertEquals("B", b.methodName);
+        assertEquals(1, b.flows.size());
+        MethodFlow bFlow = b.flows.get(0);
+        assertEquals(1, bFlow.position);
+        assertEquals(3f, bFlow.statistics.throughputPerSec, 0.001);
+        assertEquals(1, bFlow.statistics.minTime);
+        assertEquals(9, bFlow.statistics.maxTime);
+        assertEquals("C", root.nestedCalls.get(1).methodName);
+    }
+
+    @Test
+    public void testAddThread() {
+        MethodCall root = call("A");
+        MethodCall nested = call("B");
+        root.nestedCalls = new ArrayList<>(Arrays.asList(call("C"), nested));
+
+        ThreadOccurrenceData occurrence = new ThreadOccurrenceData();
+        occurrence.dumpId = "t1";
+        occurrence.threadState = Thread.State.RUNNABLE;
+        occurrence.count = 3;
+        root.addThread(Arrays.asList(new ValuePair<>(root, 12), new ValuePair<>(call("B"), 34)), Collections.singletonList(occurrence));
+        assertEquals(1, root.hotspots.size());
+        assertNull("the path must contain the calls of the tree", nested.hotspots);
+
+        root.addThread(Arrays.asList(new ValuePair<>(root, 12), new ValuePair<>(nested, 34)), Collections.singletonList(occurrence));
+        assertEquals(2, root.hotspots.size());
+        assertEquals("34", nested.hotspots.get(0).line);
+        assertNull(root.nestedCalls.get(0).hotspots);
+    }
+
+    private static String method(String name) {
+        return "'className':'com/acme/" + name + "','fileName':'" + name + ".java','methodName':'" + name + "','methodDescriptor':'()V','firstLine':'1','returnLine':'2'";
+    }
+
+    private static String element(int count, long min, long max, long cumulative) {
+        return "{'count':" + count + ",'minTime':" + min + ",'maxTime':" + max + ",'cumulativeTime':" + cumulative + "}";
+    }
+
+    private static FlowMetadata metadata(String rootFlow) {
+        FlowMetadata res = new FlowMetadata();
+        res.setRootFlowStr(rootFlow.replace('\'', '"'));
+        return res;
+    }
+
+    private static FlowOccurrenceData occurrence(float durationSec, String rootFlow) {
+        FlowOccurrenceData res = new FlowOccurrenceData();
+        res.snapshotDurationSec = durationSec;
+        res.setRootFlowStr(rootFlow.replace('\'', '"'));
+        return res;
+    }
+
+    private static MethodCall call(String name) {
+        MethodCall res = new MethodCall();
+        res.className = "com/acme/" + name;
+        res.fileName = name + ".java";
+        res.methodName = name;
+        res.methodDescriptor = "()V";
+        res.firstLine = "1";
+        return res;
+    }
+}
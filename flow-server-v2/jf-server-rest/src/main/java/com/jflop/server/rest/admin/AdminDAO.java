@@ -28,6 +28,9 @@ public class AdminDAO {
     @Autowired
     private AgentJVMIndex agentJvmIndex;
 
+    @Autowired
+    private AgentTokenService tokenService;
+
     public AccountData createAccount(String accountName) {
         return accountIndex.createAccount(accountName);
     }
@@ -90,17 +93,31 @@ public class AdminDAO {
         }
     }
 
-    public AgentJVM verifyAgentJvm(String agentId, String jvmId) {
-        // Validate the agent ID, this is the only authorization check available for agent clients
-        // This approach is not scalable.
-        // TODO: replace the DB access with a token that contains account ID, and is obtained by agent on JVM start
+    /**
+     * Validate the agent ID and issue a token authorizing the reports of the agent JVM
+     */
+    public String issueAgentToken(String agentId, String jvmId) {
         AccountData account = accountIndex.findByAgent(agentId);
         if (account == null) throw new RuntimeException("Invalid agent ID: " + agentId);
+        return tokenService.issueToken(new AgentJVM(account.accountId, agentId, jvmId));
+    }
+
+    /**
+     * @param token agent token obtained by {@link #issueAgentToken(String, String)}, or null for the older agents
+     */
+    public AgentJVM verifyAgentJvm(String agentId, String jvmId, String token) {
+        // Validate the agent ID, this is the only authorization check available for agent clients
+        AgentJVM agentJvm;
+        if (token != null) {
+            agentJvm = tokenService.verifyToken(token, agentId, jvmId).getAgentJvm();
+        } else {
+            // agents without token are looked up in the accounts, which is not scalable
+            AccountData account = accountIndex.findByAgent(agentId);
+            if (account == null) throw new RuntimeException("Invalid agent ID: " + agentId);
+            agentJvm = new AgentJVM(account.accountId, agentId, jvmId);
+        }
 
-        AgentJVM agentJvm = new AgentJVM(account.accountId, agentId, jvmId);
-        agentJvmIndex.updateJvmState(agentJvm, 3, jvm -> {
-            jvm.lastReportedAt = new Date();
-        });
+        agentJvmIndex.reportedAt(agentJvm, new Date());
 
         return agentJvm;
     }
@@ -9,28 +9,64 @@ import com.jflop.server.util.DigestUtil;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * TODO: Document!
+ * Index of the agent JVM states.
+ * <p/>
+ * The report times are collected in memory by {@link #reportedAt(AgentJVM, Date)},
+ * and written in background every agentJvm.reportedAt.flushIntervalMillis, so that the reports do not wait for the state update.
  *
  * @author artem
  *         Date: 9/17/16
  */
 @Component
-public class AgentJVMIndex extends IndexTemplate {
+public class AgentJVMIndex extends IndexTemplate implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(AgentJVMIndex.class.getName());
 
     private static final String AGENT_JVM_INDEX = "jf-agent-jvm";
     private static final int MAX_JVM_NUM = 500;
     public static final int MAX_FEATURES = 10;
 
+    @Value("${agentJvm.reportedAt.flushIntervalMillis:1000}")
+    private long flushIntervalMillis = 1000;
+
+    private final Map<AgentJVM, Date> reportTimes = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
     public AgentJVMIndex() {
         super(AGENT_JVM_INDEX + "-template", AGENT_JVM_INDEX + "*", new DocType("agent", "es/agentJvmState.json", AgentJvmState.class));
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, AGENT_JVM_INDEX + "-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushReportTimes, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) flusher.shutdownNow();
+        flushReportTimes();
+    }
+
     @Override
     public String indexName() {
         return AGENT_JVM_INDEX;
@@ -93,6 +129,27 @@ public class AgentJVMIndex extends IndexTemplate {
             throw new RuntimeException("Failed to update JVM state after " + maxAttempts + " attempts");
     }
 
+    /**
+     * Record the report time of the JVM, the state is updated in background
+     */
+    public void reportedAt(AgentJVM agentJVM, Date time) {
+        reportTimes.merge(agentJVM, time, (existing, reported) -> reported.after(existing) ? reported : existing);
+    }
+
+    private void flushReportTimes() {
+        for (AgentJVM agentJVM : new ArrayList<>(reportTimes.keySet())) {
+            Date time = reportTimes.remove(agentJVM);
+            if (time == null) continue;
+            try {
+                updateJvmState(agentJVM, 3, jvm -> {
+                    if (jvm.lastReportedAt == null || time.after(jvm.lastReportedAt)) jvm.lastReportedAt = time;
+                });
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to update the report time of " + agentJVM, e);
+            }
+        }
+    }
+
     public interface JvmStateMergeAction {
         void merge(AgentJvmState existing);
     }
@@ -0,0 +1,143 @@
+package com.jflop.server.rest.admin;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jflop.server.data.AgentJVM;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Issues and verifies the signed agent tokens.
+ * <p/>
+ * The agent obtains a token once on JVM start, and sends it with every report, so that the report is authorized
+ * without looking up the account. The token is the base64 encoded JSON of the {@link AgentToken},
+ * followed by its HMAC-SHA256 signature with the secret agent.token.secret.
+ * The secret must be the same on all the server nodes, so the server does not start without it.
+ *
+ * @author artem
+ *         Date: 10/18/26
+ */
+@Component
+public class AgentTokenService implements InitializingBean {
+
+    public static final String TOKEN_HEADER = "X-JF-Agent-Token";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Value("${agent.token.secret:}")
+    private String secret;
+
+    @Value("${agent.token.ttlHours:24}")
+    private int ttlHours;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private SecretKeySpec key;
+
+    /**
+     * Content of the agent token
+     */
+    public static class AgentToken {
+        public String accountId;
+        public String agentId;
+        public String jvmId;
+        public long expiresAt;
+
+        @JsonIgnore
+        public AgentJVM getAgentJvm() {
+            return new AgentJVM(accountId, agentId, jvmId);
+        }
+    }
+
+    /**
+     * Thrown when the agent token cannot be verified, the agent should obtain a new one
+     */
+    public static class InvalidTokenException extends RuntimeException {
+        public InvalidTokenException(String message) {
+            super(message);
+        }
+
+        public InvalidTokenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    public AgentTokenService() {
+    }
+
+    AgentTokenService(String secret, int ttlHours) {
+        this.secret = secret;
+        this.ttlHours = ttlHours;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        // a random secret would make every node reject the tokens issued by the others
+        if (secret == null || secret.isEmpty())
+            throw new IllegalStateException("agent.token.secret is not configured");
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    public String issueToken(AgentJVM agentJvm) {
+        AgentToken token = new AgentToken();
+        token.accountId = agentJvm.accountId;
+        token.agentId = agentJvm.agentId;
+        token.jvmId = agentJvm.jvmId;
+        token.expiresAt = System.currentTimeMillis() + ttlHours * 3600 * 1000L;
+
+        try {
+            String payload = ENCODER.encodeToString(mapper.writeValueAsBytes(token));
+            return payload + "." + ENCODER.encodeToString(sign(payload));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Verify the token signature and expiration, and that it was issued for the given agent JVM.
+     *
+     * @return the token content
+     * @throws InvalidTokenException if the token is invalid
+     */
+    public AgentToken verifyToken(String tokenStr, String agentId, String jvmId) {
+        int pos = tokenStr.indexOf('.');
+        if (pos < 0) throw new InvalidTokenException("Invalid agent token");
+
+        String payload = tokenStr.substring(0, pos);
+        AgentToken token;
+        try {
+            byte[] signature = DECODER.decode(tokenStr.substring(pos + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload)))
+                throw new InvalidTokenException("Invalid agent token signature");
+            token = mapper.readValue(DECODER.decode(payload), AgentToken.class);
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidTokenException("Invalid agent token", e);
+        }
+
+        if (token.expiresAt < System.currentTimeMillis()) throw new InvalidTokenException("Agent token expired");
+        if (!token.agentId.equals(agentId) || !token.jvmId.equals(jvmId))
+            throw new InvalidTokenException("Agent token was issued for another agent JVM");
+        return token;
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
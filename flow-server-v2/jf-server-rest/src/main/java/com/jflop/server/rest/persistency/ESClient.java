@@ -19,6 +19,7 @@ import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -38,11 +39,19 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.logging.Logger;
 
 /**
  * Elastic search client
+ * <p/>
+ * Connects to the seed nodes listed in elasticsearch.hosts, and with sniffing enabled discovers the rest of the
+ * data nodes and spreads the requests among them. The document writes and gets go through a separate transport
+ * client with its own connections and network threads, so that the searches and admin requests don't delay them.
  *
  * @author artem
  *         Date: 8/13/16
@@ -55,16 +64,29 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     private ObjectMapper mapper = new ObjectMapper();
 
-    @Value("${elasticsearch.host}")
-    private String esHost;
+    @Value("${elasticsearch.host:localhost}")
+    private String esHost = "localhost";
 
-    @Value("${elasticsearch.port}")
-    private int esPort;
+    @Value("${elasticsearch.port:9300}")
+    private int esPort = 9300;
+
+    @Value("${elasticsearch.hosts:}")
+    private String esHosts = "";
+
+    @Value("${elasticsearch.sniff:false}")
+    private boolean sniff;
+
+    @Value("${elasticsearch.ingest.workers:2}")
+    private int ingestWorkers = 2;
+
+    @Value("${elasticsearch.query.workers:4}")
+    private int queryWorkers = 4;
 
     @Value("${cluster.name}")
     private String esCluster;
 
     private TransportClient client;
+    private TransportClient ingestClient;
 
     public ESClient() {
     }
@@ -78,15 +100,51 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        List<InetSocketTransportAddress> seedNodes = parseAddresses(esHosts.trim().isEmpty() ? esHost : esHosts, esPort);
+        client = createClient("query", queryWorkers, seedNodes);
+        ingestClient = createClient("ingest", ingestWorkers, seedNodes);
+        logger.info("Connected to " + seedNodes + (sniff ? " with sniffing" : ""));
+        awaitClusterAvailable(5);
+    }
+
+    private TransportClient createClient(String name, int workers, List<InetSocketTransportAddress> seedNodes) {
         Settings settings = Settings.builder()
                 .put("cluster.name", esCluster)
+                .put("node.name", "jf-" + name)
+                .put("client.transport.sniff", sniff)
+                .put("transport.netty.worker_count", workers)
                 .build();
-        client = new PreBuiltTransportClient(settings)
-                .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(esHost), esPort));
+        TransportClient res = new PreBuiltTransportClient(settings);
+        for (InetSocketTransportAddress address : seedNodes) {
+            res.addTransportAddress(address);
+        }
+        return res;
+    }
+
+    /**
+     * @param hosts       comma separated list of host[:port]
+     * @param defaultPort port of the hosts that don't specify one
+     */
+    static List<InetSocketTransportAddress> parseAddresses(String hosts, int defaultPort) throws UnknownHostException {
+        List<InetSocketTransportAddress> res = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) continue;
+            int port = defaultPort;
+            int pos = host.lastIndexOf(':');
+            if (pos > 0) {
+                port = Integer.parseInt(host.substring(pos + 1));
+                host = host.substring(0, pos);
+            }
+            res.add(new InetSocketTransportAddress(InetAddress.getByName(host), port));
+        }
+        if (res.isEmpty()) throw new RuntimeException("No elasticsearch hosts configured");
+        return res;
     }
 
     @Override
     public void destroy() throws Exception {
+        ingestClient.close();
         client.close();
     }
 
@@ -95,13 +153,40 @@ public class ESClient implements InitializingBean, DisposableBean {
         return response.getIndexTemplates();
     }
 
+    /**
+     * Install the template unless the same one is already installed.
+     * The template version holds a hash of the template content, so that the unchanged templates are not put again
+     * on every server start.
+     */
     public void putTemplate(String name, String template, Collection<DocType> docTypes) {
-        PutIndexTemplateRequestBuilder request = client.admin().indices().preparePutTemplate(name).setTemplate(template).setOrder(1);
+        Map<String, String> mappings = new TreeMap<>();
         for (DocType docType : docTypes) {
-            request.addMapping(docType.docType, docType.readMapping(), XContentType.JSON);
+            mappings.put(docType.docType, docType.readMapping());
+        }
+        int version = templateVersion(template, mappings);
+        for (IndexTemplateMetaData installed : getTemplates(name)) {
+            if (installed.name().equals(name) && Objects.equals(installed.version(), version)) {
+                logger.fine("Template " + name + " is up to date");
+                return;
+            }
+        }
+
+        PutIndexTemplateRequestBuilder request = client.admin().indices().preparePutTemplate(name).setTemplate(template).setOrder(1).setVersion(version);
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            request.addMapping(mapping.getKey(), mapping.getValue(), XContentType.JSON);
         }
         request.execute().actionGet();
-        awaitClusterAvailable(5);
+        logger.info("Installed template " + name + " version " + version);
+    }
+
+    static int templateVersion(String template, Map<String, String> mappings) {
+        MessageDigest digest = MessageDigests.sha1();
+        digest.update(template.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            digest.update(mapping.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(mapping.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return ByteBuffer.wrap(digest.digest()).getInt();
     }
 
     public void deleteTemplates(String... names) {
@@ -132,7 +217,7 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     public String createDocument(String index, String docType, Object pojo, String id) {
         try {
-            IndexRequestBuilder request = client.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(pojo), XContentType.JSON);
+            IndexRequestBuilder request = ingestClient.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(pojo), XContentType.JSON);
             if (id != null) {
                 request.setId(id);
                 request.setCreate(true);
@@ -145,7 +230,7 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     public <T> PersistentData<T> createDocument(String index, String docType, PersistentData<T> doc) {
         try {
-            IndexRequestBuilder request = client.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
+            IndexRequestBuilder request = ingestClient.prepareIndex(index, docType).setSource(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
             if (doc.id != null) {
                 request.setId(doc.id);
                 request.setCreate(true);
@@ -178,7 +263,7 @@ public class ESClient implements InitializingBean, DisposableBean {
 
     public <T> PersistentData<T> updateDocument(String index, String docType, PersistentData<T> doc) {
         try {
-            UpdateRequestBuilder request = client.prepareUpdate(index, docType, doc.id).setDoc(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
+            UpdateRequestBuilder request = ingestClient.prepareUpdate(index, docType, doc.id).setDoc(mapper.writeValueAsBytes(doc.source), XContentType.JSON);
             if (doc.version != 0) request.setVersion(doc.version);
             UpdateResponse response = request.execute().actionGet();
             return new PersistentData<>(response.getId(), response.getVersion(), doc.source);
@@ -188,7 +273,7 @@ public class ESClient implements InitializingBean, DisposableBean {
     }
 
     public <T> PersistentData<T> getDocument(String indexName, String docType, PersistentData<T> data, Class<T> type) {
-        GetRequestBuilder request = client.prepareGet(indexName, docType, data.id);
+        GetRequestBuilder request = ingestClient.prepareGet(indexName, docType, data.id);
         if (data.version != 0) request.setVersion(data.version);
 
         GetResponse response;
@@ -209,7 +294,7 @@ public class ESClient implements InitializingBean, DisposableBean {
     }
 
     public <T> List<T> getDocuments(String indexName, String docType, Class<T> type, Set<String> ids) {
-        MultiGetRequestBuilder request = client.prepareMultiGet().add(indexName, docType, ids);
+        MultiGetRequestBuilder request = ingestClient.prepareMultiGet().add(indexName, docType, ids);
         MultiGetResponse response;
         try {
             response = request.execute().actionGet();
@@ -234,7 +319,7 @@ public class ESClient implements InitializingBean, DisposableBean {
     }
 
     public boolean deleteDocument(String indexName, String docType, PersistentData document) {
-        DeleteRequestBuilder request = client.prepareDelete(indexName, docType, document.id);
+        DeleteRequestBuilder request = ingestClient.prepareDelete(indexName, docType, document.id);
         if (document.version != 0) request.setVersion(document.version);
         return request.execute().actionGet().status() == RestStatus.FOUND;
     }
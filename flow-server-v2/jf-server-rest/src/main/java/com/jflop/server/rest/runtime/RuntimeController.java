@@ -2,9 +2,11 @@ package com.jflop.server.rest.runtime;
 
 import com.jflop.server.data.AgentJVM;
 import com.jflop.server.rest.admin.AdminDAO;
+import com.jflop.server.rest.admin.AgentTokenService;
 import com.jflop.server.rest.runtime.kafka.CommandTopicConsumer;
 import com.jflop.server.rest.runtime.kafka.InTopicProducer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -40,16 +42,33 @@ public class RuntimeController {
     @Autowired
     private CommandTopicConsumer consumer;
 
+    @RequestMapping(method = POST, path = "/{agentId}/{jvmId}/token", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> issueToken(
+            @PathVariable("agentId") String agentId,
+            @PathVariable("jvmId") String jvmId) {
+
+        try {
+            Map<String, Object> res = new HashMap<>();
+            res.put("token", adminDAO.issueAgentToken(agentId, jvmId));
+            return ResponseEntity.ok(res);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to issue agent token", e);
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(null);
+        }
+    }
+
     @RequestMapping(method = POST, path = "/{agentId}/{jvmId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ResponseEntity<Map<String, Object>> reportFeaturesData(
             @PathVariable("agentId") String agentId,
             @PathVariable("jvmId") String jvmId,
+            @RequestHeader(value = AgentTokenService.TOKEN_HEADER, required = false) String token,
             @RequestBody Map<String, Object> featuresData) {
 
         Map<String, Object> res = new HashMap<>();
         try {
-            AgentJVM agentJVM = adminDAO.verifyAgentJvm(agentId, jvmId);
+            AgentJVM agentJVM = adminDAO.verifyAgentJvm(agentId, jvmId, token);
 
             // If agent reported errors, the request contains no data
             logger.info("Request from (" + jvmId + "): " + featuresData);
@@ -73,6 +92,10 @@ public class RuntimeController {
             logger.info("Response to (" + jvmId + "): " + res);
             // always return success
             return ResponseEntity.ok(res);
+        } catch (AgentTokenService.InvalidTokenException e) {
+            // the agent requests a new token on 401
+            logger.warning("Agent " + agentId + " report rejected: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(null);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Unexpected exception", e);
             return ResponseEntity.ok(res);